@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.dom4j.Element;
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Compares the heap used by the history of many rooms kept as queues of {@link Message}
+ * objects with the heap used by {@link HistoryBuffer}, and the time it takes to rebuild the
+ * history of every room at startup with the time it takes to rebuild the history of a room
+ * when it's first joined. Rows of the conversation log are generated in memory and added the
+ * way loaded rows are added, so the times do not include the database queries.
+ *
+ * ant benchmark -Dbenchmark=org.jivesoftware.openfire.muc.MUCHistoryBenchmark
+ *     -Dbenchmark.jvmargs=-Xmx2g -Dbenchmark.args="[rooms] [messages per room]"
+ */
+public class MUCHistoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+
+        long before = usedMemory();
+        long start = System.nanoTime();
+        List<ConcurrentLinkedQueue<Message>> queues = new ArrayList<>(rooms);
+        for (int room = 0; room < rooms; room++) {
+            ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < messages; i++) {
+                queue.add(createMessage(room, i));
+            }
+            queues.add(queue);
+        }
+        long eagerMillis = (System.nanoTime() - start) / 1000000;
+        long queueBytes = usedMemory() - before;
+        System.out.println(String.format("message queues: %,d rooms  %,6d ms to rebuild  %,14d bytes",
+                rooms, eagerMillis, queueBytes));
+        queues = null;
+
+        before = usedMemory();
+        start = System.nanoTime();
+        List<HistoryBuffer> buffers = new ArrayList<>(rooms);
+        for (int room = 0; room < rooms; room++) {
+            HistoryBuffer buffer = new HistoryBuffer();
+            for (int i = 0; i < messages; i++) {
+                buffer.addLoaded(createMessage(room, i), i * 1000L, false, messages);
+            }
+            buffers.add(buffer);
+        }
+        long bufferMillis = (System.nanoTime() - start) / 1000000;
+        long bufferBytes = usedMemory() - before;
+        System.out.println(String.format("history buffers: %,d rooms  %,6d ms to rebuild  %,14d bytes",
+                rooms, bufferMillis, bufferBytes));
+
+        // With lazy loading only the rooms that are joined are rebuilt, one at a time
+        start = System.nanoTime();
+        HistoryBuffer joined = new HistoryBuffer();
+        for (int i = 0; i < messages; i++) {
+            joined.addLoaded(createMessage(0, i), i * 1000L, false, messages);
+        }
+        List<Message> sent = joined.getMessages(10, -1, -1);
+        long joinMicros = (System.nanoTime() - start) / 1000;
+        System.out.println(String.format("first join: %,d us to rebuild one room and select %d messages",
+                joinMicros, sent.size()));
+        System.out.println(buffers.size() + " rooms kept alive");
+    }
+
+    /**
+     * Creates a message the way {@link MUCRoomHistory#addOldMessage} does.
+     */
+    private static Message createMessage(int room, int i) {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setBody("Message number " + i + " of the conversation in the room");
+        message.setFrom(new JID("room" + room, "conference.example.com", "occupant" + (i % 5), true));
+        Element delayInformation = message.addChildElement("delay", "urn:xmpp:delay");
+        delayInformation.addAttribute("stamp", XMPPDateTimeFormat.format(new Date(i * 1000L)));
+        delayInformation.addAttribute("from", "occupant" + (i % 5) + "@example.com/resource");
+        return message;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
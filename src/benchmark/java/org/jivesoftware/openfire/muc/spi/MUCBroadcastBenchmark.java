@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.BroadcastManager;
+import org.jivesoftware.openfire.SerializedMessage;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures the cost of fanning out a room message to every occupant against the size of the
+ * room. Three ways of producing the bytes written for each occupant are compared:<ul>
+ * <li> per occupant: the message is addressed to the occupant and serialized, the way rooms
+ *      used to send their messages.
+ * <li> shared: the message is serialized once; every occupant gets a {@link SerializedMessage}
+ *      that shares it, and the payload segments that a connection writes are read.
+ * <li> shared in shards: as shared, with the occupants split in shards by a
+ *      {@link BroadcastManager}, the way {@link LocalMUCRoom} delivers room stanzas.</ul>
+ *
+ * For each room size the benchmark reports the time and, for the modes that run on the calling
+ * thread, the heap allocated per occupant. Delivery to the sessions is not included. Before
+ * measuring, the stanza written for a few occupants is parsed and checked to be addressed to
+ * the occupant, so a benchmark of a broken splice fails instead of reporting numbers.
+ *
+ * ant benchmark -Dbenchmark=org.jivesoftware.openfire.muc.spi.MUCBroadcastBenchmark
+ *     -Dbenchmark.args="[iterations]"
+ */
+public class MUCBroadcastBenchmark {
+
+    private static final int[] ROOM_SIZES = {10, 100, 500, 2000, 10000};
+
+    private static final AtomicLong bytes = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final BroadcastManager broadcastManager = new BroadcastManager();
+        broadcastManager.start();
+        try {
+            final Message message = createMessage();
+            for (int size : ROOM_SIZES) {
+                final List<JID> occupants = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    occupants.add(new JID("user" + i, "example.com", "resource" + i, true));
+                }
+                check(message, occupants);
+                // Warm up
+                for (int i = 0; i < iterations; i++) {
+                    serializeForEveryOccupant(message, occupants);
+                    serializeOnce(message, occupants, null);
+                    serializeOnce(message, occupants, broadcastManager);
+                }
+
+                final Result perOccupant = new Result(size, iterations);
+                for (int i = 0; i < iterations; i++) {
+                    serializeForEveryOccupant(message, occupants);
+                }
+                perOccupant.stop();
+                final Result shared = new Result(size, iterations);
+                for (int i = 0; i < iterations; i++) {
+                    serializeOnce(message, occupants, null);
+                }
+                shared.stop();
+                final Result sharded = new Result(size, iterations);
+                for (int i = 0; i < iterations; i++) {
+                    serializeOnce(message, occupants, broadcastManager);
+                }
+                sharded.stop();
+                System.out.println(String.format("%,6d occupants: per occupant %s  shared %s  shared in shards %,7.0f ns",
+                        size, perOccupant, shared, sharded.getNanos()));
+            }
+            System.out.println(String.format("%,d bytes written", bytes.get()));
+        }
+        finally {
+            broadcastManager.stop();
+        }
+    }
+
+    /**
+     * Sets the address of every occupant and serializes the message, as sending the same
+     * message to every occupant did.
+     */
+    private static void serializeForEveryOccupant(Message message, List<JID> occupants) {
+        final Message shared = message.createCopy();
+        for (JID occupant : occupants) {
+            shared.setTo(occupant);
+            bytes.addAndGet(shared.getElement().asXML().getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    private static void serializeOnce(Message message, List<JID> occupants, BroadcastManager broadcastManager) {
+        final SerializedMessage serialized = new SerializedMessage(message);
+        final BroadcastManager.Delivery<JID> delivery = new BroadcastManager.Delivery<JID>() {
+            @Override
+            public void deliver(JID occupant) {
+                long length = 0;
+                for (ByteBuffer segment : write(serialized, occupant)) {
+                    length += segment.remaining();
+                }
+                bytes.addAndGet(length);
+            }
+        };
+        if (broadcastManager == null) {
+            for (JID occupant : occupants) {
+                delivery.deliver(occupant);
+            }
+        }
+        else {
+            broadcastManager.deliver(occupants, delivery);
+        }
+    }
+
+    /**
+     * Returns the bytes that a connection writes for an occupant. Only the length of the
+     * segments is read while measuring.
+     */
+    private static ByteBuffer[] write(SerializedMessage serialized, JID occupant) {
+        final SerializedMessage copy = new SerializedMessage(serialized);
+        copy.setTo(occupant);
+        return copy.getPayloadSegments();
+    }
+
+    /**
+     * Checks that the stanza written for the first, middle and last occupant is the message
+     * addressed to that occupant.
+     */
+    private static void check(Message message, List<JID> occupants) throws Exception {
+        final SerializedMessage serialized = new SerializedMessage(message);
+        final int[] samples = {0, occupants.size() / 2, occupants.size() - 1};
+        for (int sample : samples) {
+            final JID occupant = occupants.get(sample);
+            final StringBuilder xml = new StringBuilder();
+            for (ByteBuffer segment : write(serialized, occupant)) {
+                final byte[] data = new byte[segment.remaining()];
+                segment.get(data);
+                xml.append(new String(data, StandardCharsets.UTF_8));
+            }
+            final Element written = DocumentHelper.parseText(xml.toString()).getRootElement();
+            if (!occupant.toString().equals(written.attributeValue("to")) ||
+                    !message.getBody().equals(written.elementText("body")) ||
+                    written.element("stanza-id") == null) {
+                throw new IllegalStateException("Wrong stanza written for " + occupant + ": " + xml);
+            }
+        }
+    }
+
+    private static Message createMessage() {
+        final Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom("room@conference.example.com/juliet");
+        message.setID("purple42");
+        message.setBody("Wherefore art thou, Romeo? Deny thy father and refuse thy name; or, if thou wilt not, " +
+                "be but sworn my love, and I'll no longer be a Capulet.");
+        final Element stanzaId = message.addChildElement("stanza-id", "urn:xmpp:sid:0");
+        stanzaId.addAttribute("id", "5f3dbc5e-723b-4269-b9c1-9d9ca6a5ae08");
+        stanzaId.addAttribute("by", "room@conference.example.com");
+        return message;
+    }
+
+    /**
+     * Time and heap allocated by the calling thread per occupant for a run of iterations.
+     */
+    private static class Result {
+
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        private final long recipients;
+        private final long start;
+        private final long allocatedStart;
+        private long nanos;
+        private long allocated;
+
+        Result(int size, int iterations) {
+            this.recipients = (long) size * iterations;
+            this.allocatedStart = getAllocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        void stop() {
+            nanos = System.nanoTime() - start;
+            allocated = getAllocatedBytes() - allocatedStart;
+        }
+
+        double getNanos() {
+            return nanos / (double) recipients;
+        }
+
+        @Override
+        public String toString() {
+            if (allocatedStart < 0) {
+                return String.format("%,7.0f ns", getNanos());
+            }
+            return String.format("%,7.0f ns %,6d B", getNanos(), allocated / recipients);
+        }
+
+        private static long getAllocatedBytes() {
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+            }
+            return -1;
+        }
+    }
+}
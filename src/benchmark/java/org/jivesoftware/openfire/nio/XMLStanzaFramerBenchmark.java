@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.openfire.net.UTF8ByteArrayReader;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Compares the decoding path of {@link XMLLightweightParser} (decode to chars, cut
+ * Strings, parse from a StringReader) with the byte framing path of
+ * {@link XMLStanzaFramer} (frame on bytes, parse from the UTF-8 bytes). Both paths
+ * include building the DOM of every stanza, which is what the connection handler
+ * does with the decoded stanzas.<p>
+ *
+ * Scenarios:<ul>
+ * <li> small: many small chat messages per network read.
+ * <li> large: 64 KB stanzas that arrive in reads of 1460 bytes.
+ * <li> multibyte: messages with non-ASCII text.</ul>
+ *
+ * ant benchmark -Dbenchmark=org.jivesoftware.openfire.nio.XMLStanzaFramerBenchmark
+ *     -Dbenchmark.args="[seconds per scenario]"
+ */
+public class XMLStanzaFramerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+        final StringBuilder small = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            small.append("<message to='juliet@example.com/balcony' id='m").append(i)
+                    .append("' type='chat'><body>Wherefore art thou, Romeo?</body></message>");
+        }
+        final StringBuilder large = new StringBuilder("<iq type='result' id='roster'><query xmlns='jabber:iq:roster'>");
+        while (large.length() < 64 * 1024) {
+            large.append("<item jid='contact").append(large.length())
+                    .append("@example.com' name='Contact' subscription='both'><group>Friends</group></item>");
+        }
+        large.append("</query></iq>");
+        final StringBuilder multibyte = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            multibyte.append("<message to='juliet@example.com' type='chat'>")
+                    .append("<body>Jeg kan spise glas, det gør ikke ondt på mig. 私はガラスを食べられます。😀</body></message>");
+        }
+
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT.
+            final boolean report = round > 0;
+            run("small", chunks(small.toString(), Integer.MAX_VALUE), seconds, report);
+            run("large", chunks(large.toString(), 1460), seconds, report);
+            run("multibyte", chunks(multibyte.toString(), Integer.MAX_VALUE), seconds, report);
+        }
+    }
+
+    private static void run(String scenario, List<byte[]> chunks, int seconds, boolean report) throws Exception {
+        final XmlPullParserFactory factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+        factory.setNamespaceAware(true);
+        final XMPPPacketReader reader = new XMPPPacketReader();
+        reader.setXPPFactory(factory);
+
+        final long stringRate = measure(chunks, seconds, reader, false);
+        final long byteRate = measure(chunks, seconds, reader, true);
+        if (report) {
+            System.out.println(String.format("%-10s strings: %,12d stanzas/s   bytes: %,12d stanzas/s",
+                    scenario, stringRate, byteRate));
+        }
+    }
+
+    private static long measure(List<byte[]> chunks, int seconds, XMPPPacketReader reader, boolean bytes)
+            throws Exception {
+        final XMLLightweightParser parser = new XMLLightweightParser(StandardCharsets.UTF_8);
+        final XMLStanzaFramer framer = new XMLStanzaFramer();
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        long stanzas = 0;
+        while (System.currentTimeMillis() < end) {
+            for (byte[] chunk : chunks) {
+                final IoBuffer buffer = IoBuffer.wrap(chunk);
+                if (bytes) {
+                    framer.read(buffer);
+                    for (byte[] stanza : framer.getMsgs()) {
+                        reader.read(new UTF8ByteArrayReader(stanza));
+                        stanzas++;
+                    }
+                }
+                else {
+                    parser.read(buffer);
+                    if (parser.areThereMsgs()) {
+                        for (String stanza : parser.getMsgs()) {
+                            reader.read(new StringReader(stanza));
+                            stanzas++;
+                        }
+                    }
+                }
+            }
+        }
+        return stanzas / seconds;
+    }
+
+    private static List<byte[]> chunks(String data, int size) {
+        final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        final List<byte[]> chunks = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += size) {
+            final int length = Math.min(size, bytes.length - offset);
+            final byte[] chunk = new byte[length];
+            System.arraycopy(bytes, offset, chunk, 0, length);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures the cost of evaluating a privacy list with many JID items against the size of the
+ * list. The items are either evaluated in order, the way privacy lists used to be evaluated,
+ * or looked up in the compiled list. The senders of half of the messages are not in the list,
+ * so every item is evaluated for those.
+ *
+ * ant benchmark -Dbenchmark=org.jivesoftware.openfire.privacy.PrivacyListBenchmark
+ *     -Dbenchmark.args="[iterations]"
+ */
+public class PrivacyListBenchmark {
+
+    private static final int[] LIST_SIZES = {10, 100, 1000, 5000};
+
+    private static final JID USER = new JID("romeo", "example.com", null);
+
+    private static int matches;
+
+    public static void main(String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        for (int size : LIST_SIZES) {
+            final List<PrivacyItem> items = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final String jid = i % 10 == 0 ? "spam" + i + ".example.org" : "spammer" + i + "@example.org";
+                items.add(createItem(i + 1, "deny", "jid", jid));
+            }
+            Collections.sort(items);
+            final PrivacyListMatcher matcher = PrivacyListMatcher.compile(items);
+            final Message[] messages = new Message[64];
+            for (int i = 0; i < messages.length; i++) {
+                final String from = i % 2 == 0 ? "spammer" + (size - 1 - i) + "@example.org/bot" : "juliet" + i + "@capulet.lit/balcony";
+                messages[i] = message(from, USER + "/orchard");
+            }
+            // Warm up
+            for (int i = 0; i < iterations; i++) {
+                evaluateInOrder(items, messages[i % messages.length]);
+                matcher.getMatchingItem(messages[i % messages.length], USER);
+            }
+            final int linearIterations = Math.max(1000, iterations / size * 10);
+            long start = System.nanoTime();
+            for (int i = 0; i < linearIterations; i++) {
+                evaluateInOrder(items, messages[i % messages.length]);
+            }
+            final double inOrder = (System.nanoTime() - start) / (double) linearIterations;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (matcher.getMatchingItem(messages[i % messages.length], USER) != null) {
+                    matches++;
+                }
+            }
+            final double compiled = (System.nanoTime() - start) / (double) iterations;
+            System.out.println(String.format("%,5d items: in order %,10.0f ns  compiled %,6.0f ns  (per packet)",
+                    size, inOrder, compiled));
+        }
+        System.out.println(matches + " matches");
+    }
+
+    private static void evaluateInOrder(List<PrivacyItem> items, Message message) {
+        for (PrivacyItem item : items) {
+            if (item.matchesCondition(message, null, USER)) {
+                matches++;
+                return;
+            }
+        }
+    }
+
+    private static PrivacyItem createItem(int order, String action, String type, String value) {
+        final Element element = DocumentHelper.createElement("item");
+        element.addAttribute("order", String.valueOf(order));
+        element.addAttribute("action", action);
+        element.addAttribute("type", type);
+        element.addAttribute("value", value);
+        return new PrivacyItem(element);
+    }
+
+    private static Message message(String from, String to) {
+        final Message message = new Message();
+        message.setFrom(from);
+        message.setTo(to);
+        return message;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the local cache implementations when many threads
+ * read and write the same cache, which is how caches such as "Roster" and
+ * "Routing Users Cache" are used under load. Each thread performs a mix of gets
+ * (90%) and puts (10%) on a shared key space that does not fit in the cache, so
+ * that eviction is exercised too.
+ *
+ * ant benchmark -Dbenchmark=org.jivesoftware.util.cache.CacheContentionBenchmark
+ *     -Dbenchmark.args="[threads] [seconds] [keys]"
+ */
+public class CacheContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int keys = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        final String value = "a cached value of moderate length";
+        final long maxSize = (long) CacheSizes.sizeOfAnything(value) * keys / 2;
+
+        System.out.println("Threads: " + threads + ", keys: " + keys + ", duration: " + seconds + "s");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT.
+            run(new DefaultCache<Integer, String>("default", maxSize, -1), value, threads, seconds, keys, round > 0);
+            run(new ClockCache<Integer, String>("clock", maxSize, -1), value, threads, seconds, keys, round > 0);
+        }
+    }
+
+    private static void run(final Cache<Integer, String> cache, final String value, int threads,
+            int seconds, final int keys, boolean report) throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    while ((count & 0x3FF) != 0 || System.currentTimeMillis() < end) {
+                        // Skew the key distribution, so that some keys are hot.
+                        final int key = (int) (Math.abs(random.nextGaussian()) * keys / 3) % keys;
+                        if (random.nextInt(10) == 0) {
+                            cache.put(key, value);
+                        }
+                        else {
+                            cache.get(key);
+                        }
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        if (report) {
+            final long hits = cache.getCacheHits();
+            final long misses = cache.getCacheMisses();
+            System.out.println(String.format("%-8s %,15d ops/s   hit ratio %.2f%%   size %,d/%,d bytes",
+                    cache.getName(), operations.get() / seconds, 100.0 * hits / Math.max(1, hits + misses),
+                    cache.getCacheSize(), cache.getMaxCacheSize()));
+        }
+    }
+}
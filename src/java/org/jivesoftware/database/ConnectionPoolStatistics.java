@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.logicalcobwebs.proxool.ProxoolException;
+import org.logicalcobwebs.proxool.ProxoolFacade;
+import org.logicalcobwebs.proxool.admin.SnapshotIF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Statistics of the connection pool of the {@link DefaultConnectionProvider}. The time it takes
+ * to get a connection is always recorded. Statement timings, slow queries and statement cache
+ * usage are only recorded when the provider instruments its connections.
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConnectionPoolStatistics.class);
+
+    /**
+     * Upper bounds in milliseconds of the buckets of the acquire time histogram. The last
+     * bucket holds the times above the last bound.
+     */
+    private static final long[] ACQUIRE_TIME_BOUNDS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    /**
+     * Maximum number of SQL statements to keep timings for. Statements built at runtime could
+     * otherwise fill the memory.
+     */
+    private static final int MAX_QUERIES = 1000;
+
+    private final String poolAlias;
+
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireFailures = new AtomicLong();
+    private final AtomicLong acquireNanos = new AtomicLong();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final AtomicLongArray acquireHistogram = new AtomicLongArray(ACQUIRE_TIME_BOUNDS.length + 1);
+
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private final AtomicLong slowQueries = new AtomicLong();
+    private final ConcurrentMap<String, QueryTimer> queries = new ConcurrentHashMap<>();
+    private volatile long slowQueryThreshold;
+
+    /**
+     * Creates the statistics of a connection pool.
+     *
+     * @param poolAlias the alias of the Proxool pool.
+     * @param slowQueryThreshold the time in milliseconds after which statements are logged.
+     */
+    public ConnectionPoolStatistics(String poolAlias, long slowQueryThreshold) {
+        this.poolAlias = poolAlias;
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    /**
+     * Records that a connection was handed out.
+     *
+     * @param nanos the time it took to get the connection.
+     */
+    void connectionAcquired(long nanos) {
+        acquireCount.incrementAndGet();
+        acquireNanos.addAndGet(nanos);
+        updateMax(maxAcquireNanos, nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < ACQUIRE_TIME_BOUNDS.length && millis > ACQUIRE_TIME_BOUNDS[bucket]) {
+            bucket++;
+        }
+        acquireHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Records that the pool failed to hand out a connection.
+     */
+    void connectionAcquireFailed() {
+        acquireFailures.incrementAndGet();
+    }
+
+    /**
+     * Records the execution of a statement and logs it if it is slower than the threshold.
+     *
+     * @param sql the SQL of the statement.
+     * @param nanos the time it took to execute the statement.
+     */
+    void statementExecuted(String sql, long nanos) {
+        QueryTimer timer = queries.get(sql);
+        if (timer == null) {
+            if (queries.size() >= MAX_QUERIES) {
+                sql = "(other statements)";
+            }
+            timer = new QueryTimer();
+            QueryTimer previous = queries.putIfAbsent(sql, timer);
+            if (previous != null) {
+                timer = previous;
+            }
+        }
+        timer.record(nanos);
+        long threshold = slowQueryThreshold;
+        if (threshold > 0 && TimeUnit.NANOSECONDS.toMillis(nanos) >= threshold) {
+            slowQueries.incrementAndGet();
+            Log.warn("Slow query (" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms): " + sql);
+        }
+    }
+
+    void statementCacheHit() {
+        statementCacheHits.incrementAndGet();
+    }
+
+    void statementCacheMiss() {
+        statementCacheMisses.incrementAndGet();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    @Override
+    public long getAcquireFailures() {
+        return acquireFailures.get();
+    }
+
+    /**
+     * Returns the total time it took to get the connections that were handed out.
+     *
+     * @return the total time in nanoseconds.
+     */
+    long getAcquireNanos() {
+        return acquireNanos.get();
+    }
+
+    @Override
+    public double getAverageAcquireTime() {
+        long count = acquireCount.get();
+        return count == 0 ? 0 : acquireNanos.get() / (count * 1000000d);
+    }
+
+    @Override
+    public double getMaxAcquireTime() {
+        return maxAcquireNanos.get() / 1000000d;
+    }
+
+    @Override
+    public String[] getAcquireTimeHistogram() {
+        String[] histogram = new String[acquireHistogram.length()];
+        for (int i = 0; i < ACQUIRE_TIME_BOUNDS.length; i++) {
+            histogram[i] = "<=" + ACQUIRE_TIME_BOUNDS[i] + " ms: " + acquireHistogram.get(i);
+        }
+        histogram[ACQUIRE_TIME_BOUNDS.length] = ">" + ACQUIRE_TIME_BOUNDS[ACQUIRE_TIME_BOUNDS.length - 1] +
+                " ms: " + acquireHistogram.get(ACQUIRE_TIME_BOUNDS.length);
+        return histogram;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        SnapshotIF snapshot = getSnapshot();
+        return snapshot == null ? 0 : snapshot.getActiveConnectionCount();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        SnapshotIF snapshot = getSnapshot();
+        return snapshot == null ? 0 : snapshot.getAvailableConnectionCount();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        SnapshotIF snapshot = getSnapshot();
+        return snapshot == null ? 0 : snapshot.getMaximumConnectionCount();
+    }
+
+    @Override
+    public double getSaturation() {
+        SnapshotIF snapshot = getSnapshot();
+        if (snapshot == null || snapshot.getMaximumConnectionCount() == 0) {
+            return 0;
+        }
+        return 100d * snapshot.getActiveConnectionCount() / snapshot.getMaximumConnectionCount();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueries.get();
+    }
+
+    @Override
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    @Override
+    public void setSlowQueryThreshold(long threshold) {
+        this.slowQueryThreshold = threshold;
+    }
+
+    @Override
+    public String[] getQueryTimings() {
+        List<String> timings = new ArrayList<>(queries.size());
+        for (Map.Entry<String, QueryTimer> entry : queries.entrySet()) {
+            timings.add(entry.getValue() + ": " + entry.getKey());
+        }
+        return timings.toArray(new String[timings.size()]);
+    }
+
+    @Override
+    public void reset() {
+        acquireCount.set(0);
+        acquireFailures.set(0);
+        acquireNanos.set(0);
+        maxAcquireNanos.set(0);
+        for (int i = 0; i < acquireHistogram.length(); i++) {
+            acquireHistogram.set(i, 0);
+        }
+        statementCacheHits.set(0);
+        statementCacheMisses.set(0);
+        slowQueries.set(0);
+        queries.clear();
+    }
+
+    private SnapshotIF getSnapshot() {
+        try {
+            return ProxoolFacade.getSnapshot(poolAlias, false);
+        }
+        catch (ProxoolException e) {
+            // The pool is not created until the first connection is requested
+            return null;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Execution count and times of a SQL statement.
+     */
+    private static class QueryTimer {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            updateMax(maxNanos, nanos);
+        }
+
+        @Override
+        public String toString() {
+            long executions = count.get();
+            double average = executions == 0 ? 0 : totalNanos.get() / (executions * 1000000d);
+            return String.format("count=%d avg=%.2f ms max=%.2f ms", executions, average,
+                    maxNanos.get() / 1000000d);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.database;
+
+/**
+ * JMX interface of the statistics of the connection pool of the {@link DefaultConnectionProvider}.
+ * Times are in milliseconds.
+ *
+ * @see ConnectionPoolStatistics
+ */
+public interface ConnectionPoolStatisticsMBean {
+
+    /**
+     * Returns the number of connections that were handed out by the pool.
+     *
+     * @return the number of connections that were handed out.
+     */
+    long getAcquireCount();
+
+    /**
+     * Returns the number of times the pool failed to hand out a connection.
+     *
+     * @return the number of failed attempts to get a connection.
+     */
+    long getAcquireFailures();
+
+    /**
+     * Returns the average time it took to get a connection from the pool.
+     *
+     * @return the average time it took to get a connection.
+     */
+    double getAverageAcquireTime();
+
+    /**
+     * Returns the longest time it took to get a connection from the pool.
+     *
+     * @return the longest time it took to get a connection.
+     */
+    double getMaxAcquireTime();
+
+    /**
+     * Returns the histogram of the times it took to get a connection from the pool. Each entry
+     * has the form <tt>&lt;=bound ms: count</tt>.
+     *
+     * @return the histogram of the times it took to get a connection.
+     */
+    String[] getAcquireTimeHistogram();
+
+    /**
+     * Returns the number of connections that are in use.
+     *
+     * @return the number of connections that are in use.
+     */
+    int getActiveConnections();
+
+    /**
+     * Returns the number of connections that are available in the pool.
+     *
+     * @return the number of available connections.
+     */
+    int getAvailableConnections();
+
+    /**
+     * Returns the maximum number of connections of the pool.
+     *
+     * @return the maximum number of connections.
+     */
+    int getMaxConnections();
+
+    /**
+     * Returns the percentage of the maximum number of connections that is in use.
+     *
+     * @return the saturation of the pool.
+     */
+    double getSaturation();
+
+    /**
+     * Returns the number of prepared statements that were taken from the statement cache.
+     *
+     * @return the number of statement cache hits.
+     */
+    long getStatementCacheHits();
+
+    /**
+     * Returns the number of prepared statements that were not found in the statement cache.
+     *
+     * @return the number of statement cache misses.
+     */
+    long getStatementCacheMisses();
+
+    /**
+     * Returns the number of statements that took longer than the slow query threshold.
+     *
+     * @return the number of slow queries.
+     */
+    long getSlowQueryCount();
+
+    /**
+     * Returns the time after which statements are logged as slow queries.
+     *
+     * @return the slow query threshold.
+     */
+    long getSlowQueryThreshold();
+
+    /**
+     * Sets the time after which statements are logged as slow queries.
+     *
+     * @param threshold the slow query threshold.
+     */
+    void setSlowQueryThreshold(long threshold);
+
+    /**
+     * Returns the timings of the executed statements, one entry per SQL statement.
+     *
+     * @return the timings of the executed statements.
+     */
+    String[] getQueryTimings();
+
+    /**
+     * Resets the statistics.
+     */
+    void reset();
+}
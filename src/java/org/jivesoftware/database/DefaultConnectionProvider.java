@@ -20,12 +20,25 @@
 
 package org.jivesoftware.database;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jivesoftware.database.InstrumentedConnection.StatementCache;
+import org.jivesoftware.openfire.JMXManager;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.logicalcobwebs.proxool.ConnectionListenerIF;
 import org.logicalcobwebs.proxool.ConnectionPoolDefinitionIF;
 import org.logicalcobwebs.proxool.ProxoolException;
 import org.logicalcobwebs.proxool.ProxoolFacade;
@@ -36,12 +49,23 @@ import org.slf4j.LoggerFactory;
 /**
  * Default Jive connection provider, which uses an internal connection pool.<p>
  *
+ * The time it takes to get a connection from the pool and the usage of the pool are exposed
+ * through the {@link StatisticsManager} and, when JMX is enabled, JMX. When the pool is instrumented, connections
+ * also time their statements per SQL statement, log the statements that are slower than the
+ * slow query threshold and, when a statement cache size is set, reuse the prepared statements
+ * of each physical connection.<p>
+ *
  * @author Jive Software
  */
 public class DefaultConnectionProvider implements ConnectionProvider {
 
 	private static final Logger Log = LoggerFactory.getLogger(DefaultConnectionProvider.class);
 
+    private static final String POOL_ALIAS = "openfire";
+    private static final String SATURATION_STAT_KEY = "database_pool_saturation";
+    private static final String ACQUIRE_TIME_STAT_KEY = "database_acquire_time";
+    private static final String SLOW_QUERIES_STAT_KEY = "database_slow_queries";
+
     private Properties settings;
     private String driver;
     private String serverURL;
@@ -54,6 +78,18 @@ public class DefaultConnectionProvider implements ConnectionProvider {
     private String testSQL = "";
     private Boolean testBeforeUse = true;
     private Boolean testAfterUse = true;
+    private boolean instrumented = false;
+    private int statementCacheSize = 0;
+    private long slowQueryThreshold = 1000;
+
+    private final ConnectionPoolStatistics statistics;
+    private ObjectName objectName;
+    private volatile boolean listenerRegistered;
+
+    /**
+     * Statement caches of the physical connections of the pool.
+     */
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
 
     /**
      * Maximum time a connection can be open before it's reopened (in days)
@@ -72,6 +108,7 @@ public class DefaultConnectionProvider implements ConnectionProvider {
      */
     public DefaultConnectionProvider() {
         loadProperties();
+        statistics = new ConnectionPoolStatistics(POOL_ALIAS, slowQueryThreshold);
     }
 
     @Override
@@ -83,7 +120,17 @@ public class DefaultConnectionProvider implements ConnectionProvider {
     public Connection getConnection() throws SQLException {
         try {
             Class.forName("org.logicalcobwebs.proxool.ProxoolDriver");
-                return DriverManager.getConnection(proxoolURL, settings);
+            long start = System.nanoTime();
+            Connection con;
+            try {
+                con = DriverManager.getConnection(proxoolURL, settings);
+            }
+            catch (SQLException e) {
+                statistics.connectionAcquireFailed();
+                throw e;
+            }
+            statistics.connectionAcquired(System.nanoTime() - start);
+            return instrumented ? instrument(con) : con;
         }
         catch (ClassNotFoundException e) {
             throw new SQLException("DbConnectionProvider: Unable to find driver: "+e);
@@ -92,7 +139,7 @@ public class DefaultConnectionProvider implements ConnectionProvider {
 
     @Override
     public void start() {
-        proxoolURL = "proxool.openfire:"+getDriver()+":"+getServerURL();
+        proxoolURL = "proxool." + POOL_ALIAS + ":"+getDriver()+":"+getServerURL();
         settings = new Properties();
         settings.setProperty("proxool.maximum-activetime", Integer.toString(activeTimeout));
         settings.setProperty("proxool.maximum-connection-count", Integer.toString(getMaxConnections()));
@@ -103,6 +150,15 @@ public class DefaultConnectionProvider implements ConnectionProvider {
         settings.setProperty("proxool.house-keeping-test-sql", testSQL);
         settings.setProperty("user", getUsername());
         settings.setProperty("password", (getPassword() != null ? getPassword() : ""));
+        statistics.setSlowQueryThreshold(slowQueryThreshold);
+        addStatistics();
+        // The JMX switch is a database property, which can't be read while the pool starts
+        TaskEngine.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                registerMBean();
+            }
+        });
     }
 
     @Override
@@ -110,8 +166,172 @@ public class DefaultConnectionProvider implements ConnectionProvider {
     }
 
     @Override
-    public void destroy() {
+    public synchronized void destroy() {
         settings = null;
+        StatisticsManager.getInstance().removeStatistic(SATURATION_STAT_KEY);
+        StatisticsManager.getInstance().removeStatistic(ACQUIRE_TIME_STAT_KEY);
+        StatisticsManager.getInstance().removeStatistic(SLOW_QUERIES_STAT_KEY);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                Log.debug("Failed to unregister the connection pool mbean", e);
+            }
+            objectName = null;
+        }
+        for (StatementCache statementCache : statementCaches.values()) {
+            statementCache.close();
+        }
+        statementCaches.clear();
+    }
+
+    /**
+     * Returns the statistics of the connection pool.
+     *
+     * @return the statistics of the connection pool.
+     */
+    public ConnectionPoolStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Wraps a connection of the pool to time its statements and use the statement cache of
+     * its physical connection.
+     */
+    private Connection instrument(Connection con) {
+        if (!listenerRegistered) {
+            registerConnectionListener();
+        }
+        StatementCache statementCache = null;
+        if (statementCacheSize > 0) {
+            try {
+                // The pool passes the JDBC calls it doesn't handle to the physical connection,
+                // which unwraps to itself. That's the connection the pool reports when it dies.
+                Connection delegate = con.unwrap(Connection.class);
+                // Only the thread that holds the connection uses its cache
+                statementCache = statementCaches.get(delegate);
+                if (statementCache == null) {
+                    statementCache = new StatementCache(delegate, statementCacheSize);
+                    statementCaches.put(delegate, statementCache);
+                }
+            }
+            catch (SQLException | AbstractMethodError e) {
+                // JDBC drivers older than JDBC 4 can't unwrap connections
+                Log.debug("Unable to get the physical connection, statements will not be cached", e);
+            }
+        }
+        return InstrumentedConnection.wrap(con, statementCache, statistics);
+    }
+
+    /**
+     * Drops the statement caches of the connections that the pool closes. The listener can
+     * only be added once the pool was created by the first request for a connection.
+     */
+    private synchronized void registerConnectionListener() {
+        if (listenerRegistered) {
+            return;
+        }
+        try {
+            ProxoolFacade.addConnectionListener(POOL_ALIAS, new ConnectionListenerIF() {
+                @Override
+                public void onBirth(Connection connection) {
+                }
+
+                @Override
+                public void onDeath(Connection connection, int reason) {
+                    StatementCache statementCache = statementCaches.remove(connection);
+                    if (statementCache != null) {
+                        statementCache.close();
+                    }
+                }
+
+                @Override
+                public void onExecute(String command, long elapsedTime) {
+                }
+
+                @Override
+                public void onFail(String command, Exception exception) {
+                }
+            });
+            listenerRegistered = true;
+        }
+        catch (ProxoolException e) {
+            Log.error("Unable to listen to the connections of the pool", e);
+        }
+    }
+
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(SATURATION_STAT_KEY,
+                new i18nStatistic("database.saturation", Statistic.Type.count) {
+            @Override
+            public double sample() {
+                return statistics.getSaturation();
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(ACQUIRE_TIME_STAT_KEY,
+                new i18nStatistic("database.acquire_time", Statistic.Type.count) {
+            private long lastCount;
+            private long lastNanos;
+
+            @Override
+            public synchronized double sample() {
+                long count = statistics.getAcquireCount();
+                long nanos = statistics.getAcquireNanos();
+                double average = count > lastCount ? (nanos - lastNanos) / ((count - lastCount) * 1000000d) : 0;
+                lastCount = count;
+                lastNanos = nanos;
+                return average;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(SLOW_QUERIES_STAT_KEY,
+                new i18nStatistic("database.slow_queries", Statistic.Type.rate) {
+            private long lastSample;
+
+            @Override
+            public synchronized double sample() {
+                long total = statistics.getSlowQueryCount();
+                double delta = total - lastSample;
+                lastSample = total;
+                return delta;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Registers the statistics of the pool with the platform MBean server if JMX is enabled
+     * (see {@link JMXManager#isEnabled()}). Invoked after the pool started, so the
+     * <tt>xmpp.jmx.enabled</tt> property can be read from the database.
+     */
+    private synchronized void registerMBean() {
+        if (objectName != null || settings == null || !JMXManager.isEnabled()) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("org.jivesoftware.database:type=ConnectionPool,name=" + POOL_ALIAS);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+                objectName = name;
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register the connection pool mbean (JMX): " + e);
+        }
     }
 
     /**
@@ -323,6 +543,70 @@ public class DefaultConnectionProvider implements ConnectionProvider {
         this.testAfterUse = testAfterUse;
     }
 
+    /**
+     * Returns true if connections time their statements, log slow queries and may cache
+     * prepared statements.
+     *
+     * @return true if the connections of the pool are instrumented.
+     */
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * Sets whether connections time their statements, log slow queries and may cache
+     * prepared statements. Takes effect for the connections handed out afterwards.
+     *
+     * @param instrumented true if the connections of the pool are instrumented.
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+        saveProperties();
+    }
+
+    /**
+     * Returns the number of prepared statements cached per connection of an instrumented
+     * pool. A value of zero disables the statement cache.
+     *
+     * @return the number of prepared statements cached per connection.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the number of prepared statements cached per connection of an instrumented
+     * pool. A value of zero disables the statement cache.
+     *
+     * @param statementCacheSize the number of prepared statements cached per connection.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+        saveProperties();
+    }
+
+    /**
+     * Returns the time in milliseconds after which the statements of an instrumented pool
+     * are logged as slow queries. A value of zero disables the slow query log.
+     *
+     * @return the slow query threshold in milliseconds.
+     */
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the statements of an instrumented pool
+     * are logged as slow queries. A value of zero disables the slow query log.
+     *
+     * @param slowQueryThreshold the slow query threshold in milliseconds.
+     */
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+        statistics.setSlowQueryThreshold(slowQueryThreshold);
+        saveProperties();
+    }
+
     public boolean isMysqlUseUnicode() {
         return mysqlUseUnicode;
     }
@@ -342,6 +626,9 @@ public class DefaultConnectionProvider implements ConnectionProvider {
         testSQL = JiveGlobals.getXMLProperty("database.defaultProvider.testSQL", DbConnectionManager.getTestSQL(driver));
         testBeforeUse = JiveGlobals.getXMLProperty("database.defaultProvider.testBeforeUse", false);
         testAfterUse = JiveGlobals.getXMLProperty("database.defaultProvider.testAfterUse", false);
+        instrumented = JiveGlobals.getXMLProperty("database.defaultProvider.instrumented", false);
+        statementCacheSize = JiveGlobals.getXMLProperty("database.defaultProvider.statementCacheSize", 0);
+        String slowQuery = JiveGlobals.getXMLProperty("database.defaultProvider.slowQueryThreshold");
 
         // See if we should use Unicode under MySQL
         mysqlUseUnicode = Boolean.valueOf(JiveGlobals.getXMLProperty("database.mysql.useUnicode"));
@@ -355,6 +642,9 @@ public class DefaultConnectionProvider implements ConnectionProvider {
             if (conTimeout != null) {
                 connectionTimeout = Double.parseDouble(conTimeout);
             }
+            if (slowQuery != null) {
+                slowQueryThreshold = Long.parseLong(slowQuery);
+            }
         }
         catch (Exception e) {
             Log.error("Error: could not parse default pool properties. " +
@@ -374,6 +664,11 @@ public class DefaultConnectionProvider implements ConnectionProvider {
         JiveGlobals.setXMLProperty("database.defaultProvider.testSQL", testSQL);
         JiveGlobals.setXMLProperty("database.defaultProvider.testBeforeUse", testBeforeUse.toString());
         JiveGlobals.setXMLProperty("database.defaultProvider.testAfterUse", testAfterUse.toString());
+        JiveGlobals.setXMLProperty("database.defaultProvider.instrumented", Boolean.toString(instrumented));
+        JiveGlobals.setXMLProperty("database.defaultProvider.statementCacheSize",
+                Integer.toString(statementCacheSize));
+        JiveGlobals.setXMLProperty("database.defaultProvider.slowQueryThreshold",
+                Long.toString(slowQueryThreshold));
 
         JiveGlobals.setXMLProperty("database.defaultProvider.minConnections",
                 Integer.toString(minConnections));
@@ -386,8 +681,8 @@ public class DefaultConnectionProvider implements ConnectionProvider {
     @Override
 	public String toString() {
         try {
-            ConnectionPoolDefinitionIF poolDef = ProxoolFacade.getConnectionPoolDefinition("openfire");
-            SnapshotIF poolStats = ProxoolFacade.getSnapshot("openfire", true);
+            ConnectionPoolDefinitionIF poolDef = ProxoolFacade.getConnectionPoolDefinition(POOL_ALIAS);
+            SnapshotIF poolStats = ProxoolFacade.getSnapshot(POOL_ALIAS, true);
             return poolDef.getMinimumConnectionCount()+","+poolDef.getMaximumConnectionCount()+","
                     +poolStats.getAvailableConnectionCount()+","+poolStats.getActiveConnectionCount();
         }
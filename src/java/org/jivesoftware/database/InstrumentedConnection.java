@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps the connections of the pool to time the statements they execute and, when a
+ * {@link StatementCache} is used, to reuse the prepared statements of the connection. Statements
+ * are timed per SQL statement so the timings map to the SQL constants of the callers.<p>
+ *
+ * The pool closes the statements of a connection when the connection is returned, so cached
+ * statements are prepared on the physical connection and live in a cache that belongs to the
+ * physical connection. Closing a cached statement returns it to the cache.
+ */
+class InstrumentedConnection implements InvocationHandler {
+
+    private static final Logger Log = LoggerFactory.getLogger(InstrumentedConnection.class);
+
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final ConnectionPoolStatistics statistics;
+    private final List<StatementHandler> cachedStatements = new ArrayList<>();
+    private Connection proxy;
+
+    private InstrumentedConnection(Connection connection, StatementCache statementCache,
+            ConnectionPoolStatistics statistics) {
+        this.connection = connection;
+        this.statementCache = statementCache;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns a connection that times the statements executed on the specified connection.
+     *
+     * @param connection the connection of the pool.
+     * @param statementCache the statement cache of the physical connection or <tt>null</tt> to
+     *        not cache statements.
+     * @param statistics the statistics to record the timings in.
+     * @return the instrumented connection.
+     */
+    static Connection wrap(Connection connection, StatementCache statementCache,
+            ConnectionPoolStatistics statistics) {
+        InstrumentedConnection handler = new InstrumentedConnection(connection, statementCache, statistics);
+        handler.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("prepareStatement".equals(name)) {
+            String sql = (String) args[0];
+            if (args.length == 1 && statementCache != null) {
+                PreparedStatement statement = statementCache.take(sql);
+                if (statement != null) {
+                    statistics.statementCacheHit();
+                }
+                else {
+                    statistics.statementCacheMiss();
+                    statement = statementCache.prepare(sql);
+                }
+                return wrapStatement(PreparedStatement.class, statement, sql, true);
+            }
+            return wrapStatement(PreparedStatement.class, (Statement) invokeOn(connection, method, args), sql, false);
+        }
+        else if ("prepareCall".equals(name)) {
+            return wrapStatement(CallableStatement.class, (Statement) invokeOn(connection, method, args),
+                    (String) args[0], false);
+        }
+        else if ("createStatement".equals(name)) {
+            return wrapStatement(Statement.class, (Statement) invokeOn(connection, method, args), null, false);
+        }
+        else if ("close".equals(name)) {
+            // Return the cached statements that the caller did not close
+            for (StatementHandler statement : cachedStatements) {
+                statement.close();
+            }
+            cachedStatements.clear();
+        }
+        else if ("equals".equals(name)) {
+            return proxy == args[0];
+        }
+        else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        }
+        return invokeOn(connection, method, args);
+    }
+
+    private <T extends Statement> T wrapStatement(Class<T> type, Statement statement, String sql,
+            boolean cached) {
+        StatementHandler handler = new StatementHandler(statement, sql, cached);
+        if (cached) {
+            cachedStatements.add(handler);
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Times the executions of a statement and returns cached statements to the cache when
+     * they are closed.
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final Statement statement;
+        private final String sql;
+        private final boolean cached;
+        private ResultSet resultSet;
+        private boolean limitsChanged;
+        private boolean closed;
+
+        StatementHandler(Statement statement, String sql, boolean cached) {
+            this.statement = statement;
+            this.sql = sql;
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) {
+                String executed = sql;
+                if (args != null && args.length > 0 && args[0] instanceof String) {
+                    executed = (String) args[0];
+                }
+                long start = System.nanoTime();
+                try {
+                    Object result = invokeOn(statement, method, args);
+                    if (result instanceof ResultSet) {
+                        resultSet = (ResultSet) result;
+                    }
+                    return result;
+                }
+                finally {
+                    if (executed != null) {
+                        statistics.statementExecuted(executed, System.nanoTime() - start);
+                    }
+                }
+            }
+            else if (cached && "close".equals(name)) {
+                close();
+                cachedStatements.remove(this);
+                return null;
+            }
+            else if (cached && "isClosed".equals(name)) {
+                return closed;
+            }
+            else if ("getConnection".equals(name)) {
+                return InstrumentedConnection.this.proxy;
+            }
+            else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            else if (cached && ("setMaxRows".equals(name) || "setFetchSize".equals(name) ||
+                    "setQueryTimeout".equals(name) || "setMaxFieldSize".equals(name))) {
+                limitsChanged = true;
+            }
+            return invokeOn(statement, method, args);
+        }
+
+        /**
+         * Resets the statement and returns it to the cache. Statements that can not be reset
+         * are closed.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            PreparedStatement prepared = (PreparedStatement) statement;
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                prepared.clearParameters();
+                prepared.clearBatch();
+                prepared.clearWarnings();
+                if (limitsChanged) {
+                    prepared.setMaxRows(0);
+                    prepared.setMaxFieldSize(0);
+                    prepared.setQueryTimeout(0);
+                    prepared.setFetchSize(0);
+                }
+            }
+            catch (SQLException e) {
+                Log.debug("Closing statement that could not be reset: " + sql, e);
+                StatementCache.closeQuietly(prepared);
+                return;
+            }
+            statementCache.release(sql, prepared);
+        }
+    }
+
+    /**
+     * Least recently used cache of the prepared statements of a physical connection. Statements
+     * that are in use are not in the cache. The cache is used by the thread that holds the
+     * connection and cleared by the pool when the connection dies.
+     */
+    static class StatementCache {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private boolean closed;
+
+        /**
+         * Creates a statement cache for a physical connection.
+         *
+         * @param connection the physical connection.
+         * @param size the maximum number of statements to cache.
+         */
+        StatementCache(Connection connection, int size) {
+            this.connection = connection;
+            this.statements = new LeastRecentlyUsed(size);
+        }
+
+        /**
+         * Takes the cached statement of the specified SQL out of the cache.
+         *
+         * @param sql the SQL of the statement.
+         * @return the cached statement or <tt>null</tt> if the statement is not cached.
+         */
+        synchronized PreparedStatement take(String sql) {
+            return statements.remove(sql);
+        }
+
+        /**
+         * Prepares a statement on the physical connection.
+         *
+         * @param sql the SQL of the statement.
+         * @return the new statement.
+         * @throws SQLException if the statement could not be prepared.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            return connection.prepareStatement(sql);
+        }
+
+        /**
+         * Returns a statement to the cache. The statement is closed if the cache is closed or
+         * another statement of the same SQL was returned meanwhile.
+         *
+         * @param sql the SQL of the statement.
+         * @param statement the statement.
+         */
+        synchronized void release(String sql, PreparedStatement statement) {
+            if (closed || statements.containsKey(sql)) {
+                closeQuietly(statement);
+            }
+            else {
+                statements.put(sql, statement);
+            }
+        }
+
+        /**
+         * Closes the cached statements. Statements that are in use are closed when they are
+         * released.
+         */
+        void close() {
+            List<PreparedStatement> closing;
+            synchronized (this) {
+                closed = true;
+                closing = new ArrayList<>(statements.values());
+                statements.clear();
+            }
+            for (PreparedStatement statement : closing) {
+                closeQuietly(statement);
+            }
+        }
+
+        synchronized int size() {
+            return statements.size();
+        }
+
+        private static void closeQuietly(Statement statement) {
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {
+                Log.debug("Error closing cached statement", e);
+            }
+        }
+
+        /**
+         * Map of statements in access order that closes its eldest statement when it grows
+         * beyond its maximum size.
+         */
+        private static class LeastRecentlyUsed extends LinkedHashMap<String, PreparedStatement> {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int maxSize;
+
+            LeastRecentlyUsed(int maxSize) {
+                super(maxSize, 0.75f, true);
+                this.maxSize = maxSize;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+}
@@ -26,8 +26,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,7 +51,12 @@ import org.slf4j.LoggerFactory;
  * </ul>
  * Each sequence type that this class manages has a different block size value. Objects that aren't
  * created often have a block size of 1, while frequently created objects such as entries and
- * comments have larger block sizes.
+ * comments have larger block sizes. The block size is the minimum size of the blocks: the size
+ * doubles when blocks are used up quickly and goes back down when the allocation rate drops.
+ * <p>
+ * ID's are handed out from the current block without locking. When a quarter of the current block
+ * is left the next block is checked out in the background, so callers only wait for the database
+ * when they use up the current block before the next block is available.</p>
  *
  * @author Matt Tucker
  * @author Bruce Ritchie
@@ -65,6 +74,17 @@ public class SequenceManager {
     private static final String UPDATE_ID =
             "UPDATE ofID SET id=? WHERE idType=? AND id=?";
 
+    /**
+     * Blocks that are used up in less than half this time double in size, blocks that last more
+     * than twice this time halve in size.
+     */
+    private static final long TARGET_BLOCK_MILLIS = 10000;
+
+    /**
+     * Maximum size that blocks may grow to.
+     */
+    private static final int MAX_BLOCK_SIZE = 10000;
+
     // Statically startup a sequence manager for each of the sequence counters.
     private static Map<Integer, SequenceManager> managers = new ConcurrentHashMap<>();
 
@@ -131,17 +151,54 @@ public class SequenceManager {
      */
     public static void setBlockSize(int type, int blockSize) {
         if (managers.containsKey(type)) {
-            managers.get(type).blockSize = blockSize;
+            managers.get(type).setBlockSize(blockSize);
         }
         else {
             new SequenceManager(type, blockSize);
         }
     }
 
-    private int type;
-    private long currentID;
-    private long maxID;
-    private int blockSize;
+    private final int type;
+    /**
+     * Minimum number of ID's to check out at a time.
+     */
+    private volatile int blockSize;
+    /**
+     * Number of ID's to check out at a time, adapted to the allocation rate.
+     */
+    private volatile int currentBlockSize;
+    /**
+     * Time when the current block was taken into use.
+     */
+    private long blockStartTime;
+    /**
+     * Block of ID's that are being handed out.
+     */
+    private volatile Block block = new Block(0, 0);
+    /**
+     * Block of ID's that was checked out in advance or null if none.
+     */
+    private final AtomicReference<Block> prefetchedBlock = new AtomicReference<>();
+    /**
+     * Lock held while checking out a block, so that blocks are used in the order they are
+     * checked out.
+     */
+    private final ReentrantLock fetchLock = new ReentrantLock();
+
+    private final Runnable prefetchTask = new Runnable() {
+        @Override
+        public void run() {
+            fetchLock.lock();
+            try {
+                if (prefetchedBlock.get() == null) {
+                    prefetchedBlock.set(getNextBlock(5));
+                }
+            }
+            finally {
+                fetchLock.unlock();
+            }
+        }
+    };
 
     /**
      * Creates a new DbSequenceManager.
@@ -153,22 +210,96 @@ public class SequenceManager {
         managers.put(seqType, this);
         this.type = seqType;
         this.blockSize = size;
-        currentID = 0l;
-        maxID = 0l;
+        this.currentBlockSize = size;
+    }
+
+    private void setBlockSize(int size) {
+        blockSize = size;
+        currentBlockSize = Math.max(currentBlockSize, size);
     }
 
     /**
      * Returns the next available unique ID. Essentially this provides for the functionality of an
      * auto-increment database field.
      */
-    public synchronized long nextUniqueID() {
-        if (!(currentID < maxID)) {
-            // Get next block -- make 5 attempts at maximum.
-            getNextBlock(5);
+    public long nextUniqueID() {
+        while (true) {
+            Block current = block;
+            long id = current.nextID.getAndIncrement();
+            if (id < current.maxID) {
+                if (id == current.prefetchID) {
+                    // Check out the next block before this one is used up
+                    TaskEngine.getInstance().submit(prefetchTask);
+                }
+                return id;
+            }
+            if (!nextBlock(current)) {
+                // Hand out the ID anyway as this class always did when no block could be obtained
+                return id;
+            }
         }
-        long id = currentID;
-        currentID++;
-        return id;
+    }
+
+    /**
+     * Replaces a used up block with the next block, which is either the block that was checked
+     * out in advance or a block that is checked out now.
+     *
+     * @param usedUp the block that was used up.
+     * @return false if no block could be checked out.
+     */
+    private synchronized boolean nextBlock(Block usedUp) {
+        if (block != usedUp) {
+            // Another thread already replaced the block
+            return true;
+        }
+        Block next = prefetchedBlock.getAndSet(null);
+        if (next == null) {
+            fetchLock.lock();
+            try {
+                // The block may have been checked out while waiting for the lock
+                next = prefetchedBlock.getAndSet(null);
+                if (next == null) {
+                    // Get next block -- make 5 attempts at maximum.
+                    next = getNextBlock(5);
+                }
+            }
+            finally {
+                fetchLock.unlock();
+            }
+        }
+        if (next == null) {
+            return false;
+        }
+        adaptBlockSize();
+        block = next;
+        return true;
+    }
+
+    /**
+     * Adapts the size of the blocks to check out to the time it took to use up the last block.
+     */
+    private void adaptBlockSize() {
+        long now = System.currentTimeMillis();
+        if (blockStartTime > 0) {
+            long elapsed = now - blockStartTime;
+            int size = currentBlockSize;
+            if (elapsed < TARGET_BLOCK_MILLIS / 2 && size < MAX_BLOCK_SIZE) {
+                currentBlockSize = Math.min(size * 2, MAX_BLOCK_SIZE);
+            }
+            else if (elapsed > TARGET_BLOCK_MILLIS * 2 && size > blockSize) {
+                currentBlockSize = Math.max(size / 2, blockSize);
+            }
+        }
+        blockStartTime = now;
+    }
+
+    /**
+     * Returns the number of ID's that the next block will contain.
+     *
+     * @return the number of ID's that the next block will contain.
+     */
+    int getCurrentBlockSize() {
+        return currentBlockSize;
     }
 
     /**
@@ -180,11 +311,14 @@ public class SequenceManager {
      * <li> If update fails another process checked out the block first; go back to step 1.
      * Otherwise, done.
      * </ol>
+     *
+     * @param count the number of attempts left.
+     * @return the block that was checked out or null if no block could be checked out.
      */
-    private void getNextBlock(int count) {
+    Block getNextBlock(int count) {
         if (count == 0) {
             Log.error("Failed at last attempt to obtain an ID, aborting...");
-            return;
+            return null;
         }
 
         Connection con = null;
@@ -192,6 +326,7 @@ public class SequenceManager {
         ResultSet rs = null;
         boolean abortTransaction = false;
         boolean success = false;
+        Block next = null;
 
         try {
             con = DbConnectionManager.getTransactionConnection();
@@ -210,7 +345,7 @@ public class SequenceManager {
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
             // Increment the id to define our block.
-            long newID = currentID + blockSize;
+            long newID = currentID + currentBlockSize;
             // The WHERE clause includes the last value of the id. This ensures
             // that an update will occur only if nobody else has performed an
             // update first.
@@ -223,8 +358,7 @@ public class SequenceManager {
             // round failed and we'll have to try again.
             success = pstmt.executeUpdate() == 1;
             if (success) {
-                this.currentID = currentID;
-                this.maxID = newID;
+                next = new Block(currentID, newID);
             }
         }
         catch (SQLException e) {
@@ -246,8 +380,9 @@ public class SequenceManager {
             catch (InterruptedException ie) {
                 // Ignore.
             }
-            getNextBlock(count - 1);
+            return getNextBlock(count - 1);
         }
+        return next;
     }
 
     private void createNewID(Connection con, int type) throws SQLException {
@@ -265,4 +400,23 @@ public class SequenceManager {
             DbConnectionManager.closeStatement(pstmt);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Block of ID's that was checked out from the database.
+     */
+    static class Block {
+
+        private final AtomicLong nextID;
+        private final long maxID;
+        /**
+         * ID whose allocation triggers checking out the next block.
+         */
+        private final long prefetchID;
+
+        Block(long firstID, long maxID) {
+            this.nextID = new AtomicLong(firstID);
+            this.maxID = maxID;
+            this.prefetchID = maxID - Math.max(1, (maxID - firstID) / 4);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import org.xmpp.packet.Packet;
+
+/**
+ * Interface to listen for the progress of broadcasts performed by the {@link BroadcastManager}.
+ * Broadcasts are delivered in shards by a pool of threads, so listeners are invoked from
+ * those threads and must be thread safe.
+ *
+ * @see BroadcastManager
+ */
+public interface BroadcastListener {
+
+    /**
+     * Notification that a shard of recipients was processed.
+     *
+     * @param packet the packet that is being broadcast.
+     * @param processed the number of recipients that have been processed so far.
+     * @param total the total number of recipients of the broadcast.
+     */
+    void broadcastProgress(Packet packet, int processed, int total);
+
+    /**
+     * Notification that every recipient of the broadcast was processed.
+     *
+     * @param packet the packet that was broadcast.
+     * @param delivered the number of recipients the packet was handed to.
+     * @param failed the number of recipients that failed to process the packet.
+     */
+    void broadcastCompleted(Packet packet, int delivered, int failed);
+}
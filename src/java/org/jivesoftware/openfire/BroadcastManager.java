@@ -0,0 +1,528 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.container.BasicModule;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Delivers packets to large sets of recipients. Recipients are split in shards that are
+ * processed in parallel by a bounded pool of threads, so the thread that requests the
+ * broadcast is not blocked while the packet is delivered.<p>
+ *
+ * Every recipient is pinned to one of a fixed number of lanes, and the shards of a lane are
+ * processed one after the other in the order in which they were requested. Lanes are
+ * processed in parallel, so packets broadcast one after the other reach each recipient in
+ * order. When too many shards are waiting and the lane of a shard is idle, the shard is
+ * processed by the requesting thread.<p>
+ *
+ * Messages broadcast to client sessions are serialized once (see {@link SerializedMessage})
+ * and every shard delivers its own copy of the message, so sessions can write the shared
+ * payload and interceptors running in different threads never share a packet.<p>
+ *
+ * The manager is configured with the following properties (read at startup):<ul>
+ * <li><tt>xmpp.broadcast.threads</tt>: number of threads of the pool and of lanes, the
+ *      number of processors by default.
+ * <li><tt>xmpp.broadcast.queue</tt>: number of shards waiting for a thread after which
+ *      requesting threads process shards of idle lanes, 1000 by default.
+ * <li><tt>xmpp.broadcast.shard.size</tt>: number of recipients per shard, 500 by default.</ul>
+ *
+ * @see RoutingTable#broadcastPacket(Message, boolean, BroadcastListener)
+ */
+public class BroadcastManager extends BasicModule {
+
+    private static final Logger Log = LoggerFactory.getLogger(BroadcastManager.class);
+
+    /**
+     * Set for the threads of the pool while they process a shard.
+     */
+    private static final ThreadLocal<Boolean> processingShard = new ThreadLocal<>();
+
+    private ThreadPoolExecutor executor;
+    private Lane[] lanes = new Lane[0];
+    private int shardSize = 500;
+    private int queueSize = 1000;
+    private final AtomicInteger queuedShards = new AtomicInteger();
+    private PacketRouter packetRouter;
+
+    public BroadcastManager() {
+        super("Broadcast manager");
+    }
+
+    @Override
+    public void initialize(XMPPServer server) {
+        super.initialize(server);
+        packetRouter = server.getPacketRouter();
+    }
+
+    @Override
+    public void start() throws IllegalStateException {
+        super.start();
+        start(JiveGlobals.getIntProperty("xmpp.broadcast.threads", Runtime.getRuntime().availableProcessors()),
+                JiveGlobals.getIntProperty("xmpp.broadcast.queue", 1000),
+                JiveGlobals.getIntProperty("xmpp.broadcast.shard.size", 500));
+    }
+
+    /**
+     * Starts the pool of threads and the lanes.
+     *
+     * @param threads the number of threads and of lanes.
+     * @param queueSize the number of waiting shards after which requesting threads process shards.
+     * @param shardSize the number of recipients per shard.
+     */
+    void start(int threads, int queueSize, int shardSize) {
+        this.queueSize = queueSize;
+        this.shardSize = Math.max(1, shardSize);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize),
+                new NamedThreadFactory("broadcast-worker-", null, true, null),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        final Lane[] lanes = new Lane[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        this.lanes = lanes;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Delivers a message to the specified client sessions. The message is serialized once
+     * and each session gets a message that shares the serialized payload. Both available and
+     * unavailable sessions will receive the message.
+     *
+     * @param packet the message to broadcast.
+     * @param sessions the sessions that will receive the message.
+     * @param listener the listener to notify of the progress of the broadcast or null.
+     */
+    public void broadcast(Message packet, Collection<? extends ClientSession> sessions,
+            BroadcastListener listener) {
+        final SerializedMessage serialized = new SerializedMessage(packet);
+        final Broadcast broadcast = new Broadcast(packet, sessions.size(), listener);
+        execute(broadcast, sessions, new Sharding<ClientSession>() {
+            @Override
+            Runnable createShard(final List<ClientSession> shard) {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        SerializedMessage message = new SerializedMessage(serialized);
+                        for (ClientSession session : shard) {
+                            try {
+                                session.process(message);
+                                broadcast.delivered();
+                            }
+                            catch (Exception e) {
+                                Log.warn("Error while broadcasting message to " + session.getAddress(), e);
+                                broadcast.failed();
+                            }
+                        }
+                    }
+                };
+            }
+        });
+        broadcast.ready();
+    }
+
+    /**
+     * Routes a copy of a packet to each of the specified recipients. The address of the
+     * recipient is set as the TO address of its copy, so this method uses the packet router
+     * to reach local users (including offline users), components and remote entities.
+     *
+     * @param packet the packet to route.
+     * @param recipients the addresses of the recipients.
+     * @param listener the listener to notify of the progress of the broadcast or null.
+     */
+    public void route(final Packet packet, Collection<JID> recipients, BroadcastListener listener) {
+        final Broadcast broadcast = new Broadcast(packet, recipients.size(), listener);
+        execute(broadcast, recipients, new Sharding<JID>() {
+            @Override
+            Runnable createShard(final List<JID> shard) {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        for (JID recipient : shard) {
+                            try {
+                                Packet copy = packet.createCopy();
+                                copy.setTo(recipient);
+                                packetRouter.route(copy);
+                                broadcast.delivered();
+                            }
+                            catch (Exception e) {
+                                Log.warn("Error while routing broadcast packet to " + recipient, e);
+                                broadcast.failed();
+                            }
+                        }
+                    }
+                };
+            }
+        });
+        broadcast.ready();
+    }
+
+    /**
+     * Hands each of the specified recipients to a delivery and returns once every recipient
+     * was processed. Shards of recipients are processed in parallel by the pool and the first
+     * shard is processed by the calling thread, so small sets of recipients are processed by
+     * the calling thread only. Since this method waits for the shards, stanzas delivered one
+     * after the other by the same thread reach each recipient in order.
+     *
+     * @param recipients the recipients of the stanza.
+     * @param delivery the delivery of the stanza to a recipient.
+     * @param <T> the type of the recipients.
+     */
+    public <T> void deliver(Collection<T> recipients, final Delivery<T> delivery) {
+        final List<List<T>> shards = split(recipients);
+        if (shards.isEmpty()) {
+            return;
+        }
+        final ThreadPoolExecutor executor = this.executor;
+        if (shards.size() == 1 || executor == null || executor.isShutdown() ||
+                processingShard.get() != null) {
+            // Threads of the pool do not wait for other threads of the pool
+            for (List<T> shard : shards) {
+                deliver(shard, delivery);
+            }
+            return;
+        }
+        final CountDownLatch finished = new CountDownLatch(shards.size() - 1);
+        for (final List<T> shard : shards.subList(1, shards.size())) {
+            queuedShards.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedShards.decrementAndGet();
+                    try {
+                        runShard(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver(shard, delivery);
+                            }
+                        });
+                    }
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        deliver(shards.get(0), delivery);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> void deliver(List<T> shard, Delivery<T> delivery) {
+        for (T recipient : shard) {
+            try {
+                delivery.deliver(recipient);
+            }
+            catch (Exception e) {
+                Log.warn("Error while delivering broadcast stanza to " + recipient, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of shards that are waiting for a thread of the pool.
+     *
+     * @return the number of shards that are waiting for a thread.
+     */
+    public int getQueuedShards() {
+        return queuedShards.get();
+    }
+
+    /**
+     * Returns the number of shards that are being delivered.
+     *
+     * @return the number of shards that are being delivered.
+     */
+    public int getActiveShards() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    private <T> List<List<T>> split(Collection<? extends T> recipients) {
+        List<List<T>> shards = new ArrayList<>(recipients.size() / shardSize + 1);
+        List<T> shard = null;
+        for (T recipient : recipients) {
+            if (shard == null || shard.size() == shardSize) {
+                shard = new ArrayList<>(Math.min(shardSize, recipients.size()));
+                shards.add(shard);
+            }
+            shard.add(recipient);
+        }
+        return shards;
+    }
+
+    /**
+     * Splits the recipients of a broadcast in shards of the lanes of the recipients and hands
+     * the shards to their lanes, in the order of the recipients.
+     */
+    private <T> void execute(Broadcast broadcast, Collection<? extends T> recipients, Sharding<T> sharding) {
+        final Lane[] lanes = this.lanes;
+        if (lanes.length == 0) {
+            // Not started: deliver from the requesting thread
+            for (List<T> shard : split(recipients)) {
+                execute(broadcast, null, sharding.createShard(shard));
+            }
+            return;
+        }
+        final List<List<T>> shards = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            shards.add(null);
+        }
+        for (T recipient : recipients) {
+            final int lane = (recipient.hashCode() & Integer.MAX_VALUE) % lanes.length;
+            List<T> shard = shards.get(lane);
+            if (shard == null) {
+                shard = new ArrayList<>(Math.min(shardSize, recipients.size()));
+                shards.set(lane, shard);
+            }
+            shard.add(recipient);
+            if (shard.size() == shardSize) {
+                execute(broadcast, lanes[lane], sharding.createShard(shard));
+                shards.set(lane, null);
+            }
+        }
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (shards.get(lane) != null) {
+                execute(broadcast, lanes[lane], sharding.createShard(shards.get(lane)));
+            }
+        }
+    }
+
+    private void execute(final Broadcast broadcast, Lane lane, final Runnable shard) {
+        broadcast.shardStarted();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runShard(shard);
+                }
+                finally {
+                    broadcast.shardFinished();
+                }
+            }
+        };
+        if (lane == null) {
+            task.run();
+        }
+        else {
+            lane.execute(task);
+        }
+    }
+
+    /**
+     * Runs a shard, marking the current thread as processing a shard. Shards may be run by
+     * the thread that requested the broadcast when the pool is busy.
+     */
+    private static void runShard(Runnable shard) {
+        final boolean nested = processingShard.get() != null;
+        processingShard.set(Boolean.TRUE);
+        try {
+            shard.run();
+        }
+        finally {
+            if (!nested) {
+                processingShard.remove();
+            }
+        }
+    }
+
+    /**
+     * Creates the shards of a broadcast.
+     *
+     * @param <T> the type of the recipients.
+     */
+    private static abstract class Sharding<T> {
+
+        /**
+         * Creates the task that delivers the broadcast packet to a shard of recipients.
+         *
+         * @param shard the recipients of the shard.
+         * @return the task that delivers the packet to the recipients.
+         */
+        abstract Runnable createShard(List<T> shard);
+    }
+
+    /**
+     * Shards that are processed one after the other, in the order in which they were added.
+     * A lane is drained by at most one thread at a time: a thread of the pool or, when too
+     * many shards are waiting and the lane is idle, the thread that adds a shard.
+     */
+    private class Lane implements Runnable {
+
+        private final Queue<Runnable> shards = new ConcurrentLinkedQueue<>();
+        // True while the lane is being drained or is waiting for a thread of the pool
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable shard) {
+            shards.add(shard);
+            if (queuedShards.incrementAndGet() > queueSize) {
+                // Too many shards are waiting: process the lane if no other thread does
+                if (scheduled.compareAndSet(false, true)) {
+                    run();
+                }
+                return;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!shards.isEmpty() && scheduled.compareAndSet(false, true)) {
+                final ThreadPoolExecutor executor = BroadcastManager.this.executor;
+                if (executor == null || executor.isShutdown()) {
+                    run();
+                }
+                else {
+                    executor.execute(this);
+                }
+            }
+        }
+
+        /**
+         * Processes the shards of the lane. Must only be invoked by the thread that set the
+         * lane as scheduled.
+         */
+        @Override
+        public void run() {
+            try {
+                Runnable shard;
+                while ((shard = shards.poll()) != null) {
+                    queuedShards.decrementAndGet();
+                    shard.run();
+                }
+            }
+            finally {
+                scheduled.set(false);
+            }
+            // Shards added after the queue was found empty
+            schedule();
+        }
+    }
+
+    /**
+     * Delivery of a stanza to one recipient of a broadcast.
+     *
+     * @param <T> the type of the recipients.
+     * @see #deliver(Collection, Delivery)
+     */
+    public interface Delivery<T> {
+
+        /**
+         * Delivers the stanza to a recipient.
+         *
+         * @param recipient the recipient of the stanza.
+         */
+        void deliver(T recipient);
+    }
+
+    /**
+     * Progress of a broadcast. The broadcast is complete once every shard has finished and
+     * no more shards will be started.
+     */
+    private static class Broadcast {
+
+        private final Packet packet;
+        private final int total;
+        private final BroadcastListener listener;
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        // Shards that have not finished plus one until all shards have been submitted
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        Broadcast(Packet packet, int total, BroadcastListener listener) {
+            this.packet = packet;
+            this.total = total;
+            this.listener = listener;
+        }
+
+        void delivered() {
+            delivered.incrementAndGet();
+        }
+
+        void failed() {
+            failed.incrementAndGet();
+        }
+
+        void shardStarted() {
+            pending.incrementAndGet();
+        }
+
+        void shardFinished() {
+            if (listener != null) {
+                try {
+                    listener.broadcastProgress(packet, delivered.get() + failed.get(), total);
+                }
+                catch (Exception e) {
+                    Log.warn("Error notifying broadcast listener", e);
+                }
+            }
+            ready();
+        }
+
+        void ready() {
+            if (pending.decrementAndGet() == 0) {
+                if (listener != null) {
+                    try {
+                        listener.broadcastCompleted(packet, delivered.get(), failed.get());
+                    }
+                    catch (Exception e) {
+                        Log.warn("Error notifying broadcast listener", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -74,6 +74,10 @@ public class MulticastRouter extends BasicModule implements ServerFeaturesProvid
      * Router used for delivering packets with multiple recipients.
      */
     private PacketRouter packetRouter;
+    /**
+     * Manager used for delivering packets to local users in parallel.
+     */
+    private BroadcastManager broadcastManager;
     /**
      * Router used for discovering if remote servers support multicast service.
      */
@@ -141,10 +145,11 @@ public class MulticastRouter extends BasicModule implements ServerFeaturesProvid
             }
         }
         // Send the packet to local target users
+        List<JID> recipients = new ArrayList<>(targets.size());
         for (String jid : targets) {
-            localBroadcast.setTo(jid);
-            packetRouter.route(localBroadcast);
+            recipients.add(new JID(jid));
         }
+        broadcastManager.route(localBroadcast, recipients, null);
 
         // Keep a registry of packets that should be sent to remote domains.
         for (String domain : remoteServers) {
@@ -408,6 +413,7 @@ public class MulticastRouter extends BasicModule implements ServerFeaturesProvid
         super.initialize(server);
         this.server = server;
         this.packetRouter = server.getPacketRouter();
+        this.broadcastManager = server.getBroadcastManager();
         this.iqRouter = server.getIQRouter();
     }
 
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the offline messages of a user loading them from the database in pages.
+ * Pages are read by message ID up to the ID of the last message that was stored when the
+ * cursor was created. Messages stored while the cursor is in use (for instance messages
+ * that could not be delivered and were stored again) are left for the next cursor. When
+ * messages are deleted, the messages of a page are deleted once the cursor moves past the
+ * page, so a cursor that is abandoned leaves the messages it did not return (and the messages
+ * of its current page) in the store.
+ *
+ * @see OfflineMessageStore#getMessageCursor(String, boolean)
+ */
+class OfflineMessageCursor implements Iterator<OfflineMessage> {
+
+    private static final Logger Log = LoggerFactory.getLogger(OfflineMessageCursor.class);
+
+    private final OfflineMessageStore store;
+    private final String username;
+    private final boolean delete;
+    private final int pageSize;
+    private final long maxID;
+
+    private final List<OfflineMessage> page = new ArrayList<>();
+    private final List<Long> pageIDs = new ArrayList<>();
+    private int index;
+    private long lastID = -1;
+    private boolean exhausted;
+
+    OfflineMessageCursor(OfflineMessageStore store, String username, boolean delete, int pageSize,
+            long maxID) {
+        this.store = store;
+        this.username = username;
+        this.delete = delete;
+        this.pageSize = pageSize;
+        this.maxID = maxID;
+        this.exhausted = maxID < 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (index >= page.size()) {
+            finishPage();
+            if (exhausted) {
+                return false;
+            }
+            loadPage();
+        }
+        return true;
+    }
+
+    @Override
+    public OfflineMessage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void loadPage() {
+        try {
+            store.loadMessages(username, lastID, maxID, pageSize, page, pageIDs);
+        }
+        catch (SQLException e) {
+            Log.error("Error retrieving offline messages of username: " + username, e);
+            exhausted = true;
+            return;
+        }
+        if (pageIDs.size() < pageSize) {
+            exhausted = true;
+        }
+        if (!pageIDs.isEmpty()) {
+            lastID = pageIDs.get(pageIDs.size() - 1);
+        }
+    }
+
+    private void finishPage() {
+        if (delete && !pageIDs.isEmpty()) {
+            store.deleteMessages(username, pageIDs);
+        }
+        page.clear();
+        pageIDs.clear();
+        index = 0;
+    }
+}
@@ -27,14 +27,17 @@ import org.dom4j.QName;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
 import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -47,9 +50,11 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,7 +63,25 @@ import java.util.regex.Pattern;
  * sent to the user while they were unavailable. The user can retrieve their messages by
  * setting their presence to "available". The messages will then be delivered normally.
  * Offline message storage is optional, in which case a null implementation is returned that
- * always throws UnauthorizedException when adding messages to the store.
+ * always throws UnauthorizedException when adding messages to the store.<p>
+ *
+ * Messages are not inserted by the thread that stores them. They are queued and written in
+ * JDBC batches by a background task, and the queue is written before messages are read or
+ * deleted, and when the store is stopped. The write-behind queue is configured with the
+ * following properties (read at startup):<ul>
+ * <li><tt>xmpp.offline.flush.interval</tt>: milliseconds between writes of the queue, 500 by
+ *      default. Use 0 to insert messages as they are stored.
+ * <li><tt>xmpp.offline.flush.size</tt>: maximum number of messages per batch, 100 by default.
+ *      The queue is written as soon as it holds this number of messages.
+ * <li><tt>xmpp.offline.queue.size</tt>: maximum number of queued messages, 10000 by default.
+ *      When the queue is full, the thread that stores a message writes the queue.</ul>
+ *
+ * When running in a cluster messages are inserted as they are stored, since other cluster
+ * nodes may read the messages of the user right away.<p>
+ *
+ * Large amounts of messages should be read with {@link #getMessageCursor(String, boolean)},
+ * which reads (and deletes) messages in pages of <tt>xmpp.offline.page.size</tt> messages,
+ * 100 by default.
  *
  * @author Iain Shigeoka
  */
@@ -69,23 +92,55 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     private static final String INSERT_OFFLINE =
         "INSERT INTO ofOffline (username, messageID, creationDate, messageSize, stanza) " +
         "VALUES (?, ?, ?, ?, ?)";
-    private static final String LOAD_OFFLINE =
-        "SELECT stanza, creationDate FROM ofOffline WHERE username=?";
+    private static final String LOAD_OFFLINE_PAGE =
+        "SELECT messageID, stanza, creationDate FROM ofOffline WHERE username=? AND messageID>? " +
+        "AND messageID<=? ORDER BY messageID";
+    private static final String SELECT_LAST_ID_OFFLINE =
+        "SELECT MAX(messageID) FROM ofOffline WHERE username=?";
     private static final String LOAD_OFFLINE_MESSAGE =
         "SELECT stanza FROM ofOffline WHERE username=? AND creationDate=?";
     private static final String SELECT_SIZE_OFFLINE =
         "SELECT SUM(messageSize) FROM ofOffline WHERE username=?";
     private static final String SELECT_SIZE_ALL_OFFLINE =
         "SELECT SUM(messageSize) FROM ofOffline";
+    private static final String SELECT_COUNT_OFFLINE =
+        "SELECT COUNT(*) FROM ofOffline WHERE username=?";
     private static final String DELETE_OFFLINE =
         "DELETE FROM ofOffline WHERE username=?";
     private static final String DELETE_OFFLINE_MESSAGE =
         "DELETE FROM ofOffline WHERE username=? AND creationDate=?";
+    private static final String DELETE_OFFLINE_MESSAGE_ID =
+        "DELETE FROM ofOffline WHERE username=? AND messageID=?";
 
     private static final int POOL_SIZE = 10;
     
     private Cache<String, Integer> sizeCache;
 
+    private final long flushInterval = JiveGlobals.getLongProperty("xmpp.offline.flush.interval", 500);
+    private final int flushSize = Math.max(1, JiveGlobals.getIntProperty("xmpp.offline.flush.size", 100));
+    private final int pageSize = Math.max(1, JiveGlobals.getIntProperty("xmpp.offline.page.size", 100));
+
+    /**
+     * Messages waiting to be inserted in the database.
+     */
+    private final BlockingQueue<PendingMessage> pendingMessages =
+            new LinkedBlockingQueue<>(Math.max(1, JiveGlobals.getIntProperty("xmpp.offline.queue.size", 10000)));
+
+    /**
+     * Lock held while queued messages are written, so that readers can wait for messages that
+     * were taken from the queue but are not in the database yet.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private TimerTask flushTask;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingMessages();
+        }
+    };
+
     /**
      * Pattern to use for detecting invalid XML characters. Invalid XML characters will
      * be removed from the stored offline messages.
@@ -144,38 +199,110 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Get the message in XML format.
         String msgXML = message.getElement().asXML();
 
+        PendingMessage pending = new PendingMessage(username, messageID, msgXML);
+        if (flushTask != null && !ClusterManager.isClusteringStarted()) {
+            if (pendingMessages.offer(pending)) {
+                if (pendingMessages.size() >= flushSize) {
+                    // Write a full batch without waiting for the timer
+                    TaskEngine.getInstance().submit(flushRunnable);
+                }
+                pending = null;
+            }
+            else {
+                // The queue is full so write it in this thread
+                flushPendingMessages();
+            }
+        }
+        if (pending != null) {
+            writeMessages(Collections.singletonList(pending));
+        }
+
+        // Update the cached size if it exists.
+        if (sizeCache.containsKey(username)) {
+            int size = sizeCache.get(username);
+            size += msgXML.length();
+            sizeCache.put(username, size);
+        }
+    }
+
+    /**
+     * Writes the queued messages to the database. Returns once the messages that were queued
+     * when this method was invoked are in the database.
+     */
+    void flushPendingMessages() {
+        if (pendingMessages.isEmpty() && !flushLock.isLocked()) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            List<PendingMessage> batch = new ArrayList<>(flushSize);
+            while (pendingMessages.drainTo(batch, flushSize) > 0) {
+                writeMessages(batch);
+                batch.clear();
+            }
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts messages in the database. Messages are inserted as a batch first and one by one
+     * if the batch failed, so that a single failing message does not prevent the others from
+     * being stored.
+     *
+     * @param messages the messages to insert.
+     */
+    private void writeMessages(List<PendingMessage> messages) {
+        boolean batch = messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(INSERT_OFFLINE);
-            pstmt.setString(1, username);
-            pstmt.setLong(2, messageID);
-            pstmt.setString(3, StringUtils.dateToMillis(new java.util.Date()));
-            pstmt.setInt(4, msgXML.length());
-            pstmt.setString(5, msgXML);
-            pstmt.executeUpdate();
+            for (PendingMessage message : messages) {
+                message.setParameters(pstmt);
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    try {
+                        pstmt.executeUpdate();
+                    }
+                    catch (SQLException e) {
+                        Log.error("Failed to store offline message of username: " + message.username +
+                                "\n" + message.msgXML, e);
+                    }
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
         }
-
         catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            if (batch) {
+                Log.warn("Failed to store offline messages as batch; will retry individually", e);
+                DbConnectionManager.closeConnection(pstmt, con);
+                con = null;
+                pstmt = null;
+                for (PendingMessage message : messages) {
+                    writeMessages(Collections.singletonList(message));
+                }
+            }
+            else {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            }
         }
         finally {
             DbConnectionManager.closeConnection(pstmt, con);
         }
-
-        // Update the cached size if it exists.
-        if (sizeCache.containsKey(username)) {
-            int size = sizeCache.get(username);
-            size += msgXML.length();
-            sizeCache.put(username, size);
-        }
     }
 
     /**
      * Returns a Collection of all messages in the store for a user.
      * Messages may be deleted after being selected from the database depending on
-     * the delete param.
+     * the delete param. All messages are loaded at once, so users that may have
+     * many messages are better served by {@link #getMessageCursor(String, boolean)}.
      *
      * @param username the username of the user who's messages you'd like to receive.
      * @param delete true if the offline messages should be deleted.
@@ -183,6 +310,80 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
         List<OfflineMessage> messages = new ArrayList<>();
+        for (Iterator<OfflineMessage> it = getMessageCursor(username, delete); it.hasNext();) {
+            messages.add(it.next());
+        }
+        return messages;
+    }
+
+    /**
+     * Returns a cursor over the messages in the store for a user, in the order they were
+     * stored. Messages are loaded from the database in pages as the cursor advances. Only
+     * the messages that were stored when the cursor was created are returned. When
+     * <tt>delete</tt> is true, the messages of a page are deleted once the cursor moves past
+     * the page, so messages that were not returned by the cursor (for instance because the
+     * caller stopped iterating after an error) remain in the store.
+     *
+     * @param username the username of the user who's messages you'd like to receive.
+     * @param delete true if the returned offline messages should be deleted.
+     * @return a cursor over the offline messages of the user.
+     */
+    public Iterator<OfflineMessage> getMessageCursor(String username, boolean delete) {
+        flushPendingMessages();
+        long lastID;
+        try {
+            lastID = getLastMessageID(username);
+        }
+        catch (SQLException e) {
+            Log.error("Error retrieving offline messages of username: " + username, e);
+            return Collections.emptyIterator();
+        }
+        return new OfflineMessageCursor(this, username, delete, pageSize, lastID);
+    }
+
+    /**
+     * Returns the ID of the most recent offline message of a user.
+     *
+     * @param username the username of the user.
+     * @return the ID of the most recent message or -1 if the user has no offline messages.
+     * @throws SQLException if the ID could not be loaded.
+     */
+    private long getLastMessageID(String username) throws SQLException {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SELECT_LAST_ID_OFFLINE);
+            pstmt.setString(1, username);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                long lastID = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    return lastID;
+                }
+            }
+            return -1;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Loads a page of offline messages of a user.
+     *
+     * @param username the username of the user who's messages you'd like to receive.
+     * @param afterID only messages with a greater ID are loaded.
+     * @param lastID only messages with this ID or a smaller ID are loaded.
+     * @param size the maximum number of messages to load.
+     * @param messages the list to add the loaded messages to.
+     * @param messageIDs the list to add the IDs of the loaded rows to, including the rows that
+     *        could not be parsed.
+     * @throws SQLException if the messages could not be loaded.
+     */
+    void loadMessages(String username, long afterID, long lastID, int size, List<OfflineMessage> messages,
+            List<Long> messageIDs) throws SQLException {
         SAXReader xmlReader = null;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -191,12 +392,16 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             // Get a sax reader from the pool
             xmlReader = xmlReaders.take();
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_OFFLINE);
+            pstmt = con.prepareStatement(LOAD_OFFLINE_PAGE);
+            DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, size);
             pstmt.setString(1, username);
+            pstmt.setLong(2, afterID);
+            pstmt.setLong(3, lastID);
             rs = pstmt.executeQuery();
-            while (rs.next()) {
-                String msgXML = rs.getString(1);
-                Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
+            while (rs.next() && messageIDs.size() < size) {
+                messageIDs.add(rs.getLong(1));
+                String msgXML = rs.getString(2);
+                Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
                 OfflineMessage message;
                 try {
                     message = new OfflineMessage(creationDate,
@@ -226,26 +431,10 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
                 }
                 messages.add(message);
             }
-            // Check if the offline messages loaded should be deleted, and that there are
-            // messages to delete.
-            if (delete && !messages.isEmpty()) {
-                PreparedStatement pstmt2 = null;
-                try {
-                    pstmt2 = con.prepareStatement(DELETE_OFFLINE);
-                    pstmt2.setString(1, username);
-                    pstmt2.executeUpdate();
-                    removeUsernameFromSizeCache(username);
-                }
-                catch (Exception e) {
-                    Log.error("Error deleting offline messages of username: " + username, e);
-                }
-                finally {
-                    DbConnectionManager.closeStatement(pstmt2);
-                } 
-            }
         }
-        catch (Exception e) {
-            Log.error("Error retrieving offline messages of username: " + username, e);
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for an XML reader", e);
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
@@ -254,7 +443,72 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
                 xmlReaders.add(xmlReader);
             }
         }
-        return messages;
+    }
+
+    /**
+     * Deletes the offline messages of a user that have the specified IDs.
+     *
+     * @param username the username of the user who's messages are going to be deleted.
+     * @param messageIDs the IDs of the messages to delete.
+     */
+    void deleteMessages(String username, List<Long> messageIDs) {
+        boolean batch = messageIDs.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(DELETE_OFFLINE_MESSAGE_ID);
+            for (Long messageID : messageIDs) {
+                pstmt.setString(1, username);
+                pstmt.setLong(2, messageID);
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error deleting offline messages of username: " + username, e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+        removeUsernameFromSizeCache(username);
+    }
+
+    /**
+     * Returns the number of messages in the store for a user.
+     *
+     * @param username the username of the user.
+     * @return the number of offline messages of the user.
+     */
+    public int getCount(String username) {
+        flushPendingMessages();
+        int count = 0;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SELECT_COUNT_OFFLINE);
+            pstmt.setString(1, username);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                count = rs.getInt(1);
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error counting offline messages of username: " + username, e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return count;
     }
 
     /**
@@ -266,6 +520,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the offline message of the specified user with the given creation stamp.
      */
     public OfflineMessage getMessage(String username, Date creationDate) {
+        flushPendingMessages();
         OfflineMessage message = null;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -309,6 +564,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param username the username of the user who's messages are going to be deleted.
      */
     public void deleteMessages(String username) {
+        flushPendingMessages();
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -342,6 +598,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param creationDate the date when the offline message was stored in the database.
      */
     public void deleteMessage(String username, Date creationDate) {
+        flushPendingMessages();
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -377,6 +634,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         if (sizeCache.containsKey(username)) {
             return sizeCache.get(username);
         }
+        flushPendingMessages();
         int size = 0;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -408,6 +666,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the approximate size of all stored messages (in bytes).
      */
     public int getSize() {
+        flushPendingMessages();
         int size = 0;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -457,11 +716,26 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Add this module as a user event listener so we can delete
         // all offline messages when a user is deleted
         UserEventDispatcher.addListener(this);
+        if (flushInterval > 0) {
+            flushTask = new TimerTask() {
+                @Override
+                public void run() {
+                    flushPendingMessages();
+                }
+            };
+            TaskEngine.getInstance().schedule(flushTask, flushInterval, flushInterval);
+        }
     }
 
     @Override
-	public void stop() {
+    public void stop() {
         super.stop();
+        if (flushTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushTask = null;
+        }
+        // Store queued messages before shutting down
+        flushPendingMessages();
         // Clean up the pool of sax readers
         xmlReaders.clear();
         // Remove this module as a user event listener
@@ -526,4 +800,30 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         }
         return true;
     }
+
+    /**
+     * Message waiting to be inserted in the database.
+     */
+    private static class PendingMessage {
+
+        private final String username;
+        private final long messageID;
+        private final String creationDate;
+        private final String msgXML;
+
+        PendingMessage(String username, long messageID, String msgXML) {
+            this.username = username;
+            this.messageID = messageID;
+            this.creationDate = StringUtils.dateToMillis(new Date());
+            this.msgXML = msgXML;
+        }
+
+        void setParameters(PreparedStatement pstmt) throws SQLException {
+            pstmt.setString(1, username);
+            pstmt.setLong(2, messageID);
+            pstmt.setString(3, creationDate);
+            pstmt.setInt(4, msgXML.length());
+            pstmt.setString(5, msgXML);
+        }
+    }
 }
\ No newline at end of file
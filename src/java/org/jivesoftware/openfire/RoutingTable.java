@@ -122,6 +122,16 @@ public interface RoutingTable {
      */
     boolean addClientRoute(JID route, LocalClientSession destination);
 
+    /**
+     * Notification that the state of a client session that affects how packets sent to the
+     * bare JID of the user are routed has changed. For instance, the session has enabled or
+     * disabled message carbons. This message <tt>must</tt> be sent from the cluster node that
+     * is actually holding the client session.
+     *
+     * @param session the client session whose state has changed.
+     */
+    void refreshClientRoute(LocalClientSession session);
+
     /**
      * Routes a packet to the specified address. The packet destination can be a
      * user on the local server, a component, or a foreign server.<p>
@@ -363,4 +373,17 @@ public interface RoutingTable {
      * @param onlyLocal true if only client sessions connecte to the local JVM will get the message.
      */
     void broadcastPacket(Message packet, boolean onlyLocal);
+
+    /**
+     * Broadcasts the specified message to connected client sessions to the local node or
+     * across the cluster. Both available and unavailable client sessions will receive the message.
+     * Client sessions connected to the local JVM are processed by the {@link BroadcastManager}
+     * so this method returns before the message was delivered. The listener is only notified
+     * of the progress of the delivery to the client sessions connected to the local JVM.
+     *
+     * @param packet the message to broadcast.
+     * @param onlyLocal true if only client sessions connecte to the local JVM will get the message.
+     * @param listener the listener to notify of the progress of the broadcast or null.
+     */
+    void broadcastPacket(Message packet, boolean onlyLocal, BroadcastListener listener);
 }
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.nio.ByteBuffer;
+
+import org.dom4j.Element;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.PacketError;
+import org.xmpp.packet.PacketExtension;
+import org.xmpp.packet.Presence;
+
+/**
+ * Presence that carries its XML serialized as UTF-8. Rooms of the group chat service
+ * serialize the presences they broadcast to their occupants once and send each occupant its
+ * own instance of this class, addressed to the occupant.<p>
+ *
+ * The TO address of the presence is spliced into the payload when it's written. Instances
+ * created for the occupants share the element of the presence they were created from and keep
+ * their TO address aside, until the element is accessed or the presence is modified in any
+ * other way; then the element is copied. Other changes made to the presence after it was
+ * serialized are not included in the payload. Copies of the presence (see
+ * {@link #createCopy()}) are plain presences.
+ *
+ * @see SerializedMessage
+ */
+public class SerializedPresence extends Presence implements SerializedStanza {
+
+    private final StanzaPayload payload;
+
+    /**
+     * True while the element is shared with the presence this presence was created from. The
+     * TO address of the presence is kept in {@link #to} until the element is copied.
+     */
+    private boolean shared;
+    private JID to;
+
+    /**
+     * Creates a presence that shares the payload and the element of another serialized presence.
+     * The other presence must not be modified afterwards.
+     *
+     * @param presence the presence whose payload and element are shared.
+     */
+    public SerializedPresence(SerializedPresence presence) {
+        super(presence.element, true);
+        this.payload = presence.payload;
+        this.to = presence.getTo();
+        this.shared = true;
+    }
+
+    /**
+     * Creates a serialized copy of the specified presence.
+     *
+     * @param presence the presence to copy and serialize.
+     */
+    public SerializedPresence(Presence presence) {
+        super(presence.getElement().createCopy(), true);
+        this.payload = StanzaPayload.serialize(element);
+    }
+
+    @Override
+    public ByteBuffer getPayload() {
+        return payload.toBuffer(getToAttribute());
+    }
+
+    @Override
+    public ByteBuffer[] getPayloadSegments() {
+        return payload.toBuffers(getToAttribute());
+    }
+
+    private String getToAttribute() {
+        if (shared) {
+            return to == null ? null : to.toString();
+        }
+        return element.attributeValue("to");
+    }
+
+    /**
+     * Copies the shared element before it's exposed or modified.
+     */
+    private void own() {
+        if (shared) {
+            element = element.createCopy();
+            shared = false;
+            super.setTo(to);
+        }
+    }
+
+    @Override
+    public JID getTo() {
+        return shared ? to : super.getTo();
+    }
+
+    @Override
+    public void setTo(String to) {
+        if (shared) {
+            this.to = to == null ? null : new JID(to);
+        }
+        else {
+            super.setTo(to);
+        }
+    }
+
+    @Override
+    public void setTo(JID to) {
+        if (shared) {
+            this.to = to;
+        }
+        else {
+            super.setTo(to);
+        }
+    }
+
+    @Override
+    public Presence createCopy() {
+        if (shared) {
+            final Presence copy = new Presence(element.createCopy(), true);
+            copy.setTo(to);
+            return copy;
+        }
+        return super.createCopy();
+    }
+
+    @Override
+    public Element getElement() {
+        own();
+        return super.getElement();
+    }
+
+    @Override
+    public String toXML() {
+        own();
+        return super.toXML();
+    }
+
+    @Override
+    public String toString() {
+        own();
+        return super.toString();
+    }
+
+    @Override
+    public void setID(String ID) {
+        own();
+        super.setID(ID);
+    }
+
+    @Override
+    public void setFrom(String from) {
+        own();
+        super.setFrom(from);
+    }
+
+    @Override
+    public void setFrom(JID from) {
+        own();
+        super.setFrom(from);
+    }
+
+    @Override
+    public void addExtension(PacketExtension extension) {
+        own();
+        super.addExtension(extension);
+    }
+
+    @Override
+    public PacketExtension getExtension(String name, String namespace) {
+        own();
+        return super.getExtension(name, namespace);
+    }
+
+    @Override
+    public boolean deleteExtension(String name, String namespace) {
+        own();
+        return super.deleteExtension(name, namespace);
+    }
+
+    @Override
+    public PacketError getError() {
+        own();
+        return super.getError();
+    }
+
+    @Override
+    public void setError(PacketError error) {
+        own();
+        super.setError(error);
+    }
+
+    @Override
+    public void setError(PacketError.Condition condition) {
+        own();
+        super.setError(condition);
+    }
+
+    @Override
+    public void setType(Type type) {
+        own();
+        super.setType(type);
+    }
+
+    @Override
+    public void setShow(Show show) {
+        own();
+        super.setShow(show);
+    }
+
+    @Override
+    public void setStatus(String status) {
+        own();
+        super.setStatus(status);
+    }
+
+    @Override
+    public void setPriority(int priority) {
+        own();
+        super.setPriority(priority);
+    }
+
+    @Override
+    public Element getChildElement(String name, String namespace) {
+        own();
+        return super.getChildElement(name, namespace);
+    }
+
+    @Override
+    public Element addChildElement(String name, String namespace) {
+        own();
+        return super.addChildElement(name, namespace);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stanza that carries its XML serialized as UTF-8, so connections that write bytes can send
+ * the serialized stanza instead of serializing the stanza again. Stanzas that are sent to many
+ * recipients share the serialization; only the TO address of each recipient is spliced into
+ * the serialized stanza when it's written.<p>
+ *
+ * Interceptors could alter a stanza after it was serialized, so sessions deliver a plain copy
+ * of the stanza instead when interceptors apply to it (see
+ * {@link org.jivesoftware.openfire.interceptor.InterceptorManager#hasInterceptors}).
+ *
+ * @see SerializedMessage
+ * @see SerializedPresence
+ */
+public interface SerializedStanza {
+
+    /**
+     * Returns a read-only view of the UTF-8 serialization of the stanza, addressed to the
+     * current TO address of the stanza.
+     *
+     * @return a read-only view of the serialized stanza.
+     */
+    ByteBuffer getPayload();
+
+    /**
+     * Returns read-only views of the segments of the UTF-8 serialization of the stanza,
+     * addressed to the current TO address of the stanza. Writing the segments in order writes
+     * the stanza. Unlike {@link #getPayload()}, the parts that are shared by every recipient
+     * are not copied.
+     *
+     * @return read-only views of the segments of the serialized stanza, in order.
+     */
+    ByteBuffer[] getPayloadSegments();
+}
@@ -70,6 +70,9 @@ import org.jivesoftware.openfire.session.OutgoingServerSession;
 import org.jivesoftware.openfire.session.RemoteSessionLocator;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.streammanagement.StreamManager;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
@@ -105,6 +108,9 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
 
     public static final int NEVER_KICK = -1;
 
+    private static final String RESUMPTIONS_STAT_KEY = "sm_resumptions";
+    private static final String UNACKED_BYTES_STAT_KEY = "sm_unacked_bytes";
+
     private XMPPServer server;
     private PacketRouter router;
     private String serverName;
@@ -736,9 +742,9 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         // User sessions had negative presence before this change so deliver messages
         if (session.canFloodOfflineMessages()) {
             OfflineMessageStore messageStore = server.getOfflineMessageStore();
-            Collection<OfflineMessage> messages = messageStore.getMessages(session.getAuthToken().getUsername(), true);
-            for (Message message : messages) {
-                session.process(message);
+            String username = session.getAuthToken().getUsername();
+            for (Iterator<OfflineMessage> it = messageStore.getMessageCursor(username, true); it.hasNext();) {
+                session.process(it.next());
             }
         }
     }
@@ -1253,32 +1259,85 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
          */
         @Override
         public void onConnectionClose(Object handback) {
-            try {
-                LocalClientSession session = (LocalClientSession) handback;
-                try {
-                    if ((session.getPresence().isAvailable() || !session.wasAvailable()) &&
-                            routingTable.hasClientRoute(session.getAddress())) {
-                        // Send an unavailable presence to the user's subscribers
-                        // Note: This gives us a chance to send an unavailable presence to the
-                        // entities that the user sent directed presences
-                        Presence presence = new Presence();
-                        presence.setType(Presence.Type.unavailable);
-                        presence.setFrom(session.getAddress());
-                        router.route(presence);
-                    }
+            LocalClientSession session = (LocalClientSession) handback;
+            // Keep the session if the client may resume it (XEP-0198)
+            if (!server.isShuttingDown() && session.getStreamManager().detach()) {
+                return;
+            }
+            closeClientSession(session);
+        }
+    }
 
-                    session.getStreamManager().onClose(router, serverAddress);
-                }
-                finally {
-                    // Remove the session
-                    removeSession(session);
+    /**
+     * Closes a client session whose connection was closed.
+     *
+     * @param session the session to close.
+     */
+    private void closeClientSession(LocalClientSession session) {
+        try {
+            try {
+                if ((session.getPresence().isAvailable() || !session.wasAvailable()) &&
+                        routingTable.hasClientRoute(session.getAddress())) {
+                    // Send an unavailable presence to the user's subscribers
+                    // Note: This gives us a chance to send an unavailable presence to the
+                    // entities that the user sent directed presences
+                    Presence presence = new Presence();
+                    presence.setType(Presence.Type.unavailable);
+                    presence.setFrom(session.getAddress());
+                    router.route(presence);
                 }
+
+                session.getStreamManager().onClose(router, serverAddress);
             }
-            catch (Exception e) {
-                // Can't do anything about this problem...
-                Log.error(LocaleUtils.getLocalizedString("admin.error.close"), e);
+            finally {
+                // Remove the session
+                removeSession(session);
             }
         }
+        catch (Exception e) {
+            // Can't do anything about this problem...
+            Log.error(LocaleUtils.getLocalizedString("admin.error.close"), e);
+        }
+    }
+
+    /**
+     * Closes a client session that was kept to be resumed after its connection broke. The
+     * session is closed when it is not resumed in time or when it is closed by the server.
+     *
+     * @param session the detached session to close.
+     */
+    public void closeDetachedSession(LocalClientSession session) {
+        closeClientSession(session);
+    }
+
+    /**
+     * Resumes a client session that was kept after its connection broke (XEP-0198). The
+     * resumed session takes over the connection of the pending session on which the client
+     * asked for the resumption, and the pending session is discarded.
+     *
+     * @param pending the authenticated session that asked to resume the previous session.
+     * @param previous the session to resume.
+     * @param h the number of stanzas that the client acknowledged.
+     * @return true if the session was resumed.
+     */
+    public boolean resumeClientSession(LocalClientSession pending, LocalClientSession previous, long h) {
+        final Connection connection = pending.getConnection();
+        final Connection previousConnection = previous.getConnection();
+        if (!previousConnection.isClosed()) {
+            // The client reconnected before the broken connection was noticed
+            previousConnection.close();
+        }
+        if (!previous.getStreamManager().resume(connection, h)) {
+            return false;
+        }
+        connection.removeCloseListener(clientSessionListener);
+        connection.registerCloseListener(clientSessionListener, previous);
+
+        // The pending session is replaced by the resumed session
+        if (localSessionManager.getPreAuthenticatedSessions().remove(pending.getAddress().getResource()) != null) {
+            connectionsCounter.decrementAndGet();
+        }
+        return true;
     }
 
     private class ComponentSessionListener implements ConnectionCloseListener {
@@ -1463,11 +1522,50 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
 	public void start() throws IllegalStateException {
         super.start();
         localSessionManager.start();
+        addStatistics();
+    }
+
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(RESUMPTIONS_STAT_KEY,
+                new i18nStatistic("sm.resumptions", Statistic.Type.count) {
+            private long lastAttempts;
+            private long lastSuccesses;
+
+            @Override
+            public synchronized double sample() {
+                final long attempts = StreamManager.getResumptionAttempts();
+                final long successes = StreamManager.getResumptionSuccesses();
+                final double rate = attempts > lastAttempts ?
+                        (successes - lastSuccesses) * 100d / (attempts - lastAttempts) : 0;
+                lastAttempts = attempts;
+                lastSuccesses = successes;
+                return rate;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(UNACKED_BYTES_STAT_KEY,
+                new i18nStatistic("sm.unacked_bytes", Statistic.Type.count) {
+            @Override
+            public double sample() {
+                return StreamManager.getUnacknowledgedBytes() / 1024d;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
     }
 
     @Override
 	public void stop() {
         Log.debug("SessionManager: Stopping server");
+        StatisticsManager.getInstance().removeStatistic(RESUMPTIONS_STAT_KEY);
+        StatisticsManager.getInstance().removeStatistic(UNACKED_BYTES_STAT_KEY);
         // Stop threads that are sending packets to remote servers
         OutgoingSessionPromise.getInstance().shutdown();
         if (JiveGlobals.getBooleanProperty("shutdownMessage.enabled")) {
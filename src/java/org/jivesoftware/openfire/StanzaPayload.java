@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.dom4j.Element;
+
+/**
+ * The UTF-8 serialization of a stanza, split around its TO attribute. The parts before and
+ * after the attribute are shared by every recipient of the stanza and the TO attribute of the
+ * recipient is spliced in between when the stanza is written.
+ */
+final class StanzaPayload {
+
+    private static final String MARKER = "openfire-serialized-to";
+
+    private final byte[] head;
+    private final byte[] tail;
+    private final String originalTo;
+    /**
+     * The stanza addressed to its original recipient.
+     */
+    private final byte[] original;
+
+    private StanzaPayload(byte[] head, byte[] tail, String originalTo) {
+        this.head = head;
+        this.tail = tail;
+        this.originalTo = originalTo;
+        this.original = splice(originalTo);
+    }
+
+    /**
+     * Serializes a stanza. The stanza is not modified.
+     *
+     * @param element the element of the stanza to serialize.
+     * @return the serialized stanza.
+     */
+    static StanzaPayload serialize(Element element) {
+        // Serialize the stanza with a marker as TO address to learn where the attribute goes.
+        // An existing attribute keeps its position, so a stanza written to its original
+        // recipient is identical to the serialization of the stanza.
+        final Element copy = element.createCopy();
+        copy.addAttribute("to", MARKER);
+        final String marked = copy.asXML();
+        final String attribute = " to=\"" + MARKER + "\"";
+        final int index = marked.indexOf(attribute);
+        if (index < 0) {
+            throw new IllegalStateException("Unable to locate the TO attribute of " + marked);
+        }
+        return new StanzaPayload(marked.substring(0, index).getBytes(StandardCharsets.UTF_8),
+                marked.substring(index + attribute.length()).getBytes(StandardCharsets.UTF_8),
+                element.attributeValue("to"));
+    }
+
+    /**
+     * Returns a read-only view of the serialized stanza addressed to the specified recipient.
+     *
+     * @param to the TO address of the stanza or null if the stanza has no TO address.
+     * @return a read-only view of the serialized stanza.
+     */
+    ByteBuffer toBuffer(String to) {
+        final byte[] payload = isOriginal(to) ? original : splice(to);
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns read-only views of the segments of the serialized stanza addressed to the
+     * specified recipient. The shared parts of the stanza are not copied.
+     *
+     * @param to the TO address of the stanza or null if the stanza has no TO address.
+     * @return read-only views of the segments of the serialized stanza, in order.
+     */
+    ByteBuffer[] toBuffers(String to) {
+        if (isOriginal(to)) {
+            return new ByteBuffer[] {ByteBuffer.wrap(original).asReadOnlyBuffer()};
+        }
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(head).asReadOnlyBuffer(),
+                ByteBuffer.wrap(attribute(to)),
+                ByteBuffer.wrap(tail).asReadOnlyBuffer()};
+    }
+
+    private boolean isOriginal(String to) {
+        return to == null ? originalTo == null : to.equals(originalTo);
+    }
+
+    private byte[] splice(String to) {
+        final byte[] attribute = attribute(to);
+        final byte[] payload = new byte[head.length + attribute.length + tail.length];
+        System.arraycopy(head, 0, payload, 0, head.length);
+        System.arraycopy(attribute, 0, payload, head.length, attribute.length);
+        System.arraycopy(tail, 0, payload, head.length + attribute.length, tail.length);
+        return payload;
+    }
+
+    private static byte[] attribute(String to) {
+        return to == null ? new byte[0] : (" to=\"" + escape(to) + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escapes an attribute value the way the XML writer does.
+     */
+    private static String escape(String value) {
+        StringBuilder answer = null;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final String entity;
+            switch (c) {
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    entity = "&#" + (int) c + ";";
+                    break;
+                default:
+                    entity = null;
+            }
+            if (entity != null && answer == null) {
+                answer = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (answer != null) {
+                if (entity != null) {
+                    answer.append(entity);
+                }
+                else {
+                    answer.append(c);
+                }
+            }
+        }
+        return answer == null ? value : answer.toString();
+    }
+}
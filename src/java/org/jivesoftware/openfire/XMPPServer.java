@@ -495,6 +495,7 @@ public class XMPPServer {
         loadModule(MessageRouter.class.getName());
         loadModule(PresenceRouter.class.getName());
         loadModule(MulticastRouter.class.getName());
+        loadModule(BroadcastManager.class.getName());
         loadModule(PacketTransporterImpl.class.getName());
         loadModule(PacketDelivererImpl.class.getName());
         loadModule(TransportHandler.class.getName());
@@ -1195,6 +1196,17 @@ public class XMPPServer {
         return (MulticastRouter) modules.get(MulticastRouter.class);
     }
 
+    /**
+     * Returns the <code>BroadcastManager</code> registered with this server. The
+     * <code>BroadcastManager</code> was registered with the server as a module while starting up
+     * the server.
+     *
+     * @return the <code>BroadcastManager</code> registered with this server.
+     */
+    public BroadcastManager getBroadcastManager() {
+        return (BroadcastManager) modules.get(BroadcastManager.class);
+    }
+
     /**
      * Returns the <code>UserManager</code> registered with this server. The
      * <code>UserManager</code> was registered with the server as a module while starting up
@@ -24,9 +24,11 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyConnectionManager;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyTransfer;
+import org.jivesoftware.openfire.interceptor.EEventType;
+import org.jivesoftware.openfire.interceptor.EPacketType;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
-import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
+import org.jivesoftware.openfire.interceptor.SelectivePacketInterceptor;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.cache.Cache;
@@ -38,7 +40,9 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Provides several utility methods for file transfer manager implementaions to utilize.
@@ -211,7 +215,17 @@ public class DefaultFileTransferManager extends BasicModule implements FileTrans
     /**
      * Interceptor to grab and validate file transfer meta information.
      */
-    private class MetaFileTransferInterceptor implements PacketInterceptor {
+    private class MetaFileTransferInterceptor implements SelectivePacketInterceptor {
+        @Override
+        public Set<EPacketType> getPacketTypes() {
+            return EnumSet.of(EPacketType.IQ);
+        }
+
+        @Override
+        public Set<EEventType> getEventTypes() {
+            return EnumSet.of(EEventType.Incoming, EEventType.Unprocessed);
+        }
+
         @Override
         public void interceptPacket(Packet packet, Session session, boolean incoming,
                                     boolean processed)
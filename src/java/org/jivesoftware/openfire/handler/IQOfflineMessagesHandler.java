@@ -94,8 +94,8 @@ public class IQOfflineMessagesHandler extends IQHandler implements ServerFeature
             // Mark that offline messages shouldn't be sent when the user becomes available
             stopOfflineFlooding(from);
             // User requested to receive all offline messages
-            for (OfflineMessage offlineMessage : messageStore.getMessages(from.getNode(), false)) {
-                sendOfflineMessage(from, offlineMessage);
+            for (Iterator<OfflineMessage> it = messageStore.getMessageCursor(from.getNode(), false); it.hasNext();) {
+                sendOfflineMessage(from, it.next());
             }
         }
         else {
@@ -172,7 +172,7 @@ public class IQOfflineMessagesHandler extends IQHandler implements ServerFeature
 
         final FormField field2 = dataForm.addField();
         field2.setVariable("number_of_messages");
-        field2.addValue(String.valueOf(messageStore.getMessages(senderJID.getNode(), false).size()));
+        field2.addValue(String.valueOf(messageStore.getCount(senderJID.getNode())));
 
         return dataForm;
     }
@@ -187,7 +187,8 @@ public class IQOfflineMessagesHandler extends IQHandler implements ServerFeature
         // Mark that offline messages shouldn't be sent when the user becomes available
         stopOfflineFlooding(senderJID);
         List<DiscoItem> answer = new ArrayList<>();
-        for (OfflineMessage offlineMessage : messageStore.getMessages(senderJID.getNode(), false)) {
+        for (Iterator<OfflineMessage> it = messageStore.getMessageCursor(senderJID.getNode(), false); it.hasNext();) {
+            OfflineMessage offlineMessage = it.next();
             answer.add(new DiscoItem(senderJID.asBareJID(), offlineMessage.getFrom().toString(),
                     XMPPDateTimeFormat.format(offlineMessage.getCreationDate()), null));
         }
@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.handler;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -54,7 +55,6 @@ import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
-import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
@@ -259,9 +259,8 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
             }
             if (session.canFloodOfflineMessages()) {
                 // deliver offline messages if any
-                Collection<OfflineMessage> messages = messageStore.getMessages(username, true);
-                for (Message message : messages) {
-                    session.process(message);
+                for (Iterator<OfflineMessage> it = messageStore.getMessageCursor(username, true); it.hasNext();) {
+                    session.process(it.next());
                 }
             }
         }
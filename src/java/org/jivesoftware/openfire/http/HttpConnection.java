@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.AsyncContext;
 import java.io.IOException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents one HTTP connection with a client using the HTTP Binding service. The client will wait
@@ -38,7 +39,10 @@ public class HttpConnection {
 
     private static final Logger Log = LoggerFactory.getLogger(HttpConnection.class);
 
+    private static final AtomicLong sequenceGenerator = new AtomicLong();
+
     private final long requestId;
+    private final long sequence = sequenceGenerator.incrementAndGet();
     private final X509Certificate[] sslCertificates;
     private final boolean isSecure;
     
@@ -61,6 +65,16 @@ public class HttpConnection {
         this.context = context;
     }
 
+    /**
+     * Returns the order in which this connection was created, which tells apart connections
+     * that repeat the same request.
+     *
+     * @return the sequence number of this connection.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
     /**
      * The connection should be closed without delivering a stanza to the requestor.
      */
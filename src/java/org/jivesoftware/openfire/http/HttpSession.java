@@ -35,7 +35,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.dom4j.*;
 import org.dom4j.io.XMPPPacketReader;
@@ -100,18 +106,30 @@ public class HttpSession extends LocalClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = Collections.synchronizedList(new LinkedList<HttpConnection>());
-    private final List<Deliverable> pendingElements = Collections.synchronizedList(new ArrayList<Deliverable>());
-    private final List<Delivered> sentElements = Collections.synchronizedList(new ArrayList<Delivered>());
+    /**
+     * The connections of this session ordered by request ID.
+     */
+    private final ConcurrentSkipListSet<HttpConnection> connectionQueue = new ConcurrentSkipListSet<>(connectionComparator);
+    private final ConcurrentLinkedDeque<Deliverable> pendingElements = new ConcurrentLinkedDeque<>();
+    private final Queue<Delivered> sentElements = new ConcurrentLinkedQueue<>();
+    /**
+     * Set while a thread hands pending elements to a waiting connection. Other threads leave
+     * their elements to that thread instead of waiting for it.
+     */
+    private final AtomicBoolean delivering = new AtomicBoolean();
+    /**
+     * The task that closes this session once it was inactive for too long.
+     */
+    private final AtomicReference<TimerTask> inactivityTask = new AtomicReference<>();
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
     private Set<SessionListener> listeners = new CopyOnWriteArraySet<>();
     private volatile boolean isClosed;
-    private int inactivityTimeout;
+    private volatile int inactivityTimeout;
     private int defaultInactivityTimeout;
-    private long lastActivity;
-    private long lastRequestID;
+    private volatile long lastActivity;
+    private volatile long lastRequestID;
     private boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
@@ -128,7 +146,11 @@ public class HttpSession extends LocalClientSession {
             = new Comparator<HttpConnection>() {
         @Override
         public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
+            if (o1.getRequestId() != o2.getRequestId()) {
+                return o1.getRequestId() < o2.getRequestId() ? -1 : 1;
+            }
+            // A request can be repeated on a new connection
+            return Long.compare(o1.getSequence(), o2.getSequence());
         }
     };
 
@@ -381,7 +403,10 @@ public class HttpSession extends LocalClientSession {
      * inactive and be terminated.
      */
     public void setInactivityTimeout(int inactivityTimeout) {
-        this.inactivityTimeout = inactivityTimeout;
+        if (this.inactivityTimeout != inactivityTimeout) {
+            this.inactivityTimeout = inactivityTimeout;
+            scheduleInactivityCheck();
+        }
     }
 
     /**
@@ -391,7 +416,31 @@ public class HttpSession extends LocalClientSession {
      * @see #pause(int)
      */
     public void resetInactivityTimeout() {
-        this.inactivityTimeout = this.defaultInactivityTimeout;
+        setInactivityTimeout(this.defaultInactivityTimeout);
+    }
+
+    /**
+     * Schedules the check for inactivity of this session at the moment the session would
+     * become inactive, replacing the previous check.
+     */
+    private void scheduleInactivityCheck() {
+        if (isClosed) {
+            return;
+        }
+        final long delay = inactivityTimeout * JiveConstants.SECOND - (System.currentTimeMillis() - lastActivity);
+        final TimerTask task = new InactivityTask();
+        final TimerTask previous = inactivityTask.getAndSet(task);
+        if (previous != null) {
+            TaskEngine.getInstance().cancelScheduledTask(previous);
+        }
+        TaskEngine.getInstance().schedule(task, Math.max(0, delay));
+    }
+
+    private void cancelInactivityCheck() {
+        final TimerTask previous = inactivityTask.getAndSet(null);
+        if (previous != null) {
+            TaskEngine.getInstance().cancelScheduledTask(previous);
+        }
     }
 
     /**
@@ -417,14 +466,12 @@ public class HttpSession extends LocalClientSession {
      */
     public void pause(int duration) {
     	// Respond immediately to all pending requests
-    	synchronized (connectionQueue) {
-	        for (HttpConnection toClose : connectionQueue) {
-	            if (!toClose.isClosed()) {
-	                toClose.close();
-	                lastRequestID = toClose.getRequestId();
-	            }
-	        }
-    	}
+        for (HttpConnection toClose : connectionQueue) {
+            if (!toClose.isClosed()) {
+                toClose.close();
+                lastRequestID = toClose.getRequestId();
+            }
+        }
     	setInactivityTimeout(duration);
     }
 
@@ -436,16 +483,12 @@ public class HttpSession extends LocalClientSession {
      * @return the time in milliseconds since the epoch that this session was last active.
      */
     public long getLastActivity() {
-        if (!connectionQueue.isEmpty()) {
-        	synchronized (connectionQueue) {
-	            for (HttpConnection connection : connectionQueue) {
-	                // The session is currently active, set the last activity to the current time.
-	                if (!(connection.isClosed())) {
-	                    lastActivity = System.currentTimeMillis();
-	                    break;
-	                }
-	            }
-        	}
+        for (HttpConnection connection : connectionQueue) {
+            // The session is currently active, set the last activity to the current time.
+            if (!(connection.isClosed())) {
+                lastActivity = System.currentTimeMillis();
+                break;
+            }
         }
         return lastActivity;
     }
@@ -462,14 +505,11 @@ public class HttpSession extends LocalClientSession {
      */
     public long getLastAcknowledged() {
     	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-    	synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-	            if (connection.getRequestId() == ack + 1) {
-	            	ack++;
-	            }
-	        }
-    	}
+        for (HttpConnection connection : connectionQueue) {
+            if (connection.getRequestId() == ack + 1) {
+            	ack++;
+            }
+        }
         return ack;
     }
 
@@ -739,16 +779,12 @@ public class HttpSession extends LocalClientSession {
     }
 
     private Delivered retrieveDeliverable(long rid) {
-    	Delivered result = null;
-    	synchronized (sentElements) {
-	        for (Delivered delivered : sentElements) {
-	            if (delivered.getRequestID() == rid) {
-	                result = delivered;
-	                break;
-	            }
-	        }
-    	}
-        return result;
+        for (Delivered delivered : sentElements) {
+            if (delivered.getRequestID() == rid) {
+                return delivered;
+            }
+        }
+        return null;
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -770,39 +806,37 @@ public class HttpSession extends LocalClientSession {
          * deliverable on the new connection. This is under the assumption that a connection has been dropped,
          * and re-requested before jetty has realised.
          */
-        synchronized (connectionQueue) {
-			for (HttpConnection queuedConnection : connectionQueue) {
-				if (queuedConnection.getRequestId() == rid) {
+		for (HttpConnection queuedConnection : connectionQueue) {
+			if (queuedConnection.getRequestId() == rid) {
+				if(Log.isDebugEnabled()) {
+					Log.debug("Found previous connection in queue with rid " + rid);
+				}
+				if(queuedConnection.isClosed()) {
+					if(Log.isDebugEnabled()) {
+						Log.debug("It's closed - copying deliverables");
+					}
+					
+		            Delivered deliverable = retrieveDeliverable(rid);
+		            if (deliverable == null) {
+		                Log.warn("Deliverable unavailable for " + rid);
+		                throw new HttpBindException("Unexpected RID error.",
+		                        BoshBindingError.itemNotFound);
+		            }
+		            connection.deliverBody(createDeliverable(deliverable.deliverables), true);
+				} else {
 					if(Log.isDebugEnabled()) {
-						Log.debug("Found previous connection in queue with rid " + rid);
+						Log.debug("It's still open - calling close()");
 					}
-					if(queuedConnection.isClosed()) {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's closed - copying deliverables");
-						}
-						
-			            Delivered deliverable = retrieveDeliverable(rid);
-			            if (deliverable == null) {
-			                Log.warn("Deliverable unavailable for " + rid);
-			                throw new HttpBindException("Unexpected RID error.",
-			                        BoshBindingError.itemNotFound);
-			            }
-			            connection.deliverBody(createDeliverable(deliverable.deliverables), true);
-					} else {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's still open - calling close()");
-						}
-						deliver(queuedConnection, Collections.singleton(new Deliverable("")));
-						connection.close();
-						
-						if(rid == (lastRequestID + 1)) {
-							lastRequestID = rid;
-						}
+					deliver(queuedConnection, Collections.singleton(new Deliverable("")));
+					connection.close();
+					
+					if(rid == (lastRequestID + 1)) {
+						lastRequestID = rid;
 					}
-					break;
 				}
+				break;
 			}
-        }
+		}
 
         checkOveractivity(isPoll);
 
@@ -810,12 +844,19 @@ public class HttpSession extends LocalClientSession {
 
         // We aren't supposed to hold connections open or we already have some packets waiting
         // to be sent to the client.
-        if (isPollingSession() || (pendingElements.size() > 0 && connection.getRequestId() == lastRequestID + 1)) {
+        if (isPollingSession() || (!pendingElements.isEmpty() && connection.getRequestId() == lastRequestID + 1)) {
             fireConnectionOpened(connection);
-            synchronized(pendingElements) {
-                deliver(connection, pendingElements);
-                lastRequestID = connection.getRequestId();
-                pendingElements.clear();
+            connectionQueue.add(connection);
+            deliverPendingElements();
+            if (isPollingSession() && !connection.isClosed()) {
+                // Nothing was pending; polls are answered immediately
+                try {
+                    lastRequestID = connection.getRequestId();
+                    deliver(connection, Collections.<Deliverable>emptyList());
+                }
+                catch (HttpConnectionClosedException e) {
+                    // Answered in the meantime
+                }
             }
         }
         else {
@@ -823,42 +864,45 @@ public class HttpSession extends LocalClientSession {
             // closing any extras.
 
             connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
-
-            synchronized (connectionQueue) {
-	            int connectionsToClose;
-	            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
-	            	// Current connection does not have the greatest rid. That means
-	            	// requests were received out of order, respond to all.
-	            	connectionsToClose = connectionQueue.size();
-	            }
-	            else {
-	                // Everything's fine, number of current connections open tells us
-	            	// how many that we need to close.
-	            	connectionsToClose = getOpenConnectionCount() - hold;
-	            }
-	            int closed = 0;
-	            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-	                HttpConnection toClose = connectionQueue.get(i);
-	                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-	                    if(toClose == connection) {
-	                    	// Current connection has no continuation yet, just deliver.
-	                    	deliver("");
-	                    }
-	                    else {
-	                        toClose.close();
-	                    }
-	                    lastRequestID = toClose.getRequestId();
-	                    closed++;
-	                }
-	            }
+
+            int connectionsToClose;
+            if(connectionQueue.last() != connection) {
+            	// Current connection does not have the greatest rid. That means
+            	// requests were received out of order, respond to all.
+            	connectionsToClose = connectionQueue.size();
+            }
+            else {
+                // Everything's fine, number of current connections open tells us
+            	// how many that we need to close.
+            	connectionsToClose = getOpenConnectionCount() - hold;
             }
+            int closed = 0;
+            for (HttpConnection toClose : connectionQueue) {
+                if (closed >= connectionsToClose) {
+                    break;
+                }
+                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
+                    try {
+                        // Respond with an empty body that is recorded like other responses, so
+                        // it's resent if the client repeats the request
+                        deliver(toClose, new ArrayList<Deliverable>());
+                    }
+                    catch (HttpConnectionClosedException e) {
+                        // Another thread responded meanwhile
+                        continue;
+                    }
+                    lastRequestID = toClose.getRequestId();
+                    closed++;
+                }
+            }
+
+            // Elements that were queued while the connection was added
+            deliverPendingElements();
         }
     }
 
     private int getOpenConnectionCount() {
         int count = 0;
-        // NOTE: synchronized by caller
         for (HttpConnection connection : connectionQueue) {
             if (!connection.isClosed()) {
                 count++;
@@ -874,7 +918,7 @@ public class HttpSession extends LocalClientSession {
         Delivered delivered = new Delivered(deliverable);
         delivered.setRequestID(connection.getRequestId());
         while (sentElements.size() > maxRequests) {
-            sentElements.remove(0);
+            sentElements.poll();
         }
 
         sentElements.add(delivered);
@@ -898,18 +942,10 @@ public class HttpSession extends LocalClientSession {
      *         protocol.
      */
     private void checkOveractivity(boolean isPoll) throws HttpBindException {
-    	int pendingConnections = 0;
+    	int pendingConnections = getOpenConnectionCount();
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-    	synchronized (connectionQueue) {
-    		for (HttpConnection conn : connectionQueue) {
-    			if (!conn.isClosed()) {
-    				pendingConnections++;
-    			}
-    		}
-        }
-
         if(pendingConnections >= maxRequests) {
         	overactivity = true;
         	errorMessage += ", too many simultaneous requests.";
@@ -952,42 +988,80 @@ public class HttpSession extends LocalClientSession {
     }
 
     private void deliver(Deliverable stanza) {
-        Collection<Deliverable> deliverable = Arrays.asList(stanza);
-        boolean delivered = false;
-        int pendingConnections = 0;
-        synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-                if (connection.isClosed()) {
-                    continue;
-                }
-                pendingConnections++;
-	            try {
-	                if (connection.getRequestId() == lastRequestID + 1) {
-	                    lastRequestID = connection.getRequestId();
-	                    deliver(connection, deliverable);
-	                    delivered = true;
-	                    break;
-	                }
-	            }
-	            catch (HttpConnectionClosedException e) {
-	                /* Connection was closed, try the next one. Indicates a (concurrency?) bug. */
-	                Log.warn("Iterating over a connection that was closed. Openfire will recover from this problem, but it should not occur in the first place.");
-                } catch (IOException e) {
-                    Log.warn("An unexpected exception occurred while iterating over connections. Openfire will attempt to recover by ignoring this connection.", e);
+        pendingElements.add(stanza);
+        deliverPendingElements();
+    }
+
+    /**
+     * Hands the pending elements to the connection that is next in line, if the client has one
+     * waiting. Only one thread at a time delivers; a thread that finds another thread delivering
+     * leaves its elements to that thread, which checks for pending elements and waiting
+     * connections again before it stops.
+     */
+    private void deliverPendingElements() {
+        while (!pendingElements.isEmpty()) {
+            if (!delivering.compareAndSet(false, true)) {
+                return;
+            }
+            HttpConnection connection;
+            try {
+                connection = getNextConnection();
+                if (connection != null) {
+                    final List<Deliverable> elements = drainPendingElements();
+                    if (!elements.isEmpty()) {
+                        try {
+                            lastRequestID = connection.getRequestId();
+                            deliver(connection, elements);
+                        }
+                        catch (HttpConnectionClosedException | IOException e) {
+                            // The connection was answered in the meantime (e.g. it timed out), keep the
+                            // elements for the next connection.
+                            Log.debug("Unable to deliver to connection {}, keeping the elements pending.", connection, e);
+                            for (int i = elements.size() - 1; i >= 0; i--) {
+                                pendingElements.addFirst(elements.get(i));
+                            }
+                        }
+                    }
                 }
             }
+            finally {
+                delivering.set(false);
+            }
+            if (connection == null && getNextConnection() == null) {
+                return;
+            }
         }
+    }
 
-        if (!delivered) {
-            if (pendingConnections > 0) {
-                Log.warn("Unable to deliver a stanza (it is being queued instead), although there are available connections! RID / Connection processing is out of sync!");
+    /**
+     * Returns the open connection whose request ID follows the last answered request.
+     */
+    private HttpConnection getNextConnection() {
+        final long rid = lastRequestID + 1;
+        for (HttpConnection connection : connectionQueue) {
+            if (connection.getRequestId() > rid) {
+                break;
+            }
+            if (connection.getRequestId() == rid && !connection.isClosed()) {
+                return connection;
             }
-            pendingElements.add(stanza);
         }
+        return null;
+    }
+
+    private List<Deliverable> drainPendingElements() {
+        final List<Deliverable> elements = new ArrayList<>();
+        Deliverable element;
+        while ((element = pendingElements.poll()) != null) {
+            elements.add(element);
+        }
+        return elements;
     }
 
     private void fireConnectionClosed(HttpConnection connection) {
         lastActivity = System.currentTimeMillis();
+        // The session becomes inactive once it has no connections for a while
+        scheduleInactivityCheck();
         for (SessionListener listener : listeners) {
             listener.connectionClosed(this, connection);
         }
@@ -1011,37 +1085,30 @@ public class HttpSession extends LocalClientSession {
     private void closeSession() {
         if (isClosed) { return; }
         isClosed = true;
+        cancelInactivityCheck();
 
         try {
 	        // close connection(s) and deliver pending elements (if any)
-	        synchronized (connectionQueue) {
-		        for (HttpConnection toClose : connectionQueue) {
-		            try {
-		            	if (!toClose.isClosed()) {
-		            		if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
-		            			synchronized(pendingElements) {
-			            			deliver(toClose, pendingElements);
-					                lastRequestID = toClose.getRequestId();
-					                pendingElements.clear();
-		            			}
-	            			} else {
-	            				toClose.deliverBody(null, true);
-	            			}
-		            	}
-		            } catch (HttpConnectionClosedException e) {
-		            	/* ignore ... already closed */
-                    } catch (IOException e) {
-                        // Likely caused by closing a stale session / connection.
-                        Log.debug("An unexpected exception occurred while closing a session.", e);
-		            }
-		        }
+	        for (HttpConnection toClose : connectionQueue) {
+	            try {
+	            	if (!toClose.isClosed()) {
+	            		if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
+	            			deliver(toClose, drainPendingElements());
+			                lastRequestID = toClose.getRequestId();
+            			} else {
+            				toClose.deliverBody(null, true);
+            			}
+	            	}
+	            } catch (HttpConnectionClosedException e) {
+	            	/* ignore ... already closed */
+                } catch (IOException e) {
+                    // Likely caused by closing a stale session / connection.
+                    Log.debug("An unexpected exception occurred while closing a session.", e);
+	            }
 	        }
 	
-	    	synchronized (pendingElements) {
-		        for (Deliverable deliverable : pendingElements) {
-		            failDelivery(deliverable.getPackets());
-		        }
-		        pendingElements.clear();
+	        for (Deliverable deliverable : drainPendingElements()) {
+	            failDelivery(deliverable.getPackets());
 	        }
         } finally { // ensure the session is removed from the session map
 	        for (SessionListener listener : listeners) {
@@ -1255,6 +1322,37 @@ public class HttpSession extends LocalClientSession {
         }
     }
 
+    /**
+     * Closes the session when it has not been active for longer than its inactivity timeout.
+     * Activity reschedules the task instead of cancelling it.
+     */
+    private class InactivityTask extends TimerTask {
+
+        @Override
+        public void run() {
+            if (isClosed || inactivityTask.get() != this) {
+                return;
+            }
+            try {
+                if (getOpenConnectionCount() > 0) {
+                    // The check is scheduled again when the last connection closes
+                    return;
+                }
+                final long lastActive = System.currentTimeMillis() - getLastActivity();
+                if (lastActive > getInactivityTimeout() * JiveConstants.SECOND) {
+                    Log.info("Closing idle session: " + getAddress());
+                    close();
+                }
+                else {
+                    scheduleInactivityCheck();
+                }
+            }
+            catch (Exception e) {
+                Log.error("Failed to determine idle state for session: " + HttpSession.this, e);
+            }
+        }
+    }
+
     /**
      * A runner that guarantees that the packets per a session will be sent and
      * processed in the order in which they were received.
@@ -23,7 +23,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -36,10 +35,8 @@ import org.dom4j.QName;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
-import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.NamedThreadFactory;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,7 +53,6 @@ public class HttpSessionManager {
     private SessionManager sessionManager;
     private Map<String, HttpSession> sessionMap = new ConcurrentHashMap<>(
     		JiveGlobals.getIntProperty("xmpp.httpbind.session.initial.count", 16));
-    private TimerTask inactivityTask;
     private ThreadPoolExecutor sendPacketPool;
     private SessionListener sessionListener = new SessionListener() {
         @Override
@@ -118,10 +114,6 @@ public class HttpSessionManager {
         );
 
         sendPacketPool.prestartCoreThread();
-
-        // Periodically check for Sessions that need a cleanup.
-        inactivityTask = new HttpSessionReaper();
-        TaskEngine.getInstance().schedule( inactivityTask, 30 * JiveConstants.SECOND, 30 * JiveConstants.SECOND );
     }
 
     /**
@@ -129,7 +121,6 @@ public class HttpSessionManager {
      */
     public void stop() {
         Log.info( "Stopping instance" );
-        inactivityTask.cancel();
         for (HttpSession session : sessionMap.values()) {
             session.close();
         }
@@ -344,28 +335,6 @@ public class HttpSessionManager {
         return response.asXML();
     }
 
-    private class HttpSessionReaper extends TimerTask {
-
-        @Override
-		public void run() {
-            long currentTime = System.currentTimeMillis();
-            for (HttpSession session : sessionMap.values()) {
-            	try {
-                    long lastActive = currentTime - session.getLastActivity();
-                    if (Log.isDebugEnabled()) {
-                    	Log.debug("Session was last active " + lastActive + " ms ago: " + session.getAddress());
-                    }
-                    if (lastActive > session.getInactivityTimeout() * JiveConstants.SECOND) {
-                    	Log.info("Closing idle session: " + session.getAddress());
-                        session.close();
-                    }
-            	} catch (Exception e) {
-            		Log.error("Failed to determine idle state for session: " + session, e);
-            	}
-            }
-        }
-    }
-
     protected void execute(Runnable runnable) {
         this.sendPacketPool.execute(runnable);
     }
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+import org.xmpp.packet.Roster;
+
+/**
+ * The interceptors to invoke for every combination of packet type, direction and processing
+ * phase. The table is compiled when interceptors are registered or removed, so invoking the
+ * interceptors of a packet only takes a lookup of the interceptors that are interested in the
+ * packet. Tables are immutable.
+ */
+final class InterceptorDispatchTable {
+
+    private static final int MESSAGE = 0;
+    private static final int PRESENCE = 1;
+    private static final int IQ = 2;
+    private static final int ROSTER = 3;
+    private static final int OTHER = 4;
+
+    /**
+     * Number of combinations of packet kind, direction and processing phase.
+     */
+    static final int SIZE = 5 * 4;
+
+    static final InterceptorDispatchTable EMPTY = new InterceptorDispatchTable();
+
+    private static final Target[] NONE = new Target[0];
+
+    private final Target[][] targets = new Target[SIZE][];
+
+    private InterceptorDispatchTable() {
+        for (int i = 0; i < SIZE; i++) {
+            targets[i] = NONE;
+        }
+    }
+
+    /**
+     * Compiles the table of a list of interceptors. The order of the interceptors is kept.
+     *
+     * @param interceptors the interceptors in the order of invocation.
+     * @param statistics the statistics to record the invocations of the interceptors in.
+     * @return the table of the interceptors.
+     */
+    static InterceptorDispatchTable compile(Collection<? extends PacketInterceptor> interceptors,
+            StatisticsProvider statistics) {
+        if (interceptors.isEmpty()) {
+            return EMPTY;
+        }
+        final InterceptorDispatchTable table = new InterceptorDispatchTable();
+        for (int index = 0; index < SIZE; index++) {
+            final List<Target> matching = new ArrayList<>();
+            for (PacketInterceptor interceptor : interceptors) {
+                if (matches(interceptor, index)) {
+                    matching.add(new Target(interceptor, statistics.getStatistics(interceptor)));
+                }
+            }
+            if (!matching.isEmpty()) {
+                table.targets[index] = matching.toArray(new Target[matching.size()]);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the index of the combination of the type of a packet, its direction and its
+     * processing phase.
+     *
+     * @param packet the packet.
+     * @param read true if the packet was read, false if it is sent.
+     * @param processed true if the packet was processed.
+     * @return the index of the combination.
+     */
+    static int indexOf(Packet packet, boolean read, boolean processed) {
+        final int kind;
+        if (packet instanceof Message) {
+            kind = MESSAGE;
+        }
+        else if (packet instanceof Presence) {
+            kind = PRESENCE;
+        }
+        else if (packet instanceof Roster) {
+            kind = ROSTER;
+        }
+        else if (packet instanceof IQ) {
+            kind = IQ;
+        }
+        else {
+            kind = OTHER;
+        }
+        return indexOf(kind, read, processed);
+    }
+
+    /**
+     * Returns true if packets of the combination of an index would be blocked by a set of
+     * packet types.
+     *
+     * @param packetTypes the packet types to check.
+     * @param index the index of the combination.
+     * @return true if the packet type of the combination is in the set.
+     */
+    static boolean containsPacketType(Set<EPacketType> packetTypes, int index) {
+        if (packetTypes.contains(EPacketType.All)) {
+            return true;
+        }
+        switch (getKind(index)) {
+            case MESSAGE:
+                return packetTypes.contains(EPacketType.Message);
+            case PRESENCE:
+                return packetTypes.contains(EPacketType.Presence);
+            case ROSTER:
+                return packetTypes.contains(EPacketType.Roster) || packetTypes.contains(EPacketType.IQ);
+            case IQ:
+                return packetTypes.contains(EPacketType.IQ);
+            default:
+                return false;
+        }
+    }
+
+    static boolean isRead(int index) {
+        return (index & 2) != 0;
+    }
+
+    static boolean isProcessed(int index) {
+        return (index & 1) != 0;
+    }
+
+    /**
+     * Returns the interceptors to invoke for a combination.
+     *
+     * @param index the index of the combination.
+     * @return the interceptors in the order of invocation.
+     */
+    Target[] get(int index) {
+        return targets[index];
+    }
+
+    private static int indexOf(int kind, boolean read, boolean processed) {
+        return kind << 2 | (read ? 2 : 0) | (processed ? 1 : 0);
+    }
+
+    private static int getKind(int index) {
+        return index >> 2;
+    }
+
+    private static boolean matches(PacketInterceptor interceptor, int index) {
+        if (!(interceptor instanceof SelectivePacketInterceptor)) {
+            return true;
+        }
+        final SelectivePacketInterceptor selective = (SelectivePacketInterceptor) interceptor;
+        final Set<EPacketType> packetTypes = selective.getPacketTypes();
+        if (packetTypes != null && !packetTypes.isEmpty() && !containsPacketType(packetTypes, index)) {
+            return false;
+        }
+        final Set<EEventType> eventTypes = selective.getEventTypes();
+        if (eventTypes == null || eventTypes.isEmpty() || eventTypes.contains(EEventType.All)) {
+            return true;
+        }
+        return matches(eventTypes, EEventType.Incoming, EEventType.Outgoing, isRead(index)) &&
+                matches(eventTypes, EEventType.Processed, EEventType.Unprocessed, isProcessed(index));
+    }
+
+    private static boolean matches(Set<EEventType> eventTypes, EEventType yes, EEventType no, boolean value) {
+        if (!eventTypes.contains(yes) && !eventTypes.contains(no)) {
+            return true;
+        }
+        return eventTypes.contains(value ? yes : no);
+    }
+
+    /**
+     * Looks up the statistics of an interceptor.
+     */
+    interface StatisticsProvider {
+
+        InterceptorStatistics getStatistics(PacketInterceptor interceptor);
+    }
+
+    /**
+     * An interceptor and its statistics.
+     */
+    static final class Target {
+
+        final PacketInterceptor interceptor;
+        final InterceptorStatistics statistics;
+
+        private Target(PacketInterceptor interceptor, InterceptorStatistics statistics) {
+            this.interceptor = interceptor;
+            this.statistics = statistics;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -56,7 +57,13 @@ import org.xmpp.packet.PacketError.Condition;
  * (when read) may change the original packet or reject the packet by throwing
  * a {@link PacketRejectedException}. If the interceptor rejects a received packet
  * then the sender of the packet receive a
- * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.
+ * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.<p>
+ *
+ * The interceptors to invoke for every combination of packet type, direction and processing
+ * phase are compiled into a dispatch table whenever interceptors are added or removed, so
+ * {@link SelectivePacketInterceptor selective interceptors} are not invoked for packets they
+ * are not interested in. The invocations of every interceptor are counted and timed, see
+ * {@link #getInterceptorStatistics()}.
  *
  * @see PacketInterceptor
  * @author Gaston Dombiak
@@ -77,11 +84,38 @@ public class InterceptorManager {
     private final List<PacketInterceptor2> requiredInterceptors = new CopyOnWriteArrayList<>();
         
     private Map<String, List<PacketInterceptor>> usersInterceptors = new ConcurrentHashMap<>();
+
+    /**
+     * The compiled interceptors. Tables are replaced, never modified.
+     */
+    private volatile InterceptorDispatchTable requiredTable = InterceptorDispatchTable.EMPTY;
+    private volatile InterceptorDispatchTable globalTable = InterceptorDispatchTable.EMPTY;
+    private final Map<String, InterceptorDispatchTable> userTables = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<PacketInterceptor, InterceptorStatistics> statistics = new ConcurrentHashMap<>();
+    private final InterceptorDispatchTable.StatisticsProvider statisticsProvider = new InterceptorDispatchTable.StatisticsProvider() {
+        @Override
+        public InterceptorStatistics getStatistics(PacketInterceptor interceptor) {
+            InterceptorStatistics result = statistics.get(interceptor);
+            if (result == null) {
+                result = new InterceptorStatistics();
+                final InterceptorStatistics existing = statistics.putIfAbsent(interceptor, result);
+                if (existing != null) {
+                    result = existing;
+                }
+            }
+            return result;
+        }
+    };
   
     private InterceptorPersistenceUtility persistenceUtility;
     
     private Set<EEventType> eventTypesToBlock;
     private Set<EPacketType> packetTypesToBlock;
+    /**
+     * Whether packets are blocked, by the index of their combination in the dispatch table.
+     */
+    private volatile boolean[] blocked = new boolean[InterceptorDispatchTable.SIZE];
     
     private InterceptorManager() {
     	persistenceUtility = new InterceptorPersistenceUtility();
@@ -144,6 +178,7 @@ public class InterceptorManager {
 	    	this.allRequiredInterceptors.put(name, requiredInterceptorDefinition);
 	    	determinePacketTypesToBlock();    	
 	    	this.requiredInterceptors.add(interceptor);
+	    	this.requiredTable = InterceptorDispatchTable.compile(requiredInterceptors, statisticsProvider);
      
     	} finally {
     		lock.unlock();
@@ -167,6 +202,8 @@ public class InterceptorManager {
 	    	PacketInterceptor2 interceptor = this.requiredInterceptorsByName.remove(name);
 	    	if(interceptor != null) {
 	    		requiredInterceptors.remove(interceptor);
+	    		this.requiredTable = InterceptorDispatchTable.compile(requiredInterceptors, statisticsProvider);
+	    		releaseStatistics(interceptor);
 	    	}
 	    	//it is not a required event listener anymore
 	    	if(markAsNotRequired) {
@@ -209,6 +246,12 @@ public class InterceptorManager {
     	
     	this.eventTypesToBlock = eventTypesToBlock;
     	this.packetTypesToBlock = packetTypesToBlock;
+
+    	boolean[] blocked = new boolean[InterceptorDispatchTable.SIZE];
+    	for (int index = 0; index < blocked.length; index++) {
+    		blocked[index] = shouldBlock(index);
+    	}
+    	this.blocked = blocked;
     	
     	Log.trace("Packet types to block: eventTypesToBlock={}, packetTypesToBlock={}", eventTypesToBlock, packetTypesToBlock);
     }
@@ -256,6 +299,7 @@ public class InterceptorManager {
             globalInterceptors.remove(interceptor);
         }
         globalInterceptors.add(interceptor);
+        compileGlobalInterceptors();
     }
 
     /**
@@ -282,6 +326,7 @@ public class InterceptorManager {
         }
 
         globalInterceptors.add(index, interceptor);
+        compileGlobalInterceptors();
     }
 
     /**
@@ -291,7 +336,12 @@ public class InterceptorManager {
      * @return true if the item was present in the list
      */
     public boolean removeInterceptor(PacketInterceptor interceptor) {
-        return globalInterceptors.remove(interceptor);
+        final boolean answer = globalInterceptors.remove(interceptor);
+        if (answer) {
+            compileGlobalInterceptors();
+            releaseStatistics(interceptor);
+        }
+        return answer;
     }
 
     /**
@@ -345,6 +395,7 @@ public class InterceptorManager {
             }
         }
         userInterceptors.add(index, interceptor);
+        compileUserInterceptors(username);
     }
 
     /**
@@ -364,10 +415,64 @@ public class InterceptorManager {
             if (userInterceptors.isEmpty()) {
                 usersInterceptors.remove(username);
             }
+            compileUserInterceptors(username);
+            if (answer) {
+                releaseStatistics(interceptor);
+            }
         }
         return answer;
     }
 
+    /**
+     * Returns the statistics of the invocations of every registered interceptor.
+     *
+     * @return an unmodifiable map of the statistics by interceptor.
+     */
+    public Map<PacketInterceptor, InterceptorStatistics> getInterceptorStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Returns the statistics of the invocations of an interceptor.
+     *
+     * @param interceptor the interceptor.
+     * @return the statistics of the interceptor or null if the interceptor is not registered.
+     */
+    public InterceptorStatistics getInterceptorStatistics(PacketInterceptor interceptor) {
+        return statistics.get(interceptor);
+    }
+
+    private synchronized void compileGlobalInterceptors() {
+        globalTable = InterceptorDispatchTable.compile(globalInterceptors, statisticsProvider);
+    }
+
+    private synchronized void compileUserInterceptors(String username) {
+        final List<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
+        if (userInterceptors == null || userInterceptors.isEmpty()) {
+            userTables.remove(username);
+        }
+        else {
+            userTables.put(username, InterceptorDispatchTable.compile(userInterceptors, statisticsProvider));
+        }
+    }
+
+    /**
+     * Forgets the statistics of an interceptor that is no longer registered.
+     *
+     * @param interceptor the removed interceptor.
+     */
+    private void releaseStatistics(PacketInterceptor interceptor) {
+        if (globalInterceptors.contains(interceptor) || requiredInterceptors.contains(interceptor)) {
+            return;
+        }
+        for (List<PacketInterceptor> userInterceptors : usersInterceptors.values()) {
+            if (userInterceptors.contains(interceptor)) {
+                return;
+            }
+        }
+        statistics.remove(interceptor);
+    }
+
     /**
      * Invokes all currently-installed interceptors on the specified packet.
      * All required and global interceptors will be invoked as well as interceptors that
@@ -392,111 +497,113 @@ public class InterceptorManager {
     public void invokeInterceptors(Packet packet, Session session, boolean read, boolean processed)
             throws PacketRejectedException
     {
-    	checkForRequiredInterceptors(packet, read, processed);
-
-    	if(!requiredInterceptors.isEmpty()) {
-    		
-            for (PacketInterceptor2 requiredInterceptor : requiredInterceptors) {
-                try {
-                    if(requiredInterceptor.interceptPacket2(packet, session, read, processed)) {
-                    	return;
-                    }
-                }
-                catch (PacketRejectedException e) {
-                    if (processed) {
-                        Log.error("Post interceptor cannot reject packet.", e);
-                    }
-                    else {
-                        // Throw this exception since we don't really want to catch it
-                        throw e;
-                    }
-                }
-                catch (Throwable e) {
-                    Log.error("Error in required interceptor: " + requiredInterceptor + " while intercepting: " + packet, e);
-                }
-            }    		
-    	}
+        final int index = InterceptorDispatchTable.indexOf(packet, read, processed);
+    	checkForRequiredInterceptors(packet, index);
 
-        // Invoke the global interceptors for this packet
-        // Checking if collection is empty to prevent creating an iterator of
-        // a CopyOnWriteArrayList that is an expensive operation
-    	if (!globalInterceptors.isEmpty()) {
-            for (PacketInterceptor interceptor : globalInterceptors) {
-                try {
-                    interceptor.interceptPacket(packet, session, read, processed);
-                }
-                catch (PacketRejectedException e) {
-                    if (processed) {
-                        Log.error("Post interceptor cannot reject packet.", e);
-                    }
-                    else {
-                        // Throw this exception since we don't really want to catch it
-                        throw e;
-                    }
-                }
-                catch (Throwable e) {
-                    Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
-                }
+        for (InterceptorDispatchTable.Target target : requiredTable.get(index)) {
+            if (invokeInterceptor(target, true, packet, session, read, processed)) {
+                return;
             }
         }
+
+        // Invoke the global interceptors for this packet
+        for (InterceptorDispatchTable.Target target : globalTable.get(index)) {
+            invokeInterceptor(target, false, packet, session, read, processed);
+        }
         // Invoke the interceptors that are related to the address of the session
-        if (usersInterceptors.isEmpty()) {
+        if (userTables.isEmpty()) {
             // Do nothing
             return;
         }
         String username = session.getAddress().getNode();
         if (username != null && server.isLocal(session.getAddress())) {
-            Collection<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
-            if (userInterceptors != null && !userInterceptors.isEmpty()) {
-                for (PacketInterceptor interceptor : userInterceptors) {
-                    try {
-                        interceptor.interceptPacket(packet, session, read, processed);
-                    }
-                    catch (PacketRejectedException e) {
-                        if (processed) {
-                            Log.error("Post interceptor cannot reject packet.", e);
-                        }
-                        else {
-                            // Throw this exception since we don't really want to catch it
-                            throw e;
-                        }
-                    }
-                    catch (Throwable e) {
-                        Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
-                    }
+            InterceptorDispatchTable userTable = userTables.get(username);
+            if (userTable != null) {
+                for (InterceptorDispatchTable.Target target : userTable.get(index)) {
+                    invokeInterceptor(target, false, packet, session, read, processed);
                 }
             }
         }
     }
+
+    /**
+     * Returns true if {@link #invokeInterceptors(Packet, Session, boolean, boolean)} would
+     * invoke an interceptor for the specified packet, or reject the packet because a required
+     * interceptor is missing. Callers that prepared the packet for delivery ahead of time
+     * (e.g. by serializing it) can skip that work when interceptors could alter the packet.
+     *
+     * @param packet the packet that has been read or is about to be sent.
+     * @param session the session that received the packet or that the packet
+     *      will be sent to.
+     * @param read true indicates that the packet was read. When false, the packet
+     *      is being sent to a user.
+     * @param processed true if the packet has already processed (incoming or outgoing).
+     * @return true if interceptors apply to the packet.
+     */
+    public boolean hasInterceptors(Packet packet, Session session, boolean read, boolean processed) {
+        final int index = InterceptorDispatchTable.indexOf(packet, read, processed);
+        if (blocked[index] || requiredTable.get(index).length > 0 || globalTable.get(index).length > 0) {
+            return true;
+        }
+        if (userTables.isEmpty()) {
+            return false;
+        }
+        String username = session.getAddress().getNode();
+        if (username != null && server.isLocal(session.getAddress())) {
+            InterceptorDispatchTable userTable = userTables.get(username);
+            return userTable != null && userTable.get(index).length > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Invokes an interceptor and records the invocation in its statistics.
+     *
+     * @return true if a required interceptor swallowed the packet.
+     * @throws PacketRejectedException if the interceptor rejected a packet that was not processed yet.
+     */
+    private boolean invokeInterceptor(InterceptorDispatchTable.Target target, boolean required, Packet packet, Session session,
+            boolean read, boolean processed) throws PacketRejectedException
+    {
+        final long start = System.nanoTime();
+        boolean rejected = false;
+        boolean failed = false;
+        try {
+            if (required) {
+                return ((PacketInterceptor2) target.interceptor).interceptPacket2(packet, session, read, processed);
+            }
+            target.interceptor.interceptPacket(packet, session, read, processed);
+            return false;
+        }
+        catch (PacketRejectedException e) {
+            rejected = true;
+            if (processed) {
+                Log.error("Post interceptor cannot reject packet.", e);
+                return false;
+            }
+            // Throw this exception since we don't really want to catch it
+            throw e;
+        }
+        catch (Throwable e) {
+            failed = true;
+            Log.error("Error in " + (required ? "required " : "") + "interceptor: " + target.interceptor +
+                    " while intercepting: " + packet, e);
+            return false;
+        }
+        finally {
+            target.statistics.invoked(System.nanoTime() - start, rejected, failed);
+        }
+    }
     
     /**
      * Checks if the {@link Packet} packet should be blocked because of required interceptors not present.
      * 
      * @param packet - packet that's being processed
-     * @param read true indicates that the packet was read. When false, the packet
-     *      is being sent to a user.
-     * @param processed true if the packet has already processed (incoming or outgoing).
-     *      If the packet hasn't already been processed, this flag will be false.
+     * @param index - the index of the packet type, direction and processing phase in the dispatch table
      * @throws PacketRejectedException - thrown when required interceptors are not present and a packet has to be blocked
      */
-    private void checkForRequiredInterceptors(Packet packet, boolean read, boolean processed) throws PacketRejectedException {
-    	boolean shouldBlock = false;
-    	Log.trace("Checking for required interceptors: packet={}, read={}, processed={}, eventTypesToBlock={}, packetTypesToBlock={}", packet.getClass().getSimpleName(), read, processed, eventTypesToBlock, packetTypesToBlock);
-    	if (this.eventTypesToBlock.isEmpty() && this.packetTypesToBlock.isEmpty()) {
-    		return;
-    	}
-    	
-    	if (!this.eventTypesToBlock.isEmpty() && !this.packetTypesToBlock.isEmpty()){
-    		shouldBlock = shouldBlockEvent(processed, read) && shouldBlockPacket(packet);
-    	}
-    	else if(!this.eventTypesToBlock.isEmpty()) {
-    		shouldBlock = shouldBlockEvent(processed, read);
-    	}
-    	else if(!this.packetTypesToBlock.isEmpty()) {
-    		shouldBlock = shouldBlockPacket(packet);
-    	}
-    	
-    	if(shouldBlock) {
+    private void checkForRequiredInterceptors(Packet packet, int index) throws PacketRejectedException {
+    	if(blocked[index]) {
     		Log.trace("Rejecting this packet");
     		PacketRejectedException exception = new PacketRejectedException();
     		//if it's just a chat state notification, then simply ignore it and don't send back an error message
@@ -510,6 +617,31 @@ public class InterceptorManager {
         	throw exception;
     	}
     }
+
+    /**
+     * Checks if the packets of a combination of packet type, direction and processing phase
+     * should be blocked because of required interceptors not present.
+     *
+     * @param index - the index of the combination in the dispatch table
+     * @return - boolean - returns true if the packets should be blocked
+     */
+    private boolean shouldBlock(int index) {
+    	boolean processed = InterceptorDispatchTable.isProcessed(index);
+    	boolean read = InterceptorDispatchTable.isRead(index);
+    	if (this.eventTypesToBlock.isEmpty() && this.packetTypesToBlock.isEmpty()) {
+    		return false;
+    	}
+    	
+    	if (!this.eventTypesToBlock.isEmpty() && !this.packetTypesToBlock.isEmpty()){
+    		return shouldBlockEvent(processed, read) && InterceptorDispatchTable.containsPacketType(packetTypesToBlock, index);
+    	}
+    	else if(!this.eventTypesToBlock.isEmpty()) {
+    		return shouldBlockEvent(processed, read);
+    	}
+    	else {
+    		return InterceptorDispatchTable.containsPacketType(packetTypesToBlock, index);
+    	}
+    }
         
     private boolean isChatStateMessage(Packet packet){
     	if (!(packet instanceof Message) || packet.getElement().nodeCount() > 1){
@@ -553,35 +685,4 @@ public class InterceptorManager {
     	
     	return result;
     }
-    
-    /**
-     * Checks against a list of packets if this packet has to be blocked
-     * 
-     * @param packet - {@link Packet} - packet to check
-     * 
-     * @return - boolean- returns true if this packet should be blocked
-     */
-    private boolean shouldBlockPacket(Packet packet) {
-  	
-    	boolean result = false;
-    	
-    	if(this.packetTypesToBlock.contains(EPacketType.All)) {
-    		return true;
-    	}
-    	
-    	if(packet instanceof org.xmpp.packet.Roster && this.packetTypesToBlock.contains(EPacketType.Roster)) {
-    		result = true;
-    	}
-    	else if (packet instanceof org.xmpp.packet.IQ && this.packetTypesToBlock.contains(EPacketType.IQ)) {
-    		result = true;
-    	}
-    	else if (packet instanceof org.xmpp.packet.Presence && this.packetTypesToBlock.contains(EPacketType.Presence)) {
-    		result = true;
-    	}
-    	else if (packet instanceof org.xmpp.packet.Message && this.packetTypesToBlock.contains(EPacketType.Message)) {
-    		result = true;
-    	}
-    	
-    	return result;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The number of times a packet interceptor was invoked and the time it took. The statistics
+ * of an interceptor are shared by all its registrations.
+ *
+ * @see InterceptorManager#getInterceptorStatistics()
+ */
+public final class InterceptorStatistics {
+
+    /**
+     * Upper bounds in microseconds of the buckets of the latency histogram. The last bucket
+     * holds the times above the last bound.
+     */
+    private static final long[] LATENCY_BOUNDS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+    InterceptorStatistics() {
+    }
+
+    /**
+     * Records an invocation of the interceptor.
+     *
+     * @param nanos the time the invocation took.
+     * @param rejected true if the interceptor rejected the packet.
+     * @param failed true if the interceptor threw an unexpected exception.
+     */
+    void invoked(long nanos, boolean rejected, boolean failed) {
+        invocations.incrementAndGet();
+        if (rejected) {
+            rejections.incrementAndGet();
+        }
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && micros > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Returns the number of times the interceptor was invoked.
+     *
+     * @return the number of invocations.
+     */
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    /**
+     * Returns the number of packets the interceptor rejected.
+     *
+     * @return the number of rejected packets.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Returns the number of invocations that failed with an unexpected exception.
+     *
+     * @return the number of failed invocations.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the time all invocations of the interceptor took.
+     *
+     * @return the total time in microseconds.
+     */
+    public long getTotalTime() {
+        return TimeUnit.NANOSECONDS.toMicros(totalNanos.get());
+    }
+
+    /**
+     * Returns the average time an invocation of the interceptor took.
+     *
+     * @return the average time in microseconds.
+     */
+    public double getAverageTime() {
+        final long count = invocations.get();
+        return count == 0 ? 0 : totalNanos.get() / 1000d / count;
+    }
+
+    /**
+     * Returns the longest time an invocation of the interceptor took.
+     *
+     * @return the maximum time in microseconds.
+     */
+    public long getMaxTime() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+    }
+
+    /**
+     * Returns the number of invocations by the time they took.
+     *
+     * @return a description and count of every bucket of the histogram.
+     */
+    public String[] getLatencyHistogram() {
+        final String[] result = new String[histogram.length()];
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            result[i] = "<=" + LATENCY_BOUNDS[i] + " us: " + histogram.get(i);
+        }
+        result[LATENCY_BOUNDS.length] = ">" + LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1] +
+                " us: " + histogram.get(LATENCY_BOUNDS.length);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "invocations=" + getInvocations() + ", rejections=" + getRejections() +
+                ", failures=" + getFailures() + ", average=" + String.format("%.1f", getAverageTime()) +
+                " us, max=" + getMaxTime() + " us";
+    }
+}
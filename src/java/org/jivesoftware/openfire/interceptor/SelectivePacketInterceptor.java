@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.Set;
+
+/**
+ * A packet interceptor that is only interested in some packets. The {@link InterceptorManager}
+ * invokes the interceptor only for the packet types and events that it declares, instead of
+ * invoking it for every packet and leaving it to the interceptor to ignore the packets it is
+ * not interested in.<p>
+ *
+ * Event types of the same dimension are combined, and both dimensions have to match: an
+ * interceptor that declares {@link EEventType#Incoming} and {@link EEventType#Unprocessed}
+ * is only invoked for packets that were read and not processed yet. An interceptor that
+ * declares no event type of a dimension is invoked for both values of that dimension.
+ * {@link EEventType#All} and {@link EPacketType#All} match everything. Rosters are IQ
+ * packets, so {@link EPacketType#IQ} matches rosters as well.<p>
+ *
+ * The declared types are read when the interceptor is registered and must not change
+ * afterwards.
+ *
+ * @see InterceptorManager
+ */
+public interface SelectivePacketInterceptor extends PacketInterceptor {
+
+    /**
+     * Returns the types of the packets the interceptor is interested in.
+     *
+     * @return the packet types the interceptor is invoked for.
+     */
+    Set<EPacketType> getPacketTypes();
+
+    /**
+     * Returns the directions and processing phases of the packets the interceptor is
+     * interested in.
+     *
+     * @return the event types the interceptor is invoked for.
+     */
+    Set<EEventType> getEventTypes();
+}
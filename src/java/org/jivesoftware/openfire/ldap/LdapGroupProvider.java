@@ -21,10 +21,17 @@
 package org.jivesoftware.openfire.ldap;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +51,8 @@ import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -58,6 +67,12 @@ public class LdapGroupProvider extends AbstractGroupProvider {
 
 	private static final Logger Log = LoggerFactory.getLogger(LdapGroupProvider.class);
 
+    /**
+     * Minimum number of member DNs that a thread looks up, so that small groups are not
+     * resolved with more connections than they need.
+     */
+    private static final int MIN_MEMBERS_PER_THREAD = 16;
+
     private LdapManager manager;
     private UserManager userManager;
     private String[] standardAttributes;
@@ -85,7 +100,7 @@ public class LdapGroupProvider extends AbstractGroupProvider {
             ctx = manager.getContext(manager.getGroupsBaseDN(groupName));
             Attributes attrs = ctx.getAttributes(groupDN, standardAttributes);
 
-            return processGroup(ctx, attrs);
+            return processGroup(ctx, manager.getGroupsBaseDN(groupName), groupDN, attrs);
         }
         catch (Exception e) {
             Log.error(e.getMessage(), e);
@@ -216,7 +231,7 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         return true;
     }
 
-    private Group processGroup(LdapContext ctx, Attributes a) throws NamingException {
+    private Group processGroup(LdapContext ctx, String baseDN, String groupDN, Attributes a) throws NamingException {
         XMPPServer server = XMPPServer.getInstance();
         String serverName = server.getServerInfo().getXMPPDomain();
         // Build `3 groups.
@@ -255,112 +270,258 @@ public class LdapGroupProvider extends AbstractGroupProvider {
             description = "";
         }
         Set<JID> members = new TreeSet<>();
-        Attribute memberField = a.get(manager.getGroupMemberField());
-        if (memberField != null) {
-            NamingEnumeration ne = memberField.getAll();
+        List<String> memberValues = getMemberValues(ctx, groupDN, a);
+        Map<String, String> usernames = Collections.emptyMap();
+        // If not posix mode, each group member is stored as a full DN.
+        if (!manager.isPosixMode()) {
+            // Find the usernames with a regex pattern match. The DNs that don't use the
+            // standard username field have to be searched for. For example, Active Directory
+            // has a username field of sAMAccountName, but stores group members as "CN=...".
+            List<String> unresolved = new ArrayList<>();
+            for (String value : memberValues) {
+                Matcher matcher = pattern.matcher(value);
+                if (!matcher.matches() || matcher.groupCount() != 3) {
+                    unresolved.add(value);
+                }
+            }
+            usernames = resolveMembers(ctx, baseDN, unresolved, searchControls, isAD);
+        }
+        for (String username : memberValues) {
+            if (!manager.isPosixMode()) {
+                Matcher matcher = pattern.matcher(username);
+                if (matcher.matches() && matcher.groupCount() == 3) {
+                    // The username is in the DN, no additional search needed
+                    username = matcher.group(2);
+                }
+                else if (usernames.containsKey(username)) {
+                    username = usernames.get(username);
+                }
+            }
+            // A search filter may have been defined in the LdapUserProvider.
+            // Therefore, we have to try to load each user we found to see if
+            // it passes the filter.
+            try {
+                JID userJID;
+                int position = username.indexOf("@" + serverName);
+                // Create JID of local user if JID does not match a component's JID
+                if (position == -1) {
+                    // In order to lookup a username from the manager, the username
+                    // must be a properly escaped JID node.
+                    String escapedUsername = JID.escapeNode(username);
+                    if (!escapedUsername.equals(username)) {
+                        // Check if escaped username is valid
+                        userManager.getUser(escapedUsername);
+                    }
+                    // No exception, so the user must exist. Add the user as a group
+                    // member using the escaped username.
+                    userJID = server.createJID(escapedUsername, null);
+                }
+                else {
+                    // This is a JID of a component or node of a server's component
+                    String node = username.substring(0, position);
+                    String escapedUsername = JID.escapeNode(node);
+                    userJID = new JID(escapedUsername + "@" + serverName);
+                }
+                members.add(userJID);
+            }
+            catch (UserNotFoundException e) {
+                // We can safely ignore this error. It likely means that
+                // the user didn't pass the search filter that's defined.
+                // So, we want to simply ignore the user as a group member.
+                if (manager.isDebugEnabled()) {
+                    Log.debug("LdapGroupProvider: User not found: " + username);
+                }
+            }
+        }
+        if (manager.isDebugEnabled()) {
+            Log.debug("LdapGroupProvider: Adding group \"" + name + "\" with " + members.size() +
+                    " members.");
+        }
+        Collection<JID> admins = Collections.emptyList();
+        return new Group(name, description, members, admins);
+    }
+
+    /**
+     * Returns the values of the member attribute of a group. Active Directory returns large
+     * attributes in ranges ("member;range=0-1499"); the remaining ranges are read until the
+     * last one ("member;range=1500-*").
+     */
+    private List<String> getMemberValues(LdapContext ctx, String groupDN, Attributes a) throws NamingException {
+        List<String> values = new ArrayList<>();
+        String memberField = manager.getGroupMemberField();
+        Attribute attribute = a.get(memberField);
+        if (attribute == null) {
+            attribute = getRangedAttribute(a, memberField);
+        }
+        while (attribute != null) {
+            NamingEnumeration ne = attribute.getAll();
             while (ne.hasMore()) {
-                String username = (String) ne.next();
-                // If not posix mode, each group member is stored as a full DN.
-                if (!manager.isPosixMode()) {
+                values.add((String) ne.next());
+            }
+            // Close the enumeration.
+            ne.close();
+
+            String id = attribute.getID();
+            int range = id.toLowerCase().indexOf(";range=");
+            if (range == -1 || id.endsWith("*")) {
+                break;
+            }
+            long end;
+            try {
+                end = Long.parseLong(id.substring(id.indexOf('-', range) + 1));
+            }
+            catch (NumberFormatException e) {
+                Log.warn("LdapGroupProvider: Invalid range of attribute " + id + " of group " + groupDN);
+                break;
+            }
+            Attributes next = ctx.getAttributes(groupDN,
+                    new String[] { memberField + ";range=" + (end + 1) + "-*" });
+            attribute = getRangedAttribute(next, memberField);
+        }
+        return values;
+    }
+
+    private static Attribute getRangedAttribute(Attributes a, String field) throws NamingException {
+        String prefix = field.toLowerCase() + ";range=";
+        NamingEnumeration<? extends Attribute> ne = a.getAll();
+        try {
+            while (ne.hasMore()) {
+                Attribute attribute = ne.next();
+                if (attribute.getID().toLowerCase().startsWith(prefix)) {
+                    return attribute;
+                }
+            }
+        }
+        finally {
+            ne.close();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the usernames of group members whose DNs don't contain the username. The lookups
+     * are cached and run in parallel on the thread pool of the {@link TaskEngine}, each with
+     * its own connection. The calling thread takes part in the lookups, so the members are
+     * resolved even if the pool is saturated.
+     *
+     * @return the usernames by DN of the members that were found.
+     */
+    private Map<String, String> resolveMembers(LdapContext ctx, final String baseDN, List<String> memberDNs,
+            final SearchControls searchControls, final boolean isAD) {
+        final Map<String, String> usernames = new ConcurrentHashMap<>();
+        if (memberDNs.isEmpty()) {
+            return usernames;
+        }
+        final Queue<String> queue = new ConcurrentLinkedQueue<>(memberDNs);
+        int helpers = Math.min(JiveGlobals.getIntProperty("ldap.memberResolution.threads", 8),
+                memberDNs.size() / MIN_MEMBERS_PER_THREAD) - 1;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < helpers; i++) {
+            futures.add(TaskEngine.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    LdapContext helperCtx = null;
                     try {
-                        // Try to find the username with a regex pattern match.
-                        Matcher matcher = pattern.matcher(username);
-                        if (matcher.matches() && matcher.groupCount() == 3) {
-                            // The username is in the DN, no additional search needed
-                            username = matcher.group(2);
-                        }
-                        // The regex pattern match failed. This will happen if the
-                        // the member DN's don't use the standard username field. For
-                        // example, Active Directory has a username field of
-                        // sAMAccountName, but stores group members as "CN=...".
-                        else {
-                            // Create an LDAP name with the full DN.
-                            LdapName ldapName = new LdapName(username);
-                            // Turn the LDAP name into something we can use in a
-                            // search by stripping off the comma.
-                            StringBuilder userFilter = new StringBuilder();
-                            userFilter.append("(&(");
-                            userFilter.append(ldapName.get(ldapName.size() - 1));
-                            userFilter.append(')');
-                            userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
-                            userFilter.append(')');
-                            NamingEnumeration usrAnswer = ctx.search("",
-                                    userFilter.toString(), searchControls);
-                            if (usrAnswer != null && usrAnswer.hasMoreElements()) {
-                                SearchResult searchResult = null;
-                                // We may get multiple search results for the same user CN.
-                                // Iterate through the entire set to find a matching distinguished name.
-                                while(usrAnswer.hasMoreElements()) {
-                                    searchResult = (SearchResult) usrAnswer.nextElement();
-                                    Attributes attrs = searchResult.getAttributes();
-                                    if (isAD) {
-                                        Attribute userdnAttr = attrs.get("distinguishedName");
-                                        if (username.equals((String)userdnAttr.get())) {
-                                            // Exact match found, use it.
-                                            username = (String)attrs.get(manager.getUsernameField()).get();
-                                            break;
-                                        }
-                                    }
-                                    else {
-                                        // No iteration occurs here, which is probably a bug.
-                                        username = (String)attrs.get(manager.getUsernameField()).get();
-                                        break;
-                                    }
-                                }
-                            }
-                            // Close the enumeration.
-                            usrAnswer.close();
-                        }
+                        helperCtx = manager.getContext(baseDN);
+                        resolveMembers(helperCtx, baseDN, queue, searchControls, isAD, usernames);
                     }
-                    catch (Exception e) {
-                        // TODO: A NPE is occuring here
+                    catch (NamingException e) {
                         Log.error(e.getMessage(), e);
                     }
-                }
-                // A search filter may have been defined in the LdapUserProvider.
-                // Therefore, we have to try to load each user we found to see if
-                // it passes the filter.
-                try {
-                    JID userJID;
-                    int position = username.indexOf("@" + serverName);
-                    // Create JID of local user if JID does not match a component's JID
-                    if (position == -1) {
-                        // In order to lookup a username from the manager, the username
-                        // must be a properly escaped JID node.
-                        String escapedUsername = JID.escapeNode(username);
-                        if (!escapedUsername.equals(username)) {
-                            // Check if escaped username is valid
-                            userManager.getUser(escapedUsername);
+                    finally {
+                        try {
+                            if (helperCtx != null) {
+                                helperCtx.close();
+                            }
+                        }
+                        catch (Exception ignored) {
+                            // Ignore.
                         }
-                        // No exception, so the user must exist. Add the user as a group
-                        // member using the escaped username.
-                        userJID = server.createJID(escapedUsername, null);
                     }
-                    else {
-                        // This is a JID of a component or node of a server's component
-                        String node = username.substring(0, position);
-                        String escapedUsername = JID.escapeNode(node);
-                        userJID = new JID(escapedUsername + "@" + serverName);
+                }
+            }));
+        }
+        resolveMembers(ctx, baseDN, queue, searchControls, isAD, usernames);
+        for (Future<?> future : futures) {
+            // Helpers that did not start are not needed anymore
+            if (!future.cancel(false)) {
+                try {
+                    future.get();
+                }
+                catch (Exception e) {
+                    Log.error(e.getMessage(), e);
+                }
+            }
+        }
+        return usernames;
+    }
+
+    private void resolveMembers(final LdapContext ctx, String baseDN, Queue<String> queue,
+            final SearchControls searchControls, final boolean isAD, Map<String, String> usernames) {
+        String memberDN;
+        while ((memberDN = queue.poll()) != null) {
+            final String dn = memberDN;
+            try {
+                String username = manager.getMemberCache().get(baseDN + '\u0000' + dn,
+                        new LdapLookupCache.Lookup() {
+                    @Override
+                    public String lookup() throws Exception {
+                        return searchMember(ctx, dn, searchControls, isAD);
                     }
-                    members.add(userJID);
+                });
+                if (username != null) {
+                    usernames.put(dn, username);
                 }
-                catch (UserNotFoundException e) {
-                    // We can safely ignore this error. It likely means that
-                    // the user didn't pass the search filter that's defined.
-                    // So, we want to simply ignore the user as a group member.
-                    if (manager.isDebugEnabled()) {
-                        Log.debug("LdapGroupProvider: User not found: " + username);
+            }
+            catch (Exception e) {
+                Log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Searches for the user of a member DN.
+     *
+     * @return the username, or null if no user was found.
+     */
+    private String searchMember(LdapContext ctx, String memberDN, SearchControls searchControls, boolean isAD)
+            throws NamingException {
+        String username = null;
+        // Create an LDAP name with the full DN.
+        LdapName ldapName = new LdapName(memberDN);
+        // Turn the LDAP name into something we can use in a
+        // search by stripping off the comma.
+        StringBuilder userFilter = new StringBuilder();
+        userFilter.append("(&(");
+        userFilter.append(ldapName.get(ldapName.size() - 1));
+        userFilter.append(')');
+        userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
+        userFilter.append(')');
+        NamingEnumeration usrAnswer = ctx.search("",
+                userFilter.toString(), searchControls);
+        if (usrAnswer != null) {
+            // We may get multiple search results for the same user CN.
+            // Iterate through the entire set to find a matching distinguished name.
+            while (usrAnswer.hasMoreElements()) {
+                SearchResult searchResult = (SearchResult) usrAnswer.nextElement();
+                Attributes attrs = searchResult.getAttributes();
+                if (isAD) {
+                    Attribute userdnAttr = attrs.get("distinguishedName");
+                    if (memberDN.equals((String)userdnAttr.get())) {
+                        // Exact match found, use it.
+                        username = (String)attrs.get(manager.getUsernameField()).get();
+                        break;
                     }
                 }
+                else {
+                    // No iteration occurs here, which is probably a bug.
+                    username = (String)attrs.get(manager.getUsernameField()).get();
+                    break;
+                }
             }
             // Close the enumeration.
-            ne.close();
-        }
-        if (manager.isDebugEnabled()) {
-            Log.debug("LdapGroupProvider: Adding group \"" + name + "\" with " + members.size() +
-                    " members.");
+            usrAnswer.close();
         }
-        Collection<JID> admins = Collections.emptyList();
-        return new Group(name, description, members, admins);
+        return username;
     }
 }
@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.ldap;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of directory lookups, such as the DN of a user, kept for a limited time. Lookups
+ * that found nothing are kept as well, usually for a shorter time. Threads that need the
+ * result of a lookup that is already running wait for that lookup instead of sending the
+ * same query to the directory. Clearing the cache also discards the results of lookups that
+ * were running at that time, so a result that was read with an old configuration is never
+ * kept.<p>
+ *
+ * The cache is local to the cluster node and only holds strings, so it is kept outside of
+ * the clustered caches of the server.
+ */
+public final class LdapLookupCache {
+
+    private final String name;
+    private final int maxSize;
+    private final long ttl;
+    private final long negativeTtl;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Changed when the cache is cleared, so lookups that started before are not kept.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong maxLookupNanos = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param name the name of the cache, used in logs.
+     * @param maxSize the maximum number of results to keep, or 0 to keep none.
+     * @param ttl the time in milliseconds to keep results that were found.
+     * @param negativeTtl the time in milliseconds to keep lookups that found nothing.
+     */
+    LdapLookupCache(String name, int maxSize, long ttl, long negativeTtl) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Returns the result of a lookup, running the lookup if the result is not known.
+     *
+     * @param key the key of the lookup.
+     * @param lookup the lookup to run if the result is not known.
+     * @return the result of the lookup, or null if the lookup found nothing.
+     * @throws Exception if the lookup failed. Failures are not cached.
+     */
+    String get(String key, Lookup lookup) throws Exception {
+        final Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis()) {
+                if (entry.value == null) {
+                    negativeHits.incrementAndGet();
+                }
+                else {
+                    hits.incrementAndGet();
+                }
+                return entry.value;
+            }
+            entries.remove(key, entry);
+        }
+        misses.incrementAndGet();
+
+        final long lookupGeneration = generation.get();
+        FutureTask<String> task = new FutureTask<>(new LookupCall(lookup));
+        final FutureTask<String> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            // The same lookup is running, wait for its result
+            collapsed.incrementAndGet();
+            task = running;
+        }
+        else {
+            final long start = System.nanoTime();
+            try {
+                task.run();
+            }
+            finally {
+                recordLookup(System.nanoTime() - start);
+            }
+        }
+        try {
+            final String value = task.get();
+            if (running == null) {
+                put(key, value, lookupGeneration);
+            }
+            return value;
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new Exception(cause);
+        }
+        finally {
+            if (running == null) {
+                inFlight.remove(key, task);
+            }
+        }
+    }
+
+    /**
+     * Forgets all results, for instance because the configuration of the directory changed.
+     */
+    public void clear() {
+        // Change the generation first, lookups that complete later check it after storing
+        generation.incrementAndGet();
+        inFlight.clear();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of results that are kept.
+     *
+     * @return the number of cached results.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that were answered from the cache with a result.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were answered from the cache with no result.
+     *
+     * @return the number of hits of lookups that found nothing.
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were not answered from the cache.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of misses that waited for the same lookup of another thread.
+     *
+     * @return the number of lookups that were not sent to the directory.
+     */
+    public long getCollapsedLookups() {
+        return collapsed.get();
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache.
+     *
+     * @return the hit rate between 0 and 1.
+     */
+    public double getHitRate() {
+        final long answered = hits.get() + negativeHits.get();
+        final long total = answered + misses.get();
+        return total == 0 ? 0 : answered / (double) total;
+    }
+
+    /**
+     * Returns the average time of the lookups that were sent to the directory.
+     *
+     * @return the average lookup time in milliseconds.
+     */
+    public double getAverageLookupTime() {
+        final long count = getLookups();
+        return count <= 0 ? 0 : lookupNanos.get() / 1000000d / count;
+    }
+
+    /**
+     * Returns the longest time of a lookup that was sent to the directory.
+     *
+     * @return the maximum lookup time in milliseconds.
+     */
+    public long getMaxLookupTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLookupNanos.get());
+    }
+
+    /**
+     * Returns the number of lookups that were sent to the directory.
+     *
+     * @return the number of directory lookups.
+     */
+    long getLookups() {
+        return misses.get() - collapsed.get();
+    }
+
+    /**
+     * Returns the total time of the lookups that were sent to the directory.
+     *
+     * @return the total lookup time in nanoseconds.
+     */
+    long getLookupNanos() {
+        return lookupNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": size=" + size() + ", hits=" + getHits() + ", negativeHits=" + getNegativeHits() +
+                ", misses=" + getMisses() + ", collapsed=" + getCollapsedLookups() +
+                ", averageLookup=" + String.format("%.1f", getAverageLookupTime()) + " ms";
+    }
+
+    private void put(String key, String value, long lookupGeneration) {
+        final long lifetime = value == null ? negativeTtl : ttl;
+        if (lifetime <= 0 || maxSize <= 0 || generation.get() != lookupGeneration) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        final Entry entry = new Entry(value, System.currentTimeMillis() + lifetime);
+        entries.put(key, entry);
+        if (generation.get() != lookupGeneration) {
+            // Cleared while storing
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes the expired results, or a tenth of the results if none expired.
+     */
+    private void evict() {
+        final long now = System.currentTimeMillis();
+        boolean removed = false;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            int count = Math.max(1, maxSize / 10);
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && count > 0; count--) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private void recordLookup(long nanos) {
+        lookupNanos.addAndGet(nanos);
+        long max = maxLookupNanos.get();
+        while (nanos > max && !maxLookupNanos.compareAndSet(max, nanos)) {
+            max = maxLookupNanos.get();
+        }
+    }
+
+    /**
+     * A lookup in the directory.
+     */
+    interface Lookup {
+
+        /**
+         * Looks up a value in the directory.
+         *
+         * @return the value or null if the directory has no value.
+         * @throws Exception if the lookup failed.
+         */
+        String lookup() throws Exception;
+    }
+
+    private static final class LookupCall implements Callable<String> {
+
+        private final Lookup lookup;
+
+        private LookupCall(Lookup lookup) {
+            this.lookup = lookup;
+        }
+
+        @Override
+        public String call() throws Exception {
+            return lookup.lookup();
+        }
+    }
+
+    private static final class Entry {
+
+        private final String value;
+        private final long expires;
+
+        private Entry(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -31,11 +31,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
@@ -50,9 +53,14 @@ import javax.naming.ldap.StartTlsResponse;
 import javax.net.ssl.SSLSession;
 
 import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.JiveInitialLdapContext;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -90,6 +98,19 @@ import org.xmpp.packet.JID;
  *          "com.sun.jndi.ldap.LdapCtxFactory" will be used.</li>
  *      <li>ldap.connectionPoolEnabled -- true if an LDAP connection pool should be used.
  *          False if not set.</li>
+ *      <li>ldap.connectionPool.maxSize -- the maximum number of pooled connections per
+ *          connection identity. Default is 100.</li>
+ *      <li>ldap.connectionPool.prefSize -- the preferred number of pooled connections.</li>
+ *      <li>ldap.connectionPool.timeout -- milliseconds after which idle pooled connections
+ *          are closed. Default is 300000.</li>
+ *      <li>ldap.dnCache.size -- the number of user DNs, group DNs and group members to cache.
+ *          Default is 10000; 0 disables the caches.</li>
+ *      <li>ldap.dnCache.ttl -- seconds to cache DNs that were found. Default is 600.</li>
+ *      <li>ldap.dnCache.negativeTtl -- seconds to cache DNs that were not found. Default is 30.</li>
+ *      <li>ldap.memberResolution.threads -- the number of lookups of group members that run
+ *          in parallel. Default is 8.</li>
+ *      <li>ldap.healthCheck.interval -- seconds between checks of the connection to the
+ *          directory. Default is 60; 0 disables the check.</li>
  * </ul>
  *
  * @author Matt Tucker
@@ -169,8 +190,20 @@ public class LdapManager {
             }
         };
         instance = new LdapManager(properties);
+        instance.startHealthCheck();
+        instance.addStatistics();
     }
 
+    private static final String LOOKUP_HITS_STAT_KEY = "ldap_lookup_hits";
+    private static final String LOOKUP_MISSES_STAT_KEY = "ldap_lookup_misses";
+    private static final String LOOKUP_TIME_STAT_KEY = "ldap_lookup_time";
+
+    /**
+     * Maximum number of pooled connections that a health check tries before it opens a
+     * new connection.
+     */
+    private static final int MAX_HEALTH_CHECK_ATTEMPTS = 10;
+
 
     private Collection<String> hosts = new ArrayList<>();
     private int port;
@@ -205,6 +238,18 @@ public class LdapManager {
 
     private final Map<String, String> properties;
 
+    /**
+     * DNs of users and groups and usernames of group members by DN.
+     */
+    private final LdapLookupCache userDNCache;
+    private final LdapLookupCache groupDNCache;
+    private final LdapLookupCache memberCache;
+
+    private volatile boolean healthy = true;
+    private volatile long lastHealthCheckTime = -1;
+    private final AtomicLong healthCheckFailures = new AtomicLong();
+    private final AtomicLong deadConnections = new AtomicLong();
+
     /**
      * Provides singleton access to an instance of the LdapManager class.
      *
@@ -296,6 +341,14 @@ public class LdapManager {
             }
         }
 
+        // Lookups of DNs are cached, lookups that found nothing for a shorter time
+        int cacheSize = getIntProperty("ldap.dnCache.size", 10000);
+        long cacheTTL = getIntProperty("ldap.dnCache.ttl", 600) * JiveConstants.SECOND;
+        long negativeCacheTTL = getIntProperty("ldap.dnCache.negativeTtl", 30) * JiveConstants.SECOND;
+        userDNCache = new LdapLookupCache("LDAP user DNs", cacheSize, cacheTTL, negativeCacheTTL);
+        groupDNCache = new LdapLookupCache("LDAP group DNs", cacheSize, cacheTTL, negativeCacheTTL);
+        memberCache = new LdapLookupCache("LDAP group members", cacheSize, cacheTTL, negativeCacheTTL);
+
         usernameField = properties.get("ldap.usernameField");
         if (usernameField == null) {
             usernameField = "uid";
@@ -338,6 +391,13 @@ public class LdapManager {
         if (connectionPoolStr != null) {
             connectionPoolEnabled = Boolean.valueOf(connectionPoolStr);
         }
+        if (connectionPoolEnabled) {
+            // Bound the pool of the JNDI provider. The settings are global to the JVM and only
+            // apply before the first pooled connection is created.
+            setPoolProperty("com.sun.jndi.ldap.connect.pool.maxsize", properties.get("ldap.connectionPool.maxSize"), "100");
+            setPoolProperty("com.sun.jndi.ldap.connect.pool.prefsize", properties.get("ldap.connectionPool.prefSize"), null);
+            setPoolProperty("com.sun.jndi.ldap.connect.pool.timeout", properties.get("ldap.connectionPool.timeout"), "300000");
+        }
         searchFilter = properties.get("ldap.searchFilter");
         subTreeSearch = true;
         String subTreeStr = properties.get("ldap.subTreeSearch");
@@ -459,6 +519,259 @@ public class LdapManager {
         }
     }
 
+    private int getIntProperty(String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException nfe) {
+                Log.error(nfe.getMessage(), nfe);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static void setPoolProperty(String name, String value, String defaultValue) {
+        if (value == null) {
+            value = defaultValue;
+        }
+        if (value != null && System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Periodically checks the connection to the directory, see {@link #checkHealth()}.
+     */
+    private void startHealthCheck() {
+        long interval = getIntProperty("ldap.healthCheck.interval", 60) * JiveConstants.SECOND;
+        if (interval > 0 && !hosts.isEmpty()) {
+            TaskEngine.getInstance().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkHealth();
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Checks the connection to the directory by reading the base DN entry with the admin
+     * login. A failed check is logged when the directory was healthy before, so an outage
+     * is logged once.<p>
+     *
+     * Pooled connections that fail the check are closed with the failure, which removes them
+     * from the pool, and the check is repeated on another connection. When the pool keeps
+     * handing out connections that fail, the check is made on a new connection that is not
+     * pooled, so a pool of dead connections is not taken for an outage of the directory.
+     *
+     * @return true if the directory could be read.
+     */
+    public boolean checkHealth() {
+        long start = System.currentTimeMillis();
+        NamingException failure = null;
+        boolean readable = false;
+        boolean pooled = connectionPoolEnabled && !startTlsEnabled;
+        for (int attempt = 0; !readable && attempt <= MAX_HEALTH_CHECK_ATTEMPTS; attempt++) {
+            if (attempt == MAX_HEALTH_CHECK_ATTEMPTS) {
+                if (!pooled) {
+                    break;
+                }
+                pooled = false;
+            }
+            LdapContext ctx;
+            try {
+                ctx = getContext(baseDN, pooled);
+            }
+            catch (NamingException e) {
+                // No connection could be made
+                failure = e;
+                break;
+            }
+            try {
+                ctx.getAttributes("", new String[] { "objectClass" });
+                readable = true;
+            }
+            catch (NamingException e) {
+                failure = e;
+                if (pooled) {
+                    deadConnections.incrementAndGet();
+                    Log.debug("LdapManager: Closing pooled LDAP connection that failed the health check.", e);
+                }
+                else {
+                    break;
+                }
+            }
+            finally {
+                try {
+                    ctx.close();
+                }
+                catch (Exception ignored) {
+                    // Ignore.
+                }
+            }
+        }
+        if (readable) {
+            if (!healthy) {
+                Log.info("LdapManager: Connection to LDAP directory restored.");
+            }
+            healthy = true;
+        }
+        else {
+            healthCheckFailures.incrementAndGet();
+            if (healthy) {
+                Log.warn("LdapManager: Health check of LDAP directory failed.", failure);
+            }
+            healthy = false;
+        }
+        lastHealthCheckTime = System.currentTimeMillis() - start;
+        return healthy;
+    }
+
+    /**
+     * Returns true if the last health check of the directory succeeded.
+     *
+     * @return true if the directory is healthy.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Returns the number of failed health checks of the directory.
+     *
+     * @return the number of failed health checks.
+     */
+    public long getHealthCheckFailures() {
+        return healthCheckFailures.get();
+    }
+
+    /**
+     * Returns the time the last health check took.
+     *
+     * @return the duration of the last check in milliseconds, or -1 if there was no check.
+     */
+    public long getLastHealthCheckTime() {
+        return lastHealthCheckTime;
+    }
+
+    /**
+     * Returns the number of pooled connections that failed a health check and were closed.
+     *
+     * @return the number of dead pooled connections that were closed.
+     */
+    public long getDeadConnections() {
+        return deadConnections.get();
+    }
+
+    /**
+     * Returns the cache of user DNs by username.
+     *
+     * @return the cache of user DNs.
+     */
+    public LdapLookupCache getUserDNCache() {
+        return userDNCache;
+    }
+
+    /**
+     * Returns the cache of group DNs by group name.
+     *
+     * @return the cache of group DNs.
+     */
+    public LdapLookupCache getGroupDNCache() {
+        return groupDNCache;
+    }
+
+    /**
+     * Returns the cache of usernames of group members by DN.
+     *
+     * @return the cache of usernames of group members.
+     */
+    public LdapLookupCache getMemberCache() {
+        return memberCache;
+    }
+
+    /**
+     * Forgets all cached lookups. Called when the configuration changes.
+     */
+    public void clearCaches() {
+        userDNCache.clear();
+        groupDNCache.clear();
+        memberCache.clear();
+    }
+
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(LOOKUP_HITS_STAT_KEY,
+                new i18nStatistic("ldap.lookup_hits", Statistic.Type.rate) {
+            private long lastSample;
+
+            @Override
+            public synchronized double sample() {
+                long total = 0;
+                for (LdapLookupCache cache : getCaches()) {
+                    total += cache.getHits() + cache.getNegativeHits();
+                }
+                final double delta = total - lastSample;
+                lastSample = total;
+                return delta;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(LOOKUP_MISSES_STAT_KEY,
+                new i18nStatistic("ldap.lookup_misses", Statistic.Type.rate) {
+            private long lastSample;
+
+            @Override
+            public synchronized double sample() {
+                long total = 0;
+                for (LdapLookupCache cache : getCaches()) {
+                    total += cache.getMisses();
+                }
+                final double delta = total - lastSample;
+                lastSample = total;
+                return delta;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(LOOKUP_TIME_STAT_KEY,
+                new i18nStatistic("ldap.lookup_time", Statistic.Type.count) {
+            private long lastCount;
+            private long lastNanos;
+
+            @Override
+            public synchronized double sample() {
+                long count = 0;
+                long nanos = 0;
+                for (LdapLookupCache cache : getCaches()) {
+                    count += cache.getLookups();
+                    nanos += cache.getLookupNanos();
+                }
+                final double average = count > lastCount ? (nanos - lastNanos) / ((count - lastCount) * 1000000d) : 0;
+                lastCount = count;
+                lastNanos = nanos;
+                return average;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+    }
+
+    private LdapLookupCache[] getCaches() {
+        return new LdapLookupCache[] { userDNCache, groupDNCache, memberCache };
+    }
+
     /**
      * Returns a DirContext for the LDAP server that can be used to perform
      * lookups and searches using the default base DN. The alternate DN will be used
@@ -491,6 +804,10 @@ public class LdapManager {
      * @throws NamingException if there is an error making the LDAP connection.
      */
     public LdapContext getContext(String baseDN) throws NamingException {
+        return getContext(baseDN, connectionPoolEnabled);
+    }
+
+    private LdapContext getContext(String baseDN, boolean pooled) throws NamingException {
         boolean debug = Log.isDebugEnabled();
         if (debug) {
             Log.debug("LdapManager: Creating a DirContext in LdapManager.getContext()...");
@@ -530,7 +847,7 @@ public class LdapManager {
         if (ldapDebugEnabled) {
             env.put("com.sun.jndi.ldap.trace.ber", System.err);
         }
-        if (connectionPoolEnabled) {
+        if (pooled) {
             if (!startTlsEnabled) {
                 env.put("com.sun.jndi.ldap.connect.pool", "true");
                 System.setProperty("com.sun.jndi.ldap.connect.pool.protocol", "plain ssl");
@@ -962,7 +1279,28 @@ public class LdapManager {
      * @throws Exception if the search for the dn fails.
      * @see #findUserDN(String) to search using the default baseDN and alternateBaseDN.
      */
-    public String findUserDN(String username, String baseDN) throws Exception {
+    public String findUserDN(final String username, final String baseDN) throws Exception {
+        String userDN = userDNCache.get(baseDN + '\u0000' + username, new LdapLookupCache.Lookup() {
+            @Override
+            public String lookup() throws Exception {
+                try {
+                    return searchUserDN(username, baseDN);
+                }
+                catch (UserNotFoundException e) {
+                    return null;
+                }
+            }
+        });
+        if (userDN == null) {
+            throw new UserNotFoundException("Username " + username + usernameSuffix + " not found");
+        }
+        return userDN;
+    }
+
+    /**
+     * Searches the directory for the DN of a user, see {@link #findUserDN(String, String)}.
+     */
+    private String searchUserDN(String username, String baseDN) throws Exception {
         boolean debug = Log.isDebugEnabled();
         //Support for usernameSuffix
         username = username + usernameSuffix;
@@ -1110,7 +1448,28 @@ public class LdapManager {
      * @throws Exception if the search for the dn fails.
      * @see #findGroupDN(String) to search using the default baseDN and alternateBaseDN.
      */
-    public String findGroupDN(String groupname, String baseDN) throws Exception {
+    public String findGroupDN(final String groupname, final String baseDN) throws Exception {
+        String groupDN = groupDNCache.get(baseDN + '\u0000' + groupname, new LdapLookupCache.Lookup() {
+            @Override
+            public String lookup() throws Exception {
+                try {
+                    return searchGroupDN(groupname, baseDN);
+                }
+                catch (GroupNotFoundException e) {
+                    return null;
+                }
+            }
+        });
+        if (groupDN == null) {
+            throw new GroupNotFoundException("Groupname " + groupname + " not found");
+        }
+        return groupDN;
+    }
+
+    /**
+     * Searches the directory for the DN of a group, see {@link #findGroupDN(String, String)}.
+     */
+    private String searchGroupDN(String groupname, String baseDN) throws Exception {
         boolean debug = Log.isDebugEnabled();
         if (debug) {
             Log.debug("LdapManager: Trying to find a groups's DN based on it's groupname. " + groupNameField + ": " + groupname
@@ -1241,6 +1600,7 @@ public class LdapManager {
      * @param hosts the LDAP servers host names.
      */
     public void setHosts(Collection<String> hosts) {
+        clearCaches();
         this.hosts = hosts;
         StringBuilder hostProperty = new StringBuilder();
         for (String host : hosts) {
@@ -1270,6 +1630,7 @@ public class LdapManager {
      * @param port the LDAP server port number.
      */
     public void setPort(int port) {
+        clearCaches();
         this.port = port;
         properties.put("ldap.port", Integer.toString(port));
     }
@@ -1364,6 +1725,7 @@ public class LdapManager {
      *      performed on.
      */
     public void setUsernameField(String usernameField) {
+        clearCaches();
         this.usernameField = usernameField;
         if (usernameField == null) {
             properties.remove("ldap.usernameField");
@@ -1380,6 +1742,7 @@ public class LdapManager {
      * @param usernameSuffix the String to append to usernames for lookups
      */
     public void setUsernameSuffix(String usernameSuffix) {
+        clearCaches();
         this.usernameSuffix = usernameSuffix;
         if (usernameSuffix == null) {
             properties.remove("ldap.usernameSuffix");
@@ -1465,6 +1828,7 @@ public class LdapManager {
      * @param baseDN the starting DN used for performing searches.
      */
     public void setBaseDN(String baseDN) {
+        clearCaches();
         this.baseDN = baseDN;
         properties.put("ldap.baseDN", baseDN);
     }
@@ -1489,6 +1853,7 @@ public class LdapManager {
      * @param alternateBaseDN the alternate starting DN used for performing searches.
      */
     public void setAlternateBaseDN(String alternateBaseDN) {
+        clearCaches();
         this.alternateBaseDN = alternateBaseDN;
         if (alternateBaseDN == null) {
             properties.remove("ldap.alternateBaseDN");
@@ -1640,6 +2005,7 @@ public class LdapManager {
      *      when searching for users.
      */
     public void setSearchFilter(String searchFilter) {
+        clearCaches();
         this.searchFilter = searchFilter;
         properties.put("ldap.searchFilter", searchFilter);
     }
@@ -1667,6 +2033,7 @@ public class LdapManager {
      * @param subTreeSearch true if the entire tree under the base DN will be searched.
      */
     public void setSubTreeSearch(boolean subTreeSearch) {
+        clearCaches();
         this.subTreeSearch = subTreeSearch;
         properties.put("ldap.subTreeSearch", String.valueOf(subTreeSearch));
     }
@@ -1686,6 +2053,7 @@ public class LdapManager {
      * @param followReferrals true if LDAP referrals should be automatically followed.
      */
     public void setFollowReferralsEnabled(boolean followReferrals) {
+        clearCaches();
         this.followReferrals = followReferrals;
         properties.put("ldap.autoFollowReferrals", String.valueOf(followReferrals));
     }
@@ -1725,6 +2093,7 @@ public class LdapManager {
      * @param groupNameField the field used for groups.
      */
     public void setGroupNameField(String groupNameField) {
+        clearCaches();
         this.groupNameField = groupNameField;
         properties.put("ldap.groupNameField", groupNameField);
     }
@@ -1820,6 +2189,7 @@ public class LdapManager {
      *      when searching for groups.
      */
     public void setGroupSearchFilter(String groupSearchFilter) {
+        clearCaches();
         this.groupSearchFilter = groupSearchFilter;
         properties.put("ldap.groupSearchFilter", groupSearchFilter);
     }
@@ -1836,6 +2206,7 @@ public class LdapManager {
     }
 
     public void setIsEnclosingDNs(boolean enable) {
+        clearCaches();
         this.encloseDNs = enable;
         properties.put("ldap.encloseDNs", Boolean.toString(enable));
     }
@@ -0,0 +1,447 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.dom4j.io.SAXReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+/**
+ * Ring buffer that holds the history of a room. Messages are kept serialized together with
+ * the time they were sent and the length of their text, so history requests can be answered
+ * without parsing the messages that are not sent. The buffer keeps the messages ordered by the
+ * time they were sent; messages may arrive out of order when running inside of a cluster.<p>
+ *
+ * The latest subject change is kept even when it's older than the messages that fit in the
+ * buffer, so new occupants always learn the subject of the room.<p>
+ *
+ * Messages loaded from the database may already be in the buffer, for instance when another
+ * cluster node logged a message that was broadcast to this node as well. A loaded message and
+ * a message that was added live are considered the same message when they have the same
+ * sender, subject and body and were sent within {@link #DUPLICATE_WINDOW} of each other;
+ * only one of them is kept.
+ */
+class HistoryBuffer {
+
+    private static final Logger Log = LoggerFactory.getLogger(HistoryBuffer.class);
+
+    private static final int INITIAL_CAPACITY = 4;
+    /**
+     * Maximum difference between the times of a loaded message and of a message that was added
+     * live for them to be considered the same message. The times are taken on different
+     * cluster nodes when a message is logged by one node and broadcast to another.
+     */
+    static final long DUPLICATE_WINDOW = 30 * 1000;
+    private static final int POOL_SIZE = 20;
+    /**
+     * Pool of SAX Readers. SAXReader is not thread safe so we need to have a pool of readers.
+     */
+    private static final BlockingQueue<SAXReader> xmlReaders = new LinkedBlockingQueue<>(POOL_SIZE);
+
+    static {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            SAXReader xmlReader = new SAXReader();
+            xmlReader.setEncoding("UTF-8");
+            xmlReaders.add(xmlReader);
+        }
+    }
+
+    private Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+    /**
+     * The latest subject change or null if none exists yet.
+     */
+    private Entry subject;
+    /**
+     * The latest subject change once it no longer fits in the buffer.
+     */
+    private Entry pinnedSubject;
+
+    /**
+     * Adds a message to the history.
+     *
+     * @param message the message to add.
+     * @param timestamp the time when the message was sent.
+     * @param subjectChange true if the message changes the subject of the room.
+     * @param maxNumber the maximum number of messages to keep or -1 to keep all messages.
+     */
+    synchronized void add(Message message, long timestamp, boolean subjectChange, int maxNumber) {
+        Entry entry = new Entry(message, timestamp, false);
+        Entry duplicate = findDuplicate(entry);
+        if (duplicate != null) {
+            // Replace the loaded copy of the message
+            remove(duplicate);
+            entry.matched = true;
+        }
+        add(entry, subjectChange, maxNumber);
+    }
+
+    /**
+     * Adds a message that was loaded from the database to the history. The message is ignored
+     * if the same message was added to the history live.
+     *
+     * @param message the message to add.
+     * @param timestamp the time when the message was sent.
+     * @param subjectChange true if the message changes the subject of the room.
+     * @param maxNumber the maximum number of messages to keep or -1 to keep all messages.
+     */
+    synchronized void addLoaded(Message message, long timestamp, boolean subjectChange, int maxNumber) {
+        Entry entry = new Entry(message, timestamp, true);
+        Entry duplicate = findDuplicate(entry);
+        if (duplicate != null) {
+            duplicate.matched = true;
+            return;
+        }
+        add(entry, subjectChange, maxNumber);
+    }
+
+    private void add(Entry entry, boolean subjectChange, int maxNumber) {
+        // Messages may be older than the latest subject change when loaded from the database
+        if (subjectChange && (subject == null || subject.timestamp <= entry.timestamp)) {
+            subject = entry;
+            pinnedSubject = null;
+        }
+        // Insert first, so the oldest messages are dropped even if the new message is older
+        insert(entry);
+        if (maxNumber > -1) {
+            while (size > 1 && size + (pinnedSubject != null ? 1 : 0) > maxNumber) {
+                removeOldest();
+            }
+        }
+    }
+
+    /**
+     * Removes all messages from the history, including the latest subject change.
+     */
+    synchronized void clear() {
+        entries = new Entry[INITIAL_CAPACITY];
+        head = 0;
+        size = 0;
+        subject = null;
+        pinnedSubject = null;
+    }
+
+    /**
+     * Returns the number of messages in the history.
+     *
+     * @return the number of messages in the history.
+     */
+    synchronized int size() {
+        return size + (pinnedSubject != null ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of bytes of the serialized messages in the history.
+     *
+     * @return the number of bytes of the serialized messages.
+     */
+    synchronized long getSerializedSize() {
+        long bytes = pinnedSubject != null ? pinnedSubject.stanza.length : 0;
+        for (int i = 0; i < size; i++) {
+            bytes += get(i).stanza.length;
+        }
+        return bytes;
+    }
+
+    boolean hasSubject() {
+        return getSubjectEntry() != null;
+    }
+
+    /**
+     * Returns the latest subject change or null if none exists yet.
+     *
+     * @return the latest subject change.
+     */
+    Message getSubject() {
+        Entry entry = getSubjectEntry();
+        return entry == null ? null : entry.toMessage();
+    }
+
+    /**
+     * Returns all messages of the history ordered by the time they were sent.
+     *
+     * @return the messages of the history.
+     */
+    List<Message> getMessages() {
+        return toMessages(snapshot());
+    }
+
+    /**
+     * Returns the newest messages of the history that meet all the specified limits, ordered by
+     * the time they were sent. Messages without text are skipped. The latest subject change is
+     * included even when it does not meet the limits.
+     *
+     * @param maxStanzas the maximum number of messages or -1 for no limit.
+     * @param maxChars the maximum number of characters of text or -1 for no limit.
+     * @param since the time of the oldest message to include or -1 for no limit.
+     * @return the newest messages of the history that meet the limits.
+     */
+    List<Message> getMessages(int maxStanzas, int maxChars, long since) {
+        List<Entry> history = snapshot();
+        Entry subjectEntry = getSubjectEntry();
+        boolean addSubject = subjectEntry != null;
+        int chars = 0;
+        int stanzas = 0;
+        int first = history.size();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            Entry entry = history.get(i);
+            if (entry.length < 0) {
+                // Skip this message since it has no body and no subject
+                continue;
+            }
+            chars += entry.length;
+            stanzas++;
+            if ((maxChars > -1 && chars > maxChars) || (maxStanzas > -1 && stanzas > maxStanzas) ||
+                    (since > -1 && entry.timestamp < since)) {
+                break;
+            }
+            if (entry == subjectEntry) {
+                addSubject = false;
+            }
+            first = i;
+        }
+        List<Entry> selected = new ArrayList<>(history.size() - first + 1);
+        if (addSubject) {
+            selected.add(subjectEntry);
+        }
+        for (int i = first; i < history.size(); i++) {
+            if (history.get(i).length >= 0) {
+                selected.add(history.get(i));
+            }
+        }
+        return toMessages(selected);
+    }
+
+    /**
+     * Applies an update to every message of the history.
+     *
+     * @param updater the update to apply.
+     */
+    synchronized void update(HistoryStrategy.MessageUpdater updater) {
+        if (pinnedSubject != null) {
+            pinnedSubject.update(updater);
+        }
+        for (int i = 0; i < size; i++) {
+            get(i).update(updater);
+        }
+    }
+
+    private synchronized Entry getSubjectEntry() {
+        return subject;
+    }
+
+    private synchronized List<Entry> snapshot() {
+        List<Entry> history = new ArrayList<>(size + 1);
+        if (pinnedSubject != null) {
+            history.add(pinnedSubject);
+        }
+        for (int i = 0; i < size; i++) {
+            history.add(get(i));
+        }
+        return history;
+    }
+
+    private static List<Message> toMessages(List<Entry> history) {
+        if (history.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Message> messages = new ArrayList<>(history.size());
+        for (Entry entry : history) {
+            Message message = entry.toMessage();
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private Entry get(int index) {
+        return entries[(head + index) % entries.length];
+    }
+
+    private void set(int index, Entry entry) {
+        entries[(head + index) % entries.length] = entry;
+    }
+
+    /**
+     * Returns the entry that holds the same message as the specified entry, if one of them was
+     * loaded from the database and the other one was added live. Every entry matches only once.
+     */
+    private Entry findDuplicate(Entry entry) {
+        Message message = null;
+        for (int i = size - 1; i >= 0; i--) {
+            Entry other = get(i);
+            if (other.timestamp < entry.timestamp - DUPLICATE_WINDOW) {
+                break;
+            }
+            if (other.loaded == entry.loaded || other.matched || other.digest != entry.digest ||
+                    other.timestamp > entry.timestamp + DUPLICATE_WINDOW) {
+                continue;
+            }
+            if (message == null) {
+                message = entry.toMessage();
+            }
+            if (message != null && isSameMessage(message, other.toMessage())) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSameMessage(Message message, Message other) {
+        return other != null && equals(message.getFrom(), other.getFrom()) &&
+                equals(message.getSubject(), other.getSubject()) && equals(message.getBody(), other.getBody());
+    }
+
+    private static boolean equals(Object value, Object other) {
+        return value == null ? other == null : value.equals(other);
+    }
+
+    private static int digest(Message message) {
+        int digest = message.getFrom() == null ? 0 : message.getFrom().hashCode();
+        digest = 31 * digest + (message.getSubject() == null ? 0 : message.getSubject().hashCode());
+        return 31 * digest + (message.getBody() == null ? 0 : message.getBody().hashCode());
+    }
+
+    /**
+     * Removes an entry, keeping the order of the remaining entries.
+     */
+    private void remove(Entry entry) {
+        int index = size - 1;
+        while (index >= 0 && get(index) != entry) {
+            index--;
+        }
+        if (index < 0) {
+            return;
+        }
+        for (int i = index; i < size - 1; i++) {
+            set(i, get(i + 1));
+        }
+        set(size - 1, null);
+        size--;
+        if (size == 0) {
+            head = 0;
+        }
+        if (entry == subject) {
+            subject = null;
+        }
+    }
+
+    private void removeOldest() {
+        Entry oldest = entries[head];
+        entries[head] = null;
+        head = (head + 1) % entries.length;
+        size--;
+        if (oldest == subject) {
+            // Keep the latest subject change although it no longer fits
+            pinnedSubject = oldest;
+        }
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    /**
+     * Inserts an entry keeping the entries ordered by time. Entries are usually appended.
+     */
+    private void insert(Entry entry) {
+        if (size == entries.length) {
+            Entry[] grown = new Entry[entries.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            entries = grown;
+            head = 0;
+        }
+        int index = size;
+        while (index > 0 && get(index - 1).timestamp > entry.timestamp) {
+            set(index, get(index - 1));
+            index--;
+        }
+        set(index, entry);
+        size++;
+    }
+
+    /**
+     * A serialized message of the history.
+     */
+    private static class Entry {
+
+        private final long timestamp;
+        /**
+         * Length of the body or, if there is no body, of the subject. -1 if there is no text.
+         */
+        private final int length;
+        /**
+         * True if the message was loaded from the database.
+         */
+        private final boolean loaded;
+        /**
+         * Hash of the sender, subject and body of the message, to find duplicates.
+         */
+        private final int digest;
+        /**
+         * True once a duplicate of the message was found.
+         */
+        private boolean matched;
+        private volatile byte[] stanza;
+
+        Entry(Message message, long timestamp, boolean loaded) {
+            this.timestamp = timestamp;
+            this.loaded = loaded;
+            this.digest = digest(message);
+            String text = message.getBody() == null ? message.getSubject() : message.getBody();
+            this.length = text == null ? -1 : text.length();
+            this.stanza = message.toXML().getBytes(StandardCharsets.UTF_8);
+        }
+
+        void update(HistoryStrategy.MessageUpdater updater) {
+            Message message = toMessage();
+            if (message != null) {
+                updater.update(message);
+                stanza = message.toXML().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        Message toMessage() {
+            SAXReader xmlReader = null;
+            try {
+                xmlReader = xmlReaders.take();
+                return new Message(xmlReader.read(new ByteArrayInputStream(stanza)).getRootElement(), true);
+            }
+            catch (Exception e) {
+                Log.error("Error parsing message from the room history", e);
+                return null;
+            }
+            finally {
+                if (xmlReader != null) {
+                    xmlReaders.add(xmlReader);
+                }
+            }
+        }
+    }
+}
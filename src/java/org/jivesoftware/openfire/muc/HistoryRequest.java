@@ -23,8 +23,7 @@ package org.jivesoftware.openfire.muc;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRole;
@@ -143,80 +142,29 @@ public class HistoryRequest {
             }
         }
         else {
-            Message changedSubject = roomHistory.getChangedSubject();
-            boolean addChangedSubject = (changedSubject != null) ? true : false;
             if (getMaxChars() == 0) {
                 // The user requested to receive no history
-                if (addChangedSubject) {
+                Message changedSubject = roomHistory.getChangedSubject();
+                if (changedSubject != null) {
                     joinRole.send(changedSubject);
                 }
                 return;
             }
-            int accumulatedChars = 0;
-            int accumulatedStanzas = 0;
-            Element delayInformation;
-            LinkedList<Message> historyToSend = new LinkedList<>();
-            ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
-            while (iterator.hasPrevious()) {
-                Message message = iterator.previous();
-                // Update number of characters to send
-                String text = message.getBody() == null ? message.getSubject() : message.getBody();
-                if (text == null) {
-                    // Skip this message since it has no body and no subject  
-                    continue;
+            // Only the messages of the last "X" seconds are included, so the oldest message
+            // must have been sent less than "X" seconds ago
+            Date since = getSince();
+            if (getSeconds() > -1) {
+                Date secondsAgo = new Date(System.currentTimeMillis() - getSeconds() * 1000L + 1);
+                if (since == null || secondsAgo.after(since)) {
+                    since = secondsAgo;
                 }
-                accumulatedChars += text.length();
-                if (getMaxChars() > -1 && accumulatedChars > getMaxChars()) {
-                    // Stop collecting history since we have exceded a limit
-                    break;
-                }
-                // Update number of messages to send
-                accumulatedStanzas ++;
-                if (getMaxStanzas() > -1 && accumulatedStanzas > getMaxStanzas()) {
-                    // Stop collecting history since we have exceded a limit
-                    break;
-                }
-
-                if (getSeconds() > -1 || getSince() != null) {
-                    delayInformation = message.getChildElement("delay", "urn:xmpp:delay");
-                    try {
-                        // Get the date when the historic message was sent
-                        Date delayedDate = xmppDateTime.parseString(delayInformation.attributeValue("stamp"));
-                        if (getSince() != null && delayedDate != null && delayedDate.before(getSince())) {
-                            // Stop collecting history since we have exceded a limit
-                            break;
-                        }
-                        if (getSeconds() > -1) {
-                            Date current = new Date();
-                            long diff = (current.getTime() - delayedDate.getTime()) / 1000;
-                            if (getSeconds() <= diff) {
-                                // Stop collecting history since we have exceded a limit
-                                break;
-                            }
-                        }
-                    }
-                    catch (Exception e) {
-                        Log.error("Error parsing date from historic message", e);
-                    }
-
-                }
-
-                // Don't add the latest subject change if it's already in the history.
-                if (addChangedSubject) {
-                    if (changedSubject != null && changedSubject.equals(message)) {
-                        addChangedSubject = false;
-                    }
-                }
-
-                historyToSend.addFirst(message);
-            }
-            // Check if we should add the latest subject change.
-            if (addChangedSubject) {
-                historyToSend.addFirst(changedSubject);
             }
+            // The history walks back from the newest message and stops as soon as any limit
+            // is reached. The latest subject change is included if it's not in the history.
+            List<Message> historyToSend = roomHistory.getMessageHistory(getMaxStanzas(), getMaxChars(), since);
             // Send the smallest amount of traffic to the user
-            for (Object aHistoryToSend : historyToSend) {
-                joinRole.send((Message) aHistoryToSend);
+            for (Message message : historyToSend) {
+                joinRole.send(message);
             }
         }
     }
@@ -20,16 +20,16 @@
 
 package org.jivesoftware.openfire.muc;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.dom4j.Element;
 import org.jivesoftware.openfire.muc.cluster.UpdateHistoryStrategy;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +48,7 @@ import org.xmpp.packet.Message;
 public class HistoryStrategy {
 
 	private static final Logger Log = LoggerFactory.getLogger(HistoryStrategy.class);
+	private static final XMPPDateTimeFormat xmppDateTime = new XMPPDateTimeFormat();
 
     /**
      * The type of strategy being used.
@@ -55,9 +56,9 @@ public class HistoryStrategy {
     private Type type = Type.number;
 
     /**
-     * List containing the history of messages.
+     * The history of messages, kept serialized.
      */
-    private ConcurrentLinkedQueue<Message> history = new ConcurrentLinkedQueue<>();
+    private final HistoryBuffer history = new HistoryBuffer();
     /**
      * Default max number.
      */
@@ -71,10 +72,6 @@ public class HistoryStrategy {
      * (chat server defaults).
      */
     private HistoryStrategy parent;
-    /**
-     * Track the latest room subject change or null if none exists yet.
-     */
-    private Message roomSubject = null;
     /**
      * The string prefix to be used on the context property names
      * (do not include trailing dot).
@@ -169,6 +166,31 @@ public class HistoryStrategy {
      * @param packet The packet to add to the chatroom's history.
      */
     public void addMessage(Message packet){
+        addMessage(packet, getTimestamp(packet));
+    }
+
+    /**
+     * Add a message that was sent at the specified time to the current chat history.
+     *
+     * @param packet The packet to add to the chatroom's history.
+     * @param timestamp The time when the message was sent.
+     */
+    void addMessage(Message packet, long timestamp) {
+        addMessage(packet, timestamp, false);
+    }
+
+    /**
+     * Add a message that was loaded from the database to the current chat history. The message
+     * is ignored if it was already added to the history.
+     *
+     * @param packet The packet to add to the chatroom's history.
+     * @param timestamp The time when the message was sent.
+     */
+    void addLoadedMessage(Message packet, long timestamp) {
+        addMessage(packet, timestamp, true);
+    }
+
+    private void addMessage(Message packet, long timestamp, boolean loaded) {
         // get the conditions based on default or not
         Type strategyType;
         int strategyMaxNumber;
@@ -183,35 +205,68 @@ public class HistoryStrategy {
 
         // Room subject change messages are special
         boolean subjectChange = isSubjectChangeRequest(packet);
-        if (subjectChange) {
-            roomSubject = packet;
-        }
 
         // store message according to active strategy
         if (strategyType == Type.none && subjectChange) {
-            history.clear();
-            history.add(packet);
+            // A loaded subject change is not newer than the subject of the history
+            if (!loaded || !history.hasSubject()) {
+                history.clear();
+                add(packet, timestamp, true, -1, loaded);
+            }
         }
-        else if (strategyType == Type.all || subjectChange) {
-            history.add(packet);
+        else if (strategyType == Type.all) {
+            add(packet, timestamp, subjectChange, -1, loaded);
         }
         else if (strategyType == Type.number) {
-            if (history.size() >= strategyMaxNumber) {
-                // We have to remove messages so the new message won't exceed
-                // the max history size
-                // This is complicated somewhat because we must skip over the
-                // last room subject
-                // message because we want to preserve the room subject if
-                // possible.
-                Iterator<Message> historyIter = history.iterator();
-                while (historyIter.hasNext() && history.size() > strategyMaxNumber) {
-                    if (historyIter.next() != roomSubject) {
-                        historyIter.remove();
-                    }
-                }
+            // The buffer drops the oldest messages so the new message won't exceed the max
+            // history size, but it preserves the last room subject message
+            add(packet, timestamp, subjectChange, strategyMaxNumber, loaded);
+        }
+        else if (subjectChange) {
+            add(packet, timestamp, true, -1, loaded);
+        }
+    }
+
+    private void add(Message packet, long timestamp, boolean subjectChange, int maxNumber, boolean loaded) {
+        if (loaded) {
+            history.addLoaded(packet, timestamp, subjectChange, maxNumber);
+        }
+        else {
+            history.add(packet, timestamp, subjectChange, maxNumber);
+        }
+    }
+
+    private static long getTimestamp(Message packet) {
+        Element delay = packet.getChildElement("delay", "urn:xmpp:delay");
+        if (delay != null && delay.attributeValue("stamp") != null) {
+            try {
+                return xmppDateTime.parseString(delay.attributeValue("stamp")).getTime();
             }
-            history.add(packet);
+            catch (Exception e) {
+                Log.debug("Error parsing date from historic message", e);
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of messages to load from the database to rebuild the history. That is
+     * the maximum number of messages of the strategy, -1 if all messages are kept or 0 if no
+     * messages are kept.
+     *
+     * @return the number of messages to load from the database.
+     */
+    int getLoadLimit() {
+        Type strategyType = type;
+        int strategyMaxNumber = maxNumber;
+        if (type == Type.defaulType && parent != null) {
+            strategyType = parent.getType();
+            strategyMaxNumber = parent.getMaxNumber();
+        }
+        if (strategyType == Type.number) {
+            return strategyMaxNumber;
         }
+        return strategyType == Type.all ? -1 : 0;
     }
 
     boolean isHistoryEnabled() {
@@ -228,10 +283,7 @@ public class HistoryStrategy {
      * @return An iterator of Message objects to be sent to the new room member.
      */
     public Iterator<Message> getMessageHistory(){
-        LinkedList<Message> list = new LinkedList<>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
-        return list.iterator();
+        return history.getMessages().iterator();
     }
 
     /**
@@ -242,12 +294,50 @@ public class HistoryStrategy {
      * @return A list iterator of Message objects positioned at the end of the list.
      */
     public ListIterator<Message> getReverseMessageHistory(){
-        LinkedList<Message> list = new LinkedList<>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
+        List<Message> list = history.getMessages();
         return list.listIterator(list.size());
     }
 
+    /**
+     * Obtain the newest messages of the history that meet all the specified limits. Messages
+     * without body and subject are skipped. The latest room subject change is always included.
+     *
+     * @param maxStanzas the maximum number of messages or -1 for no limit.
+     * @param maxChars the maximum number of characters of the messages or -1 for no limit.
+     * @param since the date of the oldest message to include or null for no limit.
+     * @return the messages to be sent to the new room member.
+     */
+    List<Message> getMessageHistory(int maxStanzas, int maxChars, Date since) {
+        return history.getMessages(maxStanzas, maxChars, since == null ? -1 : since.getTime());
+    }
+
+    /**
+     * Applies an update to every message of the history.
+     *
+     * @param updater the update to apply.
+     */
+    void updateMessageHistory(MessageUpdater updater) {
+        history.update(updater);
+    }
+
+    /**
+     * Returns the number of messages in the history.
+     *
+     * @return the number of messages in the history.
+     */
+    public int getMessageCount() {
+        return history.size();
+    }
+
+    /**
+     * Returns the number of bytes used by the serialized messages of the history.
+     *
+     * @return the number of bytes used by the history.
+     */
+    public long getHistorySize() {
+        return history.getSerializedSize();
+    }
+
     /**
      * Strategy type.
      */
@@ -307,7 +397,7 @@ public class HistoryStrategy {
      *         room's subject.
      */
     public boolean hasChangedSubject() {
-        return roomSubject != null;
+        return history.hasSubject();
     }
 
     /**
@@ -317,7 +407,7 @@ public class HistoryStrategy {
      * @return the latest room subject change or null if none exists yet.
      */
     public Message getChangedSubject() {
-        return roomSubject;
+        return history.getSubject();
     }
 
     /**
@@ -351,12 +441,16 @@ public class HistoryStrategy {
 		return JiveGlobals.getBooleanProperty("xmpp.muc.subject.change.strict", true);
 	}
 
-	private static class MessageComparator implements Comparator<Message> {
-        @Override
-        public int compare(Message o1, Message o2) {
-            String stamp1 = o1.getChildElement("delay", "urn:xmpp:delay").attributeValue("stamp");
-            String stamp2 = o2.getChildElement("delay", "urn:xmpp:delay").attributeValue("stamp");
-            return stamp1.compareTo(stamp2);
-        }
+    /**
+     * Update of the messages of the history.
+     */
+    interface MessageUpdater {
+
+        /**
+         * Updates a message of the history.
+         *
+         * @param message the message to update.
+         */
+        void update(Message message);
     }
 }
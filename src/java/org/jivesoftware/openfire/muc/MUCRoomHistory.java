@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire.muc;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.xmpp.packet.JID;
@@ -28,6 +29,7 @@ import org.xmpp.packet.Message;
 
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ListIterator;
 
 /**
@@ -44,6 +46,12 @@ public final class MUCRoomHistory {
 
     private boolean isNonAnonymousRoom;
 
+    /**
+     * The time of the oldest message to load from the database when the history is first
+     * needed, or -1 if the history does not need to be loaded.
+     */
+    private volatile long pendingLoadFrom = -1;
+
     public MUCRoomHistory(MUCRoom mucRoom, HistoryStrategy historyStrategy) {
         this.room = mucRoom;
         this.isNonAnonymousRoom = mucRoom.canAnyoneDiscoverJID();
@@ -71,6 +79,9 @@ public final class MUCRoomHistory {
             return;
         }
 
+        // Load the persisted history first, so the loaded messages can be merged with this one
+        loadPendingHistory();
+
         Message packetToAdd = packet.createCopy();
 
         // Check if the room has changed its configuration
@@ -78,24 +89,26 @@ public final class MUCRoomHistory {
             isNonAnonymousRoom = room.canAnyoneDiscoverJID();
             // Update the "from" attribute of the delay information in the history
             // TODO Make this update in a separate thread
-            for (Iterator<Message> it = getMessageHistory(); it.hasNext();) {
-                Message message = it.next();
-                Element delayElement = message.getChildElement("delay", "urn:xmpp:delay");
-                if (room.canAnyoneDiscoverJID()) {
-                    // Set the Full JID as the "from" attribute
-                    try {
-                        MUCRole role = room.getOccupant(message.getFrom().getResource());
-                        delayElement.addAttribute("from", role.getUserAddress().toString());
+            historyStrategy.updateMessageHistory(new HistoryStrategy.MessageUpdater() {
+                @Override
+                public void update(Message message) {
+                    Element delayElement = message.getChildElement("delay", "urn:xmpp:delay");
+                    if (room.canAnyoneDiscoverJID()) {
+                        // Set the Full JID as the "from" attribute
+                        try {
+                            MUCRole role = room.getOccupant(message.getFrom().getResource());
+                            delayElement.addAttribute("from", role.getUserAddress().toString());
+                        }
+                        catch (UserNotFoundException e) {
+                            // Ignore.
+                        }
                     }
-                    catch (UserNotFoundException e) {
-                        // Ignore.
+                    else {
+                        // Set the Room JID as the "from" attribute
+                        delayElement.addAttribute("from", message.getFrom().toString());
                     }
                 }
-                else {
-                    // Set the Room JID as the "from" attribute
-                    delayElement.addAttribute("from", message.getFrom().toString());
-                }
-            }
+            });
 
         }
 
@@ -117,10 +130,11 @@ public final class MUCRoomHistory {
             // Set the Room JID as the "from" attribute
             delayInformation.addAttribute("from", packet.getFrom().toString());
         }
-        historyStrategy.addMessage(packetToAdd);
+        historyStrategy.addMessage(packetToAdd, current.getTime());
     }
 
     public Iterator<Message> getMessageHistory() {
+        loadPendingHistory();
         return historyStrategy.getMessageHistory();
     }
 
@@ -132,13 +146,65 @@ public final class MUCRoomHistory {
      * @return A list iterator of Message objects positioned at the end of the list.
      */
     public ListIterator<Message> getReverseMessageHistory() {
+        loadPendingHistory();
         return historyStrategy.getReverseMessageHistory();
     }
 
+    /**
+     * Obtain the newest messages of the history that meet all the specified limits. The
+     * messages that are not returned are not parsed. The latest room subject change is
+     * always included.
+     *
+     * @param maxStanzas the maximum number of messages or -1 for no limit.
+     * @param maxChars the maximum number of characters of the messages or -1 for no limit.
+     * @param since the date of the oldest message to include or null for no limit.
+     * @return the messages ordered by the date they were sent.
+     */
+    public List<Message> getMessageHistory(int maxStanzas, int maxChars, Date since) {
+        loadPendingHistory();
+        return historyStrategy.getMessageHistory(maxStanzas, maxChars, since);
+    }
+
+    /**
+     * Defers loading the history of the room from the database until the history is first
+     * needed, which is usually when the first occupant joins the room or a message is added to
+     * the history.
+     *
+     * @param from the time of the oldest message to load.
+     */
+    public void setLoadPending(long from) {
+        this.pendingLoadFrom = from;
+    }
+
+    private void loadPendingHistory() {
+        if (pendingLoadFrom < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (pendingLoadFrom < 0) {
+                return;
+            }
+            // Only the messages that the strategy keeps need to be loaded
+            int maxRows = historyStrategy.getLoadLimit();
+            if (maxRows != 0 && room.isLogEnabled()) {
+                MUCPersistenceManager.loadHistory(room, pendingLoadFrom, maxRows);
+            }
+            // If the room does not include the last subject in the history then recreate one
+            // if possible
+            if (!historyStrategy.hasChangedSubject() && room.getSubject() != null &&
+                    room.getSubject().length() > 0) {
+                addOldMessage(room.getRole().getRoleAddress().toString(), null,
+                        room.getModificationDate(), room.getSubject(), null);
+            }
+            pendingLoadFrom = -1;
+        }
+    }
+
     /**
      * Creates a new message and adds it to the history. The new message will be created based on
      * the provided information. This information will likely come from the database when loading
-     * the room history from the database.
+     * the room history from the database. The message is ignored if it was already added to the
+     * history.
      *
      * @param senderJID the sender's JID of the message to add to the history.
      * @param nickname the sender's nickname of the message to add to the history.
@@ -175,7 +241,7 @@ public final class MUCRoomHistory {
             // Set the Room JID as the "from" attribute
             delayInformation.addAttribute("from", room.getRole().getRoleAddress().toString());
         }
-        historyStrategy.addMessage(message);
+        historyStrategy.addLoadedMessage(message, sentDate.getTime());
     }
 
     /**
@@ -186,6 +252,7 @@ public final class MUCRoomHistory {
      *         room's subject.
      */
     public boolean hasChangedSubject() {
+        loadPendingHistory();
         return historyStrategy.hasChangedSubject();
     }
 
@@ -196,6 +263,7 @@ public final class MUCRoomHistory {
      * @return the latest room subject change or null if none exists yet.
      */
     public Message getChangedSubject() {
+        loadPendingHistory();
         return historyStrategy.getChangedSubject();
     }
 
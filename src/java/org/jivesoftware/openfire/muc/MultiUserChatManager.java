@@ -45,6 +45,7 @@ import org.jivesoftware.openfire.muc.cluster.RoomInfo;
 import org.jivesoftware.openfire.muc.cluster.SeniorMemberServicesRequest;
 import org.jivesoftware.openfire.muc.cluster.ServiceInfo;
 import org.jivesoftware.openfire.muc.cluster.ServiceUpdatedEvent;
+import org.jivesoftware.openfire.muc.spi.ConversationLogWriter;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRoom;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
 import org.jivesoftware.openfire.muc.spi.MUCServicePropertyEventListener;
@@ -89,6 +90,9 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
     private static final String incomingStatKey = "muc_incoming";
     private static final String outgoingStatKey = "muc_outgoing";
     private static final String trafficStatGroup = "muc_traffic";
+    private static final String logLagStatKey = "muc_log_lag";
+    private static final String logWrittenStatKey = "muc_log_written";
+    private static final String logDroppedStatKey = "muc_log_dropped";
 
     private ConcurrentHashMap<String,MultiUserChatService> mucServices = new ConcurrentHashMap<>();
 
@@ -118,6 +122,7 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         addTotalConnectedUsers();
         addNumberIncomingMessages();
         addNumberOutgoingMessages();
+        addConversationLogStats();
 
         ClusterManager.addListener(this);
         UserEventDispatcher.addListener(this);
@@ -139,6 +144,9 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().removeStatistic(usersStatKey);
         StatisticsManager.getInstance().removeStatistic(incomingStatKey);
         StatisticsManager.getInstance().removeStatistic(outgoingStatKey);
+        StatisticsManager.getInstance().removeStatistic(logLagStatKey);
+        StatisticsManager.getInstance().removeStatistic(logWrittenStatKey);
+        StatisticsManager.getInstance().removeStatistic(logDroppedStatKey);
 
         for (MultiUserChatService service : mucServices.values()) {
             unregisterMultiUserChatService(service.getServiceName());
@@ -779,6 +787,100 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().addMultiStatistic(outgoingStatKey, trafficStatGroup, statistic);
     }
 
+    private void addConversationLogStats() {
+        StatisticsManager.getInstance().addStatistic(logLagStatKey, new ConversationLogStatistic("log_lag", Statistic.Type.count) {
+            @Override
+            public double sample() {
+                long lag = 0;
+                for (ConversationLogWriter writer : getConversationLogWriters()) {
+                    lag = Math.max(lag, writer.getLag());
+                }
+                return lag;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(logWrittenStatKey, new ConversationLogStatistic("log_written", Statistic.Type.rate) {
+            private long last;
+
+            @Override
+            public synchronized double sample() {
+                long written = 0;
+                for (ConversationLogWriter writer : getConversationLogWriters()) {
+                    written += writer.getWrittenCount();
+                }
+                long delta = Math.max(0, written - last);
+                last = written;
+                return delta;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(logDroppedStatKey, new ConversationLogStatistic("log_dropped", Statistic.Type.rate) {
+            private long last;
+
+            @Override
+            public synchronized double sample() {
+                long dropped = 0;
+                for (ConversationLogWriter writer : getConversationLogWriters()) {
+                    dropped += writer.getDroppedCount();
+                }
+                long delta = Math.max(0, dropped - last);
+                last = dropped;
+                return delta;
+            }
+        });
+    }
+
+    private List<ConversationLogWriter> getConversationLogWriters() {
+        List<ConversationLogWriter> writers = new ArrayList<>();
+        for (MultiUserChatService service : getMultiUserChatServices()) {
+            if (service instanceof MultiUserChatServiceImpl) {
+                ConversationLogWriter writer = ((MultiUserChatServiceImpl) service).getConversationLogWriter();
+                if (writer != null) {
+                    writers.add(writer);
+                }
+            }
+        }
+        return writers;
+    }
+
+    /**
+     * Base class of the statistics about the conversation logs of the local services.
+     */
+    private static abstract class ConversationLogStatistic implements Statistic {
+
+        private final String key;
+        private final Type type;
+
+        ConversationLogStatistic(String key, Type type) {
+            this.key = key;
+            this.type = type;
+        }
+
+        @Override
+        public String getName() {
+            return LocaleUtils.getLocalizedString("muc.stats." + key + ".name");
+        }
+
+        @Override
+        public Type getStatType() {
+            return type;
+        }
+
+        @Override
+        public String getDescription() {
+            return LocaleUtils.getLocalizedString("muc.stats." + key + ".description");
+        }
+
+        @Override
+        public String getUnits() {
+            return LocaleUtils.getLocalizedString("muc.stats." + key + ".label");
+        }
+
+        @Override
+        public boolean isPartialSample() {
+            // Each cluster node writes the conversation log of its own rooms
+            return true;
+        }
+    }
+
     // Cluster management tasks
     @Override
     public void joinedCluster() {
@@ -66,6 +66,25 @@ class ConversationLogEntry {
         this.nickname = message.getFrom().getResource();
     }
 
+    /**
+     * Creates a new ConversationLogEntry from the values of an entry that was logged before.
+     *
+     * @param date the date when the message was sent to the room.
+     * @param roomID the ID of the room that received the message.
+     * @param sender the real XMPPAddress of the sender.
+     * @param nickname the nickname of the sender in the room.
+     * @param subject the subject of the message.
+     * @param body the body of the message.
+     */
+    ConversationLogEntry(Date date, long roomID, JID sender, String nickname, String subject, String body) {
+        this.date = date;
+        this.roomID = roomID;
+        this.sender = sender;
+        this.nickname = nickname;
+        this.subject = subject;
+        this.body = body;
+    }
+
     /**
      * Returns the body of the logged message.
      * 
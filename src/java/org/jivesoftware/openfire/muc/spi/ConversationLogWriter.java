@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Writes the conversation log of the rooms of a MUC service to the database. Entries are
+ * queued and written in JDBC batches, one transaction per batch. The queue is flushed when it
+ * holds a full batch and otherwise on an interval that shortens as the queue fills up, so busy
+ * services write continuously while idle services write rarely.<p>
+ *
+ * The queue is bounded. When it's full the {@link OverflowPolicy} decides whether the sender
+ * waits for room in the queue, the entry is dropped or the entry is appended to a journal
+ * file. Journaled entries are written to the database once the queue has been drained.
+ */
+public class ConversationLogWriter {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversationLogWriter.class);
+
+    /**
+     * Shortest time between two flushes of a partially filled queue.
+     */
+    private static final long MIN_FLUSH_INTERVAL = 100;
+
+    /**
+     * What to do with an entry when the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * The sender waits until there is room in the queue. The entry is dropped if there is
+         * still no room after the block timeout.
+         */
+        block,
+
+        /**
+         * The entry is dropped.
+         */
+        drop,
+
+        /**
+         * The entry is appended to a journal file and written to the database later.
+         */
+        spill;
+
+        /**
+         * Returns the policy of the specified name or {@link #block} if there is no such policy.
+         *
+         * @param name the name of the policy.
+         * @return the policy of the specified name.
+         */
+        public static OverflowPolicy fromString(String name) {
+            if (name != null) {
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(name.trim())) {
+                        return policy;
+                    }
+                }
+            }
+            return block;
+        }
+    }
+
+    private final BlockingQueue<ConversationLogEntry> queue;
+    private final File journal;
+    /**
+     * Entries that could not be written. They are retried before the queued entries.
+     */
+    private final List<ConversationLogEntry> failed = new ArrayList<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Object journalLock = new Object();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private volatile int batchSize;
+    private volatile long flushInterval;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.block;
+    private volatile long blockTimeout = 1000;
+    private volatile boolean running;
+    private TimerTask flushTask;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile long oldestFailed = -1;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushRequested.set(false);
+            try {
+                flush();
+            }
+            catch (Throwable e) {
+                Log.error("Error writing the conversation log", e);
+            }
+        }
+    };
+
+    /**
+     * Creates a writer of the conversation log of a MUC service.
+     *
+     * @param serviceName the subdomain of the MUC service.
+     * @param capacity the maximum number of queued entries.
+     * @param batchSize the number of entries to write per batch.
+     * @param flushInterval the longest time in milliseconds between writes.
+     */
+    public ConversationLogWriter(String serviceName, int capacity, int batchSize, long flushInterval) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = flushInterval;
+        this.journal = new File(JiveGlobals.getHomeDirectory() + File.separator + "logs",
+                "muc-" + serviceName + "-conversation.journal");
+    }
+
+    /**
+     * Starts writing the queued entries, including the entries journaled while the service
+     * was stopped.
+     */
+    public synchronized void start() {
+        running = true;
+        scheduleFlush(flushInterval);
+    }
+
+    /**
+     * Stops the periodic writes and writes all queued entries.
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            if (flushTask != null) {
+                TaskEngine.getInstance().cancelScheduledTask(flushTask);
+                flushTask = null;
+            }
+        }
+        flushLock.lock();
+        try {
+            flush();
+            List<ConversationLogEntry> remaining = new ArrayList<>(failed);
+            queue.drainTo(remaining);
+            if (!remaining.isEmpty()) {
+                if (overflowPolicy == OverflowPolicy.spill) {
+                    spill(remaining);
+                }
+                else {
+                    Log.error("Unable to write " + remaining.size() + " conversation log entries");
+                    dropped.addAndGet(remaining.size());
+                }
+            }
+            failed.clear();
+            oldestFailed = -1;
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Queues an entry to be written to the database.
+     *
+     * @param entry the entry to write.
+     */
+    void add(ConversationLogEntry entry) {
+        if (!queue.offer(entry)) {
+            switch (overflowPolicy) {
+                case block:
+                    try {
+                        if (!queue.offer(entry, blockTimeout, TimeUnit.MILLISECONDS)) {
+                            drop(entry);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        drop(entry);
+                    }
+                    break;
+                case spill:
+                    spill(Collections.singletonList(entry));
+                    break;
+                default:
+                    drop(entry);
+            }
+        }
+        if (queue.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Writes the entries that are queued when the flush starts. Entries that could not be
+     * written are retried by the next flush. The journal is written once the queue is empty.
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            int pending = failed.size() + queue.size();
+            List<ConversationLogEntry> batch = new ArrayList<>(batchSize);
+            while (pending > 0) {
+                batch.clear();
+                for (int i = 0; i < failed.size() && batch.size() < batchSize; i++) {
+                    batch.add(failed.get(i));
+                }
+                failed.subList(0, batch.size()).clear();
+                queue.drainTo(batch, batchSize - batch.size());
+                if (batch.isEmpty()) {
+                    break;
+                }
+                pending -= batch.size();
+                if (!write(batch)) {
+                    // Stop writing until the next flush since the database is not available
+                    break;
+                }
+            }
+            oldestFailed = failed.isEmpty() ? -1 : failed.get(0).getDate().getTime();
+            if (failed.isEmpty() && queue.isEmpty()) {
+                replayJournal();
+            }
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch. If the batch fails the entries are written one by one so an entry that
+     * can't be written does not hold back the others.
+     *
+     * @return false if the database seems to be unavailable.
+     */
+    private boolean write(List<ConversationLogEntry> batch) {
+        if (MUCPersistenceManager.saveConversationLogEntries(batch)) {
+            written.addAndGet(batch.size());
+            return true;
+        }
+        boolean anyWritten = false;
+        for (int i = 0; i < batch.size(); i++) {
+            ConversationLogEntry entry = batch.get(i);
+            if (MUCPersistenceManager.saveConversationLogEntry(entry)) {
+                written.incrementAndGet();
+                anyWritten = true;
+            }
+            else if (!anyWritten) {
+                // Not even the first entry could be written; retry the batch later
+                failed.addAll(batch.subList(i, batch.size()));
+                return false;
+            }
+            else {
+                failed.add(entry);
+            }
+        }
+        return true;
+    }
+
+    private void drop(ConversationLogEntry entry) {
+        if (dropped.getAndIncrement() % 1000 == 0) {
+            Log.warn("The conversation log queue is full; dropped " + dropped.get() + " entries so far");
+        }
+    }
+
+    private void requestFlush() {
+        if (running && flushRequested.compareAndSet(false, true)) {
+            TaskEngine.getInstance().submit(flushRunnable);
+        }
+    }
+
+    private synchronized void scheduleFlush(long delay) {
+        if (!running) {
+            return;
+        }
+        flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                }
+                catch (Throwable e) {
+                    Log.error("Error writing the conversation log", e);
+                }
+                finally {
+                    scheduleFlush(getNextFlushDelay());
+                }
+            }
+        };
+        TaskEngine.getInstance().schedule(flushTask, delay);
+    }
+
+    /**
+     * Returns the time until the next flush. The interval shortens as the queue fills up
+     * and is the flush interval when the queue is empty.
+     */
+    long getNextFlushDelay() {
+        int depth = getQueueDepth();
+        if (depth == 0) {
+            return flushInterval;
+        }
+        double fill = Math.min(1.0, (double) depth / batchSize);
+        return Math.max(MIN_FLUSH_INTERVAL, (long) (flushInterval * (1.0 - fill)));
+    }
+
+    /**
+     * Appends entries to the journal.
+     */
+    private void spill(List<ConversationLogEntry> entries) {
+        synchronized (journalLock) {
+            journal.getParentFile().mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(journal, true)))) {
+                for (ConversationLogEntry entry : entries) {
+                    out.writeLong(entry.getDate().getTime());
+                    out.writeLong(entry.getRoomID());
+                    writeString(out, entry.getSender().toString());
+                    writeString(out, entry.getNickname());
+                    writeString(out, entry.getSubject());
+                    writeString(out, entry.getBody());
+                }
+                spilled.addAndGet(entries.size());
+            }
+            catch (IOException e) {
+                Log.error("Unable to journal " + entries.size() + " conversation log entries", e);
+                dropped.addAndGet(entries.size());
+            }
+        }
+    }
+
+    /**
+     * Writes the journaled entries to the database. Entries that can't be written go back to
+     * the journal.
+     */
+    private void replayJournal() {
+        File replay = new File(journal.getPath() + ".replay");
+        synchronized (journalLock) {
+            if (!replay.exists()) {
+                if (!journal.exists()) {
+                    return;
+                }
+                if (!journal.renameTo(replay)) {
+                    Log.error("Unable to replay the conversation log journal " + journal);
+                    return;
+                }
+            }
+        }
+        List<ConversationLogEntry> unwritten = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(replay)))) {
+            List<ConversationLogEntry> batch = new ArrayList<>(batchSize);
+            boolean available = true;
+            while (true) {
+                ConversationLogEntry entry;
+                try {
+                    entry = new ConversationLogEntry(new Date(in.readLong()), in.readLong(),
+                            new JID(readString(in)), readString(in), readString(in), readString(in));
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                batch.add(entry);
+                if (batch.size() == batchSize) {
+                    available = replay(batch, available, unwritten);
+                }
+            }
+            replay(batch, available, unwritten);
+        }
+        catch (IOException e) {
+            Log.error("Error reading the conversation log journal " + replay, e);
+        }
+        if (!unwritten.isEmpty()) {
+            spilled.addAndGet(-unwritten.size());
+            spill(unwritten);
+        }
+        if (!replay.delete()) {
+            Log.warn("Unable to delete the conversation log journal " + replay);
+        }
+    }
+
+    private boolean replay(List<ConversationLogEntry> batch, boolean available,
+            List<ConversationLogEntry> unwritten) {
+        if (batch.isEmpty()) {
+            return available;
+        }
+        if (available && MUCPersistenceManager.saveConversationLogEntries(batch)) {
+            written.addAndGet(batch.size());
+            spilled.addAndGet(-batch.size());
+        }
+        else {
+            unwritten.addAll(batch);
+            available = false;
+        }
+        batch.clear();
+        return available;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the longest time between writes. Takes effect after the next write.
+     *
+     * @param flushInterval the longest time in milliseconds between writes.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets how long senders wait for room in the queue when the block policy is used.
+     *
+     * @param blockTimeout the time in milliseconds to wait.
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * Returns the number of entries waiting to be written, excluding journaled entries.
+     *
+     * @return the number of entries waiting to be written.
+     */
+    public int getQueueDepth() {
+        return queue.size() + failed.size();
+    }
+
+    /**
+     * Returns how long ago the oldest entry that is waiting to be written was logged, excluding
+     * journaled entries.
+     *
+     * @return the lag of the conversation log in milliseconds.
+     */
+    public long getLag() {
+        long oldest = oldestFailed;
+        if (oldest < 0) {
+            ConversationLogEntry entry = queue.peek();
+            if (entry == null) {
+                return 0;
+            }
+            oldest = entry.getDate().getTime();
+        }
+        return Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Returns the number of entries written to the database.
+     *
+     * @return the number of entries written.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of entries that were dropped.
+     *
+     * @return the number of entries dropped.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of entries in the journal.
+     *
+     * @return the number of journaled entries.
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+}
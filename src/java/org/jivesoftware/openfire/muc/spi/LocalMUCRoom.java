@@ -37,7 +37,10 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.dom4j.Element;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.BroadcastManager;
 import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.SerializedMessage;
+import org.jivesoftware.openfire.SerializedPresence;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.cluster.NodeID;
@@ -1215,32 +1218,29 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
     }
 
     public void broadcast(BroadcastPresenceRequest presenceRequest) {
-        String jid = null;
         Presence presence = presenceRequest.getPresence();
         JID to = presence.getTo();
-        Element frag = presence.getChildElement("x", "http://jabber.org/protocol/muc#user");
+        // The presence is serialized once for the moderators and once for the other occupants.
         // Don't include the occupant's JID if the room is semi-anon and the new occupant
         // is not a moderator
+        SerializedPresence moderatorPresence = new SerializedPresence(presence);
+        SerializedPresence occupantPresence = moderatorPresence;
         if (!canAnyoneDiscoverJID()) {
-            jid = frag.element("item").attributeValue("jid");
+            Presence anonymous = presence.createCopy();
+            anonymous.getChildElement("x", "http://jabber.org/protocol/muc#user").element("item")
+                    .addAttribute("jid", null);
+            occupantPresence = new SerializedPresence(anonymous);
         }
+        List<MUCRole> moderators = new ArrayList<>();
+        List<MUCRole> occupants = new ArrayList<>(occupantsByFullJID.size());
         for (MUCRole occupant : occupantsByFullJID.values()) {
             if (!occupant.isLocal()) {
                 continue;
             }
-            // Don't include the occupant's JID if the room is semi-anon and the new occupant
-            // is not a moderator
-            if (!canAnyoneDiscoverJID()) {
-                if (MUCRole.Role.moderator == occupant.getRole()) {
-                    frag.element("item").addAttribute("jid", jid);
-                }
-                else {
-                    frag.element("item").addAttribute("jid", null);
-                }
-            }
+            boolean moderator = MUCRole.Role.moderator == occupant.getRole();
             // Some status codes should only be included in the "self-presence", which is only sent to the user, but not to other occupants.
             if (occupant.getPresence().getFrom().equals(to)) {
-                Presence selfPresence = presence.createCopy();
+                Presence selfPresence = (moderator ? moderatorPresence : occupantPresence).createCopy();
                 Element fragSelfPresence = selfPresence.getChildElement("x", "http://jabber.org/protocol/muc#user");
                 fragSelfPresence.addElement("status").addAttribute("code", "110");
 
@@ -1259,10 +1259,14 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
                 }
 
                 occupant.send(selfPresence);
+            } else if (moderator) {
+                moderators.add(occupant);
             } else {
-                occupant.send(presence);
+                occupants.add(occupant);
             }
         }
+        send(moderatorPresence, moderators);
+        send(occupantPresence, occupants);
     }
 
     private void broadcast(Message message) {
@@ -1281,13 +1285,15 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         // Add message to the room history
         roomHistory.addMessage(message);
         // Send message to occupants connected to this JVM
+        List<MUCRole> recipients = new ArrayList<>(occupantsByFullJID.size());
         for (MUCRole occupant : occupantsByFullJID.values()) {
             // Do not send broadcast messages to deaf occupants or occupants hosted in
             // other cluster nodes
             if (occupant.isLocal() && !occupant.isVoiceOnly()) {
-                occupant.send(message);
+                recipients.add(occupant);
             }
         }
+        send(new SerializedMessage(message), recipients);
         if (messageRequest.isOriginator() && isLogEnabled()) {
             MUCRole senderRole = null;
             JID senderAddress;
@@ -1311,6 +1317,55 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         mucService.messageBroadcastedTo(messageRequest.getOccupants());
     }
 
+    /**
+     * Sends a message to local occupants. Every occupant gets its own instance of the message,
+     * addressed to the occupant, that shares the element and the serialization of the message.
+     *
+     * @param message the message to send.
+     * @param occupants the local occupants that will receive the message.
+     */
+    private void send(final SerializedMessage message, List<MUCRole> occupants) {
+        deliver(occupants, new BroadcastManager.Delivery<MUCRole>() {
+            @Override
+            public void deliver(MUCRole occupant) {
+                occupant.send(new SerializedMessage(message));
+            }
+        });
+    }
+
+    /**
+     * Sends a presence to local occupants. Every occupant gets its own instance of the presence,
+     * addressed to the occupant, that shares the element and the serialization of the presence.
+     *
+     * @param presence the presence to send.
+     * @param occupants the local occupants that will receive the presence.
+     */
+    private void send(final SerializedPresence presence, List<MUCRole> occupants) {
+        deliver(occupants, new BroadcastManager.Delivery<MUCRole>() {
+            @Override
+            public void deliver(MUCRole occupant) {
+                occupant.send(new SerializedPresence(presence));
+            }
+        });
+    }
+
+    /**
+     * Delivers a stanza to local occupants. Occupants of large rooms are processed in parallel
+     * shards by the broadcast manager. This method returns once every occupant was processed,
+     * so stanzas sent to the room by the same thread reach the occupants in order.
+     */
+    private static void deliver(List<MUCRole> occupants, BroadcastManager.Delivery<MUCRole> delivery) {
+        BroadcastManager broadcastManager = XMPPServer.getInstance().getBroadcastManager();
+        if (broadcastManager != null) {
+            broadcastManager.deliver(occupants, delivery);
+        }
+        else {
+            for (MUCRole occupant : occupants) {
+                delivery.deliver(occupant);
+            }
+        }
+    }
+
     /**
      * An empty role that represents the room itself in the chatroom. Chatrooms need to be able to
      * speak (server messages) and so must have their own role in the chatroom.
@@ -70,7 +70,7 @@ public class MUCPersistenceManager {
         "SELECT jid, nickname FROM ofMucMember WHERE roomID=?";
     private static final String LOAD_HISTORY =
         "SELECT sender, nickname, logTime, subject, body FROM ofMucConversationLog " +
-        "WHERE logTime>? AND roomID=? AND (nickname IS NOT NULL OR subject IS NOT NULL) ORDER BY logTime";
+        "WHERE logTime>? AND roomID=? AND (nickname IS NOT NULL OR subject IS NOT NULL) ORDER BY logTime DESC";
     private static final String LOAD_ALL_ROOMS =
         "SELECT roomID, creationDate, modificationDate, name, naturalName, description, " +
         "lockedDate, emptyDate, canChangeSubject, maxUsers, publicRoom, moderated, membersOnly, " +
@@ -83,12 +83,6 @@ public class MUCPersistenceManager {
     private static final String LOAD_ALL_MEMBERS =
         "SELECT ofMucMember.roomID,ofMucMember.jid,ofMucMember.nickname FROM ofMucMember,ofMucRoom " +
         "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=?";
-    private static final String LOAD_ALL_HISTORY =
-        "SELECT ofMucConversationLog.roomID, ofMucConversationLog.sender, ofMucConversationLog.nickname, " +
-        "ofMucConversationLog.logTime, ofMucConversationLog.subject, ofMucConversationLog.body FROM " +
-        "ofMucConversationLog, ofMucRoom WHERE ofMucConversationLog.roomID = ofMucRoom.roomID AND " +
-        "ofMucRoom.serviceID=? AND ofMucConversationLog.logTime>? AND (ofMucConversationLog.nickname IS NOT NULL " +
-        "OR ofMucConversationLog.subject IS NOT NULL) ORDER BY ofMucConversationLog.logTime";
     private static final String UPDATE_ROOM =
         "UPDATE ofMucRoom SET modificationDate=?, naturalName=?, description=?, " +
         "canChangeSubject=?, maxUsers=?, publicRoom=?, moderated=?, membersOnly=?, " +
@@ -225,35 +219,11 @@ public class MUCPersistenceManager {
             room.setPersistent(true);
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
-            // Recreate the history only for the rooms that have the conversation logging
-            // enabled
-            if (room.isLogEnabled()) {
-                pstmt = con.prepareStatement(LOAD_HISTORY);
-                // Reload the history, using "muc.history.reload.limit" (days); defaults to 2
-                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
-                long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
-                pstmt.setString(1, StringUtils.dateToMillis(new Date(from)));
-                pstmt.setLong(2, room.getID());
-                rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    String senderJID = rs.getString(1);
-                    String nickname = rs.getString(2);
-                    Date sentDate = new Date(Long.parseLong(rs.getString(3).trim()));
-                    String subject = rs.getString(4);
-                    String body = rs.getString(5);
-                    room.getRoomHistory().addOldMessage(senderJID, nickname, sentDate, subject,
-                            body);
-                }
-            }
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
-
-            // If the room does not include the last subject in the history then recreate one if
-            // possible
-            if (!room.getRoomHistory().hasChangedSubject() && room.getSubject() != null &&
-                    room.getSubject().length() > 0) {
-                room.getRoomHistory().addOldMessage(room.getRole().getRoleAddress().toString(),
-                        null, room.getModificationDate(), room.getSubject(), null);
-            }
+            // Recreate the history when it's first needed, using "muc.history.reload.limit"
+            // (days); defaults to 2
+            int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
+            long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+            room.getRoomHistory().setLoadPending(from);
 
             pstmt = con.prepareStatement(LOAD_AFFILIATIONS);
             pstmt.setLong(1, room.getID());
@@ -443,7 +413,7 @@ public class MUCPersistenceManager {
         final Map<Long, LocalMUCRoom> rooms;
         try {
             rooms = loadRooms(serviceID, emptyDate, chatserver, packetRouter);
-            loadHistory(serviceID, rooms);
+            setHistoryLoadPending(rooms);
             loadAffiliations(serviceID, rooms);
             loadMembers(serviceID, rooms);
         }
@@ -534,62 +504,64 @@ public class MUCPersistenceManager {
         return rooms;
     }
 
-    private static void loadHistory(Long serviceID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
-        Connection connection = null;
-        PreparedStatement statement = null;
-        ResultSet resultSet = null;
+    /**
+     * Defers loading the history of the rooms until the history of each room is first needed.
+     * Loading the history of all rooms at startup takes long and keeps the history of rooms
+     * that nobody joins in memory.
+     */
+    private static void setHistoryLoadPending(Map<Long, LocalMUCRoom> rooms) {
+        // Reload the history, using "muc.history.reload.limit" (days) if present
+        long from = 0;
+        String reloadLimit = JiveGlobals.getProperty(MUC_HISTORY_RELOAD_LIMIT);
+        if (reloadLimit != null) {
+            // if the property is defined, but not numeric, default to 2 (days)
+            int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
+            Log.warn("MUC history reload limit set to " + reloadLimitDays + " days");
+            from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+        }
+        for (LocalMUCRoom room : rooms.values()) {
+            room.getRoomHistory().setLoadPending(from);
+        }
+    }
+
+    /**
+     * Loads the newest messages of the conversation log of a room into the history of the room.
+     *
+     * @param room the room whose history to load.
+     * @param from the time of the oldest message to load.
+     * @param maxRows the maximum number of messages to load or -1 to load all messages.
+     */
+    public static void loadHistory(MUCRoom room, long from, int maxRows) {
+        List<String[]> messages = new ArrayList<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
         try {
-            connection = DbConnectionManager.getConnection();
-            statement = connection.prepareStatement(LOAD_ALL_HISTORY);
-
-            // Reload the history, using "muc.history.reload.limit" (days) if present
-            long from = 0;
-            String reloadLimit = JiveGlobals.getProperty(MUC_HISTORY_RELOAD_LIMIT);
-            if (reloadLimit != null) {
-                // if the property is defined, but not numeric, default to 2 (days)
-                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
-                Log.warn("MUC history reload limit set to " + reloadLimitDays + " days");
-                from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_HISTORY);
+            if (maxRows > 0) {
+                DbConnectionManager.setMaxRows(pstmt, maxRows);
             }
-            statement.setLong(1, serviceID);
-            statement.setString(2, StringUtils.dateToMillis(new Date(from)));
-            resultSet = statement.executeQuery();
-
-            while (resultSet.next()) {
-                try {
-                    LocalMUCRoom room = rooms.get(resultSet.getLong(1));
-                    // Skip to the next position if the room does not exist or if history is disabled
-                    if (room == null || !room.isLogEnabled()) {
-                        continue;
-                    }
-                    String senderJID = resultSet.getString(2);
-                    String nickname  = resultSet.getString(3);
-                    Date sentDate    = new Date(Long.parseLong(resultSet.getString(4).trim()));
-                    String subject   = resultSet.getString(5);
-                    String body      = resultSet.getString(6);
-                    room.getRoomHistory().addOldMessage(senderJID, nickname, sentDate, subject, body);
-                } catch (SQLException e) {
-                    Log.warn("A database exception prevented the history for one particular MUC room to be loaded from the database.", e);
-                }
+            pstmt.setString(1, StringUtils.dateToMillis(new Date(from)));
+            pstmt.setLong(2, room.getID());
+            rs = pstmt.executeQuery();
+            // The newest messages come first
+            while (rs.next() && (maxRows < 0 || messages.size() < maxRows)) {
+                messages.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3).trim(),
+                        rs.getString(4), rs.getString(5)});
             }
-        } finally {
-            DbConnectionManager.closeConnection(resultSet, statement, connection);
         }
-
-        // Add the last known room subject to the room history only for those rooms that still
-        // don't have in their histories the last room subject
-        for (MUCRoom loadedRoom : rooms.values())
-        {
-            if (!loadedRoom.getRoomHistory().hasChangedSubject()
-                && loadedRoom.getSubject() != null
-                && loadedRoom.getSubject().length() > 0)
-            {
-                loadedRoom.getRoomHistory().addOldMessage(  loadedRoom.getRole().getRoleAddress().toString(),
-                                                            null,
-                                                            loadedRoom.getModificationDate(),
-                                                            loadedRoom.getSubject(),
-                                                            null);
-            }
+        catch (SQLException e) {
+            Log.warn("A database exception prevented the history for MUC room " + room.getName() +
+                    " to be loaded from the database.", e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            String[] message = messages.get(i);
+            room.getRoomHistory().addOldMessage(message[0], message[1],
+                    new Date(Long.parseLong(message[2])), message[3], message[4]);
         }
     }
 
@@ -1025,12 +997,7 @@ public class MUCPersistenceManager {
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
-            pstmt.setLong(1, entry.getRoomID());
-            pstmt.setString(2, entry.getSender().toString());
-            pstmt.setString(3, entry.getNickname());
-            pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
-            pstmt.setString(5, entry.getSubject());
-            pstmt.setString(6, entry.getBody());
+            setConversationLogEntry(pstmt, entry);
             pstmt.executeUpdate();
             return true;
         }
@@ -1043,6 +1010,57 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves conversation log entries to the database in one transaction. The entries are sent
+     * as a JDBC batch if the database supports batch updates. Either all entries are saved or
+     * none is saved.
+     *
+     * @param entries the entries to save.
+     * @return true if the entries were saved.
+     */
+    public static boolean saveConversationLogEntries(List<ConversationLogEntry> entries) {
+        boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
+            for (ConversationLogEntry entry : entries) {
+                setConversationLogEntry(pstmt, entry);
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.warn("Error saving " + entries.size() + " conversation log entries", sqle);
+            abortTransaction = true;
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeStatement(pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    private static void setConversationLogEntry(PreparedStatement pstmt, ConversationLogEntry entry)
+            throws SQLException {
+        pstmt.setLong(1, entry.getRoomID());
+        pstmt.setString(2, entry.getSender().toString());
+        pstmt.setString(3, entry.getNickname());
+        pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
+        pstmt.setString(5, entry.getSubject());
+        pstmt.setString(6, entry.getBody());
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
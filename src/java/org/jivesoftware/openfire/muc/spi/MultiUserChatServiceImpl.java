@@ -28,13 +28,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -131,9 +129,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private int log_batch_size = 50;
     /**
-     * Task that flushes room conversation logs to the database.
+     * Writes the room conversation logs to the database.
      */
-    private LogConversationTask logConversationTask;
+    private ConversationLogWriter logWriter;
     /**
      * the chat service's hostname (subdomain)
      */
@@ -211,11 +209,6 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private GroupAwareList<JID> sysadmins = new ConcurrentGroupList<>();
 
-    /**
-     * Queue that holds the messages to log for the rooms that need to log their conversations.
-     */
-    private Queue<ConversationLogEntry> logQueue = new LinkedBlockingQueue<>(100000);
-
     /**
      * Max number of hours that a persistent room may be empty before the service removes the
      * room from memory. Unloaded rooms will exist in the database and may be loaded by a user
@@ -545,49 +538,6 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
-    /**
-     * Logs the conversation of the rooms that have this feature enabled.
-     */
-    private class LogConversationTask extends TimerTask {
-        @Override
-		public void run() {
-            try {
-                logConversation();
-            }
-            catch (Throwable e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-            }
-        }
-    }
-
-    private void logConversation() {
-        ConversationLogEntry entry;
-        boolean success;
-        for (int index = 0; index <= log_batch_size && !logQueue.isEmpty(); index++) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                success = MUCPersistenceManager.saveConversationLogEntry(entry);
-                if (!success) {
-                    logQueue.add(entry);
-                }
-            }
-        }
-    }
-
-    /**
-     * Logs all the remaining conversation log entries to the database. Use this method to force
-     * saving all the conversation log entries before the service becomes unavailable.
-     */
-    private void logAllConversation() {
-        ConversationLogEntry entry;
-        while (!logQueue.isEmpty()) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                MUCPersistenceManager.saveConversationLogEntry(entry);
-            }
-        }
-    }
-
     /**
      * Removes from memory rooms that have been without activity for a period of time. A room is
      * considered without activity when no occupants are present in the room for a while.
@@ -917,14 +867,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         if (this.log_timeout == timeout) {
             return;
         }
-        // Cancel the existing task because the timeout has changed
-        if (logConversationTask != null) {
-            logConversationTask.cancel();
-        }
         this.log_timeout = timeout;
-        // Create a new task and schedule it with the new timeout
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        logWriter.setFlushInterval(timeout);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.timeout", Integer.toString(timeout));
     }
@@ -940,6 +884,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             return;
         }
         this.log_batch_size = size;
+        logWriter.setBatchSize(size);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.batchsize", Integer.toString(size));
     }
@@ -949,6 +894,15 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return log_batch_size;
     }
 
+    /**
+     * Returns the writer of the conversation logs of the rooms of this service.
+     *
+     * @return the writer of the conversation logs.
+     */
+    public ConversationLogWriter getConversationLogWriter() {
+        return logWriter;
+    }
+
     @Override
     public Collection<JID> getUsersAllowedToCreate() {
         return Collections.unmodifiableCollection(allowedToCreate);
@@ -1215,6 +1169,35 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property tasks.log.batchsize for service "+chatServiceName, e);
             }
         }
+        if (logWriter == null) {
+            // The capacity of the queue can't be changed while the service is running
+            int queueSize = 100000;
+            value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.queuesize");
+            if (value != null) {
+                try {
+                    queueSize = Integer.parseInt(value);
+                }
+                catch (NumberFormatException e) {
+                    Log.error("Wrong number format of property tasks.log.queuesize for service "+chatServiceName, e);
+                }
+            }
+            logWriter = new ConversationLogWriter(chatServiceName, queueSize, log_batch_size, log_timeout);
+        }
+        else {
+            logWriter.setBatchSize(log_batch_size);
+            logWriter.setFlushInterval(log_timeout);
+        }
+        logWriter.setOverflowPolicy(ConversationLogWriter.OverflowPolicy.fromString(
+                MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.overflow")));
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.blocktimeout");
+        if (value != null) {
+            try {
+                logWriter.setBlockTimeout(Long.parseLong(value));
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property tasks.log.blocktimeout for service "+chatServiceName, e);
+            }
+        }
         value = MUCPersistenceManager.getProperty(chatServiceName, "unload.empty_days");
         emptyLimit = 30 * 24;
         if (value != null) {
@@ -1235,10 +1218,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         // values)
         userTimeoutTask = new UserTimeoutTask();
         TaskEngine.getInstance().schedule(userTimeoutTask, user_timeout, user_timeout);
-        // Log the room conversations every 5 minutes after a 5 minutes server startup delay
-        // (default values)
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // Log the room conversations at least every 5 minutes (default value) and more often
+        // while there are many messages to log
+        logWriter.start();
         // Remove unused rooms from memory
         cleanupTask = new CleanupTask();
         TaskEngine.getInstance().schedule(cleanupTask, CLEANUP_FREQUENCY, CLEANUP_FREQUENCY);
@@ -1265,7 +1247,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         // Remove the route to this service
         routingTable.removeComponentRoute(getAddress());
         broadcastShutdown();
-        logAllConversation();
+        logWriter.stop();
         XMPPServer.getInstance().removeServerListener( this );
     }
 
@@ -1388,7 +1370,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     public void logConversation(MUCRoom room, Message message, JID sender) {
         // Only log messages that have a subject or body. Otherwise ignore it.
         if (message.getSubject() != null || message.getBody() != null) {
-            logQueue.add(new ConversationLogEntry(new Date(), room, message, sender));
+            logWriter.add(new ConversationLogEntry(new Date(), room, message, sender));
         }
     }
 
@@ -20,30 +20,66 @@
 
 package org.jivesoftware.openfire.net;
 
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.naming.NameNotFoundException;
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Utilty class to perform DNS lookups for XMPP services.
+ * Utilty class to perform DNS lookups for XMPP services. SRV records are cached by a
+ * {@link SrvCache}, which is configured with the following properties:
+ *
+ * <ul>
+ * <li>dnsutil.cache.ttl -- seconds records are cached if the resolver does not know their
+ *      time to live. The JNDI resolver never does. Default is 300.</li>
+ * <li>dnsutil.cache.maxTTL -- maximum seconds records are cached. Default is 3600.</li>
+ * <li>dnsutil.cache.negativeTTL -- seconds a name without records is cached. Default is 60.</li>
+ * <li>dnsutil.cache.size -- maximum number of cached names. Default is 10000.</li>
+ * </ul>
+ *
+ * Records that are about to expire are refreshed by two background threads. A refresh is
+ * skipped when too many are waiting, so a lookup never runs a refresh of another name.
  *
  * @author Matt Tucker
  */
 public class DNSUtil {
 
-    private static DirContext context;
+    private static final String SRV_HITS_STAT_KEY = "dns_srv_hits";
+    private static final String SRV_MISSES_STAT_KEY = "dns_srv_misses";
+    private static final String SRV_QUERY_TIME_STAT_KEY = "dns_srv_query_time";
+
+    private static volatile SrvCache cache;
 
     private static final Logger logger = LoggerFactory.getLogger(DNSUtil.class);
 
+    /**
+     * Threads that refresh cached SRV records in the background.
+     */
+    private static final ThreadPoolExecutor refresher = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(100), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "DNS refresh-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            // Skip the refresh, the records are refreshed on a later lookup
+            new ThreadPoolExecutor.AbortPolicy());
+
     /**
      * Internal DNS that allows to specify target IP addresses and ports to use for domains.
      * The internal DNS will be checked up before performing an actual DNS SRV lookup.
@@ -54,7 +90,7 @@ public class DNSUtil {
         try {
             Hashtable<String,String> env = new Hashtable<>();
             env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-            context = new InitialDirContext(env);
+            setResolver(new JndiSrvResolver(new InitialDirContext(env)));
 
             String property = JiveGlobals.getProperty("dnsutil.dnsOverride");
             if (property != null) {
@@ -64,6 +100,8 @@ public class DNSUtil {
         catch (Exception e) {
             logger.error("Can't initialize DNS context!", e);
         }
+        refresher.allowCoreThreadTimeOut(true);
+        addStatistics();
     }
 
     /**
@@ -107,6 +145,76 @@ public class DNSUtil {
         return results;
     }
 
+    /**
+     * Sets the resolver that looks up SRV records. The records that were cached are
+     * discarded.
+     *
+     * @param resolver the resolver that looks up SRV records.
+     */
+    public static void setResolver(SrvResolver resolver) {
+        final SrvCache srvCache = new SrvCache(resolver, refresher);
+        srvCache.setDefaultTTL(JiveGlobals.getIntProperty("dnsutil.cache.ttl", 300));
+        srvCache.setMaxTTL(JiveGlobals.getIntProperty("dnsutil.cache.maxTTL", 3600));
+        srvCache.setNegativeTTL(JiveGlobals.getIntProperty("dnsutil.cache.negativeTTL", 60));
+        srvCache.setMaxSize(JiveGlobals.getIntProperty("dnsutil.cache.size", 10000));
+        cache = srvCache;
+    }
+
+    /**
+     * Returns the cache of SRV records, which keeps statistics of its lookups.
+     *
+     * @return the cache of SRV records, or null if DNS lookups are not available.
+     */
+    public static SrvCache getSrvCache() {
+        return cache;
+    }
+
+    private static void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(SRV_HITS_STAT_KEY, new SrvCacheStatistic("dns.srv_hits") {
+            @Override
+            long getTotal(SrvCache srvCache) {
+                return srvCache.getHits() + srvCache.getNegativeHits();
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(SRV_MISSES_STAT_KEY, new SrvCacheStatistic("dns.srv_misses") {
+            @Override
+            long getTotal(SrvCache srvCache) {
+                return srvCache.getMisses();
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(SRV_QUERY_TIME_STAT_KEY,
+                new i18nStatistic("dns.srv_query_time", Statistic.Type.count) {
+            private SrvCache lastCache;
+            private long lastCount;
+            private long lastNanos;
+
+            @Override
+            public synchronized double sample() {
+                final SrvCache srvCache = cache;
+                if (srvCache == null) {
+                    return 0;
+                }
+                if (srvCache != lastCache) {
+                    // The resolver was replaced
+                    lastCache = srvCache;
+                    lastCount = 0;
+                    lastNanos = 0;
+                }
+                final long count = srvCache.getQueries();
+                final long nanos = srvCache.getTotalQueryTime();
+                final double average = count > lastCount ? (nanos - lastNanos) / ((count - lastCount) * 1000000d) : 0;
+                lastCount = count;
+                lastNanos = nanos;
+                return average;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+    }
+
     /**
      * Returns the internal DNS that allows to specify target IP addresses and ports
      * to use for domains. The internal DNS will be checked up before performing an
@@ -159,31 +267,11 @@ public class DNSUtil {
     }
 
     private static List<? extends HostAddress> srvLookup(String lookup) {
-        if (lookup == null) {
-            throw new NullPointerException("DNS lookup can't be null");
-        }
-        try {
-            Attributes dnsLookup =
-                    context.getAttributes(lookup, new String[]{"SRV"});
-            Attribute srvRecords = dnsLookup.get("SRV");
-            if (srvRecords == null) {
-                logger.debug("No SRV record found for domain: " + lookup);
-                return Collections.emptyList();
-            }
-            WeightedHostAddress[] hosts = new WeightedHostAddress[srvRecords.size()];
-            for (int i = 0; i < srvRecords.size(); i++) {
-                hosts[i] = new WeightedHostAddress(((String)srvRecords.get(i)).split(" "));
-            }
-
-            return prioritize(hosts);
-        }
-        catch (NameNotFoundException e) {
-            logger.debug("No SRV record found for: " + lookup, e);
+        final SrvCache srvCache = cache;
+        if (srvCache == null) {
+            return Collections.emptyList();
         }
-        catch (NamingException e) {
-            logger.error("Can't process DNS lookup!", e);
-        }
-        return Collections.emptyList();
+        return srvCache.lookup(lookup);
     }
 
     /**
@@ -329,14 +417,14 @@ public class DNSUtil {
         private final int priority;
         private final int weight;
 
-        private WeightedHostAddress(String [] srvRecordEntries) {
+        WeightedHostAddress(String [] srvRecordEntries) {
             super(srvRecordEntries[srvRecordEntries.length-1],
                     Integer.parseInt(srvRecordEntries[srvRecordEntries.length-2]));
             weight = Integer.parseInt(srvRecordEntries[srvRecordEntries.length-3]);
             priority = Integer.parseInt(srvRecordEntries[srvRecordEntries.length-4]);
         }
 
-        WeightedHostAddress(String host, int port, int priority, int weight) {
+        public WeightedHostAddress(String host, int port, int priority, int weight) {
             super(host, port);
             this.priority = priority;
             this.weight = weight;
@@ -360,4 +448,41 @@ public class DNSUtil {
             return weight;
         }
     }
+
+    /**
+     * The number of lookups of a kind in the SRV cache since the last sample.
+     */
+    private abstract static class SrvCacheStatistic extends i18nStatistic {
+
+        private SrvCache lastCache;
+        private long lastSample;
+
+        SrvCacheStatistic(String resourceKey) {
+            super(resourceKey, Statistic.Type.rate);
+        }
+
+        abstract long getTotal(SrvCache srvCache);
+
+        @Override
+        public synchronized double sample() {
+            final SrvCache srvCache = cache;
+            if (srvCache == null) {
+                return 0;
+            }
+            if (srvCache != lastCache) {
+                // The resolver was replaced
+                lastCache = srvCache;
+                lastSample = 0;
+            }
+            final long total = getTotal(srvCache);
+            final double delta = total - lastSample;
+            lastSample = total;
+            return delta;
+        }
+
+        @Override
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
 }
\ No newline at end of file
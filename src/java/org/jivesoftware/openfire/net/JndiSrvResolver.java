@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+
+/**
+ * Looks up SRV records with the JNDI DNS provider. The provider does not return the time to
+ * live of the records, so the answers use the default time to live of the cache.
+ */
+final class JndiSrvResolver implements SrvResolver {
+
+    private final DirContext context;
+
+    JndiSrvResolver(DirContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public Answer lookup(String name) throws NamingException {
+        final Attributes dnsLookup = context.getAttributes(name, new String[]{"SRV"});
+        final Attribute srvRecords = dnsLookup.get("SRV");
+        if (srvRecords == null) {
+            return new Answer(Collections.<DNSUtil.WeightedHostAddress>emptyList(), -1);
+        }
+        final List<DNSUtil.WeightedHostAddress> records = new ArrayList<>(srvRecords.size());
+        for (int i = 0; i < srvRecords.size(); i++) {
+            records.add(new DNSUtil.WeightedHostAddress(((String) srvRecords.get(i)).split(" ")));
+        }
+        return new Answer(records, -1);
+    }
+}
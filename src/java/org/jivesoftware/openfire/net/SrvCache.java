@@ -0,0 +1,413 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.net;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of DNS SRV records. Records are kept for their time to live, or for the default time
+ * to live if the resolver does not know it. Names without records are cached for the negative
+ * time to live. A record that is used shortly before it expires is looked up again in the
+ * background, so names in use are rarely looked up while a connection waits. If a refresh
+ * fails, the expired records keep being used until a lookup succeeds.<p>
+ *
+ * Concurrent lookups of the same name wait for a single query of the resolver. The records
+ * are {@link DNSUtil#prioritize(DNSUtil.WeightedHostAddress[]) prioritized} on every lookup,
+ * so hosts of the same priority still share the load according to their weights.
+ */
+public class SrvCache {
+
+    private static final Logger Log = LoggerFactory.getLogger(SrvCache.class);
+
+    /**
+     * Part of the time to live after which a used record is refreshed in the background.
+     */
+    private static final double REFRESH_FACTOR = 0.8;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+    private final SrvResolver resolver;
+    private final Executor executor;
+
+    private volatile long defaultTTL = TimeUnit.MINUTES.toMillis(5);
+    private volatile long maxTTL = TimeUnit.HOURS.toMillis(1);
+    private volatile long negativeTTL = TimeUnit.MINUTES.toMillis(1);
+    private volatile int maxSize = 10000;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong totalQueryTime = new AtomicLong();
+    private final AtomicLong maxQueryTime = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param resolver the resolver that looks up the records that are not cached.
+     * @param executor the executor that refreshes records in the background. A refresh that
+     *        the executor rejects is skipped, it's tried again on the next lookup.
+     */
+    public SrvCache(SrvResolver resolver, Executor executor) {
+        if (resolver == null || executor == null) {
+            throw new NullPointerException("Resolver and executor are required.");
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the prioritized SRV records of a name.
+     *
+     * @param name the name to look up, for example "_xmpp-server._tcp.example.com".
+     * @return the prioritized records, or an empty list if the name has no records or the
+     *         lookup failed.
+     */
+    public List<DNSUtil.WeightedHostAddress> lookup(String name) {
+        if (name == null) {
+            throw new NullPointerException("DNS lookup can't be null");
+        }
+        final long now = currentTime();
+        Entry entry = entries.get(name);
+        if (entry != null && entry.expires > now) {
+            if (entry.records.length == 0) {
+                negativeHits.incrementAndGet();
+            }
+            else {
+                hits.incrementAndGet();
+                if (entry.refresh <= now && entry.refreshing.compareAndSet(false, true)) {
+                    refresh(name, entry);
+                }
+            }
+        }
+        else {
+            misses.incrementAndGet();
+            entry = load(name);
+        }
+        return entry.records.length == 0 ? Collections.<DNSUtil.WeightedHostAddress>emptyList()
+                : DNSUtil.prioritize(entry.records);
+    }
+
+    /**
+     * Removes all records from the cache.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of names in the cache, including names without records.
+     *
+     * @return the number of cached names.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sets the time records are cached if the resolver does not know their time to live.
+     *
+     * @param seconds the default time to live in seconds.
+     */
+    public void setDefaultTTL(int seconds) {
+        defaultTTL = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Sets the maximum time records are cached, whatever their time to live.
+     *
+     * @param seconds the maximum time to live in seconds.
+     */
+    public void setMaxTTL(int seconds) {
+        maxTTL = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Sets the time names without records are cached.
+     *
+     * @param seconds the negative time to live in seconds.
+     */
+    public void setNegativeTTL(int seconds) {
+        negativeTTL = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Sets the maximum number of names in the cache.
+     *
+     * @param maxSize the maximum number of cached names.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the number of lookups that were answered with cached records.
+     *
+     * @return the number of cache hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups of names that were cached as having no records.
+     *
+     * @return the number of negative cache hits.
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Returns the number of lookups that had to query the resolver.
+     *
+     * @return the number of cache misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of records that were refreshed in the background.
+     *
+     * @return the number of background refreshes.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Returns the number of queries of the resolver that failed.
+     *
+     * @return the number of failed queries.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of queries of the resolver.
+     *
+     * @return the number of queries.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the average time a query of the resolver took.
+     *
+     * @return the average query time in milliseconds.
+     */
+    public double getAverageQueryTime() {
+        final long count = queries.get();
+        return count == 0 ? 0 : totalQueryTime.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the total time of the queries of the resolver.
+     *
+     * @return the total query time in nanoseconds.
+     */
+    long getTotalQueryTime() {
+        return totalQueryTime.get();
+    }
+
+    /**
+     * Returns the longest time a query of the resolver took.
+     *
+     * @return the maximum query time in milliseconds.
+     */
+    public long getMaxQueryTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxQueryTime.get());
+    }
+
+    /**
+     * Returns the current time in milliseconds. The time is only compared with itself.
+     */
+    long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Queries the resolver, or waits for a query of the same name that is in progress.
+     */
+    private Entry load(final String name) {
+        final FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() {
+                return query(name, entries.get(name));
+            }
+        });
+        FutureTask<Entry> current = loading.putIfAbsent(name, task);
+        if (current == null) {
+            current = task;
+            try {
+                task.run();
+            }
+            finally {
+                loading.remove(name, task);
+            }
+        }
+        try {
+            return current.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            Log.error("Can't process DNS lookup of " + name, e.getCause());
+        }
+        return Entry.EMPTY;
+    }
+
+    private void refresh(final String name, final Entry entry) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refreshes.incrementAndGet();
+                    query(name, entry);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            // Skip the refresh, the next lookup of the name tries again
+            entry.refreshing.set(false);
+            Log.debug("Unable to refresh the SRV records of " + name, e);
+        }
+    }
+
+    /**
+     * Queries the resolver and caches the answer. If the query fails, the previous entry is
+     * used for the time of a negative answer.
+     *
+     * @param name the name to look up.
+     * @param previous the cached entry of the name, or null.
+     * @return the new entry of the name.
+     */
+    private Entry query(String name, Entry previous) {
+        Entry entry;
+        final long start = System.nanoTime();
+        try {
+            final SrvResolver.Answer answer = resolver.lookup(name);
+            final long now = currentTime();
+            final List<DNSUtil.WeightedHostAddress> records = answer.getRecords();
+            if (records.isEmpty()) {
+                Log.debug("No SRV record found for domain: " + name);
+                entry = new Entry(new DNSUtil.WeightedHostAddress[0], now, negativeTTL);
+            }
+            else {
+                final long ttl = answer.getTTL() < 0 ? defaultTTL
+                        : Math.min(maxTTL, TimeUnit.SECONDS.toMillis(answer.getTTL()));
+                entry = new Entry(records.toArray(new DNSUtil.WeightedHostAddress[records.size()]), now, ttl);
+            }
+        }
+        catch (NameNotFoundException e) {
+            Log.debug("No SRV record found for: " + name, e);
+            entry = new Entry(new DNSUtil.WeightedHostAddress[0], currentTime(), negativeTTL);
+        }
+        catch (NamingException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (previous != null && previous.records.length > 0) {
+                Log.warn("Can't process DNS lookup of " + name + ", using expired records.", e);
+                entry = new Entry(previous.records, currentTime(), negativeTTL);
+            }
+            else {
+                Log.error("Can't process DNS lookup!", e);
+                // Do not cache the failure, the next lookup queries the resolver again
+                return Entry.EMPTY;
+            }
+        }
+        finally {
+            recordQueryTime(System.nanoTime() - start);
+        }
+        put(name, entry);
+        return entry;
+    }
+
+    private void put(String name, Entry entry) {
+        if (entries.size() >= maxSize && !entries.containsKey(name)) {
+            evict();
+        }
+        entries.put(name, entry);
+    }
+
+    /**
+     * Removes the expired entries, or arbitrary entries if none expired.
+     */
+    private void evict() {
+        final long now = currentTime();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() >= maxSize;) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void recordQueryTime(long nanos) {
+        queries.incrementAndGet();
+        totalQueryTime.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxQueryTime.get()) && !maxQueryTime.compareAndSet(max, nanos)) {
+            // Retry
+        }
+    }
+
+    /**
+     * The records of a name and the times they are refreshed and expire.
+     */
+    private static final class Entry {
+
+        private static final Entry EMPTY = new Entry(new DNSUtil.WeightedHostAddress[0], 0, 0);
+
+        private final DNSUtil.WeightedHostAddress[] records;
+        private final long refresh;
+        private final long expires;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(DNSUtil.WeightedHostAddress[] records, long created, long ttl) {
+            this.records = records;
+            this.refresh = created + (long) (ttl * REFRESH_FACTOR);
+            this.expires = created + ttl;
+        }
+    }
+}
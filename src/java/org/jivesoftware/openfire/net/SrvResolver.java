@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.net;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+/**
+ * Looks up the DNS SRV records of a name. The records are cached by the {@link SrvCache} of
+ * {@link DNSUtil}; a different resolver can be set with {@link DNSUtil#setResolver(SrvResolver)}.
+ *
+ * @see DNSUtil#resolveXMPPDomain(String, int)
+ */
+public interface SrvResolver {
+
+    /**
+     * Returns the SRV records of a name, for example "_xmpp-server._tcp.example.com".
+     *
+     * @param name the name to look up.
+     * @return the records of the name, which may be empty.
+     * @throws NameNotFoundException if the name does not exist.
+     * @throws NamingException if the lookup failed.
+     */
+    Answer lookup(String name) throws NamingException;
+
+    /**
+     * The SRV records of a name and the time they may be cached.
+     */
+    final class Answer {
+
+        private final List<DNSUtil.WeightedHostAddress> records;
+        private final int ttl;
+
+        /**
+         * Creates an answer.
+         *
+         * @param records the SRV records.
+         * @param ttl the time to live of the records in seconds, or -1 if the resolver
+         *        does not know the time to live.
+         */
+        public Answer(List<DNSUtil.WeightedHostAddress> records, int ttl) {
+            this.records = Collections.unmodifiableList(records);
+            this.ttl = ttl;
+        }
+
+        public List<DNSUtil.WeightedHostAddress> getRecords() {
+            return records;
+        }
+
+        /**
+         * Returns the time to live of the records in seconds.
+         *
+         * @return the time to live in seconds, or -1 if it is not known.
+         */
+        public int getTTL() {
+            return ttl;
+        }
+    }
+}
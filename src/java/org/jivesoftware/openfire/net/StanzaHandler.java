@@ -42,6 +42,7 @@ import org.xmpp.packet.*;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A StanzaHandler is the main responsible for handling incoming stanzas. Some stanzas like startTLS
@@ -62,6 +63,9 @@ public abstract class StanzaHandler {
      * The utf-8 charset for decoding and encoding Jabber packet streams.
      */
     protected static String CHARSET = "UTF-8";
+
+    private static final byte[] STREAM_HEADER = "<stream:stream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FLASH_STREAM_HEADER = "<flash:stream".getBytes(StandardCharsets.US_ASCII);
     protected Connection connection;
 
     // DANIELE: Indicate if a session is already created
@@ -160,7 +164,41 @@ public abstract class StanzaHandler {
             return;
         }
         // Create DOM object from received stanza
-        Element doc = reader.read(new StringReader(stanza)).getRootElement();
+        processElement(reader.read(new StringReader(stanza)).getRootElement());
+    }
+
+    /**
+     * Processes a stanza that was framed as UTF-8 encoded bytes. Regular stanzas are
+     * parsed straight from the bytes. Stream headers, closing stream tags and XML
+     * declarations are rare, so they are processed as Strings.
+     *
+     * @param stanza the UTF-8 encoded stanza.
+     * @param reader the reader to use for parsing the stanza.
+     * @throws Exception if an error occurs while parsing or processing the stanza.
+     */
+    public void process(byte[] stanza, XMPPPacketReader reader) throws Exception {
+        if (!sessionCreated || stanza.length < 2 || stanza[1] == '?' || stanza[1] == '/'
+                || startsWith(stanza, STREAM_HEADER) || startsWith(stanza, FLASH_STREAM_HEADER)) {
+            process(new String(stanza, CHARSET), reader);
+            return;
+        }
+        // Create DOM object from received stanza
+        processElement(reader.read(new UTF8ByteArrayReader(stanza)).getRootElement());
+    }
+
+    private static boolean startsWith(byte[] stanza, byte[] prefix) {
+        if (stanza.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (stanza[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void processElement(Element doc) throws Exception {
         if (doc == null) {
             // No document found.
             return;
@@ -193,7 +231,16 @@ public abstract class StanzaHandler {
                 waitingCompressionACK = true;
             }
         } else if (isStreamManagementStanza(doc)) {
-            session.getStreamManager().process( doc, session.getAddress() );
+            if ("resume".equals(doc.getName())) {
+                // The resumed session takes over this stream
+                LocalSession resumed = StreamManager.resume(session, doc);
+                if (resumed != null) {
+                    session = resumed;
+                }
+            }
+            else {
+                session.getStreamManager().process( doc, session.getAddress() );
+            }
         }
         else {
             process(doc);
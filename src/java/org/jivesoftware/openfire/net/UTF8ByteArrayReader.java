@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.io.Reader;
+
+/**
+ * Reader that decodes UTF-8 encoded bytes straight into the character buffer of
+ * the caller. Unlike an <tt>InputStreamReader</tt>, it does not allocate any
+ * intermediate byte or character buffers, which makes it cheap to create a reader
+ * for every received stanza.<p>
+ *
+ * Malformed input is replaced by U+FFFD, like the charset decoder used by the
+ * socket readers does.
+ */
+public class UTF8ByteArrayReader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final byte[] bytes;
+    private final int limit;
+    private int position;
+
+    /**
+     * Low surrogate of a supplementary character that did not fit in the buffer
+     * of the previous read, or 0 if there is none.
+     */
+    private char pendingLowSurrogate;
+
+    public UTF8ByteArrayReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public UTF8ByteArrayReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= limit && pendingLowSurrogate == 0) {
+            return -1;
+        }
+        final int end = off + len;
+        int count = off;
+        if (pendingLowSurrogate != 0) {
+            cbuf[count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (count < end && position < limit) {
+            final int b = bytes[position];
+            if (b >= 0) {
+                // Fast path for ASCII, which is the bulk of XMPP traffic.
+                cbuf[count++] = (char) b;
+                position++;
+                continue;
+            }
+            final int codePoint = decode();
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                cbuf[count++] = (char) codePoint;
+            }
+            else {
+                cbuf[count++] = Character.highSurrogate(codePoint);
+                final char low = Character.lowSurrogate(codePoint);
+                if (count < end) {
+                    cbuf[count++] = low;
+                }
+                else {
+                    pendingLowSurrogate = low;
+                }
+            }
+        }
+        return count - off;
+    }
+
+    /**
+     * Decodes the multi-byte sequence at the current position and advances past it.
+     */
+    private int decode() {
+        final int b = bytes[position] & 0xFF;
+        final int length;
+        int codePoint;
+        if (b >= 0xC2 && b <= 0xDF) {
+            length = 2;
+            codePoint = b & 0x1F;
+        }
+        else if (b >= 0xE0 && b <= 0xEF) {
+            length = 3;
+            codePoint = b & 0x0F;
+        }
+        else if (b >= 0xF0 && b <= 0xF4) {
+            length = 4;
+            codePoint = b & 0x07;
+        }
+        else {
+            position++;
+            return REPLACEMENT;
+        }
+        int i = 1;
+        for (; i < length; i++) {
+            if (position + i >= limit || (bytes[position + i] & 0xC0) != 0x80) {
+                // Truncated sequence: replace the bytes that were read so far.
+                position += i;
+                return REPLACEMENT;
+            }
+            codePoint = (codePoint << 6) | (bytes[position + i] & 0x3F);
+        }
+        position += length;
+        if ((length == 3 && (codePoint < 0x800 || Character.isSurrogate((char) codePoint)))
+                || (length == 4 && (codePoint < 0x10000 || codePoint > Character.MAX_CODE_POINT))) {
+            // Overlong encodings, encoded surrogates and out of range values.
+            return REPLACEMENT;
+        }
+        return codePoint;
+    }
+
+    @Override
+    public boolean ready() {
+        return position < limit || pendingLowSurrogate != 0;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+}
@@ -29,6 +29,7 @@ import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
 import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -48,6 +49,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 	private static final Logger Log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     static final String XML_PARSER = "XML-PARSER";
+
+    /**
+     * Property that, when true, makes new connections frame stanzas on the received bytes
+     * (see {@link XMLStanzaFramer}) instead of decoding them into Strings first.
+     */
+    static final String BYTE_FRAMING_PROPERTY = "xmpp.parser.byteframing";
     protected static final String HANDLER = "HANDLER";
     protected static final String CONNECTION = "CONNECTION";
 
@@ -88,8 +95,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(StandardCharsets.UTF_8);
-        session.setAttribute(XML_PARSER, parser);
+        if (JiveGlobals.getBooleanProperty(BYTE_FRAMING_PROPERTY, false)) {
+            session.setAttribute(XML_PARSER, new XMLStanzaFramer());
+        }
+        else {
+            session.setAttribute(XML_PARSER, new XMLLightweightParser(StandardCharsets.UTF_8));
+        }
         // Create a new NIOConnection for the new session
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
@@ -178,9 +189,15 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("RCVD: " + message);
         // Let the stanza handler process the received stanza
         try {
-            handler.process((String) message, parser);
+            if (message instanceof byte[]) {
+                handler.process((byte[]) message, parser);
+            }
+            else {
+                handler.process((String) message, parser);
+            }
         } catch (Exception e) {
-            Log.error("Closing connection due to error while processing message: " + message, e);
+            Log.error("Closing connection due to error while processing message: " +
+                    (message instanceof byte[] ? new String((byte[]) message, StandardCharsets.UTF_8) : message), e);
             final Connection connection = (Connection) session.getAttribute(CONNECTION);
             if ( connection != null ) {
                 connection.close();
@@ -215,7 +232,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that read more bytes from the socket.
      */
-    private void updateReadBytesCounter(IoSession session) {
+    static void updateReadBytesCounter(IoSession session) {
         long currentBytes = session.getReadBytes();
         Long prevBytes = (Long) session.getAttribute("_read_bytes");
         long delta;
@@ -235,7 +252,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that wrote more bytes to the socket.
      */
-    private void updateWrittenBytesCounter(IoSession session) {
+    static void updateWrittenBytesCounter(IoSession session) {
         long currentBytes = session.getWrittenBytes();
         Long prevBytes = (Long) session.getAttribute("_written_bytes");
         long delta;
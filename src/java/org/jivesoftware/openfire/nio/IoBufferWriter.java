@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.Writer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.MalformedInputException;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Writer that encodes characters as UTF-8 straight into an auto expanding
+ * {@link IoBuffer}, so that an XML element can be serialized into an outbound
+ * buffer without creating an intermediate String. Writers are meant to be reused
+ * for many buffers (see {@link #setBuffer(IoBuffer)}); they are not thread safe.<p>
+ *
+ * Like the encoder that was used before, unpaired surrogates are reported as
+ * an error instead of being replaced.
+ */
+class IoBufferWriter extends Writer {
+
+    private IoBuffer buffer;
+
+    // High surrogate written by a previous call, waiting for its low surrogate.
+    private char highSurrogate;
+
+    /**
+     * Sets the buffer that following writes will append to.
+     *
+     * @param buffer an auto expanding buffer, or null to release the previous buffer.
+     */
+    void setBuffer(IoBuffer buffer) {
+        this.buffer = buffer;
+        this.highSurrogate = 0;
+    }
+
+    @Override
+    public void write(int c) throws CharacterCodingException {
+        encode((char) c);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws CharacterCodingException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            encode(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws CharacterCodingException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    private void encode(char c) throws CharacterCodingException {
+        if (highSurrogate != 0) {
+            if (!Character.isLowSurrogate(c)) {
+                throw new MalformedInputException(1);
+            }
+            final int codePoint = Character.toCodePoint(highSurrogate, c);
+            highSurrogate = 0;
+            buffer.put((byte) (0xF0 | (codePoint >> 18)));
+            buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+        else if (c < 0x80) {
+            buffer.put((byte) c);
+        }
+        else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c)) {
+            throw new MalformedInputException(1);
+        }
+        else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is buffered.
+    }
+
+    @Override
+    public void close() throws CharacterCodingException {
+        if (highSurrogate != 0) {
+            throw new MalformedInputException(1);
+        }
+    }
+}
@@ -28,18 +28,24 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.*;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.compression.CompressionFilter;
 import org.apache.mina.filter.ssl.SslFilter;
@@ -47,6 +53,7 @@ import org.dom4j.io.OutputFormat;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.ConnectionCloseListener;
 import org.jivesoftware.openfire.PacketDeliverer;
+import org.jivesoftware.openfire.SerializedStanza;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.keystore.*;
 import org.jivesoftware.openfire.net.*;
@@ -55,6 +62,7 @@ import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.spi.ConnectionConfiguration;
 import org.jivesoftware.openfire.spi.ConnectionType;
 import org.jivesoftware.openfire.spi.EncryptionArtifactFactory;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.XMLWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +77,23 @@ import org.xmpp.packet.Packet;
 public class NIOConnection implements Connection {
 
 	private static final Logger Log = LoggerFactory.getLogger(NIOConnection.class);
+
+    /**
+     * Number of bytes after which queued data is written to the session, even if more data
+     * is waiting in the queue.
+     */
+    private static final int BATCH_SIZE = JiveGlobals.getIntProperty("xmpp.nio.outbound.buffer.size", 16384);
+
+    /**
+     * Maximum time to wait for queued data to be written before starting TLS.
+     */
+    private static final long WRITE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Counters of written data of all connections, for the statistics of the server.
+     */
+    private static final AtomicLong totalWrittenBatches = new AtomicLong();
+    private static final AtomicLong totalWrittenStanzas = new AtomicLong();
     private ConnectionConfiguration configuration;
 
     /**
@@ -101,7 +126,12 @@ public class NIOConnection implements Connection {
      * Compression policy currently in use for this connection.
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
-    private static final ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
+    private static final ThreadLocal<IoBufferWriter> outboundWriter = new ThreadLocal<IoBufferWriter>() {
+        @Override
+        protected IoBufferWriter initialValue() {
+            return new IoBufferWriter();
+        }
+    };
 
     /**
      * Flag that specifies if the connection should be considered closed. Closing a NIO connection
@@ -112,15 +142,36 @@ public class NIOConnection implements Connection {
     private AtomicReference<State> state = new AtomicReference<>(State.OPEN);
     
     /**
-     * Lock used to ensure the integrity of the underlying IoSession (refer to
-     * https://issues.apache.org/jira/browse/DIRMINA-653 for details)
-     * <p>
-     * This lock can be removed once Openfire guarantees a stable delivery
-     * order, in which case {@link #deliver(Packet)} won't be called
-     * concurrently any more, which made this lock necessary in the first place.
-     * </p>
+     * Stanzas and raw text that are waiting to be written. Elements are either
+     * {@link Packet} or String instances.
+     */
+    private final Queue<Object> outboundQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The thread that is writing the outbound queue to the session, if any. Only one
+     * thread at a time writes to the underlying IoSession, which also ensures its
+     * integrity (refer to https://issues.apache.org/jira/browse/DIRMINA-653 for details).
      */
-    private final ReentrantLock ioSessionLock = new ReentrantLock(true);
+    private final AtomicReference<Thread> flusher = new AtomicReference<>();
+
+    /**
+     * Monitor on which threads that must wait for the flusher to finish are parked, and the
+     * number of those threads. The flusher only notifies the monitor when there are waiters.
+     */
+    private final Object flushed = new Object();
+    private final AtomicInteger flushWaiters = new AtomicInteger();
+
+    /**
+     * Counters of written data. Only updated by the thread that is writing the queue.
+     */
+    private volatile long writtenBytes;
+    private volatile long writtenBatches;
+    private volatile long writtenStanzas;
+
+    /**
+     * The last write to the session, which completes after all previous writes.
+     */
+    private volatile WriteFuture lastWrite;
 
     public NIOConnection( IoSession session, PacketDeliverer packetDeliverer, ConnectionConfiguration configuration ) {
         this.ioSession = session;
@@ -291,71 +342,255 @@ public class NIOConnection implements Connection {
         	backupDeliverer.deliver(packet);
         }
         else {
-            boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
-            try {
-                buffer.putString(packet.getElement().asXML(), encoder.get());
-                if (flashClient) {
-                    buffer.put((byte) '\0');
-                }
-                buffer.flip();
-                
-                ioSessionLock.lock();
+            outboundQueue.add(packet);
+            flush(false);
+        }
+    }
+
+    @Override
+    public void deliverRawText(String text) {
+        if (!isClosed()) {
+            outboundQueue.add(text);
+            // Raw text is used for stream level data (stream errors, closing the stream,
+            // TLS negotiation) so it must have been handed to MINA when this method returns.
+            flush(true);
+        }
+    }
+
+    /**
+     * Writes the queued stanzas and raw text to the MINA session. Only one thread at a
+     * time writes to the session: a thread that finds another thread writing leaves its
+     * data in the queue, which the writing thread will include in its next batch. Data
+     * queued while a batch is written is coalesced into the next batch.
+     *
+     * @param wait true if this method must not return before the queue was handed to
+     *        the session, including data that another thread took from the queue.
+     */
+    private void flush(boolean wait) {
+        final Thread current = Thread.currentThread();
+        if (flusher.get() == current) {
+            // Invoked while writing the queue (e.g. when closing the connection after
+            // an error). The data will be picked up by the ongoing write.
+            return;
+        }
+        boolean interrupted = false;
+        while (!outboundQueue.isEmpty() || (wait && flusher.get() != null)) {
+            if (flusher.compareAndSet(null, current)) {
                 try {
-                    ioSession.write(buffer);
-                } finally {
-                    ioSessionLock.unlock();
+                    writeQueue();
+                }
+                finally {
+                    flusher.set(null);
+                    if (flushWaiters.get() > 0) {
+                        synchronized (flushed) {
+                            flushed.notifyAll();
+                        }
+                    }
                 }
             }
-            catch (Exception e) {
-                Log.debug("Error delivering packet:\n" + packet, e);
-                errorDelivering = true;
-            }
-            if (errorDelivering) {
-                close();
-                // Retry sending the packet again. Most probably if the packet is a
-                // Message it will be stored offline
-                backupDeliverer.deliver(packet);
+            else if (wait) {
+                interrupted |= awaitFlusher();
             }
             else {
-                session.incrementServerPacketCount();
+                // The thread that is writing will pick up our data.
+                return;
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    @Override
-    public void deliverRawText(String text) {
-        if (!isClosed()) {
-            boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(text.length());
-            buffer.setAutoExpand(true);
+    /**
+     * Blocks until the thread that is writing the queue is done.
+     *
+     * @return true if the current thread was interrupted while waiting.
+     */
+    private boolean awaitFlusher() {
+        flushWaiters.incrementAndGet();
+        try {
+            synchronized (flushed) {
+                // The flusher notifies the monitor after it stopped writing, so it cannot
+                // be missed once the registered waiter found it still writing.
+                if (flusher.get() != null) {
+                    flushed.wait();
+                }
+            }
+            return false;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+        finally {
+            flushWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Drains the outbound queue into as few buffers (and session writes) as possible.
+     * Must only be invoked by the thread that is registered as the flusher.
+     */
+    private void writeQueue() {
+        final IoBufferWriter writer = outboundWriter.get();
+        final List<Packet> batch = new ArrayList<>();
+        IoBuffer buffer = null;
+        Object item;
+        while ((item = outboundQueue.poll()) != null) {
+            if (isClosed()) {
+                // The connection was closed after the data was queued.
+                if (item instanceof Packet) {
+                    deliveryFailed(Collections.singletonList((Packet) item));
+                }
+                continue;
+            }
+            if (buffer == null) {
+                // MINA keeps using the buffer until after the message sent event, so
+                // buffers are not reused
+                buffer = IoBuffer.allocate(1024);
+                buffer.setAutoExpand(true);
+            }
+            final int mark = buffer.position();
             try {
-                //Charset charset = Charset.forName(CHARSET);
-                //buffer.putString(text, charset.newEncoder());
-                buffer.put(text.getBytes(StandardCharsets.UTF_8));
+                if (item instanceof SerializedStanza) {
+                    // Broadcast stanzas share the serialization done by the broadcaster
+                    for (ByteBuffer segment : ((SerializedStanza) item).getPayloadSegments()) {
+                        buffer.put(segment);
+                    }
+                    batch.add((Packet) item);
+                }
+                else if (item instanceof Packet) {
+                    writer.setBuffer(buffer);
+                    ((Packet) item).getElement().write(writer);
+                    writer.close();
+                    batch.add((Packet) item);
+                }
+                else {
+                    buffer.put(((String) item).getBytes(StandardCharsets.UTF_8));
+                }
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
-                buffer.flip();
-                ioSessionLock.lock();
-                try {
-                    ioSession.write(buffer);
+            }
+            catch (Exception e) {
+                buffer.position(mark);
+                if (item instanceof Packet) {
+                    Log.debug("Error delivering packet:\n" + item, e);
+                    deliveryFailed(Collections.singletonList((Packet) item));
                 }
-                finally {
-                    ioSessionLock.unlock();
+                else {
+                    Log.debug("Error delivering raw text:\n" + item, e);
+                    close();
                 }
+                continue;
             }
-            catch (Exception e) {
-                Log.debug("Error delivering raw text:\n" + text, e);
-                errorDelivering = true;
+            finally {
+                writer.setBuffer(null);
             }
+            if (buffer.position() >= BATCH_SIZE || outboundQueue.isEmpty()) {
+                write(buffer, batch);
+                buffer = null;
+                batch.clear();
+            }
+        }
+        if (buffer != null && buffer.position() > 0) {
+            write(buffer, batch);
+        }
+    }
 
-            // Attempt to close the connection if delivering text fails.
-            if (errorDelivering) {
-                close();
+    private void write(IoBuffer buffer, List<Packet> batch) {
+        final int bytes = buffer.position();
+        buffer.flip();
+        try {
+            final WriteFuture future = ioSession.write(buffer);
+            if (future != null) {
+                lastWrite = future;
             }
         }
+        catch (Exception e) {
+            Log.debug("Error delivering " + batch.size() + " packet(s) and raw text", e);
+            deliveryFailed(new ArrayList<>(batch));
+            return;
+        }
+        writtenBytes += bytes;
+        writtenBatches++;
+        writtenStanzas += batch.size();
+        totalWrittenBatches.incrementAndGet();
+        totalWrittenStanzas.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            session.incrementServerPacketCount();
+        }
+    }
+
+    /**
+     * Closes the connection and retries delivery of the packets using the backup
+     * deliverer. Most probably if the packet is a Message it will be stored offline.
+     */
+    private void deliveryFailed(List<Packet> packets) {
+        close();
+        for (Packet packet : packets) {
+            try {
+                backupDeliverer.deliver(packet);
+            }
+            catch (Exception e) {
+                Log.error("Error delivering packet using the backup deliverer: " + packet, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes that were written to this connection.
+     *
+     * @return the number of written bytes.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * Returns the number of session writes (batches of stanzas and raw text) that
+     * were done for this connection.
+     *
+     * @return the number of batches.
+     */
+    public long getWrittenBatches() {
+        return writtenBatches;
+    }
+
+    /**
+     * Returns the number of stanzas that were written to this connection.
+     *
+     * @return the number of written stanzas.
+     */
+    public long getWrittenStanzas() {
+        return writtenStanzas;
+    }
+
+    /**
+     * Returns the average number of stanzas that were coalesced into one session write.
+     *
+     * @return the average number of stanzas per batch.
+     */
+    public double getStanzasPerBatch() {
+        final long batches = writtenBatches;
+        return batches == 0 ? 0 : (double) writtenStanzas / batches;
+    }
+
+    /**
+     * Returns the number of session writes that were done for all connections.
+     *
+     * @return the number of batches of all connections.
+     */
+    public static long getTotalWrittenBatches() {
+        return totalWrittenBatches.get();
+    }
+
+    /**
+     * Returns the number of stanzas that were written to all connections.
+     *
+     * @return the number of stanzas written to all connections.
+     */
+    public static long getTotalWrittenStanzas() {
+        return totalWrittenStanzas.get();
     }
 
     @Deprecated
@@ -377,12 +612,29 @@ public class NIOConnection implements Connection {
             filter = factory.createServerModeSslFilter();
         }
 
+        // Data that was written before must not go through the TLS filter
+        awaitWritten();
         ioSession.getFilterChain().addBefore(EXECUTOR_FILTER_NAME, TLS_FILTER_NAME, filter);
-        ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
 
         if ( !clientMode ) {
+            // The <proceed/> answer is the last data that is sent in plain text
+            ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
             // Indicate the client that the server is ready to negotiate TLS
             deliverRawText( "<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>" );
+            awaitWritten();
+        }
+    }
+
+    /**
+     * Writes the queued data and waits until the session wrote it to the socket.
+     *
+     * @throws IOException if the data was not written in time.
+     */
+    private void awaitWritten() throws IOException {
+        flush(true);
+        final WriteFuture future = lastWrite;
+        if (future != null && !future.awaitUninterruptibly(WRITE_TIMEOUT)) {
+            throw new IOException("Timed out writing data to " + ioSession.getRemoteAddress());
         }
     }
 
@@ -462,14 +714,4 @@ public class NIOConnection implements Connection {
 	public String toString() {
         return super.toString() + " MINA Session: " + ioSession;
     }
-
-    private static class ThreadLocalEncoder extends ThreadLocal<CharsetEncoder> {
-
-        @Override
-		protected CharsetEncoder initialValue() {
-            return StandardCharsets.UTF_8.newEncoder()
-				.onMalformedInput(CodingErrorAction.REPORT)
-				.onUnmappableCharacter(CodingErrorAction.REPORT);
-        }
-    }
 }
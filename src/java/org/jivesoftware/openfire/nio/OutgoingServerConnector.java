@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.nio;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionInitializer;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.DNSUtil;
+import org.jivesoftware.openfire.server.RemoteServerManager;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.jivesoftware.openfire.spi.ConnectionManagerImpl;
+import org.jivesoftware.openfire.spi.ConnectionType;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Establishes connections to remote servers using Java NIO as implemented by Apache MINA. The
+ * connections use the IO processors that the acceptors use (see {@link SharedIoProcessor}) and
+ * the events of all connections are handled by one pool of threads, so connections to many
+ * remote domains do not need a thread each. The stream is negotiated by an
+ * {@link OutgoingServerHandshake}.
+ */
+public final class OutgoingServerConnector {
+
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnector.class);
+
+    /**
+     * Property that, when true, makes outgoing server sessions use this connector instead of
+     * blocking sockets and a reader thread for every session. False by default.
+     */
+    public static final String ENABLED_PROPERTY = "xmpp.server.outgoing.nio";
+
+    private static final String HANDSHAKE = "OUTGOING-HANDSHAKE";
+
+    private static OutgoingServerConnector instance;
+
+    private final ConnectionConfiguration configuration;
+    private final NioSocketConnector connector;
+
+    /**
+     * Returns true if outgoing server sessions are established by this connector.
+     *
+     * @return true if outgoing server sessions use NIO.
+     */
+    public static boolean isEnabled() {
+        return JiveGlobals.getBooleanProperty(ENABLED_PROPERTY, false);
+    }
+
+    public static synchronized OutgoingServerConnector getInstance() {
+        if (instance == null) {
+            instance = new OutgoingServerConnector();
+        }
+        return instance;
+    }
+
+    private OutgoingServerConnector() {
+        final ConnectionManagerImpl connectionManager = (ConnectionManagerImpl) XMPPServer.getInstance().getConnectionManager();
+        configuration = connectionManager.getListener(ConnectionType.SOCKET_S2S, false).generateConnectionConfiguration();
+
+        connector = new NioSocketConnector(
+                Executors.newCachedThreadPool(new NamedThreadFactory("s2s-connector-", null, true, null)),
+                SharedIoProcessor.getInstance());
+
+        // Configure the thread pool that handles the events of the connections
+        final ExecutorFilter executorFilter = new ExecutorFilter(1, configuration.getMaxThreadPoolSize(), 60, TimeUnit.SECONDS);
+        final ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor) executorFilter.getExecutor();
+        eventExecutor.setThreadFactory(new NamedThreadFactory("s2s-outgoing-thread-", eventExecutor.getThreadFactory(), true, null));
+
+        final DefaultIoFilterChainBuilder filterChain = connector.getFilterChain();
+        filterChain.addFirst(ConnectionManagerImpl.EXECUTOR_FILTER_NAME, executorFilter);
+        filterChain.addAfter(ConnectionManagerImpl.EXECUTOR_FILTER_NAME, ConnectionManagerImpl.XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
+
+        connector.setConnectTimeoutMillis(RemoteServerManager.getSocketTimeout());
+        connector.getSessionConfig().setTcpNoDelay(JiveGlobals.getBooleanProperty("xmpp.socket.tcp-nodelay", true));
+        connector.setHandler(new Handler());
+    }
+
+    /**
+     * Starts to connect to a remote domain and to negotiate a stream. The hosts of the
+     * remote domain are tried one after the other until a connection is established.
+     * DNS is used to find the hosts.
+     *
+     * @param localDomain the local domain to authenticate with the remote domain.
+     * @param remoteDomain the remote domain.
+     * @param port the port to connect to when DNS does not specify one.
+     * @return the negotiation of the stream.
+     */
+    public OutgoingServerHandshake connect(String localDomain, String remoteDomain, int port) {
+        final OutgoingServerHandshake handshake = new OutgoingServerHandshake(localDomain, remoteDomain,
+                XMPPServer.getInstance().getServerInfo().getXMPPDomain(), configuration, RemoteServerManager.getSocketTimeout());
+        final List<DNSUtil.HostAddress> remoteHosts = DNSUtil.resolveXMPPDomain(remoteDomain, port);
+        Log.debug("Found {} host(s) for XMPP domain '{}'.", remoteHosts.size(), remoteDomain);
+        connect(handshake, remoteHosts.iterator());
+        return handshake;
+    }
+
+    /**
+     * Returns the number of connections to remote servers.
+     *
+     * @return the number of connections.
+     */
+    public int getConnectionCount() {
+        return connector.getManagedSessionCount();
+    }
+
+    private void connect(final OutgoingServerHandshake handshake, final Iterator<DNSUtil.HostAddress> remoteHosts) {
+        if (!remoteHosts.hasNext()) {
+            handshake.connectFailed();
+            return;
+        }
+        final DNSUtil.HostAddress remoteHost = remoteHosts.next();
+        final ConnectFuture future;
+        try {
+            Log.debug("Trying to connect to XMPP domain '{}' using remote host: {}:{} ...",
+                    handshake.getRemoteDomain(), remoteHost.getHost(), remoteHost.getPort());
+            future = connector.connect(new InetSocketAddress(remoteHost.getHost(), remoteHost.getPort()),
+                    new IoSessionInitializer<ConnectFuture>() {
+                        @Override
+                        public void initializeSession(IoSession session, ConnectFuture future) {
+                            session.setAttribute(HANDSHAKE, handshake);
+                        }
+                    });
+        }
+        catch (Exception e) {
+            Log.warn("Unable to connect to XMPP domain '{}' using remote host: {}:{}. Cause: {}",
+                    handshake.getRemoteDomain(), remoteHost.getHost(), remoteHost.getPort(), e.getMessage());
+            connect(handshake, remoteHosts);
+            return;
+        }
+        future.addListener(new IoFutureListener<ConnectFuture>() {
+            @Override
+            public void operationComplete(ConnectFuture future) {
+                if (!future.isConnected()) {
+                    Log.warn("Unable to connect to XMPP domain '{}' using remote host: {}:{}. Cause: {}",
+                            handshake.getRemoteDomain(), remoteHost.getHost(), remoteHost.getPort(),
+                            future.getException() == null ? "unknown" : future.getException().getMessage());
+                    connect(handshake, remoteHosts);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the events of the connections to their negotiations.
+     */
+    private static class Handler extends IoHandlerAdapter {
+
+        @Override
+        public void sessionOpened(IoSession session) throws Exception {
+            getHandshake(session).connected(session);
+        }
+
+        @Override
+        public void messageReceived(IoSession session, Object message) throws Exception {
+            ConnectionHandler.updateReadBytesCounter(session);
+            getHandshake(session).received((String) message);
+        }
+
+        @Override
+        public void messageSent(IoSession session, Object message) throws Exception {
+            ConnectionHandler.updateWrittenBytesCounter(session);
+        }
+
+        @Override
+        public void sessionClosed(IoSession session) throws Exception {
+            getHandshake(session).closed(null);
+        }
+
+        @Override
+        public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+            Log.debug("Closing outgoing server connection due to exception in session: " + session, cause);
+            getHandshake(session).closed(cause);
+            session.close(true);
+        }
+
+        private static OutgoingServerHandshake getHandshake(IoSession session) {
+            return (OutgoingServerHandshake) session.getAttribute(HANDSHAKE);
+        }
+    }
+}
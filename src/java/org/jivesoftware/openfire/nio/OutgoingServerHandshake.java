@@ -0,0 +1,557 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.mina.core.session.IoSession;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.SASLAuthentication;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.openfire.server.ServerDialback;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The negotiation of a stream to a remote server over a connection of the
+ * {@link OutgoingServerConnector}. The negotiation is a state machine that advances whenever
+ * the remote server answers, so no thread waits for the remote server while the stream is
+ * opened, secured with TLS and authenticated using SASL EXTERNAL or server dialback.<p>
+ *
+ * The steps are the same as those of the blocking negotiation of the outgoing server
+ * session: if the remote server offers STARTTLS the connection is secured and authenticated
+ * with SASL EXTERNAL or else with dialback over TLS. Otherwise dialback is used over the plain
+ * connection. Once the negotiation completed, the elements sent by the remote server are
+ * queued in the {@link #getSocketReader() socket reader} of the session.<p>
+ *
+ * Callers that must not wait for the remote server register a
+ * {@link #addCompletionListener(Runnable) completion listener} instead of invoking
+ * {@link #awaitCompletion()}.
+ */
+public final class OutgoingServerHandshake {
+
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerHandshake.class);
+
+    private static final String STREAM_NAMESPACES = " xmlns:stream=\"http://etherx.jabber.org/streams\"" +
+            " xmlns=\"jabber:server\" xmlns:db=\"jabber:server:dialback\"";
+
+    private enum State {
+        CONNECTING,
+        /** Waiting for the stream header of the remote server. */
+        STREAM,
+        FEATURES,
+        /** Waiting for the answer to STARTTLS. */
+        STARTTLS,
+        TLS_STREAM,
+        TLS_FEATURES,
+        /** Waiting for the outcome of SASL EXTERNAL. */
+        SASL,
+        SASL_STREAM,
+        /** Waiting for the verdict on the dialback key. */
+        DIALBACK,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String localDomain;
+    private final String remoteDomain;
+    /**
+     * The domain of the server, which is the sender of the stream (OF-673).
+     */
+    private final String xmppDomain;
+    private final ConnectionConfiguration configuration;
+    private final long timeout;
+    private final Logger log;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> listeners = new ArrayList<>();
+    private final OutgoingServerSocketReader socketReader = new OutgoingServerSocketReader();
+    private final XMPPPacketReader reader = new XMPPPacketReader();
+
+    private volatile State state = State.CONNECTING;
+    private IoSession ioSession;
+    private volatile NIOConnection connection;
+    private volatile String streamID;
+    private volatile boolean usingServerDialback = true;
+    private TimerTask timeoutTask;
+
+    /**
+     * Creates the negotiation of a stream.
+     *
+     * @param localDomain the local domain to authenticate with the remote domain.
+     * @param remoteDomain the remote domain.
+     * @param xmppDomain the domain of this server.
+     * @param configuration the configuration of the connection.
+     * @param timeout the time in milliseconds to wait for the negotiation to complete once
+     *        connected.
+     */
+    OutgoingServerHandshake(String localDomain, String remoteDomain, String xmppDomain,
+            ConnectionConfiguration configuration, long timeout) {
+        this.localDomain = localDomain;
+        this.remoteDomain = remoteDomain;
+        this.xmppDomain = xmppDomain;
+        this.configuration = configuration;
+        this.timeout = timeout;
+        this.log = LoggerFactory.getLogger(Log.getName() + "[" + localDomain + " to " + remoteDomain + "]");
+    }
+
+    /**
+     * Waits until the negotiation completed or failed.
+     *
+     * @return true if the stream was negotiated.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitCompletion() throws InterruptedException {
+        done.await();
+        return state == State.COMPLETED;
+    }
+
+    /**
+     * Registers a listener that is run once the negotiation completed or failed. The listener
+     * is run right away if the negotiation is already done, or else by the thread that
+     * processes the last answer of the remote server, so it must not block.
+     *
+     * @param listener the listener to run once the negotiation is done.
+     */
+    public void addCompletionListener(Runnable listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Returns true if the negotiation completed or failed.
+     *
+     * @return true if the negotiation is done.
+     */
+    public synchronized boolean isDone() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    /**
+     * Returns true if the stream was negotiated.
+     *
+     * @return true if the stream was negotiated.
+     */
+    public synchronized boolean isCompleted() {
+        return state == State.COMPLETED;
+    }
+
+    /**
+     * Returns true if a connection to the remote server was established, even if the
+     * negotiation of the stream failed afterwards.
+     *
+     * @return true if a connection to the remote server was established.
+     */
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Abandons the negotiation and closes the connection.
+     */
+    public synchronized void cancel() {
+        fail("The negotiation was cancelled.", null);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the ID of the last stream that the remote server opened.
+     *
+     * @return the ID of the stream.
+     */
+    public String getStreamID() {
+        return streamID;
+    }
+
+    public boolean isUsingServerDialback() {
+        return usingServerDialback;
+    }
+
+    /**
+     * Returns the reader that queues the elements sent by the remote server once the stream
+     * was negotiated.
+     *
+     * @return the reader of the session.
+     */
+    public OutgoingServerSocketReader getSocketReader() {
+        return socketReader;
+    }
+
+    public String getLocalDomain() {
+        return localDomain;
+    }
+
+    public String getRemoteDomain() {
+        return remoteDomain;
+    }
+
+    /**
+     * Opens the stream on a new connection.
+     */
+    void connected(IoSession ioSession) {
+        connected(ioSession, new NIOConnection(ioSession, XMPPServer.getInstance().getPacketDeliverer(), configuration));
+    }
+
+    /**
+     * Opens the stream on a new connection, which writes to the specified session.
+     */
+    synchronized void connected(IoSession ioSession, NIOConnection connection) {
+        if (state != State.CONNECTING) {
+            // Cancelled while connecting
+            ioSession.close(true);
+            return;
+        }
+        this.ioSession = ioSession;
+        ioSession.setAttribute(ConnectionHandler.XML_PARSER, new XMLLightweightParser(StandardCharsets.UTF_8));
+        this.connection = connection;
+        ioSession.setAttribute(ConnectionHandler.CONNECTION, connection);
+        timeoutTask = new TimerTask() {
+            @Override
+            public void run() {
+                timedOut();
+            }
+        };
+        TaskEngine.getInstance().schedule(timeoutTask, timeout);
+        openStream();
+        state = State.STREAM;
+    }
+
+    /**
+     * Fails the negotiation because no connection to the remote server could be established.
+     */
+    synchronized void connectFailed() {
+        fail("Unable to connect to any of the hosts of the remote domain.", null);
+    }
+
+    /**
+     * Advances the negotiation with data received from the remote server.
+     *
+     * @param stanza a stream header, a stream end or an element.
+     */
+    synchronized void received(String stanza) {
+        if (stanza.startsWith("<?xml")) {
+            return;
+        }
+        if (state == State.COMPLETED) {
+            if (stanza.startsWith("</stream:stream")) {
+                connection.close();
+            }
+            else {
+                try {
+                    final Element element = parseElement(stanza);
+                    if (isStreamError(element)) {
+                        log.debug("The remote server sent a stream error: {}", element.asXML());
+                        connection.close();
+                    }
+                    else {
+                        socketReader.addElement(element);
+                    }
+                }
+                catch (Exception e) {
+                    log.warn("Closing connection: unable to parse data sent by the remote server: " + stanza, e);
+                    connection.close();
+                }
+            }
+            return;
+        }
+        if (state == State.FAILED) {
+            return;
+        }
+        try {
+            if (stanza.startsWith("</stream:stream")) {
+                fail("The remote server closed the stream.", null);
+            }
+            else if (stanza.startsWith("<stream:stream")) {
+                streamOpened(parseStreamHeader(stanza));
+            }
+            else {
+                final Element element = parseElement(stanza);
+                if (isStreamError(element)) {
+                    fail("The remote server sent a stream error: " + element.asXML(), null);
+                }
+                else {
+                    elementReceived(element);
+                }
+            }
+        }
+        catch (Exception e) {
+            fail("An exception occurred while negotiating the stream.", e);
+        }
+    }
+
+    /**
+     * Fails the negotiation, or closes the negotiated connection, when the connection was
+     * closed or broke.
+     */
+    synchronized void closed(Throwable cause) {
+        if (state == State.COMPLETED) {
+            connection.close();
+        }
+        else {
+            fail("The connection was closed.", cause);
+        }
+    }
+
+    private void streamOpened(Element header) {
+        final String id = header.attributeValue("id");
+        switch (state) {
+            case STREAM:
+                if (!isVersion1(header.attributeValue("version"))) {
+                    fail("The remote server is not XMPP 1.0 compliant.", null);
+                    return;
+                }
+                streamID = id;
+                state = State.FEATURES;
+                break;
+            case TLS_STREAM:
+                if (!SASLAuthentication.verifyCertificates(connection.getPeerCertificates(), remoteDomain, true)) {
+                    if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+                        log.debug("The certificates of the remote server could not be verified. Will continue with dialback.");
+                    }
+                    else {
+                        fail("The certificates of the remote server could not be verified (and dialback is not available).", null);
+                        return;
+                    }
+                }
+                streamID = id;
+                state = State.TLS_FEATURES;
+                break;
+            case SASL_STREAM:
+                streamID = id;
+                usingServerDialback = false;
+                complete();
+                break;
+            default:
+                fail("Unexpected stream header in state " + state, null);
+        }
+    }
+
+    private void elementReceived(Element element) throws Exception {
+        switch (state) {
+            case FEATURES:
+                final boolean useTLS = configuration.getTlsPolicy() != Connection.TLSPolicy.disabled;
+                if (useTLS && element.element("starttls") != null) {
+                    log.debug("Securing the connection with TLS.");
+                    connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+                    state = State.STARTTLS;
+                }
+                else if (ServerDialback.isEnabled() && element.element("dialback") != null) {
+                    startDialback();
+                }
+                else {
+                    fail("Neither STARTTLS nor dialback can be used.", null);
+                }
+                break;
+            case STARTTLS:
+                if (!"proceed".equals(element.getName())) {
+                    fail("<proceed> was not received.", null);
+                    return;
+                }
+                connection.startTLS(true);
+                restartStream();
+                state = State.TLS_STREAM;
+                break;
+            case TLS_FEATURES:
+                if (isExternalOffered(element)) {
+                    log.debug("Authenticating with SASL EXTERNAL.");
+                    connection.deliverRawText("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">" +
+                            StringUtils.encodeBase64(localDomain) + "</auth>");
+                    state = State.SASL;
+                }
+                else {
+                    startDialbackOverTLS();
+                }
+                break;
+            case SASL:
+                if ("success".equals(element.getName())) {
+                    restartStream();
+                    state = State.SASL_STREAM;
+                }
+                else {
+                    log.debug("SASL EXTERNAL failed.");
+                    startDialbackOverTLS();
+                }
+                break;
+            case DIALBACK:
+                if ("db".equals(element.getNamespacePrefix()) && "result".equals(element.getName())) {
+                    if ("valid".equals(element.attributeValue("type"))) {
+                        complete();
+                    }
+                    else {
+                        fail("The dialback key was not accepted.", null);
+                    }
+                }
+                else {
+                    log.warn("Ignoring unexpected answer while waiting for dialback validation: " + element.asXML());
+                }
+                break;
+            default:
+                fail("Unexpected element in state " + state + ": " + element.asXML(), null);
+        }
+    }
+
+    private void startDialbackOverTLS() {
+        if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+            startDialback();
+        }
+        else {
+            fail("SASL EXTERNAL is not available and dialback is disabled.", null);
+        }
+    }
+
+    private void startDialback() {
+        log.debug("Authenticating with dialback.");
+        connection.deliverRawText("<db:result from=\"" + localDomain + "\" to=\"" + remoteDomain + "\">" +
+                ServerDialback.createKey(streamID) + "</db:result>");
+        state = State.DIALBACK;
+    }
+
+    private void openStream() {
+        connection.deliverRawText("<stream:stream" + STREAM_NAMESPACES +
+                " from=\"" + xmppDomain + "\"" +
+                " to=\"" + remoteDomain + "\" version=\"1.0\">");
+    }
+
+    /**
+     * Opens a new stream after TLS or SASL. The remote server starts a new XML document, so
+     * the stanzas are framed with a new parser.
+     */
+    private void restartStream() {
+        ioSession.setAttribute(ConnectionHandler.XML_PARSER, new XMLLightweightParser(StandardCharsets.UTF_8));
+        openStream();
+    }
+
+    private void complete() {
+        log.debug("Negotiated the stream (dialback: {}).", usingServerDialback);
+        state = State.COMPLETED;
+        cancelTimeout();
+        done.countDown();
+        notifyListeners();
+    }
+
+    private void fail(String reason, Throwable cause) {
+        if (state == State.COMPLETED || state == State.FAILED) {
+            return;
+        }
+        if (cause != null) {
+            log.debug("Unable to negotiate the stream: " + reason, cause);
+        }
+        else {
+            log.debug("Unable to negotiate the stream: {}", reason);
+        }
+        state = State.FAILED;
+        cancelTimeout();
+        if (connection != null) {
+            connection.close();
+        }
+        done.countDown();
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            }
+            catch (Exception e) {
+                log.error("Error notifying listener: " + listener, e);
+            }
+        }
+        listeners.clear();
+    }
+
+    private synchronized void timedOut() {
+        fail("Timed out waiting for the remote server.", null);
+    }
+
+    private void cancelTimeout() {
+        if (timeoutTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
+            timeoutTask = null;
+        }
+    }
+
+    private Element parseStreamHeader(String header) throws Exception {
+        return reader.read(new StringReader(header + "</stream:stream>")).getRootElement();
+    }
+
+    /**
+     * Parses an element of the stream. The element is wrapped in a stream element to bind the
+     * prefixes of the stream and dialback namespaces.
+     */
+    private Element parseElement(String stanza) throws Exception {
+        final Element stream = reader.read(new StringReader(
+                "<stream:stream" + STREAM_NAMESPACES + ">" + stanza + "</stream:stream>")).getRootElement();
+        for (int i = 0; i < stream.nodeCount(); i++) {
+            final Node node = stream.node(i);
+            if (node instanceof Element) {
+                return (Element) node.detach();
+            }
+        }
+        throw new IllegalArgumentException("Not an element: " + stanza);
+    }
+
+    private static boolean isStreamError(Element element) {
+        return "error".equals(element.getName()) && "stream".equals(element.getNamespacePrefix());
+    }
+
+    private static boolean isExternalOffered(Element features) {
+        final Element mechanisms = features.element("mechanisms");
+        if (mechanisms != null) {
+            for (int i = 0; i < mechanisms.nodeCount(); i++) {
+                final Node mechanism = mechanisms.node(i);
+                if (mechanism instanceof Element && "EXTERNAL".equals(((Element) mechanism).getTextTrim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVersion1(String version) {
+        if (version == null) {
+            return false;
+        }
+        final int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot == -1 ? version : version.substring(0, dot)) >= 1;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
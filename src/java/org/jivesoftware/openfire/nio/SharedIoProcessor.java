@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.concurrent.Executors;
+
+import org.apache.mina.core.service.IoProcessor;
+import org.apache.mina.core.service.SimpleIoProcessorPool;
+import org.apache.mina.transport.socket.nio.NioProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.NamedThreadFactory;
+
+/**
+ * The IO processors that the MINA acceptors and the connector of outgoing server connections
+ * share. Every processor is a thread that selects over the sockets of its sessions, so
+ * sharing them keeps the number of IO threads independent of the number of listeners and of
+ * remote servers. The events of the sessions are handled by the executor filters of the
+ * acceptors and the connector, not by these threads.
+ */
+public final class SharedIoProcessor {
+
+    private static IoProcessor<NioSession> instance;
+
+    private SharedIoProcessor() {
+    }
+
+    /**
+     * Returns the shared pool of IO processors. The pool has <tt>xmpp.processor.count</tt>
+     * processors, by default one for every available processor, and lives as long as the
+     * server.
+     *
+     * @return the shared pool of IO processors.
+     */
+    public static synchronized IoProcessor<NioSession> getInstance() {
+        if (instance == null) {
+            final int processorCount = JiveGlobals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
+            instance = new SimpleIoProcessorPool<>(NioProcessor.class,
+                    Executors.newCachedThreadPool(new NamedThreadFactory("nio-processor-", null, true, null)),
+                    processorCount);
+        }
+        return instance;
+    }
+}
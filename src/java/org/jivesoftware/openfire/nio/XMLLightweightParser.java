@@ -119,6 +119,16 @@ class XMLLightweightParser {
 			.onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
+    /**
+     * Returns the maximum number of queued chars (or bytes) of a stanza that is being
+     * parsed. Connections that send larger stanzas are closed.
+     *
+     * @return the maximum size of an incomplete stanza.
+     */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
     /*
     * true if the parser has found some complete xml message.
     */
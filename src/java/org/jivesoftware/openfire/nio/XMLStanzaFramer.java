@@ -0,0 +1,453 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+/**
+ * Finds the boundaries of XML stanzas directly on the UTF-8 encoded bytes read from
+ * a connection. This is the byte level alternative to {@link XMLLightweightParser}:
+ * the received bytes are never decoded into characters and no Strings are created.
+ * Each complete stanza is returned as its own array of UTF-8 bytes, which is then
+ * parsed by the {@link org.jivesoftware.openfire.net.StanzaHandler} without further
+ * copies.<p>
+ *
+ * All markup that matters for framing (tags, quotes, comments, CDATA sections and
+ * processing instructions) is ASCII, and bytes of multi-byte UTF-8 sequences are never
+ * in the ASCII range, so the framer does not need to know about character boundaries.<p>
+ *
+ * Like XMLLightweightParser, the framer returns the stream header and the closing
+ * stream tag as separate stanzas, and rejects control characters, illegal character
+ * references and stanzas that are larger than the maximum buffer size.
+ */
+class XMLStanzaFramer {
+
+    private static final byte[] CLOSING_STREAM = "</stream:stream>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STREAM_NAME = "stream:stream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FLASH_STREAM_NAME = "flash:stream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_START = "[CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    // Looking for the start of the next stanza.
+    private static final int INIT = 0;
+    // Found a '<' and waiting for the next byte to learn what kind of markup it is.
+    private static final int TAG_OPEN = 1;
+    // Inside a start tag (element name and attributes).
+    private static final int START_TAG = 2;
+    // Inside a quoted attribute value.
+    private static final int ATTRIBUTE_VALUE = 3;
+    // Found a '/' in a start tag, which may be the end of an empty element.
+    private static final int EMPTY_TAG = 4;
+    // Inside an end tag.
+    private static final int END_TAG = 5;
+    // Inside character data.
+    private static final int CONTENT = 6;
+    // Found "<!", which is the start of a comment or a CDATA section.
+    private static final int MARKUP_DECLARATION = 7;
+    // Inside a comment.
+    private static final int COMMENT = 8;
+    // Inside a CDATA section.
+    private static final int CDATA = 9;
+    // Inside a processing instruction or XML declaration.
+    private static final int PROCESSING_INSTRUCTION = 10;
+    // Inside a declaration other than a comment or CDATA section.
+    private static final int DECLARATION = 11;
+
+    private int status = INIT;
+
+    // Number of open elements of the current stanza.
+    private int depth = 0;
+
+    // Quote character that will close the current attribute value.
+    private byte quote;
+
+    // Number of bytes of a multi-byte delimiter (such as "-->") matched so far.
+    private int matched = 0;
+
+    // Name of the root element of the current stanza, used to detect stream headers.
+    private final byte[] rootName = new byte[STREAM_NAME.length + 1];
+    private int rootNameLength = 0;
+    private boolean readingRootName = false;
+
+    // True if the current stanza contains a character reference that must be checked.
+    private boolean hasCharacterReference = false;
+    private byte previous;
+
+    // Bytes of the current stanza that were received in previous reads.
+    private byte[] pending = new byte[0];
+    private int pendingLength = 0;
+
+    // Set when an error was found. Remaining data of the connection is discarded.
+    private boolean failed = false;
+
+    // Complete stanzas found in the last read.
+    private final List<byte[]> stanzas = new ArrayList<>();
+
+    /**
+     * Returns true if the last read found at least one complete stanza.
+     *
+     * @return true if there are stanzas to be processed.
+     */
+    public boolean areThereMsgs() {
+        return !stanzas.isEmpty();
+    }
+
+    /**
+     * Returns the stanzas found since the last invocation of this method.
+     *
+     * @return the UTF-8 encoded stanzas.
+     */
+    public List<byte[]> getMsgs() {
+        final List<byte[]> result = new ArrayList<>(stanzas);
+        stanzas.clear();
+        return result;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer, collecting every stanza that is
+     * completed by those bytes.
+     *
+     * @param byteBuffer the bytes received from the connection.
+     * @throws Exception if the data is not well formed or the stanza is too large.
+     */
+    public void read(IoBuffer byteBuffer) throws Exception {
+        final int start = byteBuffer.position();
+        final int limit = byteBuffer.limit();
+        byteBuffer.position(limit);
+        if (failed) {
+            // An exception was thrown before, discard remaining data.
+            return;
+        }
+
+        final ByteBuffer buf = byteBuffer.buf();
+        // Offset in the buffer where the (rest of the) current stanza starts.
+        int stanzaStart = start;
+        for (int i = start; i < limit; i++) {
+            final byte b = buf.get(i);
+            if (b >= 0 && b < 0x20 && b != 0x9 && b != 0xA && b != 0xD && b != 0x0) {
+                // Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+                // We need to allow the NULL character, however, for Flash XMLSocket clients to work.
+                fail();
+                throw new XMLNotWellFormedException("Character is invalid in: " + b);
+            }
+            if (b == '#' && previous == '&') {
+                hasCharacterReference = true;
+            }
+            previous = b;
+
+            switch (status) {
+                case INIT:
+                    if (b == '<') {
+                        stanzaStart = i;
+                        status = TAG_OPEN;
+                    }
+                    break;
+
+                case TAG_OPEN:
+                    if (b == '/') {
+                        status = END_TAG;
+                    }
+                    else if (b == '!') {
+                        status = MARKUP_DECLARATION;
+                        matched = 0;
+                    }
+                    else if (b == '?') {
+                        status = PROCESSING_INSTRUCTION;
+                    }
+                    else {
+                        status = START_TAG;
+                        if (depth == 0) {
+                            readingRootName = true;
+                            rootNameLength = 0;
+                        }
+                        depth++;
+                        appendRootName(b);
+                    }
+                    break;
+
+                case START_TAG:
+                    if (b == '"' || b == '\'') {
+                        readingRootName = false;
+                        quote = b;
+                        status = ATTRIBUTE_VALUE;
+                    }
+                    else if (b == '/') {
+                        readingRootName = false;
+                        status = EMPTY_TAG;
+                    }
+                    else if (b == '>') {
+                        readingRootName = false;
+                        status = CONTENT;
+                        if (depth == 1 && isStreamHeader()) {
+                            // The stream header is never closed until the end of the stream.
+                            depth = 0;
+                            emit(buf, stanzaStart, i);
+                        }
+                    }
+                    else if (readingRootName) {
+                        if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                            readingRootName = false;
+                        }
+                        else {
+                            appendRootName(b);
+                        }
+                    }
+                    break;
+
+                case ATTRIBUTE_VALUE:
+                    if (b == quote) {
+                        status = START_TAG;
+                    }
+                    break;
+
+                case EMPTY_TAG:
+                    if (b == '>') {
+                        depth--;
+                        status = CONTENT;
+                        if (depth == 0) {
+                            emit(buf, stanzaStart, i);
+                        }
+                    }
+                    else {
+                        status = START_TAG;
+                    }
+                    break;
+
+                case END_TAG:
+                    if (b == '>') {
+                        status = CONTENT;
+                        if (depth == 0) {
+                            // Closing tag of the stream (or stray closing tag).
+                            discard();
+                            stanzas.add(CLOSING_STREAM);
+                            status = INIT;
+                        }
+                        else {
+                            depth--;
+                            if (depth == 0) {
+                                emit(buf, stanzaStart, i);
+                            }
+                        }
+                    }
+                    break;
+
+                case CONTENT:
+                    if (b == '<') {
+                        status = TAG_OPEN;
+                    }
+                    break;
+
+                case MARKUP_DECLARATION:
+                    if (matched == 0 && b == '-') {
+                        // Second dash of "<!--" is verified in COMMENT.
+                        status = COMMENT;
+                        matched = -1;
+                    }
+                    else if (b == CDATA_START[matched]) {
+                        matched++;
+                        if (matched == CDATA_START.length) {
+                            status = CDATA;
+                            matched = 0;
+                        }
+                    }
+                    else {
+                        // Other declarations (such as a DOCTYPE) end at the next '>'.
+                        status = DECLARATION;
+                        matched = 0;
+                    }
+                    break;
+
+                case COMMENT:
+                    if (matched == -1) {
+                        // Skip the second dash of the comment start.
+                        matched = 0;
+                    }
+                    else if (b == '-') {
+                        matched = Math.min(matched + 1, 2);
+                    }
+                    else if (b == '>' && matched == 2) {
+                        endOfMarkup(buf, stanzaStart, i, false);
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+
+                case CDATA:
+                    if (b == ']') {
+                        // Also handles character data that ends with extra brackets, such as "]]]>".
+                        matched = Math.min(matched + 1, 2);
+                    }
+                    else if (b == '>' && matched == 2) {
+                        endOfMarkup(buf, stanzaStart, i, false);
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+
+                case PROCESSING_INSTRUCTION:
+                    if (b == '?') {
+                        matched = 1;
+                    }
+                    else if (b == '>' && matched == 1) {
+                        // XML declarations are passed on, like XMLLightweightParser does.
+                        endOfMarkup(buf, stanzaStart, i, true);
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+
+                case DECLARATION:
+                    if (b == '>') {
+                        endOfMarkup(buf, stanzaStart, i, false);
+                    }
+                    break;
+            }
+        }
+
+        if (status != INIT) {
+            // Keep the incomplete stanza for the next read.
+            final int from = stanzaStart;
+            if (pendingLength + (limit - from) > XMLLightweightParser.getMaxBufferSize()) {
+                fail();
+                // processing the exception takes quite long
+                final ProtocolDecoderException ex = new ProtocolDecoderException("Stopped parsing never ending stanza");
+                ex.setHexdump("(redacted hex dump of never ending stanza)");
+                throw ex;
+            }
+            ensurePendingCapacity(pendingLength + (limit - from));
+            copy(buf, from, limit, pending, pendingLength);
+            pendingLength += limit - from;
+        }
+    }
+
+    /**
+     * Invoked at the end of a comment, CDATA section, declaration or processing
+     * instruction. Inside an element these are part of the content. At the top
+     * level, processing instructions (the XML declaration) are passed on as
+     * stanzas of their own and everything else is ignored.
+     */
+    private void endOfMarkup(ByteBuffer buf, int stanzaStart, int end, boolean emitted) throws XMLNotWellFormedException {
+        matched = 0;
+        if (depth > 0) {
+            status = CONTENT;
+        }
+        else if (emitted) {
+            emit(buf, stanzaStart, end);
+        }
+        else {
+            discard();
+            status = INIT;
+        }
+    }
+
+    /**
+     * Adds the stanza that ends at the provided offset (inclusive) to the list of
+     * found stanzas and resets the status to look for the next stanza.
+     */
+    private void emit(ByteBuffer buf, int from, int end) throws XMLNotWellFormedException {
+        final byte[] stanza;
+        if (pendingLength == 0) {
+            stanza = new byte[end + 1 - from];
+            copy(buf, from, end + 1, stanza, 0);
+        }
+        else {
+            stanza = Arrays.copyOf(pending, pendingLength + end + 1 - from);
+            copy(buf, from, end + 1, stanza, pendingLength);
+        }
+        if (hasCharacterReference) {
+            final String text = new String(stanza, StandardCharsets.UTF_8);
+            if (XMLLightweightParser.hasIllegalCharacterReferences(text)) {
+                fail();
+                throw new XMLNotWellFormedException("Illegal character reference found in: " + text);
+            }
+        }
+        stanzas.add(stanza);
+        discard();
+        status = INIT;
+    }
+
+    /**
+     * Resets the state of the current stanza.
+     */
+    private void discard() {
+        depth = 0;
+        matched = 0;
+        rootNameLength = 0;
+        readingRootName = false;
+        hasCharacterReference = false;
+        pendingLength = 0;
+        if (pending.length > 4096) {
+            // Do not hold on to the memory of an exceptionally large stanza.
+            pending = new byte[0];
+        }
+    }
+
+    private void fail() {
+        failed = true;
+        pending = new byte[0];
+        pendingLength = 0;
+        stanzas.clear();
+    }
+
+    private void appendRootName(byte b) {
+        if (readingRootName && rootNameLength < rootName.length) {
+            rootName[rootNameLength++] = b;
+        }
+    }
+
+    private boolean isStreamHeader() {
+        return matchesRootName(STREAM_NAME) || matchesRootName(FLASH_STREAM_NAME);
+    }
+
+    private boolean matchesRootName(byte[] name) {
+        if (rootNameLength != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (rootName[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensurePendingCapacity(int capacity) {
+        if (pending.length < capacity) {
+            pending = Arrays.copyOf(pending, Math.max(capacity, pending.length * 2));
+        }
+    }
+
+    private static void copy(ByteBuffer buf, int from, int to, byte[] destination, int offset) {
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + from, destination, offset, to - from);
+        }
+        else {
+            for (int i = from; i < to; i++) {
+                destination[offset++] = buf.get(i);
+            }
+        }
+    }
+}
@@ -26,7 +26,8 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 
 /**
  * Decoder class that parses ByteBuffers and generates XML stanzas. Generated
- * stanzas are then passed to the next filters.
+ * stanzas are then passed to the next filters. Depending on the parser that was
+ * assigned to the session, stanzas are Strings or UTF-8 encoded byte arrays.
  *
  * @author Gaston Dombiak
  */
@@ -36,7 +37,20 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
 	protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
             throws Exception {
         // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        final Object attribute = session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (attribute instanceof XMLStanzaFramer) {
+            // Frame as many stanzas as possible from the received bytes
+            final XMLStanzaFramer framer = (XMLStanzaFramer) attribute;
+            framer.read(in);
+
+            if (framer.areThereMsgs()) {
+                for (byte[] stanza : framer.getMsgs()) {
+                    out.write(stanza);
+                }
+            }
+            return !in.hasRemaining();
+        }
+        XMLLightweightParser parser = (XMLLightweightParser) attribute;
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
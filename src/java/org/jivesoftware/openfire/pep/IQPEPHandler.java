@@ -23,9 +23,13 @@ package org.jivesoftware.openfire.pep;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.dom4j.DocumentHelper;
@@ -672,19 +676,38 @@ public class IQPEPHandler extends IQHandler implements ServerIdentitiesProvider,
             try {
                 final XMPPServer server = XMPPServer.getInstance();
                 final Roster roster = server.getRosterManager().getRoster(availableSessionJID.getNode());
+                // Load the services of the contacts in the background, then send the items
+                final List<Future<PEPService>> pepServices = new ArrayList<>();
                 for (final RosterItem item : roster.getRosterItems()) {
                     if (server.isLocal(item.getJid()) && (item.getSubStatus() == RosterItem.SUB_BOTH ||
                             item.getSubStatus() == RosterItem.SUB_TO)) {
-                        PEPService pepService = pepServiceManager.getPEPService(item.getJid().toBareJID());
-                        if (pepService != null) {
-                            pepService.sendLastPublishedItems(availableSessionJID);
-                        }
+                        pepServices.add(pepServiceManager.getPEPServiceAsync(item.getJid().toBareJID()));
+                    }
+                }
+                for (final Future<PEPService> future : pepServices) {
+                    PEPService pepService;
+                    try {
+                        pepService = future.get();
+                    }
+                    catch (ExecutionException e) {
+                        Log.error("Error loading a PEP service of a contact of " + availableSessionJID, e.getCause());
+                        continue;
+                    }
+                    catch (CancellationException e) {
+                        // The service manager was stopped
+                        return;
+                    }
+                    if (pepService != null) {
+                        pepService.sendLastPublishedItems(availableSessionJID);
                     }
                 }
             }
             catch (UserNotFoundException e) {
                 // Do nothing
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }    	
     }
 }
@@ -19,6 +19,22 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.database.DbConnectionManager;
@@ -26,7 +42,13 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.pubsub.CollectionNode;
 import org.jivesoftware.openfire.pubsub.Node;
 import org.jivesoftware.openfire.pubsub.PubSubEngine;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -36,7 +58,16 @@ import org.xmpp.packet.JID;
 
 /**
  * Manages the creation, persistence and removal of {@link PEPService}
- * instances.
+ * instances.<p>
+ *
+ * Services are loaded from the database when they are first needed. Only one
+ * thread loads the service of a user while other threads that need the same
+ * service wait for it. Services can also be loaded in the background by a
+ * small pool of loader threads, which keeps the number of database
+ * connections used for loading low when many users become available at once.
+ * Services that have not been used for a while are unloaded; the manager only
+ * remembers whether the user has a service so loading it again skips the
+ * lookup.
  * 
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  * 
@@ -48,14 +79,47 @@ public class PEPServiceManager {
 
 	private final static String GET_PEP_SERVICE = "SELECT DISTINCT serviceID FROM ofPubsubNode WHERE serviceID=?";
 
+	private static final String LOAD_TIME_STAT_KEY = "pep_load_time";
+	private static final String EVICTIONS_STAT_KEY = "pep_evictions";
+
 	/**
 	 * Cache of PEP services. Table, Key: bare JID (String); Value: PEPService
 	 */
 	private final Cache<String, PEPService> pepServices = CacheFactory
 			.createLocalCache("PEPServiceManager");
 
+	/**
+	 * Whether users own a PEP service. Table, Key: bare JID (String); Value:
+	 * true if the user owns a PEP service. Users without a service are not
+	 * looked up in the database again.
+	 */
+	private final Cache<String, Boolean> pepServiceDirectory = CacheFactory
+			.createLocalCache("PEP Service Directory");
+
+	/**
+	 * Services that are being loaded. Key: bare JID; Value: the load.
+	 */
+	private final ConcurrentMap<String, LoadTask> loading = new ConcurrentHashMap<>();
+
+	/**
+	 * Last time the loaded services were used. Key: bare JID; Value: time in
+	 * milliseconds.
+	 */
+	private final ConcurrentMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	private PubSubEngine pubSubEngine = null;
 
+	/**
+	 * Pool of threads that load services in the background.
+	 */
+	private ThreadPoolExecutor loader = null;
+
+	private TimerTask evictionTask = null;
+
 	/**
 	 * Retrieves a PEP service -- attempting first from memory, then from the
 	 * database.
@@ -65,27 +129,74 @@ public class PEPServiceManager {
 	 * @return the requested PEP service if found or null if not found.
 	 */
 	public PEPService getPEPService(String jid) {
-		PEPService pepService = null;
+		// lookup in cache
+		PEPService pepService = pepServices.get(jid);
+		if (pepService != null) {
+			lastAccess.put(jid, System.currentTimeMillis());
+			return pepService;
+		}
+		if (Boolean.FALSE.equals(pepServiceDirectory.get(jid))) {
+			return null;
+		}
 
-		final Lock lock = CacheFactory.getLock(jid, pepServices);
-		try {
-			lock.lock();
-			if (pepServices.containsKey(jid)) {
-				// lookup in cache
-				pepService = pepServices.get(jid);
-			} else {
-				// lookup in database.
-				pepService = loadPEPServiceFromDB(jid);
-				
-				// always add to the cache, even if it doesn't exist. This will
-				// prevent future database lookups.
-				pepServices.put(jid, pepService);
+		// lookup in database. Joins a load that is in progress or queued.
+		final LoadTask task = getLoadTask(jid);
+		task.run();
+		return task.getService();
+	}
+
+	/**
+	 * Retrieves a PEP service, loading it in the background if it's not in
+	 * memory yet.
+	 * 
+	 * @param jid
+	 *            the bare JID of the user that owns the PEP service.
+	 * @return the result of the retrieval, which is null if the service was
+	 *         not found.
+	 */
+	public Future<PEPService> getPEPServiceAsync(final String jid) {
+		final PEPService pepService = pepServices.get(jid);
+		if (pepService != null || Boolean.FALSE.equals(pepServiceDirectory.get(jid))) {
+			if (pepService != null) {
+				lastAccess.put(jid, System.currentTimeMillis());
 			}
-		} finally {
-			lock.unlock();
+			final FutureTask<PEPService> result = new FutureTask<>(new Callable<PEPService>() {
+				@Override
+				public PEPService call() {
+					return pepService;
+				}
+			});
+			result.run();
+			return result;
 		}
 
-		return pepService;
+		LoadTask task = loading.get(jid);
+		if (task == null) {
+			final LoadTask newTask = new LoadTask(jid);
+			task = loading.putIfAbsent(jid, newTask);
+			if (task == null) {
+				task = newTask;
+				final ThreadPoolExecutor executor = loader;
+				if (executor != null) {
+					executor.execute(task);
+				} else {
+					task.run();
+				}
+			}
+		}
+		return task;
+	}
+
+	private LoadTask getLoadTask(String jid) {
+		LoadTask task = loading.get(jid);
+		if (task == null) {
+			final LoadTask newTask = new LoadTask(jid);
+			task = loading.putIfAbsent(jid, newTask);
+			if (task == null) {
+				task = newTask;
+			}
+		}
+		return task;
 	}
 
 	public PEPService create(JID owner) {
@@ -98,9 +209,14 @@ public class PEPServiceManager {
 							+ owner);
 		}
 
-		PEPService pepService = null;
 		final String bareJID = owner.toBareJID();
-		final Lock lock = CacheFactory.getLock(owner, pepServices);
+		// wait for a load of the service that may be in progress
+		PEPService pepService = getPEPService(bareJID);
+		if (pepService != null) {
+			return pepService;
+		}
+
+		final Lock lock = CacheFactory.getLock(bareJID, pepServices);
 		try {
 			lock.lock();
 
@@ -108,6 +224,8 @@ public class PEPServiceManager {
 			if (pepService == null) {
 				pepService = new PEPService(XMPPServer.getInstance(), bareJID);
 				pepServices.put(bareJID, pepService);
+				pepServiceDirectory.put(bareJID, true);
+				lastAccess.put(bareJID, System.currentTimeMillis());
 
 				if (Log.isDebugEnabled()) {
 					Log.debug("PEPService created for : " + bareJID);
@@ -128,38 +246,167 @@ public class PEPServiceManager {
 	 * @return the loaded PEP service, or null if not found.
 	 */
 	private PEPService loadPEPServiceFromDB(String jid) {
-		PEPService pepService = null;
+		Boolean exists = pepServiceDirectory.get(jid);
+		if (exists == null) {
+			exists = existsInDB(jid);
+			if (exists == null) {
+				return null;
+			}
+			if (!exists) {
+				// remember that the service doesn't exist. This will
+				// prevent future database lookups.
+				pepServiceDirectory.put(jid, false);
+				return null;
+			}
+		}
+		else if (!exists) {
+			return null;
+		}
+
+		PEPService pepService;
+		final Lock lock = CacheFactory.getLock(jid, pepServices);
+		try {
+			lock.lock();
+			pepService = pepServices.get(jid);
+			if (pepService == null) {
+				final long start = System.nanoTime();
+				pepService = restoreService(jid);
+				pepServices.put(jid, pepService);
+				pepServiceDirectory.put(jid, true);
+				loadNanos.addAndGet(System.nanoTime() - start);
+				loadCount.incrementAndGet();
+
+				if (Log.isDebugEnabled()) {
+					Log.debug("PEP: Restored service for " + jid
+							+ " from the database.");
+				}
+			}
+			lastAccess.put(jid, System.currentTimeMillis());
+		} finally {
+			lock.unlock();
+		}
+
+		return pepService;
+	}
+
+	/**
+	 * Restores the PEP service of a user from the database and starts it.
+	 * 
+	 * @param jid
+	 *            the JID of the owner of the PEP service.
+	 * @return the restored PEP service.
+	 */
+	PEPService restoreService(String jid) {
+		final PEPService pepService = new PEPService(XMPPServer.getInstance(), jid);
+		pubSubEngine.start(pepService);
+		return pepService;
+	}
 
+	/**
+	 * Checks whether a PEP service exists in the database.
+	 * 
+	 * @param jid
+	 *            the JID of the owner of the PEP service.
+	 * @return true if the service exists, or null if the database could not
+	 *         be queried.
+	 */
+	Boolean existsInDB(String jid) {
 		Connection con = null;
 		PreparedStatement pstmt = null;
 		ResultSet rs = null;
 		try {
 			con = DbConnectionManager.getConnection();
-			// Get all PEP services
 			pstmt = con.prepareStatement(GET_PEP_SERVICE);
 			pstmt.setString(1, jid);
 			rs = pstmt.executeQuery();
-			// Restore old PEPServices
-			while (rs.next()) {
-				String serviceID = rs.getString(1);
-
-				// Create a new PEPService
-				pepService = new PEPService(XMPPServer.getInstance(), serviceID);
-				pepServices.put(serviceID, pepService);
-				pubSubEngine.start(pepService);
-
-				if (Log.isDebugEnabled()) {
-					Log.debug("PEP: Restored service for " + serviceID
-							+ " from the database.");
-				}
-			}
+			return rs.next();
 		} catch (SQLException sqle) {
 			Log.error(sqle.getMessage(), sqle);
+			return null;
 		} finally {
 			DbConnectionManager.closeConnection(rs, pstmt, con);
 		}
+	}
 
-		return pepService;
+	/**
+	 * Unloads the services that have not been used for longer than the idle
+	 * timeout. The services are loaded again from the database when they are
+	 * needed.
+	 */
+	void evictIdleServices() {
+		evictIdleServices(JiveGlobals.getLongProperty("xmpp.pep.idle.timeout", JiveConstants.MINUTE * 30));
+	}
+
+	/**
+	 * Unloads the services that have not been used for longer than a timeout.
+	 * 
+	 * @param idleTimeout
+	 *            the idle timeout in milliseconds, or 0 to unload nothing.
+	 */
+	void evictIdleServices(long idleTimeout) {
+		if (idleTimeout <= 0) {
+			return;
+		}
+		final long deadline = System.currentTimeMillis() - idleTimeout;
+		for (Map.Entry<String, Long> entry : lastAccess.entrySet()) {
+			if (entry.getValue() < deadline) {
+				evict(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void evict(String jid, Long accessed) {
+		PEPService service;
+		final Lock lock = CacheFactory.getLock(jid, pepServices);
+		try {
+			lock.lock();
+			if (!lastAccess.remove(jid, accessed)) {
+				// the service was used in the meantime
+				return;
+			}
+			service = pepServices.remove(jid);
+			if (service == null) {
+				// the service was removed from the cache already
+				return;
+			}
+			pepServiceDirectory.put(jid, true);
+		} finally {
+			lock.unlock();
+		}
+		// Stop executing ad-hoc commands
+		service.getManager().stop();
+		evictionCount.incrementAndGet();
+		if (Log.isDebugEnabled()) {
+			Log.debug("PEP: Unloaded idle service for " + jid);
+		}
+	}
+
+	/**
+	 * Returns the number of services that were loaded from the database.
+	 * 
+	 * @return the number of services that were loaded from the database.
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * Returns the total time spent loading services from the database.
+	 * 
+	 * @return the total load time in milliseconds.
+	 */
+	public long getLoadTime() {
+		return TimeUnit.NANOSECONDS.toMillis(loadNanos.get());
+	}
+
+	/**
+	 * Returns the number of services that were unloaded because they were not
+	 * used for longer than the idle timeout.
+	 * 
+	 * @return the number of unloaded idle services.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
 	}
 
 	/**
@@ -171,10 +418,12 @@ public class PEPServiceManager {
 	public void remove(JID owner) {
 		PEPService service = null;
 
-		final Lock lock = CacheFactory.getLock(owner, pepServices);
+		final Lock lock = CacheFactory.getLock(owner.toBareJID(), pepServices);
 		try {
 			lock.lock();
 			service = pepServices.remove(owner.toBareJID());
+			lastAccess.remove(owner.toBareJID());
+			pepServiceDirectory.put(owner.toBareJID(), false);
 		} finally {
 			lock.unlock();
 		}
@@ -200,17 +449,116 @@ public class PEPServiceManager {
 	public void start() {
 		pubSubEngine = new PubSubEngine(XMPPServer.getInstance()
 				.getPacketRouter());
+
+		// keep the amount of loaders low, they compete for database connections
+		final int threads = JiveGlobals.getIntProperty("xmpp.pep.loader.threads", 4);
+		loader = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(JiveGlobals.getIntProperty("xmpp.pep.loader.queue", 1000)),
+				new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						final Thread thread = new Thread(runnable, "PEP loader-" + counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+				new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							// stopping, don't leave the callers waiting
+							((Future<?>) task).cancel(false);
+						} else {
+							// load in the calling thread when the loaders can't keep up
+							task.run();
+						}
+					}
+				});
+		loader.allowCoreThreadTimeOut(true);
+
+		evictionTask = new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					evictIdleServices();
+				} catch (Exception e) {
+					Log.error("Error unloading idle PEP services", e);
+				}
+			}
+		};
+		TaskEngine.getInstance().schedule(evictionTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
+
+		addStatistics();
 	}
 
 	public void stop() {
+		StatisticsManager.getInstance().removeStatistic(LOAD_TIME_STAT_KEY);
+		StatisticsManager.getInstance().removeStatistic(EVICTIONS_STAT_KEY);
+
+		if (evictionTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(evictionTask);
+			evictionTask = null;
+		}
+		if (loader != null) {
+			loader.shutdownNow();
+			loader = null;
+		}
+		// loads that were queued or are running complete as cancelled, so
+		// nobody waits for a load that never runs
+		for (LoadTask task : loading.values()) {
+			task.cancel(false);
+		}
 
 		for (PEPService service : pepServices.values()) {
 			pubSubEngine.shutdown(service);
 		}
+		lastAccess.clear();
 
 		pubSubEngine = null;
 	}
 
+	private void addStatistics() {
+		StatisticsManager.getInstance().addStatistic(LOAD_TIME_STAT_KEY,
+				new i18nStatistic("pep.load_time", Statistic.Type.count) {
+			private long lastCount;
+			private long lastNanos;
+
+			@Override
+			public synchronized double sample() {
+				final long count = loadCount.get();
+				final long nanos = loadNanos.get();
+				final double average = count > lastCount ? (nanos - lastNanos) / ((count - lastCount) * 1000000d) : 0;
+				lastCount = count;
+				lastNanos = nanos;
+				return average;
+			}
+
+			@Override
+			public boolean isPartialSample() {
+				return false;
+			}
+		});
+		StatisticsManager.getInstance().addStatistic(EVICTIONS_STAT_KEY,
+				new i18nStatistic("pep.evictions", Statistic.Type.rate) {
+			private long lastSample;
+
+			@Override
+			public synchronized double sample() {
+				final long total = evictionCount.get();
+				final double delta = total - lastSample;
+				lastSample = total;
+				return delta;
+			}
+
+			@Override
+			public boolean isPartialSample() {
+				return true;
+			}
+		});
+	}
+
 	public void process(PEPService service, IQ iq) {
 		pubSubEngine.process(service, iq);
 	}
@@ -223,4 +571,55 @@ public class PEPServiceManager {
 	public void unload(PEPService service) {	
 		pubSubEngine.shutdown(service);
 	}
+
+	/**
+	 * Loads the service of a user. Only one load per user runs at a time.
+	 */
+	private class LoadTask extends FutureTask<PEPService> {
+
+		private final String jid;
+
+		LoadTask(final String jid) {
+			super(new Callable<PEPService>() {
+				@Override
+				public PEPService call() {
+					return loadPEPServiceFromDB(jid);
+				}
+			});
+			this.jid = jid;
+		}
+
+		@Override
+		protected void done() {
+			loading.remove(jid, this);
+		}
+
+		/**
+		 * Waits for the load to complete.
+		 * 
+		 * @return the loaded service or null if the service was not found.
+		 */
+		PEPService getService() {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} catch (ExecutionException e) {
+				Log.error("Error loading the PEP service of " + jid, e.getCause());
+				return null;
+			} catch (CancellationException e) {
+				// the manager was stopped
+				return null;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
 }
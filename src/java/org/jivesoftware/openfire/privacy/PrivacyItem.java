@@ -36,7 +36,7 @@ import java.util.Collections;
  *
  * @author Gaston Dombiak
  */
-class PrivacyItem implements Cacheable, Comparable {
+class PrivacyItem implements Cacheable, Comparable<PrivacyItem> {
 
     private int order;
     private boolean allow;
@@ -115,11 +115,8 @@ class PrivacyItem implements Cacheable, Comparable {
     }
 
     @Override
-    public int compareTo(Object object) {
-        if (object instanceof PrivacyItem) {
-            return this.order - ((PrivacyItem) object).order;
-        }
-        return getClass().getName().compareTo(object.getClass().getName());
+    public int compareTo(PrivacyItem item) {
+        return this.order - item.order;
     }
 
     /**
@@ -142,6 +139,61 @@ class PrivacyItem implements Cacheable, Comparable {
         return allow;
     }
 
+    /**
+     * Returns true if this item matches every sender (i.e. it has no type).
+     *
+     * @return true if this is a fall-through item.
+     */
+    boolean isFallThrough() {
+        return type == null;
+    }
+
+    JID getJIDValue() {
+        return jidValue;
+    }
+
+    String getGroupValue() {
+        return groupValue;
+    }
+
+    RosterItem.SubType getSubscriptionValue() {
+        return subscriptionValue;
+    }
+
+    /**
+     * Returns true if this item applies to outgoing presences. The recipient of an outgoing
+     * presence is matched against the item instead of the sender.
+     *
+     * @return true if this item applies to outgoing presences.
+     */
+    boolean isOutgoingPresenceFiltered() {
+        return filterEverything || filterPresence_out;
+    }
+
+    /**
+     * Returns true if this item applies to a kind of stanza.
+     *
+     * @param stanzaKind the kind of stanza as defined by {@link PrivacyListMatcher}.
+     * @return true if this item applies to the kind of stanza.
+     */
+    boolean isStanzaFiltered(int stanzaKind) {
+        if (filterEverything) {
+            return true;
+        }
+        switch (stanzaKind) {
+            case PrivacyListMatcher.MESSAGE:
+                return filterMessage;
+            case PrivacyListMatcher.IQ:
+                return filterIQ;
+            case PrivacyListMatcher.PRESENCE_IN:
+                return filterPresence_in;
+            case PrivacyListMatcher.PRESENCE_OUT:
+                return filterPresence_out;
+            default:
+                return false;
+        }
+    }
+
     private boolean matchesPacketSenderCondition(Packet packet, Roster roster, JID userJID) {
         if (type == null) {
             // This is the "fall-through" case
@@ -93,6 +93,10 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<>();
+    /**
+     * The items compiled for evaluation, replaced whenever the items change.
+     */
+    private volatile PrivacyListMatcher matcher = PrivacyListMatcher.EMPTY;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -162,21 +166,16 @@ public class PrivacyList implements Cacheable, Externalizable {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
-            }
+        // Find the first rule whose condition matches
+        PrivacyItem item = matcher.getMatchingItem(packet, userJID);
+        if (item == null || item.isAllow()) {
+            // If no rule blocked the communication then allow the packet to flow
+            return false;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("PrivacyList: Packet was blocked: " + packet);
         }
-        // If no rule blocked the communication then allow the packet to flow
-        return false;
+        return true;
     }
 
     /**
@@ -215,7 +214,7 @@ public class PrivacyList implements Cacheable, Externalizable {
      */
     private void updateList(Element listElement, boolean notify) {
         // Reset the list of items of this list
-        items = new ArrayList<>();
+        List<PrivacyItem> items = new ArrayList<>();
 
         List<Element> itemsElements = listElement.elements("item");
         for (Element itemElement : itemsElements) {
@@ -233,6 +232,8 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        this.items = items;
+        this.matcher = PrivacyListMatcher.compile(items);
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
@@ -17,10 +17,22 @@
 package org.jivesoftware.openfire.privacy;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.event.GroupEventAdapter;
+import org.jivesoftware.openfire.event.GroupEventDispatcher;
+import org.jivesoftware.openfire.event.SessionEventDispatcher;
+import org.jivesoftware.openfire.event.SessionEventListener;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterEventDispatcher;
+import org.jivesoftware.openfire.roster.RosterEventListener;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -58,6 +70,66 @@ public class PrivacyListManager {
             }
         };
         instance.addListener(eventListener);
+
+        // Compiled privacy lists remember the roster groups and subscriptions of contacts
+        RosterEventDispatcher.addListener(new RosterEventListener() {
+            @Override
+            public void rosterLoaded(Roster roster) {
+                PrivacyListMatcher.rosterChanged(roster.getUsername());
+            }
+
+            @Override
+            public boolean addingContact(Roster roster, RosterItem item, boolean persistent) {
+                return true;
+            }
+
+            @Override
+            public void contactAdded(Roster roster, RosterItem item) {
+                PrivacyListMatcher.rosterChanged(roster.getUsername());
+            }
+
+            @Override
+            public void contactUpdated(Roster roster, RosterItem item) {
+                PrivacyListMatcher.rosterChanged(roster.getUsername());
+            }
+
+            @Override
+            public void contactDeleted(Roster roster, RosterItem item) {
+                PrivacyListMatcher.rosterChanged(roster.getUsername());
+            }
+        });
+        // Shared groups are part of the rosters of their members (and of other groups)
+        GroupEventDispatcher.addListener(new SharedGroupListener());
+        // Stop tracking the rosters of users that logged out
+        SessionEventDispatcher.addListener(new SessionEventListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                // Do nothing
+            }
+
+            @Override
+            public void sessionDestroyed(Session session) {
+                final String username = session.getAddress().getNode();
+                if (username != null && SessionManager.getInstance().getSessionCount(username) == 0) {
+                    PrivacyListMatcher.rosterUnloaded(username);
+                }
+            }
+
+            @Override
+            public void anonymousSessionCreated(Session session) {
+                // Do nothing
+            }
+
+            @Override
+            public void anonymousSessionDestroyed(Session session) {
+                // Do nothing
+            }
+
+            @Override
+            public void resourceBound(Session session) {
+                // Do nothing
+            }
+        });
     }
 
     /**
@@ -253,4 +325,41 @@ public class PrivacyListManager {
             listener.privacyListModified(privacyList);
         }
     }
+
+    /**
+     * Discards the rosters known to {@link PrivacyListMatcher} when a group changes.
+     */
+    @SuppressWarnings("rawtypes")
+    private static class SharedGroupListener extends GroupEventAdapter {
+
+        @Override
+        public void groupDeleting(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+
+        @Override
+        public void groupModified(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+
+        @Override
+        public void memberAdded(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+
+        @Override
+        public void memberRemoved(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+
+        @Override
+        public void adminAdded(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+
+        @Override
+        public void adminRemoved(Group group, Map params) {
+            PrivacyListMatcher.rostersChanged();
+        }
+    }
 }
@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * The items of a privacy list compiled for evaluation. For every kind of stanza and direction
+ * the items that apply are indexed by full JID, bare JID, domain, roster group and
+ * subscription, mapped to their position in the list. The item that decides about a packet is
+ * the matching item with the lowest position, so a few hash lookups give the same result as
+ * walking the items in order.<p>
+ *
+ * The roster groups and subscription of the contacts that were looked up are remembered until
+ * the roster of the owner of the list changes. A roster changes when one of its items changes,
+ * when a shared group changes or when the cached roster is replaced (e.g. it was reloaded or
+ * updated by another cluster node).
+ */
+final class PrivacyListMatcher {
+
+    private static final Logger Log = LoggerFactory.getLogger(PrivacyListMatcher.class);
+
+    // Kinds of stanzas
+    static final int MESSAGE = 0;
+    static final int IQ = 1;
+    static final int PRESENCE_IN = 2;
+    static final int PRESENCE_OUT = 3;
+    static final int OTHER = 4;
+    private static final int KINDS = 5;
+
+    // Directions of stanzas
+    private static final int INCOMING = 0;
+    private static final int OUTGOING_PRESENCE = 1;
+    private static final int OUTGOING = 2;
+    private static final int DIRECTIONS = 3;
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * Maximum number of contacts of which the roster groups and subscription are remembered.
+     */
+    private static final int MAX_CONTACTS = 1000;
+
+    static final PrivacyListMatcher EMPTY = new PrivacyListMatcher(Collections.<PrivacyItem>emptyList());
+
+    /**
+     * Maximum number of rosters of which the version is tracked.
+     */
+    private static final int MAX_ROSTERS = 10000;
+
+    /**
+     * Version of the roster by username, changed when a roster changes. Only rosters that a
+     * matcher depends on are tracked. A roster that is no longer tracked gets a new version
+     * when it's tracked again, so removing entries only causes contacts to be looked up again.
+     */
+    private static final ConcurrentMap<String, Long> rosterVersions = new ConcurrentHashMap<>();
+    private static final AtomicLong rosterVersion = new AtomicLong();
+
+    private final PrivacyItem[] items;
+    private final Table[] tables = new Table[KINDS * DIRECTIONS];
+    private volatile Contacts contacts;
+
+    private PrivacyListMatcher(List<PrivacyItem> items) {
+        this.items = items.toArray(new PrivacyItem[items.size()]);
+        for (int kind = 0; kind < KINDS; kind++) {
+            for (int direction = 0; direction < DIRECTIONS; direction++) {
+                final Table table = new Table();
+                for (int position = 0; position < this.items.length; position++) {
+                    table.add(this.items[position], position, kind, direction);
+                }
+                tables[kind * DIRECTIONS + direction] = table;
+            }
+        }
+    }
+
+    /**
+     * Compiles the items of a privacy list.
+     *
+     * @param items the items of the list in the order of evaluation.
+     * @return the compiled items.
+     */
+    static PrivacyListMatcher compile(List<PrivacyItem> items) {
+        return items.isEmpty() ? EMPTY : new PrivacyListMatcher(items);
+    }
+
+    /**
+     * Returns the first item of the list that matches a packet.
+     *
+     * @param packet the packet to evaluate.
+     * @param userJID the JID of the owner of the list.
+     * @return the first item that matches the packet or null if no item matches.
+     */
+    PrivacyItem getMatchingItem(Packet packet, JID userJID) {
+        final JID from = packet.getFrom();
+        if (items.length == 0 || from == null) {
+            return null;
+        }
+        final String userBareJID = userJID.toBareJID();
+        final Class<?> packetClass = packet.getClass();
+
+        final int kind;
+        if (Message.class.equals(packetClass)) {
+            kind = MESSAGE;
+        }
+        else if (IQ.class.equals(packetClass)) {
+            kind = IQ;
+        }
+        else if (Presence.class.equals(packetClass)) {
+            final Presence.Type presenceType = ((Presence) packet).getType();
+            if (presenceType == null || presenceType == Presence.Type.unavailable) {
+                final JID to = packet.getTo();
+                kind = to != null && to.toBareJID().equals(userBareJID) ? PRESENCE_IN : PRESENCE_OUT;
+            }
+            else {
+                kind = OTHER;
+            }
+        }
+        else {
+            kind = OTHER;
+        }
+
+        final int direction;
+        final JID contact;
+        if (!userBareJID.equals(from.toBareJID())) {
+            direction = INCOMING;
+            contact = from;
+        }
+        else if (Presence.class.equals(packetClass)) {
+            direction = OUTGOING_PRESENCE;
+            contact = packet.getTo();
+        }
+        else {
+            direction = OUTGOING;
+            contact = null;
+        }
+
+        final Table table = tables[kind * DIRECTIONS + direction];
+        int position = table.fallThrough;
+        if (contact != null) {
+            position = Math.min(position, table.getPosition(contact, userJID));
+        }
+        return position == NONE ? null : items[position];
+    }
+
+    /**
+     * Forgets the roster groups and subscriptions of the contacts of a user.
+     *
+     * @param username the user whose roster changed.
+     */
+    static void rosterChanged(String username) {
+        if (rosterVersions.containsKey(username)) {
+            rosterVersions.put(username, rosterVersion.incrementAndGet());
+        }
+    }
+
+    /**
+     * Forgets the roster groups and subscriptions of the contacts of all users. Shared groups
+     * are part of the rosters of many users and a change to a shared group may not fire
+     * roster events.
+     */
+    static void rostersChanged() {
+        rosterVersions.clear();
+    }
+
+    /**
+     * Stops tracking the roster of a user that is no longer used (e.g. the user logged out).
+     *
+     * @param username the user whose roster is no longer used.
+     */
+    static void rosterUnloaded(String username) {
+        rosterVersions.remove(username);
+    }
+
+    /**
+     * Returns the roster groups and subscription of a contact of the owner of the list.
+     */
+    private Contact getContact(JID jid, JID userJID) {
+        final String username = userJID.getNode();
+        final Roster roster;
+        try {
+            roster = XMPPServer.getInstance().getRosterManager().getRoster(username);
+        }
+        catch (UserNotFoundException e) {
+            // The user has no roster
+            return Contact.UNKNOWN;
+        }
+        Long version = rosterVersions.get(username);
+        if (version == null) {
+            if (rosterVersions.size() >= MAX_ROSTERS) {
+                rosterVersions.clear();
+            }
+            rosterVersions.putIfAbsent(username, rosterVersion.incrementAndGet());
+            version = rosterVersions.get(username);
+        }
+        Contacts current = contacts;
+        if (current == null || current.version != version || current.roster != roster) {
+            current = new Contacts(version, roster);
+            contacts = current;
+        }
+        final String bareJID = jid.toBareJID();
+        Contact contact = current.contacts.get(bareJID);
+        if (contact == null) {
+            contact = lookupContact(jid, roster);
+            if (current.contacts.size() < MAX_CONTACTS) {
+                current.contacts.put(bareJID, contact);
+            }
+        }
+        return contact;
+    }
+
+    private static Contact lookupContact(JID jid, Roster roster) {
+        try {
+            final RosterItem item = roster.getRosterItem(jid);
+            return new Contact(new ArrayList<>(item.getGroups()), item.getSubStatus());
+        }
+        catch (UserNotFoundException e) {
+            // Not in the roster of the user
+            Log.trace("Contact {} not found in roster of {}", jid, roster.getUsername());
+        }
+        return Contact.UNKNOWN;
+    }
+
+    /**
+     * The positions of the items that apply to a kind of stanza in a direction.
+     */
+    private final class Table {
+
+        private Map<String, Integer> fullJIDs;
+        private Map<String, Integer> bareJIDs;
+        private Map<String, Integer> domains;
+        private Map<String, Integer> groups;
+        private Map<RosterItem.SubType, Integer> subscriptions;
+        private int fallThrough = NONE;
+
+        private void add(PrivacyItem item, int position, int kind, int direction) {
+            if (!item.isStanzaFiltered(kind)) {
+                return;
+            }
+            if (item.isFallThrough()) {
+                fallThrough = Math.min(fallThrough, position);
+                return;
+            }
+            if (direction == OUTGOING || (direction == OUTGOING_PRESENCE && !item.isOutgoingPresenceFiltered())) {
+                return;
+            }
+            final JID jid = item.getJIDValue();
+            if (jid != null) {
+                if (jid.getResource() != null) {
+                    fullJIDs = put(fullJIDs, jid.toString(), position);
+                }
+                else if (jid.getNode() != null) {
+                    bareJIDs = put(bareJIDs, jid.toBareJID(), position);
+                }
+                else {
+                    domains = put(domains, jid.getDomain(), position);
+                }
+            }
+            else if (item.getSubscriptionValue() != null) {
+                if (subscriptions == null) {
+                    subscriptions = new EnumMap<>(RosterItem.SubType.class);
+                }
+                if (!subscriptions.containsKey(item.getSubscriptionValue())) {
+                    subscriptions.put(item.getSubscriptionValue(), position);
+                }
+            }
+            else {
+                groups = put(groups, item.getGroupValue(), position);
+            }
+        }
+
+        private <K> Map<K, Integer> put(Map<K, Integer> map, K key, int position) {
+            if (map == null) {
+                map = new HashMap<>();
+            }
+            // Items are added in order, the first one wins
+            if (!map.containsKey(key)) {
+                map.put(key, position);
+            }
+            return map;
+        }
+
+        private boolean isRosterRequired() {
+            return groups != null || subscriptions != null;
+        }
+
+        private int getPosition(JID jid, JID userJID) {
+            int position = NONE;
+            if (fullJIDs != null) {
+                position = min(position, fullJIDs.get(jid.toString()));
+            }
+            if (bareJIDs != null) {
+                position = min(position, bareJIDs.get(jid.toBareJID()));
+            }
+            if (domains != null) {
+                position = min(position, domains.get(jid.getDomain()));
+            }
+            if (isRosterRequired()) {
+                final Contact contact = getContact(jid, userJID);
+                if (groups != null) {
+                    for (String group : contact.groups) {
+                        position = min(position, groups.get(group));
+                    }
+                }
+                if (subscriptions != null) {
+                    position = min(position, subscriptions.get(contact.subscription));
+                }
+            }
+            return position;
+        }
+
+        private int min(int position, Integer candidate) {
+            return candidate != null && candidate < position ? candidate : position;
+        }
+    }
+
+    /**
+     * The contacts of the owner of the list that were looked up in a version of the roster.
+     */
+    private static final class Contacts {
+
+        private final long version;
+        private final Roster roster;
+        private final Map<String, Contact> contacts = new ConcurrentHashMap<>();
+
+        private Contacts(long version, Roster roster) {
+            this.version = version;
+            this.roster = roster;
+        }
+    }
+
+    private static final class Contact {
+
+        private static final Contact UNKNOWN = new Contact(Collections.<String>emptyList(), RosterItem.SUB_NONE);
+
+        private final Collection<String> groups;
+        private final RosterItem.SubType subscription;
+
+        private Contact(Collection<String> groups, RosterItem.SubType subscription) {
+            this.groups = groups;
+            this.subscription = subscription;
+        }
+    }
+}
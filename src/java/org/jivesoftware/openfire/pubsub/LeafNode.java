@@ -258,15 +258,8 @@ public class LeafNode extends Node {
         Message message = new Message();
         Element event = message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
         // Broadcast event notification to subscribers and parent node subscribers
-        Set<NodeAffiliate> affiliatesToNotify = new HashSet<>(affiliates);
-        // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
-        for (CollectionNode parentNode : getParents()) {
-            for (NodeSubscription subscription : parentNode.getSubscriptions()) {
-                affiliatesToNotify.add(subscription.getAffiliate());
-            }
-        }
         // TODO Use another thread for this (if # of subscribers is > X)????
-        for (NodeAffiliate affiliate : affiliatesToNotify) {
+        for (NodeAffiliate affiliate : getAffiliatesToNotify()) {
             affiliate.sendPublishedNotifications(message, event, this, newPublishedItems);
         }
     }
@@ -296,20 +289,39 @@ public class LeafNode extends Node {
                     message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
             // Send notification that items have been deleted to subscribers and parent node
             // subscribers
-            Set<NodeAffiliate> affiliatesToNotify = new HashSet<>(affiliates);
-            // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
-            for (CollectionNode parentNode : getParents()) {
-                for (NodeSubscription subscription : parentNode.getSubscriptions()) {
-                    affiliatesToNotify.add(subscription.getAffiliate());
-                }
-            }
             // TODO Use another thread for this (if # of subscribers is > X)????
-            for (NodeAffiliate affiliate : affiliatesToNotify) {
+            for (NodeAffiliate affiliate : getAffiliatesToNotify()) {
                 affiliate.sendDeletionNotifications(message, event, this, toDelete);
             }
         }
     }
 
+    /**
+     * Returns the affiliates that own a subscription to this node or to a parent in the
+     * hierarchy of parent nodes that may receive event notifications. Affiliates without
+     * such subscriptions would not get any notification so they are skipped.
+     *
+     * @return the affiliates that may receive event notifications of the node.
+     */
+    private Set<NodeAffiliate> getAffiliatesToNotify() {
+        Set<NodeAffiliate> affiliatesToNotify = new HashSet<>();
+        addAffiliatesToNotify(this, affiliatesToNotify);
+        // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
+        for (CollectionNode parentNode : getParents()) {
+            addAffiliatesToNotify(parentNode, affiliatesToNotify);
+        }
+        return affiliatesToNotify;
+    }
+
+    private static void addAffiliatesToNotify(Node node, Set<NodeAffiliate> affiliatesToNotify) {
+        for (NodeSubscription subscription : node.getDeliverySubscriptions()) {
+            NodeAffiliate affiliate = subscription.getAffiliate();
+            if (affiliate != null) {
+                affiliatesToNotify.add(affiliate);
+            }
+        }
+    }
+
     /**
      * Sends an IQ result with the list of items published to the node. Item ID and payload
      * may be included in the result based on the node configuration.
@@ -27,6 +27,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
@@ -190,6 +191,29 @@ public abstract class Node {
      */
     protected Map<String, NodeSubscription> subscriptionsByJID =
             new ConcurrentHashMap<>();
+    /**
+     * Index of the current subscriptions to the node by the owner of the subscriptions.
+     * Key: Owner JID, Value: the subscriptions of the owner by subscription ID.
+     */
+    private final Map<JID, Map<String, NodeSubscription>> subscriptionsByOwner =
+            new ConcurrentHashMap<>();
+    /**
+     * Subscriptions that have been approved and configured to receive event notifications.
+     * Only these subscriptions may get event notifications; conditions that change over time,
+     * such as the expiration of the subscription or the presence of the subscriber, are still
+     * checked when a notification is sent.
+     * Key: Subscription ID, Value: the subscription.
+     */
+    private final Map<String, NodeSubscription> deliverySubscriptions =
+            new ConcurrentHashMap<>();
+    /**
+     * Index of the affiliates of the node by the JID of the affiliate.
+     */
+    private final ConcurrentMap<JID, NodeAffiliate> affiliatesByJID = new ConcurrentHashMap<>();
+    /**
+     * Lock that keeps the subscription indexes consistent with the subscriptions.
+     */
+    private final Object subscriptionsLock = new Object();
 
     Node(PubSubService service, CollectionNode parent, String nodeID, JID creator) {
         this.service = service;
@@ -361,6 +385,15 @@ public abstract class Node {
     private void removeAffiliation(NodeAffiliate affiliate) {
         // Remove the existing affiliate from the list in memory
         affiliates.remove(affiliate);
+        if (affiliatesByJID.remove(affiliate.getJID(), affiliate)) {
+            // Index another affiliate of the same entity, if any
+            for (NodeAffiliate other : affiliates) {
+                if (affiliate.getJID().equals(other.getJID())) {
+                    affiliatesByJID.putIfAbsent(other.getJID(), other);
+                    break;
+                }
+            }
+        }
         if (savedToDB) {
             // Remove the affiliate from the database
             PubSubPersistenceManager.removeAffiliation(this, affiliate);
@@ -388,13 +421,33 @@ public abstract class Node {
      * @return the list of subscriptions owned by the specified user.
      */
     public Collection<NodeSubscription> getSubscriptions(JID owner) {
-        Collection<NodeSubscription> subscriptions = new ArrayList<>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
-            if (owner.equals(subscription.getOwner())) {
-                subscriptions.add(subscription);
-            }
+        Map<String, NodeSubscription> subscriptions = subscriptionsByOwner.get(owner);
+        if (subscriptions == null) {
+            return new ArrayList<>();
         }
-        return subscriptions;
+        return new ArrayList<>(subscriptions.values());
+    }
+
+    /**
+     * Returns the number of subscriptions owned by the specified user.
+     *
+     * @param owner the owner of the subscriptions.
+     * @return the number of subscriptions owned by the specified user.
+     */
+    int getSubscriptionCount(JID owner) {
+        Map<String, NodeSubscription> subscriptions = subscriptionsByOwner.get(owner);
+        return subscriptions == null ? 0 : subscriptions.size();
+    }
+
+    /**
+     * Returns the subscriptions that have been approved and configured to receive event
+     * notifications. Whether a notification can be sent to one of these subscriptions still
+     * depends on the subscription (e.g. its expiration or the presence of the subscriber).
+     *
+     * @return the subscriptions that may receive event notifications.
+     */
+    Collection<NodeSubscription> getDeliverySubscriptions() {
+        return deliverySubscriptions.values();
     }
 
     /**
@@ -430,12 +483,7 @@ public abstract class Node {
      * @return the NodeAffiliate of the specified JID or <tt>null</tt> if none was found.
      */
     public NodeAffiliate getAffiliate(JID jid) {
-        for (NodeAffiliate affiliate : affiliates) {
-            if (jid.equals(affiliate.getJID())) {
-                return affiliate;
-            }
-        }
-        return null;
+        return affiliatesByJID.get(jid);
     }
 
     /**
@@ -1774,12 +1822,76 @@ public abstract class Node {
 
     public void addAffiliate(NodeAffiliate affiliate) {
         affiliates.add(affiliate);
+        affiliatesByJID.putIfAbsent(affiliate.getJID(), affiliate);
     }
 
     public void addSubscription(NodeSubscription subscription)
     {
-        subscriptionsByID.put(subscription.getID(), subscription);
-        subscriptionsByJID.put(subscription.getJID().toString(), subscription);
+        synchronized (subscriptionsLock) {
+            // A subscription loaded again from the database replaces the existing one
+            NodeSubscription existing = subscriptionsByID.put(subscription.getID(), subscription);
+            if (existing != null) {
+                unindexSubscription(existing);
+            }
+            subscriptionsByJID.put(subscription.getJID().toString(), subscription);
+            Map<String, NodeSubscription> ownerSubscriptions = subscriptionsByOwner.get(subscription.getOwner());
+            if (ownerSubscriptions == null) {
+                ownerSubscriptions = new ConcurrentHashMap<>();
+                subscriptionsByOwner.put(subscription.getOwner(), ownerSubscriptions);
+            }
+            ownerSubscriptions.put(subscription.getID(), subscription);
+            updateDeliverySubscriptions(subscription);
+        }
+    }
+
+    /**
+     * Removes a subscription from the memory of the node.
+     *
+     * @param subscription the subscription to remove. It may be a copy of the subscription
+     *        that was added to the node (e.g. when removed by another cluster node).
+     */
+    private void removeSubscription(NodeSubscription subscription) {
+        synchronized (subscriptionsLock) {
+            NodeSubscription existing = subscriptionsByID.remove(subscription.getID());
+            subscriptionsByJID.remove(subscription.getJID().toString());
+            unindexSubscription(existing != null ? existing : subscription);
+        }
+    }
+
+    private void unindexSubscription(NodeSubscription subscription) {
+        Map<String, NodeSubscription> ownerSubscriptions = subscriptionsByOwner.get(subscription.getOwner());
+        if (ownerSubscriptions != null) {
+            ownerSubscriptions.remove(subscription.getID());
+            if (ownerSubscriptions.isEmpty()) {
+                subscriptionsByOwner.remove(subscription.getOwner());
+            }
+        }
+        deliverySubscriptions.remove(subscription.getID());
+    }
+
+    /**
+     * Notification that the state or the configuration of a subscription has changed, so
+     * the subscription may have started or stopped to receive event notifications.
+     *
+     * @param subscription the subscription that has changed.
+     */
+    void subscriptionUpdated(NodeSubscription subscription) {
+        synchronized (subscriptionsLock) {
+            // Ignore subscriptions that are still being created or have been cancelled
+            if (subscriptionsByID.get(subscription.getID()) == subscription) {
+                updateDeliverySubscriptions(subscription);
+            }
+        }
+    }
+
+    private void updateDeliverySubscriptions(NodeSubscription subscription) {
+        if (subscription.getState() == NodeSubscription.State.subscribed &&
+                subscription.shouldDeliverNotifications()) {
+            deliverySubscriptions.put(subscription.getID(), subscription);
+        }
+        else {
+            deliverySubscriptions.remove(subscription.getID());
+        }
     }
 
     /**
@@ -1797,7 +1909,7 @@ public abstract class Node {
      */
     public NodeSubscription getSubscription(JID subscriberJID) {
         // Check that node does not support multiple subscriptions
-        if (isMultipleSubscriptionsEnabled() && (getSubscriptions(subscriberJID).size() > 1)) {
+        if (isMultipleSubscriptionsEnabled() && (getSubscriptionCount(subscriberJID) > 1)) {
             throw new IllegalStateException("Multiple subscriptions is enabled so subscriptions " +
                     "should be retrieved using subID.");
         }
@@ -1855,8 +1967,13 @@ public abstract class Node {
             CacheFactory.doClusterTask(new RemoveNodeTask(this));
             // Clear collections in memory (clear them after broadcast was sent)
             affiliates.clear();
-            subscriptionsByID.clear();
-            subscriptionsByJID.clear();
+            affiliatesByJID.clear();
+            synchronized (subscriptionsLock) {
+                subscriptionsByID.clear();
+                subscriptionsByJID.clear();
+                subscriptionsByOwner.clear();
+                deliverySubscriptions.clear();
+            }
             return true;
         }
         return false;
@@ -1988,11 +2105,18 @@ public abstract class Node {
      */
     protected void broadcastNodeEvent(Message message, boolean includeAll) {
         Collection<JID> jids = new ArrayList<>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
-            if (includeAll || subscription.canSendNodeEvents()) {
+        if (includeAll) {
+            for (NodeSubscription subscription : subscriptionsByID.values()) {
                 jids.add(subscription.getJID());
             }
         }
+        else {
+            for (NodeSubscription subscription : deliverySubscriptions.values()) {
+                if (subscription.canSendNodeEvents()) {
+                    jids.add(subscription.getJID());
+                }
+            }
+        }
         // Broadcast packet to subscribers
         service.broadcast(this, message, jids);
     }
@@ -2118,7 +2242,7 @@ public abstract class Node {
         }
 
         // Check if we need to subscribe to the presence of the owner
-        if (isPresenceBasedDelivery() && getSubscriptions(subscription.getOwner()).size() == 1) {
+        if (isPresenceBasedDelivery() && getSubscriptionCount(subscription.getOwner()) == 1) {
             if (subscription.getPresenceStates().isEmpty()) {
                 // Subscribe to the owner's presence since the node is only sending events to
                 // online subscribers and this is the first subscription of the user and the
@@ -2138,12 +2262,11 @@ public abstract class Node {
      */
     public void cancelSubscription(NodeSubscription subscription, boolean sendToCluster) {
         // Remove subscription from memory
-        subscriptionsByID.remove(subscription.getID());
-        subscriptionsByJID.remove(subscription.getJID().toString());
+        removeSubscription(subscription);
         // Check if user has affiliation of type "none" and there are no more subscriptions
         NodeAffiliate affiliate = subscription.getAffiliate();
         if (affiliate != null && affiliate.getAffiliation() == NodeAffiliate.Affiliation.none &&
-                getSubscriptions(subscription.getOwner()).isEmpty()) {
+                getSubscriptionCount(subscription.getOwner()) == 0) {
             // Remove affiliation of type "none"
             removeAffiliation(affiliate);
         }
@@ -2156,7 +2279,7 @@ public abstract class Node {
         }
 
         // Check if we need to unsubscribe from the presence of the owner
-        if (isPresenceBasedDelivery() && getSubscriptions(subscription.getOwner()).isEmpty()) {
+        if (isPresenceBasedDelivery() && getSubscriptionCount(subscription.getOwner()) == 0) {
             service.presenceSubscriptionNotRequired(this, subscription.getOwner());
         }
     }
@@ -333,6 +333,7 @@ public class NodeSubscription {
 
     void setShouldDeliverNotifications(boolean deliverNotifications) {
         this.deliverNotifications = deliverNotifications;
+        node.subscriptionUpdated(this);
     }
 
     void setUsingDigest(boolean usingDigest) {
@@ -494,6 +495,7 @@ public class NodeSubscription {
                 }
             }
         }
+        node.subscriptionUpdated(this);
         if (savedToDB) {
             // Update the subscription in the backend store
             PubSubPersistenceManager.saveSubscription(node, this, false);
@@ -858,6 +860,7 @@ public class NodeSubscription {
             return;
         }
         state = State.subscribed;
+        node.subscriptionUpdated(this);
 
         if (savedToDB) {
             // Update the subscription in the backend store
@@ -0,0 +1,354 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.pubsub.PubSubPersistenceManager.RetryWrapper;
+
+/**
+ * Published items that have been added or removed but not written to the database yet.
+ * The items are partitioned by node and every partition has its own lock, so publishers
+ * of different nodes do not contend with each other. A node is identified by the ID of its
+ * service and its node ID, since every PEP service uses the same node IDs.<p>
+ *
+ * Items move from the staged state to the flushing state when they are {@link #drain()
+ * drained} to be written and are forgotten once the write has {@link #flushed() completed}.
+ * Until then they can be read through the queue, so a reader sees the items that were
+ * published before without waiting for them to be written to the database.
+ */
+final class PendingItemQueue {
+
+    private final Partition[] partitions;
+
+    /**
+     * Number of staged items to add to the database.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates a new queue.
+     *
+     * @param partitionCount the number of partitions of the queue.
+     */
+    PendingItemQueue(int partitionCount) {
+        partitions = new Partition[Math.max(1, partitionCount)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Stages a published item to be added to the database. The item replaces an item with
+     * the same key that is staged to be added.
+     *
+     * @param wrapper the wrapped published item.
+     */
+    void add(RetryWrapper wrapper) {
+        final PublishedItem item = wrapper.get();
+        final Partition partition = getPartition(item.getServiceID(), item.getNodeID());
+        final String key = getKey(item);
+        synchronized (partition) {
+            if (partition.added.remove(key) == null) {
+                size.incrementAndGet();
+            }
+            partition.added.put(key, wrapper);
+        }
+    }
+
+    /**
+     * Stages a published item that could not be written to be added to the database again.
+     * The item is ignored if the item was added again or removed in the meantime.
+     *
+     * @param wrapper the wrapped published item.
+     * @return true if the item was staged.
+     */
+    boolean retry(RetryWrapper wrapper) {
+        final PublishedItem item = wrapper.get();
+        final Partition partition = getPartition(item.getServiceID(), item.getNodeID());
+        final String key = getKey(item);
+        synchronized (partition) {
+            if (partition.added.containsKey(key) || partition.removed.containsKey(key)) {
+                return false;
+            }
+            partition.added.put(key, wrapper);
+            size.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Stages a published item to be removed from the database. An item with the same key
+     * that is staged to be added is dropped.
+     *
+     * @param item the published item.
+     */
+    void remove(PublishedItem item) {
+        final Partition partition = getPartition(item.getServiceID(), item.getNodeID());
+        final String key = getKey(item);
+        synchronized (partition) {
+            if (partition.added.remove(key) != null) {
+                size.decrementAndGet();
+            }
+            partition.removed.put(key, item);
+        }
+    }
+
+    /**
+     * Drops the staged items of a node.
+     *
+     * @param serviceID the ID of the service hosting the node.
+     * @param nodeID the ID of the node.
+     */
+    void removeNode(String serviceID, String nodeID) {
+        final Partition partition = getPartition(serviceID, nodeID);
+        synchronized (partition) {
+            for (Iterator<RetryWrapper> it = partition.added.values().iterator(); it.hasNext();) {
+                if (isOfNode(it.next().get(), serviceID, nodeID)) {
+                    it.remove();
+                    size.decrementAndGet();
+                }
+            }
+            for (Iterator<PublishedItem> it = partition.removed.values().iterator(); it.hasNext();) {
+                if (isOfNode(it.next(), serviceID, nodeID)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of staged items to add to the database.
+     *
+     * @return the number of staged items to add to the database.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns true if no items are staged to be added or removed.
+     *
+     * @return true if no items are staged to be added or removed.
+     */
+    boolean isEmpty() {
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                if (!partition.added.isEmpty() || !partition.removed.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the staged items to write them to the database. The items can still be read
+     * through the queue until {@link #flushed()} is called. Only one batch can be written at
+     * a time.
+     *
+     * @return the items to add to and remove from the database.
+     */
+    Batch drain() {
+        final Batch batch = new Batch();
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                partition.flushingAdded = partition.added;
+                partition.flushingRemoved = partition.removed;
+                partition.added = new LinkedHashMap<>();
+                partition.removed = new LinkedHashMap<>();
+                size.addAndGet(-partition.flushingAdded.size());
+                batch.added.addAll(partition.flushingAdded.values());
+                batch.removed.addAll(partition.flushingRemoved.values());
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Forgets the items of the last drained batch once they have been written.
+     */
+    void flushed() {
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                partition.flushingAdded = Collections.emptyMap();
+                partition.flushingRemoved = Collections.emptyMap();
+            }
+        }
+    }
+
+    /**
+     * Returns the published item of the specified key that was added and has not been
+     * written to the database yet.
+     *
+     * @param serviceID the ID of the service hosting the node of the item.
+     * @param nodeID the ID of the node of the item.
+     * @param itemKey the key of the item.
+     * @return the pending item or null if the item is not pending or is pending removal.
+     */
+    PublishedItem getItem(String serviceID, String nodeID, String itemKey) {
+        final Partition partition = getPartition(serviceID, nodeID);
+        final String key = getKey(serviceID, itemKey);
+        synchronized (partition) {
+            RetryWrapper wrapper = partition.added.get(key);
+            if (wrapper == null && !partition.removed.containsKey(key)) {
+                wrapper = partition.flushingAdded.get(key);
+            }
+            return wrapper == null ? null : wrapper.get();
+        }
+    }
+
+    /**
+     * Returns true if the published item of the specified key was removed and has not been
+     * removed from the database yet.
+     *
+     * @param serviceID the ID of the service hosting the node of the item.
+     * @param nodeID the ID of the node of the item.
+     * @param itemKey the key of the item.
+     * @return true if the item is pending removal.
+     */
+    boolean isRemoved(String serviceID, String nodeID, String itemKey) {
+        final Partition partition = getPartition(serviceID, nodeID);
+        final String key = getKey(serviceID, itemKey);
+        synchronized (partition) {
+            if (partition.added.containsKey(key)) {
+                return false;
+            }
+            if (partition.removed.containsKey(key)) {
+                return true;
+            }
+            return !partition.flushingAdded.containsKey(key) &&
+                    partition.flushingRemoved.containsKey(key);
+        }
+    }
+
+    /**
+     * Returns the number of items of a node that are pending removal. A query for the items
+     * of the node needs to fetch this many additional rows.
+     *
+     * @param serviceID the ID of the service hosting the node.
+     * @param nodeID the ID of the node.
+     * @return the number of items of the node that are pending removal.
+     */
+    int getRemovedCount(String serviceID, String nodeID) {
+        final Partition partition = getPartition(serviceID, nodeID);
+        int count = 0;
+        synchronized (partition) {
+            count += count(partition.removed.values(), serviceID, nodeID);
+            count += count(partition.flushingRemoved.values(), serviceID, nodeID);
+        }
+        return count;
+    }
+
+    /**
+     * Applies the pending items of a node to the items of the node that were read from the
+     * database. Removed items are dropped and added items are included, replacing any item
+     * with the same key.
+     *
+     * @param serviceID the ID of the service hosting the node.
+     * @param nodeID the ID of the node.
+     * @param items the items of the node read from the database by item key.
+     * @return true if pending items of the node were applied.
+     */
+    boolean merge(String serviceID, String nodeID, Map<String, PublishedItem> items) {
+        final Partition partition = getPartition(serviceID, nodeID);
+        boolean merged;
+        synchronized (partition) {
+            merged = merge(serviceID, nodeID, items, partition.flushingRemoved, partition.flushingAdded);
+            merged |= merge(serviceID, nodeID, items, partition.removed, partition.added);
+        }
+        return merged;
+    }
+
+    private static boolean merge(String serviceID, String nodeID, Map<String, PublishedItem> items,
+            Map<String, PublishedItem> removed, Map<String, RetryWrapper> added) {
+        boolean merged = false;
+        for (PublishedItem item : removed.values()) {
+            if (isOfNode(item, serviceID, nodeID)) {
+                items.remove(item.getItemKey());
+                merged = true;
+            }
+        }
+        for (RetryWrapper wrapper : added.values()) {
+            final PublishedItem item = wrapper.get();
+            if (isOfNode(item, serviceID, nodeID)) {
+                items.put(item.getItemKey(), item);
+                merged = true;
+            }
+        }
+        return merged;
+    }
+
+    private static int count(Collection<PublishedItem> items, String serviceID, String nodeID) {
+        int count = 0;
+        for (PublishedItem item : items) {
+            if (isOfNode(item, serviceID, nodeID)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isOfNode(PublishedItem item, String serviceID, String nodeID) {
+        return nodeID.equals(item.getNodeID()) && serviceID.equals(item.getServiceID());
+    }
+
+    /**
+     * Returns the key of an item in the queue. Item keys only contain the node ID, so the
+     * key is prefixed with the ID of the service. Service IDs do not contain a colon.
+     */
+    private static String getKey(String serviceID, String itemKey) {
+        return serviceID + ':' + itemKey;
+    }
+
+    private static String getKey(PublishedItem item) {
+        return getKey(item.getServiceID(), item.getItemKey());
+    }
+
+    private Partition getPartition(String serviceID, String nodeID) {
+        final int hash = 31 * serviceID.hashCode() + nodeID.hashCode();
+        return partitions[((hash ^ (hash >>> 16)) & 0x7fffffff) % partitions.length];
+    }
+
+    /**
+     * The items to add to and remove from the database. Removals are written first.
+     */
+    static final class Batch {
+
+        final List<RetryWrapper> added = new ArrayList<>();
+        final List<PublishedItem> removed = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private static final class Partition {
+
+        private Map<String, RetryWrapper> added = new LinkedHashMap<>();
+        private Map<String, PublishedItem> removed = new LinkedHashMap<>();
+        private Map<String, RetryWrapper> flushingAdded = Collections.emptyMap();
+        private Map<String, PublishedItem> flushingRemoved = Collections.emptyMap();
+    }
+}
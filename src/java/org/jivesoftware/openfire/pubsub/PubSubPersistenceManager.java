@@ -27,15 +27,18 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.DbConnectionManager.DatabaseType;
@@ -44,8 +47,6 @@ import org.jivesoftware.openfire.pubsub.cluster.FlushTask;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.pubsub.models.PublisherModel;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.LinkedList;
-import org.jivesoftware.util.LinkedListNode;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
@@ -178,9 +179,6 @@ public class PubSubPersistenceManager {
     private static final String LOAD_ITEM =
             "SELECT jid,creationDate,payload FROM ofPubsubItem " +
             "WHERE serviceID=? AND nodeID=? AND id=?";
-    private static final String LOAD_LAST_ITEM =
-            "SELECT id,jid,creationDate,payload FROM ofPubsubItem " +
-            "WHERE serviceID=? AND nodeID=? ORDER BY creationDate DESC";
     private static final String ADD_ITEM =
             "INSERT INTO ofPubsubItem (serviceID,nodeID,id,jid,creationDate,payload) " +
             "VALUES (?,?,?,?,?,?)";
@@ -243,21 +241,22 @@ public class PubSubPersistenceManager {
 	private static final int MAX_ITEM_RETRY = JiveGlobals.getIntProperty("xmpp.pubsub.item.retry", 1);
     
     /**
-     * Queue that holds the (wrapped) items that need to be added to the database.
+     * Published items that need to be added to or deleted from the database, partitioned
+     * by node. Note the added items are wrapped via the RetryWrapper to allow multiple
+     * persistence attempts when needed.
      */
-    private static LinkedList<RetryWrapper> itemsToAdd = new LinkedList<>();
+    private static final PendingItemQueue pendingItems = new PendingItemQueue(JiveGlobals.getIntProperty(
+            "xmpp.pubsub.flush.partitions", Runtime.getRuntime().availableProcessors() * 2));
 
     /**
-     * Queue that holds the items that need to be deleted from the database.
+     * Lock that allows only one batch of pending items to be written at a time.
      */
-    private static LinkedList<PublishedItem> itemsToDelete = new LinkedList<>();
+    private static final Lock flushLock = new ReentrantLock();
 
     /**
-     * Keeps reference to published items that haven't been persisted yet so they 
-     * can be removed before being deleted. Note these items are wrapped via the 
-     * RetryWrapper to allow multiple persistence attempts when needed.
+     * True if a flush of the pending items has been submitted but has not started yet.
      */
-    private static final HashMap<String, LinkedListNode<RetryWrapper>> itemsPending = new HashMap<>();
+    private static final AtomicBoolean flushRequested = new AtomicBoolean();
     
     /**
      * Cache name for recently accessed published items.
@@ -1165,23 +1164,23 @@ public class PubSubPersistenceManager {
     	boolean firstPass = (wrapper.getRetryCount() == 0);
     	PublishedItem item = wrapper.get();
 		String itemKey = item.getItemKey();
-		itemCache.put(itemKey, item);
-		log.debug("Added new (inbound) item to cache");
-        synchronized (itemsPending) {
-    		LinkedListNode<RetryWrapper> itemToReplace = itemsPending.remove(itemKey);
-    		if (itemToReplace != null) {
-    			itemToReplace.remove(); // remove duplicate from itemsToAdd linked list
-    		}
-    		LinkedListNode<RetryWrapper> listNode = firstPass ? 
-    							itemsToAdd.addLast(wrapper) : 
-    							itemsToAdd.addFirst(wrapper);
-    		itemsPending.put(itemKey, listNode);
-        }
+		if (firstPass) {
+			itemCache.put(itemKey, item);
+			log.debug("Added new (inbound) item to cache");
+			pendingItems.add(wrapper);
+		}
+		else if (!pendingItems.retry(wrapper)) {
+			// the item has been published again or deleted in the meantime
+			return;
+		}
         // skip the flush step if this is a retry attempt
-		if (firstPass && itemsPending.size() > MAX_ITEMS_FLUSH) {
+		if (firstPass && pendingItems.size() > MAX_ITEMS_FLUSH && flushRequested.compareAndSet(false, true)) {
 			TaskEngine.getInstance().submit(new Runnable() {
 				@Override
-				public void run() { flushPendingItems(false); }
+				public void run() {
+					flushRequested.set(false);
+					flushPendingItems(false);
+				}
 			});
 		}
     }
@@ -1190,7 +1189,7 @@ public class PubSubPersistenceManager {
      * This class is used internally to wrap PublishedItems. It adds
      * a retry counter for the persistence exception handling logic.
      */
-    private static class RetryWrapper {
+    static class RetryWrapper {
     	private PublishedItem item;
         private volatile transient int retryCount = 0;
     	public RetryWrapper(PublishedItem item) { this.item = item; }
@@ -1200,7 +1199,7 @@ public class PubSubPersistenceManager {
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the pending items to be persisted and deleted.
      */
 	public static void flushPendingItems()
     {
@@ -1208,7 +1207,7 @@ public class PubSubPersistenceManager {
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the pending items to be persisted and deleted.
      * @param sendToCluster If true, delegate to cluster members, otherwise local only
      */
     public static void flushPendingItems(boolean sendToCluster)
@@ -1218,39 +1217,33 @@ public class PubSubPersistenceManager {
             CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
         }
 
-		if (itemsToAdd.getFirst() == null && itemsToDelete.getFirst() == null) {
+		if (pendingItems.isEmpty()) {
         	return;	 // nothing to do for this cluster member
         }
-        
+
+    	flushLock.lock();
+    	try {
+    		writePendingItems();
+    	} finally {
+    		flushLock.unlock();
+    	}
+	}
+
+    /**
+     * Writes the pending items to the database. Must be called while holding the flush lock.
+     */
+	private static void writePendingItems()
+	{
 		Connection con = null;
 		boolean rollback = false;
-    	LinkedList<RetryWrapper> addList = null;
-    	LinkedList<PublishedItem> delList = null;
-
-    	// Swap pending items so we can parse and save the contents from this point in time
-    	// while not blocking new entries from being cached.
-    	synchronized(itemsPending) 
-    	{
-    		addList = itemsToAdd;
-    		delList = itemsToDelete;
-
-    		itemsToAdd = new LinkedList<>();
-    		itemsToDelete = new LinkedList<>();
-    		
-    		// Ensure pending items are available via the item read cache;
-    		// this allows the item(s) to be fetched by other request threads
-    		// while being written to the DB from this thread
-    		int copied = 0;
-    		for (String key : itemsPending.keySet()) {
-    			if (!itemCache.containsKey(key)) {
-    				itemCache.put(key, (((RetryWrapper)itemsPending.get(key).object)).get());
-    				copied++;
-    			}
-    		}
-    		if (log.isDebugEnabled() && copied > 0) {
-    			log.debug("Added " + copied + " pending items to published item cache");
-    		}
-    		itemsPending.clear();
+
+    	// Take the pending items so we can save the contents from this point in time
+    	// while not blocking new entries from being queued. Items being written can
+    	// still be read from the queue by other request threads.
+    	PendingItemQueue.Batch batch = pendingItems.drain();
+    	if (batch.isEmpty()) {
+    		pendingItems.flushed();
+    		return;
     	}
 
     	// Note that we now make multiple attempts to write cached items to the DB:
@@ -1263,19 +1256,17 @@ public class PubSubPersistenceManager {
     	// will be returned to the pending item write cache.
     	try {
 			con = DbConnectionManager.getTransactionConnection();
-			writePendingItems(con, addList, delList);
+			writePendingItems(con, batch.added, batch.removed);
 		} catch (SQLException se) {
 			log.error("Failed to flush pending items; initiating rollback", se);
 			// return new items to the write cache
-	        LinkedListNode<RetryWrapper> node = addList.getLast();
-	        while (node != null) {
-	            savePublishedItem(node.object);
-	            node.remove();
-	            node = addList.getLast();
+	        for (RetryWrapper wrapper : batch.added) {
+	            pendingItems.retry(wrapper);
 	        }
 			rollback = true;
 		} finally {
 			DbConnectionManager.closeTransactionConnection(con, rollback);
+			pendingItems.flushed();
 		}
 	}
 
@@ -1286,44 +1277,32 @@ public class PubSubPersistenceManager {
      * @param delList
      * @throws SQLException
      */
-	private static void writePendingItems(Connection con, LinkedList<RetryWrapper> addList, LinkedList<PublishedItem> delList) throws SQLException
+	private static void writePendingItems(Connection con, List<RetryWrapper> addList, List<PublishedItem> delList) throws SQLException
 	{
-        LinkedListNode<RetryWrapper> addItem = addList.getFirst();
-        LinkedListNode<PublishedItem> delItem = delList.getFirst();
-        
         // is there anything to do?
-        if ((addItem == null) && (delItem == null)) { return; }
+        if (addList.isEmpty() && delList.isEmpty()) { return; }
         
     	if (log.isDebugEnabled()) {
-    		log.debug("Flush " + itemsPending.size() + " pending items to database");
+    		log.debug("Flush " + addList.size() + " pending items to database");
     	}
 
         // ensure there are no duplicates by deleting before adding
-        if (addItem != null) {
-        	LinkedListNode<RetryWrapper> addHead = addItem.previous;
-        	while (addItem != addHead) {
-        		delList.addLast(addItem.object.get());
-        		addItem = addItem.next;
-        	}
+        for (RetryWrapper wrapper : addList) {
+        	delList.add(wrapper.get());
         }
 
         // delete first (to remove possible duplicates), then add new items
-        delItem = delList.getFirst();
-        if (delItem != null) {
+        if (!delList.isEmpty()) {
             PreparedStatement pstmt = null;
 			try {
-                LinkedListNode<PublishedItem> delHead = delItem.previous;
 				pstmt = con.prepareStatement(DELETE_ITEM);
 
-                while (delItem != delHead)
+                for (PublishedItem item : delList)
                 {
-                	PublishedItem item = delItem.object;
                     pstmt.setString(1, item.getNode().getService().getServiceID());
                     pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
                     pstmt.setString(3, item.getID());
                     pstmt.addBatch();
-
-                    delItem = delItem.next;
                 }
 				pstmt.executeBatch();
 			} catch (SQLException ex) {
@@ -1336,10 +1315,10 @@ public class PubSubPersistenceManager {
 		
         try { 
             // first try to add the pending items as a batch
-        	writePendingItems(con, addList.getFirst(), true);
+        	writePendingItems(con, addList, true);
         } catch (SQLException ex) {
         	// retry each item individually rather than rolling back
-        	writePendingItems(con, addList.getFirst(), false);       	
+        	writePendingItems(con, addList, false);       	
         }
     }
 	
@@ -1350,18 +1329,15 @@ public class PubSubPersistenceManager {
 	 * @param batch
 	 * @throws SQLException
 	 */
-	private static void writePendingItems(Connection con, LinkedListNode<RetryWrapper> addItem, boolean batch)  throws SQLException 
+	private static void writePendingItems(Connection con, List<RetryWrapper> addList, boolean batch)  throws SQLException 
 	{	
-		if (addItem == null) { return; }
-        LinkedListNode<RetryWrapper> addHead = addItem.previous;
+		if (addList.isEmpty()) { return; }
         PreparedStatement pstmt = null;
-        RetryWrapper wrappedItem = null;
         PublishedItem item = null;       
     	try {
 			pstmt = con.prepareStatement(ADD_ITEM);
-            while (addItem != addHead)
+            for (RetryWrapper wrappedItem : addList)
             {
-            	wrappedItem = addItem.object;
             	item = wrappedItem.get();
                 pstmt.setString(1, item.getNode().getService().getServiceID());
                 pstmt.setString(2, encodeNodeID(item.getNodeID()));
@@ -1384,7 +1360,6 @@ public class PubSubPersistenceManager {
         	    		}
                 	}
                 }
-                addItem = addItem.next;
             }
             if (batch) { pstmt.executeBatch(); }			
     	} catch (SQLException se) {
@@ -1404,13 +1379,7 @@ public class PubSubPersistenceManager {
     public static void removePublishedItem(PublishedItem item) {
     	String itemKey = item.getItemKey();
         itemCache.remove(itemKey);
-        synchronized (itemsPending)
-    	{
-    		itemsToDelete.addLast(item);
-			LinkedListNode<RetryWrapper> itemToAdd = itemsPending.remove(itemKey);
-			if (itemToAdd != null)
-				itemToAdd.remove();  // drop from itemsToAdd linked list
-		}
+        pendingItems.remove(item);
     }
 
     /**
@@ -1576,17 +1545,6 @@ public class PubSubPersistenceManager {
      * @param node the leaf node to load its published items.
      */
     public static List<PublishedItem> getPublishedItems(LeafNode node, int maxRows) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-	    	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
-    	Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
         int max = MAX_ROWS_FETCH;
         int maxPublished = node.getMaxPublishedItems();
 
@@ -1596,23 +1554,44 @@ public class PubSubPersistenceManager {
         else if (maxPublished != -1)
         	max = Math.min(MAX_ROWS_FETCH, maxPublished);
 
-        // We don't know how many items are in the db, so we will start with an allocation of 500
-		java.util.LinkedList<PublishedItem> results = new java.util.LinkedList<>();
+		List<PublishedItem> results = loadPublishedItems(node, max);
 		boolean descending = JiveGlobals.getBooleanProperty("xmpp.pubsub.order.descending", false);
+		if (!descending) {
+			Collections.reverse(results);
+		}
+        return results;
+    }
+
+    /**
+     * Loads the most recent published items of the specified node, newest first. Items
+     * that have not been written to the database yet are read from the pending items.
+     *
+     * @param node the leaf node to load its published items.
+     * @param max the maximum number of items to load.
+     * @return the most recent published items of the node.
+     */
+    private static List<PublishedItem> loadPublishedItems(LeafNode node, int max) {
+    	flushRemotePendingItems();
+    	Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        // Fetch extra rows for the items that are about to be deleted from the database
+        int maxRows = max + pendingItems.getRemovedCount(node.getService().getServiceID(), node.getNodeID());
+		Map<String, PublishedItem> items = new LinkedHashMap<>();
 
 		try
 		{
             con = DbConnectionManager.getConnection();
             // Get published items of the specified node
             pstmt = con.prepareStatement(LOAD_ITEMS);
-            pstmt.setMaxRows(max);
+            pstmt.setFetchSize(Math.min(maxRows, 500));
+            pstmt.setMaxRows(maxRows);
             pstmt.setString(1, node.getService().getServiceID());
             pstmt.setString(2, encodeNodeID(node.getNodeID()));
             rs = pstmt.executeQuery();
-            int counter = 0;
 
             // Rebuild loaded published items
-            while(rs.next() && (counter < max)) {
+            while(rs.next() && (items.size() < maxRows)) {
                 String itemID = rs.getString(1);
                 JID publisher = new JID(rs.getString(2));
                 Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
@@ -1622,12 +1601,7 @@ public class PubSubPersistenceManager {
                 if (rs.getString(4) != null) {
                 	item.setPayloadXML(rs.getString(4));
                 }
-                // Add the published item to the node
-				if (descending)
-					results.add(item);
-				else
-					results.addFirst(item);
-                counter++;
+                items.put(item.getItemKey(), item);
             }
         }
         catch (Exception sqle) {
@@ -1637,57 +1611,53 @@ public class PubSubPersistenceManager {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
 
+		List<PublishedItem> results = new ArrayList<>(items.values());
+		if (pendingItems.merge(node.getService().getServiceID(), node.getNodeID(), items)) {
+			results = new ArrayList<>(items.values());
+			Collections.sort(results, NEWEST_FIRST);
+		}
+		if (results.size() > max) {
+			results = new ArrayList<>(results.subList(0, max));
+		}
         return results;
     }
 
+    /**
+     * Orders published items from the newest to the oldest one.
+     */
+    private static final Comparator<PublishedItem> NEWEST_FIRST = new Comparator<PublishedItem>() {
+        @Override
+        public int compare(PublishedItem item1, PublishedItem item2) {
+            return item2.getCreationDate().compareTo(item1.getCreationDate());
+        }
+    };
+
+    /**
+     * Makes the items that other cluster members have not written to the database yet
+     * visible to a query of this member. Pending items of this member are read from the
+     * queue of pending items instead.
+     */
+    private static void flushRemotePendingItems() {
+    	if (ClusterManager.isClusteringEnabled()) {
+            Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
+            try {
+    	    	// NOTE: force other requests to wait for DB I/O to complete
+            	itemLock.lock();
+            	CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
+            } finally {
+            	itemLock.unlock();
+            }
+    	}
+    }
+
     /**
      * Fetches the last published item for the specified node.
      *
      * @param node the leaf node to load its last published items.
      */
     public static PublishedItem getLastPublishedItem(LeafNode node) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-        	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PublishedItem item = null;
-
-        try {
-            con = DbConnectionManager.getConnection();
-            // Get published items of the specified node
-            pstmt = con.prepareStatement(LOAD_LAST_ITEM);
-            pstmt.setFetchSize(1);
-            pstmt.setMaxRows(1);
-            pstmt.setString(1, node.getService().getServiceID());
-            pstmt.setString(2, encodeNodeID(node.getNodeID()));
-            rs = pstmt.executeQuery();
-            // Rebuild loaded published items
-            if (rs.next()) {
-                String itemID = rs.getString(1);
-                JID publisher = new JID(rs.getString(2));
-                Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
-                // Create the item
-                item = new PublishedItem(node, publisher, itemID, creationDate);
-                // Add the extra fields to the published item
-                if (rs.getString(4) != null) {
-                	item.setPayloadXML(rs.getString(4));
-                }
-            }
-        }
-        catch (Exception sqle) {
-            log.error(sqle.getMessage(), sqle);
-        }
-        finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
-        }
-        return item;
+        List<PublishedItem> items = loadPublishedItems(node, 1);
+        return items.isEmpty() ? null : items.get(0);
     }
 
     public static PublishedItem getPublishedItem(LeafNode node, String itemID) {
@@ -1695,6 +1665,14 @@ public class PubSubPersistenceManager {
 
         // try to fetch from cache first without locking
         PublishedItem result = itemCache.get(itemKey);
+        if (result == null) {
+        	// then from the items that have not been written to the database yet
+        	final String serviceID = node.getService().getServiceID();
+        	result = pendingItems.getItem(serviceID, node.getNodeID(), itemKey);
+        	if (result == null && pendingItems.isRemoved(serviceID, node.getNodeID(), itemKey)) {
+        		return null;
+        	}
+        }
     	if (result == null) {
             Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
             try {
@@ -1703,7 +1681,10 @@ public class PubSubPersistenceManager {
             	itemLock.lock();
             	result = itemCache.get(itemKey);
             	if (result == null) {
-	            	flushPendingItems(); 
+	            	// pending items of this member were checked before
+	            	if (ClusterManager.isClusteringEnabled()) {
+	            		CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
+	            	}
 	
 	        		// fetch item from DB
 	                Connection con = null;
@@ -1757,24 +1738,6 @@ public class PubSubPersistenceManager {
 			con = DbConnectionManager.getTransactionConnection();
 
 			purgeNode(leafNode, con);
-
-			// Delete all the entries from the itemsToAdd list and pending map
-			// that match this node.
-			synchronized (itemsPending)
-			{
-				Iterator<Map.Entry<String, LinkedListNode<RetryWrapper>>> pendingIt = itemsPending.entrySet().iterator();
-
-				while (pendingIt.hasNext())
-				{
-					LinkedListNode<RetryWrapper> itemNode = pendingIt.next().getValue();
-
-					if (itemNode.object.get().getNodeID().equals(leafNode.getNodeID()))
-					{
-						itemNode.remove();
-						pendingIt.remove();
-					}
-				}
-			}
 		}
 		catch (SQLException exc)
 		{
@@ -1789,12 +1752,18 @@ public class PubSubPersistenceManager {
 
 	private static void purgeNode(LeafNode leafNode, Connection con) throws SQLException
 	{
-		flushPendingItems();
+		if (ClusterManager.isClusteringEnabled()) {
+			CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
+		}
         // Remove published items of the node being deleted
         PreparedStatement pstmt = null;
 
+		// Drop the pending items of the node; hold the flush lock so the items
+		// that are being written are not written after the node was purged
+		flushLock.lock();
 		try
 		{
+			pendingItems.removeNode(leafNode.getService().getServiceID(), leafNode.getNodeID());
             pstmt = con.prepareStatement(DELETE_ITEMS);
             pstmt.setString(1, leafNode.getService().getServiceID());
             pstmt.setString(2, encodeNodeID(leafNode.getNodeID()));
@@ -1803,6 +1772,7 @@ public class PubSubPersistenceManager {
 		finally
 		{
 			DbConnectionManager.closeStatement(pstmt);
+			flushLock.unlock();
 		}
 
 		// drop cached items for purged node
@@ -127,6 +127,15 @@ public class PublishedItem implements Serializable {
         return nodeId;
     }
 
+    /**
+     * Returns the id for the {@link PubSubService} hosting the node where this item was published.
+     *
+     * @return the ID for the service hosting the node where this item was published.
+     */
+    public String getServiceID() {
+        return serviceId;
+    }
+
     /**
      * Returns the {@link LeafNode} where this item was published.
      *
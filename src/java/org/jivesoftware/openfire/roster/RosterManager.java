@@ -23,6 +23,7 @@ package org.jivesoftware.openfire.roster;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.SharedGroupException;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.GroupEventDispatcher;
 import org.jivesoftware.openfire.event.GroupEventListener;
@@ -66,6 +67,11 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     private XMPPServer server;
     private RoutingTable routingTable;
     private RosterItemProvider provider;
+    /**
+     * Index of the visibility settings of the shared groups. Created when first used and kept
+     * up to date by the group events of this JVM.
+     */
+    private volatile SharedGroupIndex sharedGroupIndex;
 
     /**
      * Returns true if the roster service is enabled. When disabled it is not possible to
@@ -187,6 +193,15 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      * @return a collection with all the groups that the user may include in his roster.
      */
     public Collection<Group> getSharedGroups(String username) {
+        SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            Collection<String> userGroupNames = new ArrayList<>();
+            JID user = XMPPServer.getInstance().createJID(username, null, true);
+            for (Group group : GroupManager.getInstance().getGroups(user)) {
+                userGroupNames.add(group.getName());
+            }
+            return getGroups(index.getSharedGroupNames(userGroupNames));
+        }
         Collection<Group> answer = new HashSet<>();
         Collection<Group> groups = GroupManager.getInstance().getSharedGroups(username);
         for (Group group : groups) {
@@ -232,8 +247,33 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      *         of groups.
      */
     private Collection<Group> parseGroups(String groupNames) {
+        return getGroups(parseGroupNames(groupNames));
+    }
+
+    /**
+     * Returns the groups whose users may see the specified shared group, as configured by the
+     * <tt>sharedRoster.groupList</tt> property of the group.
+     *
+     * @param group the shared group.
+     * @return the groups whose users may see the shared group.
+     */
+    private Collection<Group> getGroupList(Group group) {
+        SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            return getGroups(index.getGroupList(group.getName()));
+        }
+        return parseGroups(group.getProperties().get("sharedRoster.groupList"));
+    }
+
+    /**
+     * Returns the groups of the specified names. Names of groups that do not exist are ignored.
+     *
+     * @param groupNames the names of the groups.
+     * @return the groups of the specified names.
+     */
+    private static Collection<Group> getGroups(Collection<String> groupNames) {
         Collection<Group> answer = new HashSet<>();
-        for (String groupName : parseGroupNames(groupNames)) {
+        for (String groupName : groupNames) {
             try {
                 answer.add(GroupManager.getInstance().getGroup(groupName));
             }
@@ -244,6 +284,42 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         return answer;
     }
 
+    /**
+     * Returns the index of the shared groups or null if the index may not be used. Group events
+     * are only dispatched in the JVM where the group was modified, so the index is not used
+     * when running in a cluster.
+     *
+     * @return the index of the shared groups or null if it may not be used.
+     */
+    private SharedGroupIndex getSharedGroupIndex() {
+        if (ClusterManager.isClusteringStarted()) {
+            sharedGroupIndex = null;
+            return null;
+        }
+        SharedGroupIndex index = sharedGroupIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = sharedGroupIndex;
+                if (index == null) {
+                    index = SharedGroupIndex.build(GroupManager.getInstance().getSharedGroups());
+                    sharedGroupIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Updates the index of the shared groups after the visibility settings of a group changed.
+     *
+     * @param group the group that was modified.
+     */
+    private synchronized void updateSharedGroupIndex(Group group) {
+        if (sharedGroupIndex != null) {
+            sharedGroupIndex = sharedGroupIndex.update(group);
+        }
+    }
+
     /**
      * Returns a collection of Groups obtained by parsing a comma delimited String with the name
      * of groups.
@@ -265,7 +341,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     @Override
     public void groupCreated(Group group, Map params) {
-        //Do nothing
+        updateSharedGroupIndex(group);
     }
 
     @Override
@@ -279,12 +355,28 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         for (JID deletedUser : users) {
             groupUserDeleted(group, affectedUsers, deletedUser);
         }
+        synchronized (this) {
+            if (sharedGroupIndex != null) {
+                sharedGroupIndex = sharedGroupIndex.remove(group.getName());
+            }
+        }
     }
 
     @Override
     public void groupModified(Group group, Map params) {
+        String type = (String) params.get("type");
+        if ("nameModified".equals(type)) {
+            // Other groups may still refer to the previous name so index all groups again
+            synchronized (this) {
+                sharedGroupIndex = null;
+            }
+        }
+        else if ("propertyModified".equals(type) || "propertyAdded".equals(type) ||
+                "propertyDeleted".equals(type)) {
+            updateSharedGroupIndex(group);
+        }
         // Do nothing if no group property has been modified
-        if ("propertyDeleted".equals(params.get("type"))) {
+        if ("propertyDeleted".equals(type)) {
              return;
         }
         String keyChanged = (String) params.get("propertyKey");
@@ -771,6 +863,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     private Collection<Group> getVisibleGroups(Group groupToCheck) {
+        SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            return getGroups(index.getVisibleGroupNames(groupToCheck.getName()));
+        }
     	return GroupManager.getInstance().getVisibleGroups(groupToCheck);
     }
 
@@ -792,9 +888,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                  return true;
             }
             // Check if the user belongs to a group that may see this group
-            Collection<Group> groupList = parseGroups(group.getProperties().get(
-                    "sharedRoster.groupList"));
-            for (Group groupInList : groupList) {
+            for (Group groupInList : getGroupList(group)) {
                 if (groupInList.isUser(user)) {
                     return true;
                 }
@@ -930,8 +1024,8 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                             return true;
                         }
                         // Check if each shared group can be seen by a group where each user belongs
-                        Collection<Group> groupList = parseGroups(groupNames);
-                        Collection<Group> otherGroupList = parseGroups(otherGroupNames);
+                        Collection<Group> groupList = getGroupList(group);
+                        Collection<Group> otherGroupList = getGroupList(otherGroup);
                         for (Group groupName : groupList) {
                             if (groupName.isUser(otherUser)) {
                                 for (Group otherGroupName : otherGroupList) {
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.jivesoftware.openfire.group.Group;
+
+/**
+ * Index of the visibility settings of the shared groups. The index maps each shared group
+ * to the groups whose users may see it (the <tt>sharedRoster.groupList</tt> property) and each
+ * group to the shared groups its users may see, so the shared groups of a user can be found
+ * from the groups the user belongs to instead of checking every shared group of the system.<p>
+ *
+ * The index is immutable: {@link #update(Group)} and {@link #remove(String)} return a new
+ * index, so readers never see an index that is being updated.
+ */
+class SharedGroupIndex {
+
+    private static final SharedGroupIndex EMPTY = new SharedGroupIndex(
+            Collections.<String>emptySet(), Collections.<String>emptySet(),
+            Collections.<String, Set<String>>emptyMap(), Collections.<String, Set<String>>emptyMap());
+
+    /**
+     * Shared groups shown to everybody or only to group users.
+     */
+    private final Set<String> sharedGroups;
+    /**
+     * Shared groups that everybody may see.
+     */
+    private final Set<String> publicGroups;
+    /**
+     * Shared groups shown only to group users and the groups whose users may also see them.
+     */
+    private final Map<String, Set<String>> groupLists;
+    /**
+     * Groups and the shared groups shown only to group users that their users may see.
+     */
+    private final Map<String, Set<String>> visibleGroups;
+
+    private SharedGroupIndex(Set<String> sharedGroups, Set<String> publicGroups,
+            Map<String, Set<String>> groupLists, Map<String, Set<String>> visibleGroups) {
+        this.sharedGroups = sharedGroups;
+        this.publicGroups = publicGroups;
+        this.groupLists = groupLists;
+        this.visibleGroups = visibleGroups;
+    }
+
+    /**
+     * Creates an index of the specified groups. Groups that are not shared are ignored.
+     *
+     * @param groups the shared groups of the system.
+     * @return the index of the groups.
+     */
+    static SharedGroupIndex build(Collection<Group> groups) {
+        SharedGroupIndex index = EMPTY.copy();
+        for (Group group : groups) {
+            index.add(group);
+        }
+        return index;
+    }
+
+    /**
+     * Returns a new index that reflects the current visibility settings of a group.
+     *
+     * @param group the group whose settings changed.
+     * @return the new index.
+     */
+    SharedGroupIndex update(Group group) {
+        SharedGroupIndex index = remove(group.getName());
+        if (index == this) {
+            index = copy();
+        }
+        index.add(group);
+        return index;
+    }
+
+    /**
+     * Returns a new index without the group of the specified name.
+     *
+     * @param groupName the name of the group that was deleted or is no longer shared.
+     * @return the new index.
+     */
+    SharedGroupIndex remove(String groupName) {
+        if (!sharedGroups.contains(groupName)) {
+            return this;
+        }
+        SharedGroupIndex index = copy();
+        index.sharedGroups.remove(groupName);
+        index.publicGroups.remove(groupName);
+        Set<String> groupList = index.groupLists.remove(groupName);
+        if (groupList != null) {
+            for (String name : groupList) {
+                Set<String> visible = new HashSet<>(index.visibleGroups.get(name));
+                visible.remove(groupName);
+                if (visible.isEmpty()) {
+                    index.visibleGroups.remove(name);
+                }
+                else {
+                    index.visibleGroups.put(name, visible);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if the group of the specified name is shown in the rosters of its users.
+     *
+     * @param groupName the name of the group.
+     * @return true if the group is a shared group.
+     */
+    boolean isShared(String groupName) {
+        return sharedGroups.contains(groupName);
+    }
+
+    /**
+     * Returns true if the group of the specified name is shown in the rosters of everybody.
+     *
+     * @param groupName the name of the group.
+     * @return true if the group is a public shared group.
+     */
+    boolean isPublic(String groupName) {
+        return publicGroups.contains(groupName);
+    }
+
+    /**
+     * Returns the names of the groups whose users may see a shared group that is shown only to
+     * group users. The users of the shared group itself are not included.
+     *
+     * @param groupName the name of the shared group.
+     * @return the names of the groups whose users may see the shared group.
+     */
+    Collection<String> getGroupList(String groupName) {
+        Set<String> groupList = groupLists.get(groupName);
+        return groupList == null ? Collections.<String>emptySet() : groupList;
+    }
+
+    /**
+     * Returns the names of the shared groups that the users of a group may see, including the
+     * shared groups that everybody may see.
+     *
+     * @param groupName the name of the group.
+     * @return the names of the shared groups visible to the users of the group.
+     */
+    Collection<String> getVisibleGroupNames(String groupName) {
+        Set<String> answer = new HashSet<>(publicGroups);
+        Set<String> visible = visibleGroups.get(groupName);
+        if (visible != null) {
+            answer.addAll(visible);
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the names of the shared groups that a user may see given the names of the groups
+     * the user belongs to. These are the shared groups that everybody may see, the shared groups
+     * the user belongs to and the shared groups visible to the groups the user belongs to.
+     *
+     * @param userGroupNames the names of the groups the user belongs to.
+     * @return the names of the shared groups visible to the user.
+     */
+    Collection<String> getSharedGroupNames(Collection<String> userGroupNames) {
+        Set<String> answer = new HashSet<>(publicGroups);
+        for (String groupName : userGroupNames) {
+            if (sharedGroups.contains(groupName)) {
+                answer.add(groupName);
+            }
+            Set<String> visible = visibleGroups.get(groupName);
+            if (visible != null) {
+                answer.addAll(visible);
+            }
+        }
+        return answer;
+    }
+
+    private SharedGroupIndex copy() {
+        return new SharedGroupIndex(new HashSet<>(sharedGroups), new HashSet<>(publicGroups),
+                new HashMap<>(groupLists), new HashMap<>(visibleGroups));
+    }
+
+    /**
+     * Adds a group to this index. Only used while the index is being created.
+     */
+    private void add(Group group) {
+        String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
+        String groupName = group.getName();
+        if ("everybody".equals(showInRoster)) {
+            sharedGroups.add(groupName);
+            publicGroups.add(groupName);
+        }
+        else if ("onlyGroup".equals(showInRoster)) {
+            sharedGroups.add(groupName);
+            Set<String> groupList = parseGroupNames(group.getProperties().get("sharedRoster.groupList"));
+            if (!groupList.isEmpty()) {
+                groupLists.put(groupName, Collections.unmodifiableSet(groupList));
+                for (String name : groupList) {
+                    Set<String> visible = visibleGroups.get(name);
+                    visible = visible == null ? new HashSet<String>() : new HashSet<>(visible);
+                    visible.add(groupName);
+                    visibleGroups.put(name, visible);
+                }
+            }
+        }
+    }
+
+    private static Set<String> parseGroupNames(String groupNames) {
+        Set<String> answer = new HashSet<>();
+        if (groupNames != null) {
+            StringTokenizer tokenizer = new StringTokenizer(groupNames, ",");
+            while (tokenizer.hasMoreTokens()) {
+                answer.add(tokenizer.nextToken());
+            }
+        }
+        return answer;
+    }
+}
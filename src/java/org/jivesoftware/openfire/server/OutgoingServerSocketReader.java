@@ -59,6 +59,24 @@ public class OutgoingServerSocketReader {
         init();
     }
 
+    /**
+     * Creates a reader for a connection whose handler reads the elements sent by the remote
+     * server and adds them with {@link #addElement(Element)}. No thread is started.
+     */
+    public OutgoingServerSocketReader() {
+    }
+
+    /**
+     * Queues an element that was sent by the remote server.
+     *
+     * @param element the element sent by the remote server.
+     */
+    public void addElement(Element element) {
+        if (!elements.offer(element)) {
+            Log.warn("OutgoingServerSocketReader: Queue is full, dropping element: " + element.asXML());
+        }
+    }
+
     /**
      * Returns the OutgoingServerSession for which this reader is working for or <tt>null</tt> if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -21,24 +21,33 @@
 package org.jivesoftware.openfire.server;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
+import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.openfire.RoutableChannelHandler;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.nio.OutgoingServerHandshake;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
+import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -55,10 +64,20 @@ import org.xmpp.packet.Presence;
  * When looking for a route to a remote server that does not have an existing connection, a session
  * promise is returned.
  *
- * This class will queue packets and process them in another thread. The processing thread will
- * use a pool of thread that will actually do the hard work. The threads in the pool will try
- * to connect to remote servers and deliver the packets. If an error occurred while establishing
- * the connection or sending the packet an error will be returned to the sender of the packet.
+ * This class will queue packets and process them in a pool of threads. Every remote domain has
+ * its own bounded queue, so a domain that receives many packets cannot delay the packets of
+ * other domains. The threads in the pool will try to connect to remote servers and deliver
+ * the packets, processing a limited number of packets of a domain at a time before moving on
+ * to the next domain. If an error occurred while establishing the connection or sending the
+ * packet an error will be returned to the sender of the packet.<p>
+ *
+ * When a connection to a domain fails, the domain is considered unreachable for a while and
+ * packets sent to it are returned to their senders right away. The time grows exponentially
+ * with the number of consecutive failures, from <tt>xmpp.server.outgoing.backoff.initial</tt>
+ * up to <tt>xmpp.server.outgoing.backoff.max</tt> milliseconds.<p>
+ *
+ * When outgoing sessions use NIO, the threads do not wait while a new session is negotiated:
+ * the queue of the domain is set aside until the negotiation is done.
  *
  * @author Gaston Dombiak
  */
@@ -66,31 +85,37 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(OutgoingSessionPromise.class);
 
+    /**
+     * Maximum number of packets of a domain that a thread sends before it moves on to the
+     * next domain.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Time after which the queue of an idle domain is discarded, including its statistics.
+     */
+    private static final long IDLE_TIMEOUT = 10 * JiveConstants.MINUTE;
+
     private static OutgoingSessionPromise instance = new OutgoingSessionPromise();
 
     /**
-     * Queue that holds the packets pending to be sent to remote servers.
+     * Packets pending to be sent to remote servers by remote domain.
      */
-    private BlockingQueue<Packet> packets = new LinkedBlockingQueue<>(10000);
+    private final ConcurrentMap<String, DomainQueue> queues = new ConcurrentHashMap<>();
 
     /**
      * Pool of threads that will create outgoing sessions to remote servers and send
-     * the queued packets.
+     * the queued packets. A domain is waiting in the queue of the pool at most once.
      */
     private ThreadPoolExecutor threadPool;
 
-    private Map<String, PacketsProcessor> packetsProcessors = new HashMap<>();
-
     /**
      * Cache (unlimited, never expire) that holds outgoing sessions to remote servers from this server.
      * Key: server domain, Value: nodeID
      */
     private Cache<String, byte[]> serversCache;
-    /**
-     * Flag that indicates if the process that consumed the queued packets should stop.
-     */
-    private boolean shutdown = false;
     private RoutingTable routingTable;
+    private TimerTask cleanupTask;
 
     private OutgoingSessionPromise() {
         super();
@@ -102,65 +127,24 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
         routingTable = XMPPServer.getInstance().getRoutingTable();
         // Create a pool of threads that will process queued packets.
         int maxThreads = JiveGlobals.getIntProperty(ConnectionSettings.Server.QUEUE_MAX_THREADS, 20);
-        int queueSize = JiveGlobals.getIntProperty(ConnectionSettings.Server.QUEUE_SIZE, 50);
         if (maxThreads < 10) {
             // Ensure that the max number of threads in the pool is at least 10
             maxThreads = 10;
         }
         threadPool =
-                new ThreadPoolExecutor(maxThreads/4, maxThreads, 60, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(queueSize),
-                        new ThreadPoolExecutor.CallerRunsPolicy());
-
-        // Start the thread that will consume the queued packets. Each pending packet will
-        // be actually processed by a thread of the pool (when available). If an error occurs
-        // while creating the remote session or sending the packet then a packet with error 502
-        // will be sent to the sender of the packet
-        Thread thread = new Thread(new Runnable() {
+                new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new NamedThreadFactory("s2s-promise-", null, true, null));
+        threadPool.allowCoreThreadTimeOut(true);
+
+        // Forget the queues of domains that have been idle for a while
+        cleanupTask = new TimerTask() {
             @Override
             public void run() {
-                while (!shutdown) {
-                    try {
-                        if (threadPool.getActiveCount() < threadPool.getMaximumPoolSize()) {
-                            // Wait until a packet is available
-                            final Packet packet = packets.take();
-
-                            boolean newProcessor = false;
-                            PacketsProcessor packetsProcessor;
-                            String domain = packet.getTo().getDomain();
-                            synchronized (domain.intern()) {
-                                packetsProcessor = packetsProcessors.get(domain);
-                                if (packetsProcessor == null) {
-                                    packetsProcessor =
-                                            new PacketsProcessor(OutgoingSessionPromise.this, domain);
-                                    packetsProcessors.put(domain, packetsProcessor);
-                                    newProcessor = true;
-                                }
-                                packetsProcessor.addPacket(packet);
-                            }
-
-                            if (newProcessor) {
-                                // Process the packet in another thread
-                                threadPool.execute(packetsProcessor);
-                            }
-                        }
-                        else {
-                            // No threads are available so take a nap :)
-                            Thread.sleep(200);
-                        }
-                    }
-                    catch (InterruptedException e) {
-                        // Do nothing
-                    }
-                    catch (Exception e) {
-                        Log.error(e.getMessage(), e);
-                    }
-                }
+                removeIdleQueues();
             }
-        }, "Queued Packets Processor");
-        thread.setDaemon(true);
-        thread.start();
-
+        };
+        TaskEngine.getInstance().schedule(cleanupTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
     }
 
     public static OutgoingSessionPromise getInstance() {
@@ -168,12 +152,11 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     }
 
     /**
-     * Shuts down the thread that consumes the queued packets and also stops the pool
-     * of threads that actually send the packets to the remote servers.
+     * Stops the pool of threads that actually send the packets to the remote servers.
      */
     public void shutdown() {
+        TaskEngine.getInstance().cancelScheduledTask(cleanupTask);
         threadPool.shutdown();
-        shutdown = true;
     }
 
     @Override
@@ -184,78 +167,273 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
 
     @Override
     public void process(Packet packet) {
-        // Queue the packet. Another process will process the queued packets.
-        packets.add(packet.createCopy());
+        // Queue the packet. A thread of the pool will process the queued packets of the domain.
+        final String domain = packet.getTo().getDomain();
+        DomainQueue queue = queues.get(domain);
+        if (queue == null) {
+            final DomainQueue newQueue = new DomainQueue(domain);
+            queue = queues.putIfAbsent(domain, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        queue.add(packet.createCopy());
     }
 
-    private void processorDone(PacketsProcessor packetsProcessor) {
-        synchronized(packetsProcessor.getDomain().intern()) {
-            if (packetsProcessor.isDone()) {
-                packetsProcessors.remove(packetsProcessor.getDomain());
+    /**
+     * Returns the statistics of the queues of the remote domains that have pending packets
+     * or were used recently, sorted by the number of pending packets.
+     *
+     * @return the statistics of the queues by remote domain.
+     */
+    public List<QueueStatistics> getQueueStatistics() {
+        final List<QueueStatistics> statistics = new ArrayList<>();
+        for (DomainQueue queue : queues.values()) {
+            statistics.add(new QueueStatistics(queue));
+        }
+        Collections.sort(statistics, new Comparator<QueueStatistics>() {
+            @Override
+            public int compare(QueueStatistics o1, QueueStatistics o2) {
+                if (o1.getSize() != o2.getSize()) {
+                    return o1.getSize() > o2.getSize() ? -1 : 1;
+                }
+                return o1.getDomain().compareTo(o2.getDomain());
             }
-            else {
-                threadPool.execute(packetsProcessor);
+        });
+        return statistics;
+    }
+
+    /**
+     * Returns the total number of packets that are waiting to be sent to remote servers.
+     *
+     * @return the number of queued packets.
+     */
+    public int getQueuedPacketCount() {
+        int count = 0;
+        for (DomainQueue queue : queues.values()) {
+            count += queue.packets.size();
+        }
+        return count;
+    }
+
+    private void removeIdleQueues() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<DomainQueue> it = queues.values().iterator(); it.hasNext();) {
+            final DomainQueue queue = it.next();
+            if (queue.packets.isEmpty() && !queue.scheduled.get() && !queue.isUnreachable()
+                    && now - queue.lastActivity > IDLE_TIMEOUT) {
+                it.remove();
+                if (!queue.packets.isEmpty()) {
+                    // A packet was added while the queue was removed, it will still be processed
+                    // but new packets go to a new queue
+                    Log.debug("OutgoingSessionPromise: Removed queue of {} while a packet was added.", queue.domain);
+                }
             }
         }
     }
 
-    private class PacketsProcessor implements Runnable {
+    private void returnErrorToSender(Packet packet) {
+        XMPPServer server = XMPPServer.getInstance();
+        JID from = packet.getFrom();
+        JID to = packet.getTo();
+        if (!server.isLocal(from) && !XMPPServer.getInstance().matchesComponent(from) &&
+                !server.isLocal(to) && !XMPPServer.getInstance().matchesComponent(to)) {
+            // Do nothing since the sender and receiver of the packet that failed to reach a remote
+            // server are not local users. This prevents endless loops if the FROM or TO address
+            // are non-existen addresses
+            return;
+        }
 
-        private OutgoingSessionPromise promise;
-        private String domain;
-        private Queue<Packet> packetQueue = new ConcurrentLinkedQueue<>();
+        // TODO Send correct error condition: timeout or not_found depending on the real error
+        try {
+            if (packet instanceof IQ) {
+                IQ reply = new IQ();
+                reply.setID(packet.getID());
+                reply.setTo(from);
+                reply.setFrom(to);
+                reply.setChildElement(((IQ) packet).getChildElement().createCopy());
+                reply.setError(PacketError.Condition.remote_server_not_found);
+                routingTable.routePacket(reply.getTo(), reply, true);
+            }
+            else if (packet instanceof Presence) {
+            	// workaround for OF-23. "undo" the 'setFrom' to a bare JID 
+            	// by sending the error to all available resources.
+            	final List<JID> routes = new ArrayList<>();
+            	if (from.getResource() == null || from.getResource().trim().length() == 0) {
+                	routes.addAll(routingTable.getRoutes(from, null));
+                } else {
+                	routes.add(from);
+                }
+            	
+            	for (JID route : routes) {
+	                    Presence reply = new Presence();
+	                    reply.setID(packet.getID());
+	                    reply.setTo(route);
+	                    reply.setFrom(to);
+	                    reply.setError(PacketError.Condition.remote_server_not_found);
+	                    routingTable.routePacket(reply.getTo(), reply, true);
+            	}
+            }
+            else if (packet instanceof Message) {
+                Message reply = new Message();
+                reply.setID(packet.getID());
+                reply.setTo(from);
+                reply.setFrom(to);
+                reply.setType(((Message)packet).getType());
+                reply.setThread(((Message)packet).getThread());
+                reply.setError(PacketError.Condition.remote_server_not_found);
+                routingTable.routePacket(reply.getTo(), reply, true);
+            }
+        }
+        catch (Exception e) {
+            Log.warn("Error returning error to sender. Original packet: " + packet, e);
+        }
+    }
+
+    /**
+     * A packet and the time it was queued.
+     */
+    private static class PendingPacket {
+
+        private final Packet packet;
+        private final long queued = System.nanoTime();
+
+        private PendingPacket(Packet packet) {
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * The packets that are waiting to be sent to a remote domain. The queue is processed by
+     * at most one thread of the pool at a time, which sends a batch of packets and then lets
+     * the other domains go first. While a new session is negotiated without blocking a thread,
+     * the queue stays scheduled but no thread processes it; the end of the negotiation
+     * resumes it.
+     */
+    private class DomainQueue implements Runnable {
+
+        private final String domain;
+        private final BlockingQueue<PendingPacket> packets;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * The negotiation of a new session, and the packet that is waiting for it.
+         */
+        private OutgoingServerHandshake negotiation;
+        private PendingPacket waiting;
+
+        /**
+         * The number of consecutive failures to connect to the remote domain.
+         */
+        private volatile int failures;
         /**
-         * Keep track of the last time s2s failed. Once a packet failed to be sent to a
-         * remote server this stamp will be used so that for the next 5 seconds future packets
-         * for the same domain will automatically fail. After 5 seconds a new attempt to
-         * establish a s2s connection and deliver pendings packets will be performed.
-         * This optimization is good when the server is receiving many packets per second for the
-         * same domain. This will help reduce high CPU consumption.
+         * The time until which the domain is considered unreachable.
          */
-        private long failureTimestamp = -1;
+        private volatile long retryTime = -1;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private final AtomicLong queuedCount = new AtomicLong();
+        private final AtomicLong sentCount = new AtomicLong();
+        private final AtomicLong bouncedCount = new AtomicLong();
+        private final AtomicLong failedAttempts = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
 
-        public PacketsProcessor(OutgoingSessionPromise promise, String domain) {
-            this.promise = promise;
+        DomainQueue(String domain) {
             this.domain = domain;
+            this.packets = new LinkedBlockingQueue<>(
+                    JiveGlobals.getIntProperty(ConnectionSettings.Server.DOMAIN_QUEUE_SIZE, 1000));
+        }
+
+        void add(Packet packet) {
+            lastActivity = System.currentTimeMillis();
+            if (isUnreachable()) {
+                bounce(packet, "the domain is unreachable (fast discard)");
+                return;
+            }
+            if (!packets.offer(new PendingPacket(packet))) {
+                bounce(packet, "the queue of the domain is full");
+                return;
+            }
+            queuedCount.incrementAndGet();
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    threadPool.execute(this);
+                }
+                catch (RejectedExecutionException e) {
+                    // Shutting down
+                    scheduled.set(false);
+                    Log.debug("OutgoingSessionPromise: Unable to process packets of {}: pool is shut down.", domain);
+                }
+            }
+        }
+
+        /**
+         * Resumes the queue once the negotiation of a new session is done.
+         */
+        private void resume() {
+            try {
+                threadPool.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                // Shutting down
+                scheduled.set(false);
+                Log.debug("OutgoingSessionPromise: Unable to process packets of {}: pool is shut down.", domain);
+            }
         }
 
         @Override
         public void run() {
-            while (!isDone()) {
-                Packet packet = packetQueue.poll();
-                if (packet != null) {
-                    // Check if s2s already failed
-                    if (failureTimestamp > 0) {
-                        // Check if enough time has passed to attempt a new s2s
-                        if (System.currentTimeMillis() - failureTimestamp < 5000) {
-                            returnErrorToSender(packet);
-                            Log.debug(
-                                    "OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
-                                            packet);
-                            continue;
-                        }
-                        else {
-                            // Reset timestamp of last failure since we are ready to try again doing a s2s
-                            failureTimestamp = -1;
-                        }
+            boolean suspended = false;
+            try {
+                if (negotiation != null) {
+                    finishNegotiation();
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    final PendingPacket pending = packets.poll();
+                    if (pending == null) {
+                        break;
+                    }
+                    if (isUnreachable()) {
+                        bounce(pending.packet, "the domain is unreachable (fast discard)");
+                        continue;
                     }
                     try {
-                        sendPacket(packet);
+                        if (!sendPacket(pending)) {
+                            // Waiting for a new session
+                            suspended = true;
+                            break;
+                        }
+                        sent(pending);
                     }
                     catch (Exception e) {
-                        returnErrorToSender(packet);
-                        Log.debug(
-                                "OutgoingSessionPromise: Error sending packet to remote server: " + packet,
-                                e);
-                        // Mark the time when s2s failed
-                        failureTimestamp = System.currentTimeMillis();
+                        failed(pending, e);
+                    }
+                }
+            }
+            finally {
+                lastActivity = System.currentTimeMillis();
+                if (!suspended) {
+                    scheduled.set(false);
+                    if (!packets.isEmpty()) {
+                        // Continue after the domains that are waiting
+                        schedule();
                     }
                 }
             }
-            promise.processorDone(this);
         }
 
-        private void sendPacket(Packet packet) throws Exception {
+        /**
+         * Sends a packet, authenticating the domain of its sender first if needed.
+         *
+         * @return false if the packet waits for the negotiation of a new session.
+         */
+        private boolean sendPacket(PendingPacket pending) throws Exception {
+            final Packet packet = pending.packet;
             // Create a connection to the remote server from the domain where the packet has been sent
             boolean created;
             // Make sure that only one cluster node is creating the outgoing connection
@@ -263,11 +441,67 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             Lock lock = CacheFactory.getLock(domain+"oss", serversCache);
             try {
                 lock.lock();
+                final OutgoingServerHandshake handshake = LocalOutgoingServerSession
+                        .startAuthenticateDomain(packet.getFrom().getDomain(), packet.getTo().getDomain());
+                if (handshake != null) {
+                    negotiation = handshake;
+                    waiting = pending;
+                    handshake.addCompletionListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    });
+                    return false;
+                }
                 created = LocalOutgoingServerSession
                         .authenticateDomain(packet.getFrom().getDomain(), packet.getTo().getDomain());
             } finally {
                 lock.unlock();
             }
+            route(packet, created);
+            return true;
+        }
+
+        /**
+         * Creates the session that was negotiated and sends the packet that was waiting for it.
+         */
+        private void finishNegotiation() {
+            final OutgoingServerHandshake handshake = negotiation;
+            final PendingPacket pending = waiting;
+            negotiation = null;
+            waiting = null;
+            try {
+                boolean created;
+                Lock lock = CacheFactory.getLock(domain+"oss", serversCache);
+                try {
+                    lock.lock();
+                    created = LocalOutgoingServerSession.authenticateDomain(handshake);
+                } finally {
+                    lock.unlock();
+                }
+                route(pending.packet, created);
+                sent(pending);
+            }
+            catch (Exception e) {
+                failed(pending, e);
+            }
+        }
+
+        private void sent(PendingPacket pending) {
+            sentCount.incrementAndGet();
+            recordLatency(System.nanoTime() - pending.queued);
+            failures = 0;
+            retryTime = -1;
+        }
+
+        private void failed(PendingPacket pending, Exception e) {
+            Log.debug("OutgoingSessionPromise: Error sending packet to remote server: " + pending.packet, e);
+            bounce(pending.packet, null);
+            connectionFailed();
+        }
+
+        private void route(Packet packet, boolean created) throws Exception {
             if (created) {
                 if (!routingTable.hasServerRoute(packet.getTo())) {
                     throw new Exception("Route created but not found!!!");
@@ -280,74 +514,140 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             }
         }
 
-        private void returnErrorToSender(Packet packet) {
-            XMPPServer server = XMPPServer.getInstance();
-            JID from = packet.getFrom();
-            JID to = packet.getTo();
-            if (!server.isLocal(from) && !XMPPServer.getInstance().matchesComponent(from) &&
-                    !server.isLocal(to) && !XMPPServer.getInstance().matchesComponent(to)) {
-                // Do nothing since the sender and receiver of the packet that failed to reach a remote
-                // server are not local users. This prevents endless loops if the FROM or TO address
-                // are non-existen addresses
-                return;
-            }
+        /**
+         * Considers the domain unreachable for a time that doubles with every consecutive
+         * failure.
+         */
+        private void connectionFailed() {
+            final int count = ++failures;
+            final long initial = JiveGlobals.getLongProperty(ConnectionSettings.Server.BACKOFF_INITIAL, 5 * JiveConstants.SECOND);
+            final long max = JiveGlobals.getLongProperty(ConnectionSettings.Server.BACKOFF_MAX, 5 * JiveConstants.MINUTE);
+            final long backoff = Math.min(max, initial << Math.min(count - 1, 20));
+            retryTime = System.currentTimeMillis() + backoff;
+            // Counted once the retry time is set, so statistics that show the attempt show its backoff
+            failedAttempts.incrementAndGet();
+            Log.debug("OutgoingSessionPromise: {} is unreachable, next attempt in {} ms.", domain, backoff);
+        }
 
-            // TODO Send correct error condition: timeout or not_found depending on the real error
-            try {
-                if (packet instanceof IQ) {
-                    IQ reply = new IQ();
-                    reply.setID(packet.getID());
-                    reply.setTo(from);
-                    reply.setFrom(to);
-                    reply.setChildElement(((IQ) packet).getChildElement().createCopy());
-                    reply.setError(PacketError.Condition.remote_server_not_found);
-                    routingTable.routePacket(reply.getTo(), reply, true);
-                }
-                else if (packet instanceof Presence) {
-                	// workaround for OF-23. "undo" the 'setFrom' to a bare JID 
-                	// by sending the error to all available resources.
-                	final List<JID> routes = new ArrayList<>();
-                	if (from.getResource() == null || from.getResource().trim().length() == 0) {
-                    	routes.addAll(routingTable.getRoutes(from, null));
-                    } else {
-                    	routes.add(from);
-                    }
-                	
-                	for (JID route : routes) {
-	                    Presence reply = new Presence();
-	                    reply.setID(packet.getID());
-	                    reply.setTo(route);
-	                    reply.setFrom(to);
-	                    reply.setError(PacketError.Condition.remote_server_not_found);
-	                    routingTable.routePacket(reply.getTo(), reply, true);
-                	}
-                }
-                else if (packet instanceof Message) {
-                    Message reply = new Message();
-                    reply.setID(packet.getID());
-                    reply.setTo(from);
-                    reply.setFrom(to);
-                    reply.setType(((Message)packet).getType());
-                    reply.setThread(((Message)packet).getThread());
-                    reply.setError(PacketError.Condition.remote_server_not_found);
-                    routingTable.routePacket(reply.getTo(), reply, true);
-                }
+        private boolean isUnreachable() {
+            return retryTime > System.currentTimeMillis();
+        }
+
+        private void bounce(Packet packet, String reason) {
+            bouncedCount.incrementAndGet();
+            if (reason != null) {
+                Log.debug("OutgoingSessionPromise: Error sending packet to remote server, " + reason + ": " + packet);
             }
-            catch (Exception e) {
-                Log.warn("Error returning error to sender. Original packet: " + packet, e);
+            returnErrorToSender(packet);
+        }
+
+        private void recordLatency(long nanos) {
+            totalLatency.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, nanos)) {
+                // Retry
             }
         }
+    }
 
-        public void addPacket(Packet packet) {
-            packetQueue.add(packet);
+    /**
+     * A snapshot of the statistics of the queue of a remote domain.
+     */
+    public static final class QueueStatistics {
+
+        private final String domain;
+        private final int size;
+        private final long queued;
+        private final long sent;
+        private final long bounced;
+        private final long failedAttempts;
+        private final long averageLatency;
+        private final long maxLatency;
+        private final long retryTime;
+
+        private QueueStatistics(DomainQueue queue) {
+            domain = queue.domain;
+            size = queue.packets.size();
+            queued = queue.queuedCount.get();
+            sent = queue.sentCount.get();
+            bounced = queue.bouncedCount.get();
+            failedAttempts = queue.failedAttempts.get();
+            averageLatency = sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(queue.totalLatency.get() / sent);
+            maxLatency = TimeUnit.NANOSECONDS.toMillis(queue.maxLatency.get());
+            retryTime = queue.isUnreachable() ? queue.retryTime : -1;
         }
 
         public String getDomain() {
             return domain;
         }
 
-        public boolean isDone() {
-            return packetQueue.isEmpty();
+        /**
+         * Returns the number of packets waiting to be sent.
+         *
+         * @return the number of packets in the queue.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the number of packets that were queued, not counting the packets that were
+         * rejected right away.
+         *
+         * @return the number of queued packets.
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * Returns the number of packets that were returned to their senders.
+         *
+         * @return the number of bounced packets.
+         */
+        public long getBounced() {
+            return bounced;
+        }
+
+        /**
+         * Returns the number of failed attempts to connect to the domain.
+         *
+         * @return the number of failed attempts.
+         */
+        public long getFailedAttempts() {
+            return failedAttempts;
+        }
+
+        /**
+         * Returns the average time packets waited in the queue before they were sent.
+         *
+         * @return the average waiting time in milliseconds.
+         */
+        public long getAverageLatency() {
+            return averageLatency;
+        }
+
+        /**
+         * Returns the longest time a packet waited in the queue before it was sent.
+         *
+         * @return the maximum waiting time in milliseconds.
+         */
+        public long getMaxLatency() {
+            return maxLatency;
+        }
+
+        /**
+         * Returns the time of the next attempt to connect to the domain, if the domain is
+         * considered unreachable.
+         *
+         * @return the time of the next attempt, or -1 if the domain is not unreachable.
+         */
+        public long getRetryTime() {
+            return retryTime;
         }
     }
 }
@@ -318,7 +318,7 @@ public class ServerDialback {
 
         log.debug( "Authenticating domain ..." );
 
-        String key = AuthFactory.createDigest( id, getSecretkey() );
+        String key = createKey( id );
 
         synchronized (socketReader) {
             log.debug( "Sending dialback key and wait for the validation response..." );
@@ -862,6 +862,17 @@ public class ServerDialback {
         return verified;
     }
 
+    /**
+     * Returns the dialback key with which the Originating Server authenticates a domain on a
+     * stream that was opened by the Receiving Server.
+     *
+     * @param streamID the ID of the stream.
+     * @return the dialback key.
+     */
+    public static String createKey(String streamID) {
+        return AuthFactory.createDigest(streamID, getSecretkey());
+    }
+
     /**
      * Returns the secret key that was randomly generated. When running inside of a cluster
      * the key will be unique to all cluster nodes.
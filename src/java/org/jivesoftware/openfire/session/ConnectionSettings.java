@@ -38,7 +38,15 @@ public final class ConnectionSettings {
         public static final String SOCKET_READ_TIMEOUT = "xmpp.server.read.timeout";
 
         public static final String QUEUE_MAX_THREADS = "xmpp.server.outgoing.max.threads";
+
+        /**
+         * @deprecated Packets are queued by remote domain, see #DOMAIN_QUEUE_SIZE
+         */
+        @Deprecated
         public static final String QUEUE_SIZE = "xmpp.server.outgoing.queue";
+        public static final String DOMAIN_QUEUE_SIZE = "xmpp.server.outgoing.domain.queue";
+        public static final String BACKOFF_INITIAL = "xmpp.server.outgoing.backoff.initial";
+        public static final String BACKOFF_MAX = "xmpp.server.outgoing.backoff.max";
 
         public static final String DIALBACK_ENABLED = "xmpp.server.dialback.enabled";
         public static final String TLS_POLICY = "xmpp.server.tls.policy";
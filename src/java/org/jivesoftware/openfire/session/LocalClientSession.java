@@ -922,7 +922,11 @@ public class LocalClientSession extends LocalSession implements ClientSession {
 
     @Override
     public void setMessageCarbonsEnabled(boolean enabled) {
-        messageCarbonsEnabled = enabled;
+        if (messageCarbonsEnabled != enabled) {
+            messageCarbonsEnabled = enabled;
+            // Message carbons enabled sessions get copies of messages sent to the bare JID
+            XMPPServer.getInstance().getRoutingTable().refreshClientRoute(this);
+        }
     }
 
     /**
@@ -952,11 +956,25 @@ public class LocalClientSession extends LocalSession implements ClientSession {
 
     @Override
 	public void deliver(Packet packet) throws UnauthorizedException {
-
+        // Keep the packet for the client while the session waits to be resumed
+        if (streamManager.bufferIfDetached(packet)) {
+            return;
+        }
         conn.deliver(packet);
         streamManager.sentStanza(packet);
     }
 
+    @Override
+    public void close() {
+        if (streamManager.terminate()) {
+            // The connection of a detached session is already closed
+            sessionManager.closeDetachedSession(this);
+        }
+        else {
+            super.close();
+        }
+    }
+
     @Override
 	public String toString() {
         return super.toString() + " presence: " + presence;
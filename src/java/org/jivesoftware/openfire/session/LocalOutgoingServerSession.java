@@ -44,6 +44,8 @@ import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.net.*;
+import org.jivesoftware.openfire.nio.OutgoingServerConnector;
+import org.jivesoftware.openfire.nio.OutgoingServerHandshake;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerConfiguration;
 import org.jivesoftware.openfire.server.RemoteServerManager;
@@ -136,7 +138,6 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 return false;
             }
 
-            log.debug( "Searching for pre-existing outgoing sessions to the remote domain (if one exists, it will be re-used) ..." );
             OutgoingServerSession session;
             SessionManager sessionManager = SessionManager.getInstance();
             if (sessionManager == null) {
@@ -144,42 +145,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 log.warn( "Unable to authenticate: a SessionManager instance is not available. This should not occur unless Openfire is starting up or shutting down." );
                 return false;
             }
-            session = sessionManager.getOutgoingServerSession(remoteDomain);
-
-            if (session == null)
-            {
-                log.debug( "There are no pre-existing outgoing sessions to the remote domain itself. Searching for pre-existing outgoing sessions to super- or subdomains of the remote domain (if one exists, it might be re-usable) ..." );
-
-                for ( IncomingServerSession incomingSession : sessionManager.getIncomingServerSessions( remoteDomain ) )
-                {
-                    // These are the remote domains that are allowed to send data to the local domain - expected to be sub- or superdomains of remoteDomain
-                    for ( String otherRemoteDomain : incomingSession.getValidatedDomains() )
-                    {
-                        // See if there's an outgoing session to any of the (other) domains hosted by the remote domain.
-                        session = sessionManager.getOutgoingServerSession( otherRemoteDomain );
-                        if (session != null)
-                        {
-                            log.debug( "An outgoing session to a different domain ('{}') hosted on the remote domain was found.", otherRemoteDomain );
-
-                            // As this sub/superdomain is different from the original remote domain, we need to check if it supports dialback.
-                            if ( session.isUsingServerDialback() )
-                            {
-                                log.debug( "Dialback was used for '{}'. This session can be re-used.", otherRemoteDomain );
-                                break;
-                            }
-                            else
-                            {
-                                log.debug( "Dialback was not used for '{}'. This session cannot be re-used.", otherRemoteDomain );
-                                session = null;
-                            }
-                        }
-                    }
-                }
-
-                if (session == null) {
-                    log.debug( "There are no pre-existing session to other domains hosted on the remote domain." );
-                }
-            }
+            session = findReusableSession(sessionManager, remoteDomain, log);
 
             if ( session != null )
             {
@@ -209,15 +175,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 int port = RemoteServerManager.getPortForServer(remoteDomain);
                 session = createOutgoingSession(localDomain, remoteDomain, port);
                 if (session != null) {
-                    log.debug( "Created a new session." );
-
-                    // Add the validated domain as an authenticated domain
-                    session.addAuthenticatedDomain(localDomain);
-                    // Add the new domain to the list of names that the server may have
-                    session.addHostname(remoteDomain);
-                    // Notify the SessionManager that a new session has been created
-                    sessionManager.outgoingServerSessionCreated((LocalOutgoingServerSession) session);
-                    log.debug( "Authentication successful." );
+                    sessionCreated((LocalOutgoingServerSession) session, localDomain, remoteDomain, sessionManager, log);
                     return true;
                 } else {
                     log.warn( "Unable to authenticate: Fail to create new session." );
@@ -232,6 +190,142 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }
     }
 
+    /**
+     * Starts to authenticate the local domain to the remote domain like {@link #authenticateDomain(String, String)},
+     * without waiting for the remote server when a new session is established by the {@link OutgoingServerConnector}.
+     * The returned negotiation is passed to {@link #authenticateDomain(OutgoingServerHandshake)} once it's done
+     * (see {@link OutgoingServerHandshake#addCompletionListener(Runnable)}).
+     *
+     * @param localDomain the local domain to authenticate with the remote server.
+     * @param remoteDomain the remote server, to which the local domain intends to send data.
+     * @return the negotiation of a new session, or null if {@link #authenticateDomain(String, String)} must be used
+     *         because outgoing sessions do not use NIO, a session can be re-used or the domain can't be authenticated.
+     */
+    public static OutgoingServerHandshake startAuthenticateDomain(final String localDomain, final String remoteDomain) {
+        final Logger log = LoggerFactory.getLogger( Log.getName() + "[Authenticate local domain: '" + localDomain + "' to remote domain: '" + remoteDomain + "']" );
+
+        if (!OutgoingServerConnector.isEnabled() || remoteDomain == null || remoteDomain.length() == 0 ||
+                remoteDomain.trim().indexOf(' ') > -1 || !RemoteServerManager.canAccess(remoteDomain)) {
+            return null;
+        }
+        final SessionManager sessionManager = SessionManager.getInstance();
+        if (sessionManager == null || findReusableSession(sessionManager, remoteDomain, log) != null) {
+            return null;
+        }
+        log.debug( "Unable to re-use an existing session. Negotiating a new session ..." );
+        return OutgoingServerConnector.getInstance().connect(localDomain, remoteDomain, RemoteServerManager.getPortForServer(remoteDomain));
+    }
+
+    /**
+     * Finishes the authentication of a domain that was started by {@link #startAuthenticateDomain(String, String)},
+     * once the negotiation of the new session is done. If a session to the remote domain was created meanwhile (for
+     * instance by another cluster node) that session is used instead. When the negotiation failed after connecting,
+     * server dialback over a plain connection is tried, which blocks until the remote server answered.
+     *
+     * @param handshake the negotiation of the new session.
+     * @return True if the domain was authenticated by the remote server.
+     */
+    public static boolean authenticateDomain(final OutgoingServerHandshake handshake) {
+        final String localDomain = handshake.getLocalDomain();
+        final String remoteDomain = handshake.getRemoteDomain();
+        final Logger log = LoggerFactory.getLogger( Log.getName() + "[Authenticate local domain: '" + localDomain + "' to remote domain: '" + remoteDomain + "']" );
+
+        final SessionManager sessionManager = SessionManager.getInstance();
+        if (sessionManager == null) {
+            log.warn( "Unable to authenticate: a SessionManager instance is not available. This should not occur unless Openfire is starting up or shutting down." );
+            closeConnection(handshake);
+            return false;
+        }
+        if (findReusableSession(sessionManager, remoteDomain, log) != null) {
+            log.debug( "A session was created while the new session was negotiated. Using that session instead." );
+            closeConnection(handshake);
+            return authenticateDomain(localDomain, remoteDomain);
+        }
+        try {
+            final LocalOutgoingServerSession session = createNIOOutgoingSession(handshake);
+            if (session != null) {
+                sessionCreated(session, localDomain, remoteDomain, sessionManager, log);
+                return true;
+            }
+            log.warn( "Unable to authenticate: Fail to create new session." );
+            return false;
+        }
+        catch (Exception e)
+        {
+            log.error( "An exception occurred while authenticating remote domain!", e );
+            return false;
+        }
+    }
+
+    private static void closeConnection(OutgoingServerHandshake handshake) {
+        if (handshake.getConnection() != null) {
+            handshake.getConnection().close();
+        }
+    }
+
+    /**
+     * Returns a session to the remote domain, or to another domain hosted by the remote server that was authenticated
+     * using dialback, or null if there is no such session.
+     */
+    private static OutgoingServerSession findReusableSession(SessionManager sessionManager, String remoteDomain, Logger log) {
+        log.debug( "Searching for pre-existing outgoing sessions to the remote domain (if one exists, it will be re-used) ..." );
+        OutgoingServerSession session = sessionManager.getOutgoingServerSession(remoteDomain);
+
+            session = sessionManager.getOutgoingServerSession(remoteDomain);
+
+        if (session == null)
+        {
+            log.debug( "There are no pre-existing outgoing sessions to the remote domain itself. Searching for pre-existing outgoing sessions to super- or subdomains of the remote domain (if one exists, it might be re-usable) ..." );
+
+            for ( IncomingServerSession incomingSession : sessionManager.getIncomingServerSessions( remoteDomain ) )
+            {
+                // These are the remote domains that are allowed to send data to the local domain - expected to be sub- or superdomains of remoteDomain
+                for ( String otherRemoteDomain : incomingSession.getValidatedDomains() )
+                {
+                    // See if there's an outgoing session to any of the (other) domains hosted by the remote domain.
+                    session = sessionManager.getOutgoingServerSession( otherRemoteDomain );
+                    if (session != null)
+                    {
+                        log.debug( "An outgoing session to a different domain ('{}') hosted on the remote domain was found.", otherRemoteDomain );
+
+                        // As this sub/superdomain is different from the original remote domain, we need to check if it supports dialback.
+                        if ( session.isUsingServerDialback() )
+                        {
+                            log.debug( "Dialback was used for '{}'. This session can be re-used.", otherRemoteDomain );
+                            break;
+                        }
+                        else
+                        {
+                            log.debug( "Dialback was not used for '{}'. This session cannot be re-used.", otherRemoteDomain );
+                            session = null;
+                        }
+                    }
+                }
+            }
+
+            if (session == null) {
+                log.debug( "There are no pre-existing session to other domains hosted on the remote domain." );
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     * Registers a new session to a remote domain.
+     */
+    private static void sessionCreated(LocalOutgoingServerSession session, String localDomain, String remoteDomain, SessionManager sessionManager, Logger log) {
+        log.debug( "Created a new session." );
+
+        // Add the validated domain as an authenticated domain
+        session.addAuthenticatedDomain(localDomain);
+        // Add the new domain to the list of names that the server may have
+        session.addHostname(remoteDomain);
+        // Notify the SessionManager that a new session has been created
+        sessionManager.outgoingServerSessionCreated(session);
+        log.debug( "Authentication successful." );
+    }
+
     /**
      * Establishes a new outgoing session to a remote domain. If the remote domain supports TLS and SASL then the new
      * outgoing connection will be secured with TLS and authenticated  using SASL. However, if TLS or SASL is not
@@ -248,6 +342,10 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
 
         log.debug( "Creating new session..." );
 
+        if ( OutgoingServerConnector.isEnabled() ) {
+            return createNIOOutgoingSession( localDomain, remoteDomain, port );
+        }
+
         // Connect to remote server using XMPP 1.0 (TLS + SASL EXTERNAL or TLS + server dialback or server dialback)
         log.debug( "Creating plain socket connection to a host that belongs to the remote XMPP domain." );
         final Socket socket = SocketUtil.createSocketToXmppDomain( remoteDomain, port );
@@ -365,6 +463,77 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             }
         }
 
+        return createDialbackOutgoingSession( localDomain, remoteDomain, port );
+    }
+
+    /**
+     * Establishes a new outgoing session to a remote domain like {@link #createOutgoingSession(String, String, int)},
+     * using a connection of the {@link OutgoingServerConnector}. The session does not need a thread to read the
+     * answers of the remote server, but this method waits for the negotiation of the stream; callers that must not
+     * wait use {@link #startAuthenticateDomain(String, String)} instead.
+     *
+     * @param localDomain the local domain to authenticate with the remote domain.
+     * @param remoteDomain the remote domain.
+     * @param port default port to use to establish the connection.
+     * @return new outgoing session to a remote domain, or null.
+     */
+    private static LocalOutgoingServerSession createNIOOutgoingSession(String localDomain, String remoteDomain, int port) {
+        final OutgoingServerHandshake handshake = OutgoingServerConnector.getInstance().connect( localDomain, remoteDomain, port );
+        try {
+            handshake.awaitCompletion();
+        }
+        catch ( InterruptedException e ) {
+            LoggerFactory.getLogger( Log.getName() + "[Create NIO outgoing session for: " + localDomain + " to " + remoteDomain + "]" )
+                    .debug( "Unable to create new session: interrupted while negotiating the stream." );
+            handshake.cancel();
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return createNIOOutgoingSession( handshake );
+    }
+
+    /**
+     * Creates the session of a stream that was negotiated by the {@link OutgoingServerConnector}, or tries server
+     * dialback over a plain connection if the negotiation failed after connecting to the remote server.
+     *
+     * @param handshake the negotiation of the stream, which is done.
+     * @return new outgoing session to a remote domain, or null.
+     */
+    private static LocalOutgoingServerSession createNIOOutgoingSession(OutgoingServerHandshake handshake) {
+        final String localDomain = handshake.getLocalDomain();
+        final String remoteDomain = handshake.getRemoteDomain();
+        final Logger log = LoggerFactory.getLogger( Log.getName() + "[Create NIO outgoing session for: " + localDomain + " to " + remoteDomain + "]" );
+
+        if ( handshake.isCompleted() ) {
+            final Connection connection = handshake.getConnection();
+            final StreamID streamID = new BasicStreamIDFactory().createStreamID( handshake.getStreamID() );
+            final LocalOutgoingServerSession session = new LocalOutgoingServerSession( localDomain, connection, handshake.getSocketReader(), streamID );
+            connection.init( session );
+            // Set the hostname as the address of the session
+            session.setAddress( new JID( null, remoteDomain, null ) );
+            session.usingServerDialback = handshake.isUsingServerDialback();
+            if ( connection.isClosed() ) {
+                log.debug( "Unable to create new session: the connection was closed right after the stream was negotiated." );
+                return null;
+            }
+            log.debug( "Successfully created new session!" );
+            return session;
+        }
+
+        if ( !handshake.isConnected() ) {
+            log.info( "Unable to create new session: Cannot create a connection with any applicable remote host." );
+            return null;
+        }
+        return createDialbackOutgoingSession( localDomain, remoteDomain, RemoteServerManager.getPortForServer( remoteDomain ) );
+    }
+
+    /**
+     * Establishes a new outgoing session to a remote domain using server dialback (pre XMPP 1.0) over a plain
+     * connection, after the negotiation of an XMPP 1.0 stream failed.
+     */
+    private static LocalOutgoingServerSession createDialbackOutgoingSession(String localDomain, String remoteDomain, int port) {
+        final Logger log = LoggerFactory.getLogger( Log.getName() + "[Create outgoing session for: " + localDomain + " to " + remoteDomain + "]" );
+
         if (ServerDialback.isEnabled())
         {
             log.debug( "Unable to create a new session. Going to try connecting using server dialback as a fallback." );
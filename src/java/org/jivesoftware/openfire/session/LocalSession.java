@@ -27,6 +27,7 @@ import javax.net.ssl.SSLSession;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.SerializedStanza;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.XMPPServer;
@@ -76,9 +77,10 @@ public abstract class LocalSession implements Session {
     protected int status = STATUS_CONNECTED;
 
     /**
-     * The connection that this session represents.
+     * The connection that this session represents. The connection is replaced when a client
+     * resumes the session on a new stream (XEP-0198).
      */
-    protected final Connection conn;
+    protected volatile Connection conn;
 
     protected SessionManager sessionManager;
 
@@ -121,7 +123,7 @@ public abstract class LocalSession implements Session {
         String id = streamID.getID();
         this.address = new JID(null, serverName, id, true);
         this.sessionManager = SessionManager.getInstance();
-        this.streamManager = new StreamManager(conn);
+        this.streamManager = new StreamManager(this);
         this.language = language;
     }
 
@@ -159,6 +161,19 @@ public abstract class LocalSession implements Session {
         return conn;
     }
 
+    /**
+     * Moves this session to a new connection. Used when a client resumes the session after its
+     * previous connection broke.
+     *
+     * @param connection the new connection of this session.
+     */
+    public void setConnection(Connection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection must not be null");
+        }
+        conn = connection;
+    }
+
     /**
      * Obtain the current status of this session.
      *
@@ -315,6 +330,11 @@ public abstract class LocalSession implements Session {
             // Perform the actual processing of the packet. This usually implies sending
             // the packet to the entity
             try {
+                if (packet instanceof SerializedStanza &&
+                        InterceptorManager.getInstance().hasInterceptors(packet, this, false, false)) {
+                    // Interceptors may alter the packet, which its serialization would not reflect
+                    packet = packet.createCopy();
+                }
                 // Invoke the interceptors before we send the packet
                 InterceptorManager.getInstance().invokeInterceptors(packet, this, false, false);
                 deliver(packet);
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.spi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Immutable routing entry of the sessions of a user (a bare JID) that are hosted by this JVM.
+ * The entry keeps the candidates of a message sent to the bare JID precomputed so that the
+ * routing table does not have to look up and sort the sessions of the user for every message.
+ * A new entry is created whenever a session is bound or unbound, or when the presence or the
+ * message carbons state of one of the sessions changes.<p>
+ *
+ * The precomputed candidates are:<ul>
+ * <li>available sessions with a non-negative priority,
+ * <li>the subset of them that enabled message carbons,
+ * <li>the sessions with the highest priority, and
+ * <li>amongst those, the sessions with the highest show value (chat, available, away, xa, dnd).</ul>
+ *
+ * The most recent activity of a session changes with every packet, so picking the best
+ * session amongst sessions with the same priority and show value is left to routing time.
+ * Unavailable sessions that sent directed presence to the sender of a message are candidates
+ * as well; directed presence depends on the sender, so such messages do not use the entry
+ * (see {@link #hasDirectPresence(JID, PresenceUpdateHandler)}).
+ */
+class BareJIDRoute {
+
+    private static final ClientSession[] NO_SESSIONS = new ClientSession[0];
+
+    private final LocalClientSession[] sessions;
+    private final ClientSession[] nonNegative;
+    private final ClientSession[] carbonsEnabled;
+    private final ClientSession[] highestPriority;
+    private final ClientSession[] highestShow;
+    private final ClientSession[] unavailable;
+
+    private BareJIDRoute(LocalClientSession[] sessions) {
+        this.sessions = sessions;
+
+        List<ClientSession> available = new ArrayList<>(sessions.length);
+        List<ClientSession> carbons = new ArrayList<>(sessions.length);
+        List<ClientSession> unavailable = new ArrayList<>(0);
+        int highest = -1;
+        for (LocalClientSession session : sessions) {
+            Presence presence = session.getPresence();
+            if (!presence.isAvailable()) {
+                unavailable.add(session);
+            }
+            else if (presence.getPriority() >= 0) {
+                available.add(session);
+                if (session.isMessageCarbonsEnabled()) {
+                    carbons.add(session);
+                }
+                highest = Math.max(highest, presence.getPriority());
+            }
+        }
+        List<ClientSession> highestPriority = new ArrayList<>(available.size());
+        int bestShow = Integer.MAX_VALUE;
+        for (ClientSession session : available) {
+            if (session.getPresence().getPriority() == highest) {
+                highestPriority.add(session);
+                bestShow = Math.min(bestShow, getShowValue(session));
+            }
+        }
+        List<ClientSession> highestShow = new ArrayList<>(highestPriority.size());
+        for (ClientSession session : highestPriority) {
+            if (getShowValue(session) == bestShow) {
+                highestShow.add(session);
+            }
+        }
+
+        this.nonNegative = available.toArray(NO_SESSIONS);
+        this.carbonsEnabled = carbons.toArray(NO_SESSIONS);
+        this.highestPriority = highestPriority.toArray(NO_SESSIONS);
+        this.highestShow = highestShow.toArray(NO_SESSIONS);
+        this.unavailable = unavailable.isEmpty() ? NO_SESSIONS : unavailable.toArray(NO_SESSIONS);
+    }
+
+    /**
+     * Returns the entry of a user that has no sessions hosted by this JVM yet.
+     *
+     * @return an entry without sessions.
+     */
+    static BareJIDRoute empty() {
+        return new BareJIDRoute(new LocalClientSession[0]);
+    }
+
+    /**
+     * Returns a new entry that includes the specified session. A previous session that had the
+     * same full JID is replaced.
+     *
+     * @param session the session that was bound.
+     * @return the new entry.
+     */
+    BareJIDRoute add(LocalClientSession session) {
+        int index = indexOf(session.getAddress());
+        LocalClientSession[] updated;
+        if (index >= 0) {
+            updated = sessions.clone();
+            updated[index] = session;
+        }
+        else {
+            updated = new LocalClientSession[sessions.length + 1];
+            System.arraycopy(sessions, 0, updated, 0, sessions.length);
+            updated[sessions.length] = session;
+        }
+        return new BareJIDRoute(updated);
+    }
+
+    /**
+     * Returns a new entry without the session of the specified full JID, or null if no session
+     * remains.
+     *
+     * @param address the full JID of the session that was unbound.
+     * @return the new entry or null if the user has no more sessions hosted by this JVM.
+     */
+    BareJIDRoute remove(JID address) {
+        int index = indexOf(address);
+        if (index < 0) {
+            return this;
+        }
+        if (sessions.length == 1) {
+            return null;
+        }
+        LocalClientSession[] updated = new LocalClientSession[sessions.length - 1];
+        System.arraycopy(sessions, 0, updated, 0, index);
+        System.arraycopy(sessions, index + 1, updated, index, updated.length - index);
+        return new BareJIDRoute(updated);
+    }
+
+    /**
+     * Returns a new entry that reflects the current presence and message carbons state of the
+     * sessions.
+     *
+     * @return the new entry.
+     */
+    BareJIDRoute refresh() {
+        return new BareJIDRoute(sessions);
+    }
+
+    /**
+     * Returns true if the specified session is part of this entry.
+     *
+     * @param session the session to look for.
+     * @return true if the specified session is part of this entry.
+     */
+    boolean contains(LocalClientSession session) {
+        int index = indexOf(session.getAddress());
+        return index >= 0 && sessions[index] == session;
+    }
+
+    /**
+     * Returns true if every candidate session finished its initialization. Sessions become
+     * candidates as soon as they send an available presence but are only initialized once the
+     * presence was processed, so messages must not be routed by this entry in the meantime.
+     *
+     * @return true if every candidate session is initialized.
+     */
+    boolean isInitialized() {
+        for (ClientSession session : nonNegative) {
+            if (!session.isInitialized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if an unavailable session of this entry sent directed presence to the
+     * specified entity (e.g. a user that is invisible to everybody else). Such a session
+     * receives the messages of the entity, which this entry does not account for.
+     *
+     * @param sender the sender of a message to the user.
+     * @param presenceUpdateHandler the handler that tracks directed presences.
+     * @return true if a session that is not part of the candidates sent directed presence
+     *         to the sender.
+     */
+    boolean hasDirectPresence(JID sender, PresenceUpdateHandler presenceUpdateHandler) {
+        for (ClientSession session : unavailable) {
+            if (presenceUpdateHandler.hasDirectPresence(session.getAddress(), sender)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the available sessions with a non-negative priority.
+     *
+     * @return the available sessions with a non-negative priority.
+     */
+    ClientSession[] getNonNegativeSessions() {
+        return nonNegative;
+    }
+
+    /**
+     * Returns the available sessions with a non-negative priority that enabled message carbons.
+     *
+     * @return the sessions that enabled message carbons.
+     */
+    ClientSession[] getCarbonsEnabledSessions() {
+        return carbonsEnabled;
+    }
+
+    /**
+     * Returns the available sessions with the highest non-negative priority.
+     *
+     * @return the sessions with the highest priority.
+     */
+    ClientSession[] getHighestPrioritySessions() {
+        return highestPriority;
+    }
+
+    /**
+     * Returns the session with the highest priority, the highest show value and the most
+     * recent activity, or null if no session is available.
+     *
+     * @return the best session of the user.
+     */
+    ClientSession getBestSession() {
+        if (highestShow.length == 0) {
+            return null;
+        }
+        ClientSession best = highestShow[0];
+        for (int i = 1; i < highestShow.length; i++) {
+            if (highestShow[i].getLastActiveDate().after(best.getLastActiveDate())) {
+                best = highestShow[i];
+            }
+        }
+        return best;
+    }
+
+    private int indexOf(JID address) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i].getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Priorities are: chat, available, away, xa, dnd.
+     */
+    private static int getShowValue(ClientSession session) {
+        Presence.Show show = session.getPresence().getShow();
+        if (show == Presence.Show.chat) {
+            return 1;
+        }
+        else if (show == null) {
+            return 2;
+        }
+        else if (show == Presence.Show.away) {
+            return 3;
+        }
+        else if (show == Presence.Show.xa) {
+            return 4;
+        }
+        else {
+            return 5;
+        }
+    }
+}
@@ -38,7 +38,11 @@ import org.jivesoftware.openfire.container.PluginManagerListener;
 import org.jivesoftware.openfire.http.HttpBindManager;
 import org.jivesoftware.openfire.keystore.CertificateStoreManager;
 import org.jivesoftware.openfire.net.*;
+import org.jivesoftware.openfire.nio.NIOConnection;
 import org.jivesoftware.openfire.session.ConnectionSettings;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.CertificateEventListener;
 import org.jivesoftware.util.CertificateManager;
 import org.jivesoftware.util.JiveGlobals;
@@ -56,6 +60,9 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
 
     private static final Logger Log = LoggerFactory.getLogger(ConnectionManagerImpl.class);
 
+    private static final String WRITES_STAT_KEY = "nio_writes";
+    private static final String STANZAS_PER_WRITE_STAT_KEY = "nio_stanzas_per_write";
+
     private final ConnectionListener clientListener;
     private final ConnectionListener clientSslListener;
     private final ConnectionListener boshListener;
@@ -636,16 +643,59 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         startListeners();
         SocketSendingTracker.getInstance().start();
         CertificateManager.addListener(this);
+        addStatistics();
     }
 
     @Override
 	public void stop() {
+        StatisticsManager.getInstance().removeStatistic(WRITES_STAT_KEY);
+        StatisticsManager.getInstance().removeStatistic(STANZAS_PER_WRITE_STAT_KEY);
         CertificateManager.removeListener(this);
         SocketSendingTracker.getInstance().shutdown();
         stopListeners();
         super.stop();
     }
 
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(WRITES_STAT_KEY,
+                new i18nStatistic("nio.writes", Statistic.Type.rate) {
+            private long lastSample;
+
+            @Override
+            public synchronized double sample() {
+                long total = NIOConnection.getTotalWrittenBatches();
+                double delta = total - lastSample;
+                lastSample = total;
+                return delta;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(STANZAS_PER_WRITE_STAT_KEY,
+                new i18nStatistic("nio.stanzas_per_write", Statistic.Type.count) {
+            private long lastBatches;
+            private long lastStanzas;
+
+            @Override
+            public synchronized double sample() {
+                long batches = NIOConnection.getTotalWrittenBatches();
+                long stanzas = NIOConnection.getTotalWrittenStanzas();
+                double average = batches > lastBatches ? (stanzas - lastStanzas) / (double) (batches - lastBatches) : 0;
+                lastBatches = batches;
+                lastStanzas = stanzas;
+                return average;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+    }
+
     // #####################################################################
     // Deprecated delegation methods to individual listeners (as dictated by legacy API design).
     // #####################################################################
@@ -187,10 +187,8 @@ class MINAConnectionAcceptor extends ConnectionAcceptor
 
     private static NioSocketAcceptor buildSocketAcceptor()
     {
-        // Create SocketAcceptor with correct number of processors
-        final int processorCount = JiveGlobals.getIntProperty( "xmpp.processor.count", Runtime.getRuntime().availableProcessors() );
-
-        final NioSocketAcceptor socketAcceptor = new NioSocketAcceptor( processorCount );
+        // Create SocketAcceptor that shares its processors with the other acceptors and the outgoing server connector
+        final NioSocketAcceptor socketAcceptor = new NioSocketAcceptor( SharedIoProcessor.getInstance() );
 
         // Set that it will be possible to bind a socket if there is a connection in the timeout state.
         socketAcceptor.setReuseAddress( true );
@@ -26,7 +26,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -34,6 +39,7 @@ import org.dom4j.DocumentHelper;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.*;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
@@ -45,11 +51,16 @@ import org.jivesoftware.openfire.roster.Roster;
 import org.jivesoftware.openfire.roster.RosterItem;
 import org.jivesoftware.openfire.roster.RosterManager;
 import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -59,7 +70,20 @@ import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
 
 /**
- * Simple in memory implementation of the PresenceManager interface.
+ * Simple in memory implementation of the PresenceManager interface.<p>
+ *
+ * The last unavailable presence of users is not written to the database by the thread that
+ * processes the presence. Changes are kept per user, so that a user that goes offline and
+ * online again before the changes are written results in a single write, and are written in
+ * JDBC batches by a background task. Last activity and last presence status are read through
+ * the pending changes. The following properties (read at startup) configure the writes:<ul>
+ * <li><tt>xmpp.presence.flush.interval</tt>: milliseconds between writes of the pending
+ *      changes, 1000 by default. Use 0 to write changes as they happen.
+ * <li><tt>xmpp.presence.flush.size</tt>: maximum number of changes per batch, 100 by
+ *      default. Pending changes are written as soon as there are this number of them.</ul>
+ *
+ * Changes are written as they happen when running in a cluster, since the caches of offline
+ * presences are shared with the other cluster nodes.
  *
  * @author Iain Shigeoka
  */
@@ -77,6 +101,9 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
     private static final String NULL_STRING = "NULL";
     private static final long NULL_LONG = -1L;
 
+    private static final String PENDING_STAT_KEY = "presence_pending";
+    private static final String COALESCED_STAT_KEY = "presence_coalesced";
+
     private RoutingTable routingTable;
     private SessionManager sessionManager;
     private UserManager userManager;
@@ -90,6 +117,22 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
     private Cache<String, Long> lastActivityCache;
     private Cache<String, String> offlinePresenceCache;
 
+    /**
+     * Offline presences of users that are waiting to be written to the database.
+     */
+    private final ConcurrentMap<String, OfflinePresence> pendingPresences = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    private TimerTask flushTask;
+    private int flushSize = 100;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingPresences();
+        }
+    };
+
     public PresenceManagerImpl() {
         super("Presence manager");
     }
@@ -209,7 +252,7 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
                 return;
             }
 
-            deleteOfflinePresenceFromDB(username);
+            storeOfflinePresence(username, new OfflinePresence(null, null));
 
             // Remove data from cache.
             offlinePresenceCache.remove(username);
@@ -272,10 +315,165 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
             }
             lastActivityCache.put(username, offlinePresenceDate.getTime());
 
-            writeToDatabase(username, offlinePresence, offlinePresenceDate);
+            storeOfflinePresence(username, new OfflinePresence(offlinePresence, offlinePresenceDate));
+        }
+    }
+
+    /**
+     * Queues the offline presence of a user to be written to the database. A previous offline
+     * presence of the user that was not written yet is replaced. Offline presences are written
+     * right away if changes are not written in batches.
+     *
+     * @param username the username of the user.
+     * @param offlinePresence the offline presence of the user.
+     */
+    private void storeOfflinePresence(String username, OfflinePresence offlinePresence) {
+        if (flushTask == null || ClusterManager.isClusteringStarted()) {
+            if (!pendingPresences.isEmpty()) {
+                // Clustering started while changes were pending. Write them first, so that an
+                // older change of the user does not overwrite this one.
+                flushPendingPresences();
+            }
+            writeToDatabase(username, offlinePresence);
+            return;
+        }
+        OfflinePresence replaced = pendingPresences.put(username, offlinePresence);
+        if (replaced != null && replaced.claim()) {
+            // The replaced change will not be written
+            coalescedWrites.incrementAndGet();
+        }
+        if (pendingPresences.size() >= flushSize) {
+            // Write a full batch without waiting for the timer
+            TaskEngine.getInstance().submit(flushRunnable);
         }
     }
 
+    /**
+     * Writes the pending offline presences to the database. Pending offline presences are
+     * kept until written, so that they can be read while they are being written. Offline
+     * presences that are replaced before the flush gets to them are not written.
+     */
+    void flushPendingPresences() {
+        if (pendingPresences.isEmpty()) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            List<Map.Entry<String, OfflinePresence>> batch = new ArrayList<>(flushSize);
+            for (Map.Entry<String, OfflinePresence> entry : pendingPresences.entrySet()) {
+                if (!entry.getValue().claim()) {
+                    // Replaced by a newer offline presence of the user
+                    continue;
+                }
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                if (batch.size() == flushSize) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+            flush(batch);
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch of offline presences and removes them from the pending offline presences
+     * unless they were replaced in the meantime.
+     */
+    private void flush(List<Map.Entry<String, OfflinePresence>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        writeToDatabase(batch);
+        for (Map.Entry<String, OfflinePresence> entry : batch) {
+            pendingPresences.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes a batch of offline presences to the database in a transaction. Offline presences
+     * are written one by one if the batch failed.
+     *
+     * @param batch the offline presences to write.
+     */
+    void writeToDatabase(List<Map.Entry<String, OfflinePresence>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (batch.size() == 1 || !DbConnectionManager.isBatchUpdatesSupported()) {
+            for (Map.Entry<String, OfflinePresence> entry : batch) {
+                writeToDatabase(entry.getKey(), entry.getValue());
+            }
+        }
+        else {
+            Connection con = null;
+            PreparedStatement deleteStmt = null;
+            PreparedStatement insertStmt = null;
+            boolean abortTransaction = false;
+            try {
+                con = DbConnectionManager.getTransactionConnection();
+                deleteStmt = con.prepareStatement(DELETE_OFFLINE_PRESENCE);
+                insertStmt = con.prepareStatement(INSERT_OFFLINE_PRESENCE);
+                for (Map.Entry<String, OfflinePresence> entry : batch) {
+                    deleteStmt.setString(1, entry.getKey());
+                    deleteStmt.addBatch();
+                    if (entry.getValue().date != null) {
+                        setInsertParameters(insertStmt, entry.getKey(), entry.getValue());
+                        insertStmt.addBatch();
+                    }
+                }
+                deleteStmt.executeBatch();
+                insertStmt.executeBatch();
+            }
+            catch (SQLException sqle) {
+                Log.warn("Failed to store offline presences as batch; will retry individually", sqle);
+                abortTransaction = true;
+            }
+            finally {
+                DbConnectionManager.closeStatement(deleteStmt);
+                DbConnectionManager.closeStatement(insertStmt);
+                DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+            }
+            if (abortTransaction) {
+                for (Map.Entry<String, OfflinePresence> entry : batch) {
+                    writeToDatabase(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    void writeToDatabase(String username, OfflinePresence offlinePresence) {
+        if (offlinePresence.date == null) {
+            deleteOfflinePresenceFromDB(username);
+        }
+        else {
+            writeToDatabase(username, offlinePresence.presence, offlinePresence.date);
+        }
+    }
+
+    /**
+     * Returns the number of users whose offline presence is waiting to be written to the
+     * database.
+     *
+     * @return the number of pending offline presences.
+     */
+    public int getPendingPresenceCount() {
+        return pendingPresences.size();
+    }
+
+    /**
+     * Returns the number of offline presences that were replaced by a newer offline presence
+     * of the same user before being written to the database. Offline presences that were
+     * replaced while being written are not included.
+     *
+     * @return the number of database writes that were avoided.
+     */
+    public long getCoalescedPresenceWrites() {
+        return coalescedWrites.get();
+    }
+
     private void writeToDatabase(String username, String offlinePresence, Date offlinePresenceDate) {
         // delete existing offline presence (if any)
         deleteOfflinePresenceFromDB(username);
@@ -286,13 +484,7 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(INSERT_OFFLINE_PRESENCE);
-            pstmt.setString(1, username);
-            if (offlinePresence != null) {
-                DbConnectionManager.setLargeTextField(pstmt, 2, offlinePresence);
-            } else {
-                pstmt.setNull(2, Types.VARCHAR);
-            }
-            pstmt.setString(3, StringUtils.dateToMillis(offlinePresenceDate));
+            setInsertParameters(pstmt, username, new OfflinePresence(offlinePresence, offlinePresenceDate));
             pstmt.execute();
         } catch (SQLException sqle) {
             Log.error("Error storing offline presence of user: " + username, sqle);
@@ -301,6 +493,17 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         }
     }
 
+    private static void setInsertParameters(PreparedStatement pstmt, String username,
+            OfflinePresence offlinePresence) throws SQLException {
+        pstmt.setString(1, username);
+        if (offlinePresence.presence != null) {
+            DbConnectionManager.setLargeTextField(pstmt, 2, offlinePresence.presence);
+        } else {
+            pstmt.setNull(2, Types.VARCHAR);
+        }
+        pstmt.setString(3, StringUtils.dateToMillis(offlinePresence.date));
+    }
+
     @Override
     public void handleProbe(Presence packet) throws UnauthorizedException {
         String username = packet.getTo().getNode();
@@ -505,7 +708,14 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
     @Override
     public void userDeleting(User user, Map<String, Object> params) {
         // Delete user information
-        deleteOfflinePresenceFromDB(user.getUsername());
+        flushLock.lock();
+        try {
+            pendingPresences.remove(user.getUsername());
+            deleteOfflinePresenceFromDB(user.getUsername());
+        }
+        finally {
+            flushLock.unlock();
+        }
     }
 
     @Override
@@ -541,6 +751,29 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         // Listen for user deletion events
         UserEventDispatcher.addListener(this);
 
+        startWriteBehind(JiveGlobals.getLongProperty("xmpp.presence.flush.interval", 1000),
+                JiveGlobals.getIntProperty("xmpp.presence.flush.size", 100));
+        addPresenceStatistics();
+    }
+
+    /**
+     * Schedules the writes of the pending offline presences. Offline presences are written
+     * as they change if the interval is not positive.
+     *
+     * @param flushInterval milliseconds between writes of the pending offline presences.
+     * @param flushSize maximum number of offline presences per batch.
+     */
+    void startWriteBehind(long flushInterval, int flushSize) {
+        this.flushSize = Math.max(1, flushSize);
+        if (flushInterval > 0) {
+            flushTask = new TimerTask() {
+                @Override
+                public void run() {
+                    flushPendingPresences();
+                }
+            };
+            TaskEngine.getInstance().schedule(flushTask, flushInterval, flushInterval);
+        }
     }
 
     @Override
@@ -550,6 +783,46 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         lastActivityCache.clear();
         // Stop listening for user deletion events
         UserEventDispatcher.removeListener(this);
+        if (flushTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushTask = null;
+        }
+        // Store pending offline presences before shutting down
+        flushPendingPresences();
+        StatisticsManager.getInstance().removeStatistic(PENDING_STAT_KEY);
+        StatisticsManager.getInstance().removeStatistic(COALESCED_STAT_KEY);
+    }
+
+    private void addPresenceStatistics() {
+        StatisticsManager.getInstance().addStatistic(PENDING_STAT_KEY,
+                new i18nStatistic("presence.pending", Statistic.Type.count) {
+            @Override
+            public double sample() {
+                return getPendingPresenceCount();
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(COALESCED_STAT_KEY,
+                new i18nStatistic("presence.coalesced", Statistic.Type.rate) {
+            private long lastSample;
+
+            @Override
+            public synchronized double sample() {
+                long total = getCoalescedPresenceWrites();
+                double delta = total - lastSample;
+                lastSample = total;
+                return delta;
+            }
+
+            @Override
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
     }
 
     /**
@@ -564,7 +837,20 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         Lock lock = CacheFactory.getLock(username, offlinePresenceCache);
         try {
             lock.lock();
-            if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
+            OfflinePresence pending = pendingPresences.get(username);
+            if (pending != null) {
+                // Read through the offline presence that was not written yet
+                if (pending.date == null) {
+                    offlinePresenceCache.put(username, NULL_STRING);
+                    lastActivityCache.put(username, NULL_LONG);
+                }
+                else {
+                    offlinePresenceCache.put(username,
+                            pending.presence == null ? NULL_STRING : pending.presence);
+                    lastActivityCache.put(username, pending.date.getTime());
+                }
+            }
+            else if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
                 con = DbConnectionManager.getConnection();
                 pstmt = con.prepareStatement(LOAD_OFFLINE_PRESENCE);
                 pstmt.setString(1, username);
@@ -602,11 +888,35 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         for (ClientSession session : XMPPServer.getInstance().getSessionManager().getSessions()) {
             if (!session.isAnonymousUser()) {
                 try {
-                    writeToDatabase(session.getUsername(), null, new Date());
+                    storeOfflinePresence(session.getUsername(), new OfflinePresence(null, new Date()));
                 } catch (UserNotFoundException e) {
                     Log.error(e.getMessage(), e);
                 }
             }
         }
+        flushPendingPresences();
+    }
+
+    /**
+     * Offline presence of a user. An offline presence without date means that the user is
+     * available and the stored offline presence has to be deleted.<p>
+     *
+     * A pending offline presence is claimed either by the flush that writes it or by the
+     * newer offline presence that replaces it, whichever comes first.
+     */
+    static class OfflinePresence {
+
+        final String presence;
+        final Date date;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        OfflinePresence(String presence, Date date) {
+            this.presence = presence;
+            this.date = date;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
     }
 }
@@ -34,7 +34,11 @@ import org.jivesoftware.openfire.forward.Forwarded;
 import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
 import org.jivesoftware.openfire.server.OutgoingSessionPromise;
 import org.jivesoftware.openfire.session.*;
+import org.jivesoftware.openfire.user.PresenceEventDispatcher;
+import org.jivesoftware.openfire.user.PresenceEventListener;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -61,7 +65,8 @@ import java.util.concurrent.locks.Lock;
  *
  * @author Gaston Dombiak
  */
-public class RoutingTableImpl extends BasicModule implements RoutingTable, ClusterEventListener {
+public class RoutingTableImpl extends BasicModule implements RoutingTable, ClusterEventListener,
+        PresenceEventListener, PropertyEventListener {
 
 	private static final Logger Log = LoggerFactory.getLogger(RoutingTableImpl.class);
 	
@@ -97,6 +102,16 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * Key: bare JID, Value: list of full JIDs of the user
      */
     private Cache<String, Collection<String>> usersSessions;
+    /**
+     * Precomputed routing entries of the users that have sessions hosted by this JVM. Entries
+     * are replaced whenever a session is bound or unbound, or its presence or message carbons
+     * state changes.
+     * Key: bare JID, Value: routing entry of the local sessions of the user
+     */
+    private final Map<String, BareJIDRoute> localUserRoutes = new ConcurrentHashMap<>();
+
+    private volatile boolean routeAllResources;
+    private volatile boolean routeReallyAllResources;
 
     private String serverName;
     private XMPPServer server;
@@ -106,6 +121,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
     private MessageRouter messageRouter;
     private PresenceRouter presenceRouter;
     private PresenceUpdateHandler presenceUpdateHandler;
+    private BroadcastManager broadcastManager;
 
     public RoutingTableImpl() {
         super("Routing table");
@@ -208,14 +224,65 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 }
             }
         }
+        if (route.getResource() != null) {
+            addLocalUserRoute(route, destination);
+        }
         return added;
     }
 
+    @Override
+    public void refreshClientRoute(LocalClientSession session) {
+        String bareJID = session.getAddress().toBareJID();
+        synchronized (bareJID.intern()) {
+            BareJIDRoute userRoute = localUserRoutes.get(bareJID);
+            if (userRoute != null && userRoute.contains(session)) {
+                localUserRoutes.put(bareJID, userRoute.refresh());
+            }
+        }
+    }
+
+    private void addLocalUserRoute(JID route, LocalClientSession session) {
+        String bareJID = route.toBareJID();
+        synchronized (bareJID.intern()) {
+            BareJIDRoute userRoute = localUserRoutes.get(bareJID);
+            if (userRoute == null) {
+                userRoute = BareJIDRoute.empty();
+            }
+            localUserRoutes.put(bareJID, userRoute.add(session));
+        }
+    }
+
+    private void removeLocalUserRoute(JID route) {
+        String bareJID = route.toBareJID();
+        synchronized (bareJID.intern()) {
+            BareJIDRoute userRoute = localUserRoutes.get(bareJID);
+            if (userRoute != null) {
+                userRoute = userRoute.remove(route);
+                if (userRoute == null) {
+                    localUserRoutes.remove(bareJID);
+                }
+                else {
+                    localUserRoutes.put(bareJID, userRoute);
+                }
+            }
+        }
+    }
+
     @Override
     public void broadcastPacket(Message packet, boolean onlyLocal) {
+        broadcastPacket(packet, onlyLocal, null);
+    }
+
+    @Override
+    public void broadcastPacket(Message packet, boolean onlyLocal, BroadcastListener listener) {
         // Send the message to client sessions connected to this JVM
-        for(ClientSession session : localRoutingTable.getClientRoutes()) {
-            session.process(packet);
+        if (broadcastManager != null) {
+            broadcastManager.broadcast(packet, localRoutingTable.getClientRoutes(), listener);
+        }
+        else {
+            for(ClientSession session : localRoutingTable.getClientRoutes()) {
+                session.process(packet);
+            }
         }
 
         // Check if we need to broadcast the message to client sessions connected to remote cluter nodes
@@ -534,6 +601,19 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * @return true if at least one target session was found
      */
     private boolean routeToBareJID(JID recipientJID, Message packet, boolean isPrivate) {
+        if (!ClusterManager.isClusteringStarted()) {
+            // All sessions of the user are hosted by this JVM so use the precomputed entry
+            BareJIDRoute userRoute = localUserRoutes.get(recipientJID.toBareJID());
+            if (userRoute == null) {
+                Log.debug("Unable to route packet. No session is available so store offline. {} ", packet.toXML());
+                return false;
+            }
+            // Sessions that sent directed presence to the sender are not part of the entry
+            if (userRoute.isInitialized() && !userRoute.hasDirectPresence(packet.getFrom(), presenceUpdateHandler)) {
+                return routeToBareJID(userRoute, packet, isPrivate);
+            }
+        }
+
         List<ClientSession> sessions = new ArrayList<>();
         // Get existing AVAILABLE sessions of this user or AVAILABLE to the sender of the packet
         for (JID address : getRoutes(recipientJID, packet.getFrom())) {
@@ -559,12 +639,12 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 session.process(packet);
             // Deliver to each session if property route.really-all-resources is true
             // (in case client does not support carbons)
-            } else if (JiveGlobals.getBooleanProperty("route.really-all-resources", false)) {
+            } else if (routeReallyAllResources) {
                 session.process(packet);
             }
         }
         
-        if (JiveGlobals.getBooleanProperty("route.really-all-resources", false))
+        if (routeReallyAllResources)
         	return true;
 
         // Get the highest priority sessions for normal processing.
@@ -578,7 +658,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
         else {
             // Many sessions have the highest priority (be smart now) :)
-            if (!JiveGlobals.getBooleanProperty("route.all-resources", false)) {
+            if (!routeAllResources) {
                 // Sort sessions by show value (e.g. away, xa)
                 Collections.sort(highestPrioritySessions, new Comparator<ClientSession>() {
 
@@ -651,6 +731,57 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         return true;
     }
 
+    /**
+     * Deliver the message sent to the bare JID of a local user using the precomputed routing entry
+     * of the user. Sessions are selected like {@link #routeToBareJID(JID, Message, boolean)} does.
+     *
+     * @param userRoute the routing entry of the sessions of the target user.
+     * @param packet the message to send.
+     * @param isPrivate true if the message must not be copied to message carbons enabled sessions.
+     * @return true if at least one target session was found
+     */
+    private boolean routeToBareJID(BareJIDRoute userRoute, Message packet, boolean isPrivate) {
+        ClientSession[] nonNegativePrioritySessions = userRoute.getNonNegativeSessions();
+        if (nonNegativePrioritySessions.length == 0) {
+            // No session is available so store offline
+            Log.debug("Unable to route packet. No session is available so store offline. {} ", packet.toXML());
+            return false;
+        }
+
+        if (routeReallyAllResources) {
+            // Deliver to each session (in case client does not support carbons)
+            for (ClientSession session : nonNegativePrioritySessions) {
+                session.process(packet);
+            }
+            return true;
+        }
+
+        // Deliver to each session that is message carbons enabled.
+        boolean carbonCopied = !isPrivate && packet.getType() == Message.Type.chat;
+        if (carbonCopied) {
+            for (ClientSession session : userRoute.getCarbonsEnabledSessions()) {
+                session.process(packet);
+            }
+        }
+
+        if (routeAllResources) {
+            for (ClientSession session : userRoute.getHighestPrioritySessions()) {
+                // Make sure, we don't send the packet again, if it has already been sent by message carbons.
+                if (!carbonCopied || !session.isMessageCarbonsEnabled()) {
+                    session.process(packet);
+                }
+            }
+        }
+        else {
+            // Deliver stanza to session with highest priority, highest show value and most recent activity
+            ClientSession session = userRoute.getBestSession();
+            if (!carbonCopied || !session.isMessageCarbonsEnabled()) {
+                session.process(packet);
+            }
+        }
+        return true;
+    }
+
     private boolean shouldCarbonCopyToResource(ClientSession session, Message message, boolean isPrivate) {
         return !isPrivate && session.isMessageCarbonsEnabled() && message.getType() == Message.Type.chat;
     }
@@ -904,6 +1035,9 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 lock.unlock();
             }
         }
+        if (route.getResource() != null) {
+            removeLocalUserRoute(route);
+        }
         localRoutingTable.removeRoute(address);
         return clientRoute != null;
     }
@@ -967,8 +1101,14 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         messageRouter = server.getMessageRouter();
         presenceRouter = server.getPresenceRouter();
         presenceUpdateHandler = server.getPresenceUpdateHandler();
+        broadcastManager = server.getBroadcastManager();
+        routeAllResources = JiveGlobals.getBooleanProperty("route.all-resources", false);
+        routeReallyAllResources = JiveGlobals.getBooleanProperty("route.really-all-resources", false);
         // Listen to cluster events
         ClusterManager.addListener(this);
+        // Listen to presence changes of local sessions to keep the routing entries of users updated
+        PresenceEventDispatcher.addListener(this);
+        PropertyEventDispatcher.addListener(this);
     }
 
     @Override
@@ -1086,6 +1226,64 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         // Do nothing
     }
 
+    @Override
+    public void availableSession(ClientSession session, Presence presence) {
+        if (session instanceof LocalClientSession) {
+            refreshClientRoute((LocalClientSession) session);
+        }
+    }
+
+    @Override
+    public void unavailableSession(ClientSession session, Presence presence) {
+        if (session instanceof LocalClientSession) {
+            refreshClientRoute((LocalClientSession) session);
+        }
+    }
+
+    @Override
+    public void presenceChanged(ClientSession session, Presence presence) {
+        if (session instanceof LocalClientSession) {
+            refreshClientRoute((LocalClientSession) session);
+        }
+    }
+
+    @Override
+    public void subscribedToPresence(JID subscriberJID, JID authorizerJID) {
+        // Do nothing
+    }
+
+    @Override
+    public void unsubscribedToPresence(JID unsubscriberJID, JID recipientJID) {
+        // Do nothing
+    }
+
+    @Override
+    public void propertySet(String property, Map<String, Object> params) {
+        switch (property) {
+            case "route.all-resources":
+                routeAllResources = Boolean.parseBoolean((String) params.get("value"));
+                break;
+            case "route.really-all-resources":
+                routeReallyAllResources = Boolean.parseBoolean((String) params.get("value"));
+                break;
+        }
+    }
+
+    @Override
+    public void propertyDeleted(String property, Map<String, Object> params) {
+        propertySet(property, Collections.<String, Object>emptyMap());
+    }
+
+    @Override
+    public void xmlPropertySet(String property, Map<String, Object> params) {
+        // Do nothing
+    }
+
+    @Override
+    public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+        // Do nothing
+    }
+
     private void restoreCacheContent() {
         // Add outgoing server sessions hosted locally to the cache (using new nodeID)
         for (LocalOutgoingServerSession session : localRoutingTable.getServerRoutes()) {
@@ -2,12 +2,29 @@ package org.jivesoftware.openfire.streammanagement;
 
 import java.math.BigInteger;
 import java.net.UnknownHostException;
-import java.util.*;
-
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.SerializedStanza;
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.auth.AuthToken;
+import org.jivesoftware.openfire.http.HttpSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.jivesoftware.openfire.session.LocalSession;
+import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,24 +35,15 @@ import org.xmpp.packet.PacketError;
 
 /**
  * XEP-0198 Stream Manager.
- * Handles client/server messages acknowledgement.
+ * Handles client/server messages acknowledgement and the resumption of client sessions
+ * whose connection broke.
  *
  * @author jonnyheavey
  */
 public class StreamManager {
 
 	private final Logger Log;
-    public static class UnackedPacket {
-		public final long x;
-        public final Date timestamp = new Date();
-        public final Packet packet;
-        
-        public UnackedPacket(long x, Packet p) {
-			this.x = x;
-            packet = p;
-        }
-    }
-    
+
     public static final String SM_ACTIVE = "stream.management.active";
 
     /**
@@ -45,15 +53,47 @@ public class StreamManager {
     public static final String NAMESPACE_V3 = "urn:xmpp:sm:3";
 
 	/**
-	 * Connection (stream) to client for the session the manager belongs to
+	 * Stream managers of the local sessions that can be resumed. Key: the stream management id
+	 * of the session.
 	 */
-	private final Connection connection;
+	private static final ConcurrentMap<String, StreamManager> resumableStreams = new ConcurrentHashMap<>();
+
+	private static final AtomicLong resumptionAttempts = new AtomicLong();
+	private static final AtomicLong resumptionSuccesses = new AtomicLong();
+
+	/**
+	 * Session the manager belongs to. The connection (stream) to the client is looked up
+	 * through the session, as a resumed session continues on the connection of the client that
+	 * resumed it.
+	 */
+	private final LocalSession session;
 
 	/**
      * Namespace to be used in stanzas sent to client (depending on XEP-0198 version used by client)
      */
     private String namespace;
 
+	/**
+	 * Stream management id of the session or null if the session cannot be resumed.
+	 */
+	private String resumeId;
+
+	/**
+	 * True while the connection of the session is broken and the session waits to be resumed.
+	 */
+	private volatile boolean detached;
+
+	/**
+	 * True once the session was closed by the server or the client, after which it cannot be
+	 * resumed anymore.
+	 */
+	private boolean terminated;
+
+	/**
+	 * Task that closes the session if it was not resumed in time.
+	 */
+	private TimerTask expiryTask;
+
     /**
      * Count of how many stanzas/packets
      * sent from the client that the server has processed
@@ -69,14 +109,14 @@ public class StreamManager {
     static private long mask = new BigInteger("2").pow(32).longValue() - 1; // This is used to emulate rollover.
 
     /**
-     * Collection of stanzas/packets sent to client that haven't been acknowledged.
+     * Stanzas/packets sent to client that haven't been acknowledged.
      */
-    private Deque<UnackedPacket> unacknowledgedServerStanzas = new LinkedList<>();
+    private final UnackedStanzaBuffer unacknowledgedServerStanzas = new UnackedStanzaBuffer();
 
-    public StreamManager(Connection connection) {
+    public StreamManager(LocalSession session) {
 		String address;
 		try {
-			address = connection.getHostAddress();
+			address = session.getConnection().getHostAddress();
 		}
 		catch ( UnknownHostException e )
 		{
@@ -84,7 +124,7 @@ public class StreamManager {
 		}
 
 		this.Log = LoggerFactory.getLogger(StreamManager.class + "["+ (address == null ? "(unknown address)" : address) +"]" );
-    	this.connection = connection;
+    	this.session = session;
     }
 
 	/**
@@ -97,7 +137,8 @@ public class StreamManager {
 	{
 		switch(element.getName()) {
 			case "enable":
-				enable( onBehalfOf, element.getNamespace().getStringValue() );
+				final String resume = element.attributeValue( "resume" );
+				enable( onBehalfOf, element.getNamespace().getStringValue(), "true".equals( resume ) || "1".equals( resume ) );
 				break;
 			case "r":
 				sendServerAcknowledgement();
@@ -115,8 +156,9 @@ public class StreamManager {
 	 *
 	 * @param onBehalfOf The address of the entity for which SM is to be enabled.
 	 * @param namespace The namespace that defines what version of SM is to be enabled.
+	 * @param resume true if the entity requested the stream to be resumable.
 	 */
-	private void enable( JID onBehalfOf, String namespace )
+	private void enable( JID onBehalfOf, String namespace, boolean resume )
 	{
 		// Ensure that resource binding has occurred.
 		if( onBehalfOf.getResource() == null ) {
@@ -124,6 +166,7 @@ public class StreamManager {
 			return;
 		}
 
+		final String id;
 		synchronized ( this )
 		{
 			// Do nothing if already enabled
@@ -133,10 +176,35 @@ public class StreamManager {
 			}
 
 			this.namespace = namespace;
+			if ( resume && isResumptionAllowed() )
+			{
+				resumeId = StringUtils.randomString( 32 );
+				resumableStreams.put( resumeId, this );
+			}
+			id = resumeId;
 		}
 
 		// Send confirmation to the requestee.
-		connection.deliverRawText( String.format( "<enabled xmlns='%s'/>", namespace ) );
+		if ( id == null ) {
+			getConnection().deliverRawText( String.format( "<enabled xmlns='%s'/>", namespace ) );
+		}
+		else {
+			getConnection().deliverRawText( String.format( "<enabled xmlns='%s' id='%s' resume='true' max='%d'/>",
+					namespace, id, getResumptionTimeout() ) );
+		}
+	}
+
+	/**
+	 * Resumption is offered to socket client sessions of users that authenticated with credentials.
+	 * Anonymous sessions could be taken over by anyone. BOSH sessions outlive their connections anyway.
+	 */
+	private boolean isResumptionAllowed() {
+		if ( !JiveGlobals.getBooleanProperty( "stream.management.resume.enabled", true ) ||
+				!( session instanceof LocalClientSession ) || session instanceof HttpSession ) {
+			return false;
+		}
+		final AuthToken authToken = ( (LocalClientSession) session ).getAuthToken();
+		return authToken != null && !authToken.isAnonymous();
 	}
 
 	/**
@@ -145,7 +213,7 @@ public class StreamManager {
 	public void sendServerAcknowledgement() {
 		if(isEnabled()) {
 			String ack = String.format("<a xmlns='%s' h='%s' />", namespace, serverProcessedStanzas & mask);
-			connection.deliverRawText( ack );
+			getConnection().deliverRawText( ack );
 		}
 	}
 
@@ -155,7 +223,7 @@ public class StreamManager {
 	private void sendServerRequest() {
 		if(isEnabled()) {
 			String request = String.format("<r xmlns='%s' />", namespace);
-			connection.deliverRawText( request );
+			getConnection().deliverRawText( request );
 		}
 	}
 
@@ -164,9 +232,13 @@ public class StreamManager {
 	 * e.g. before resource-binding has completed.
 	 */
 	private void sendUnexpectedError() {
+		sendFailed( getConnection(), namespace, PacketError.Condition.unexpected_request );
+	}
+
+	private static void sendFailed( Connection connection, String namespace, PacketError.Condition condition ) {
 		connection.deliverRawText(
 				String.format( "<failed xmlns='%s'>", namespace )
-						+ new PacketError( PacketError.Condition.unexpected_request ).toXML()
+						+ new PacketError( condition ).toXML()
 						+ "</failed>"
 		);
 	}
@@ -182,38 +254,47 @@ public class StreamManager {
 
 				Log.debug( "Received acknowledgement from client: h={}", h );
 				synchronized (this) {
+					acknowledge( h );
+				}
+			}
+		}
+	}
 
-					if ( !unacknowledgedServerStanzas.isEmpty() && h > unacknowledgedServerStanzas.getLast().x ) {
-						Log.warn( "Client acknowledges stanzas that we didn't send! Client Ack h: {}, our last stanza: {}", h, unacknowledgedServerStanzas.getLast().x );
-					}
-
-					clientProcessedStanzas = h;
+	/**
+	 * Removes the stanzas that the client acknowledged from the collection of unacknowledged stanzas.
+	 * The caller must hold the lock of this manager.
+	 *
+	 * @param h the number of stanzas that the client acknowledged.
+	 */
+	private void acknowledge(long h) {
+		if ( !unacknowledgedServerStanzas.isEmpty() && h > unacknowledgedServerStanzas.getLastSequence() ) {
+			Log.warn( "Client acknowledges stanzas that we didn't send! Client Ack h: {}, our last stanza: {}", h, unacknowledgedServerStanzas.getLastSequence() );
+		}
 
-					// Remove stanzas from temporary storage as now acknowledged
-					Log.trace( "Before processing client Ack (h={}): {} unacknowledged stanzas.", h, unacknowledgedServerStanzas.size() );
+		clientProcessedStanzas = h;
 
-					// Pop all acknowledged stanzas.
-					while( !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getFirst().x <= h )
-					{
-						unacknowledgedServerStanzas.removeFirst();
-					}
+		// Remove stanzas from temporary storage as now acknowledged
+		Log.trace( "Before processing client Ack (h={}): {} unacknowledged stanzas.", h, unacknowledgedServerStanzas.size() );
 
-					// Ensure that unacknowledged stanzas are purged after the client rolled over 'h' which occurs at h= (2^32)-1
-					final int maxUnacked = getMaximumUnacknowledgedStanzas();
-					final boolean clientHadRollOver = h < maxUnacked && !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getLast().x > mask - maxUnacked;
-					if ( clientHadRollOver )
-					{
-						Log.info( "Client rolled over 'h'. Purging high-numbered unacknowledged stanzas." );
-						while ( !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getLast().x > mask - maxUnacked)
-						{
-							unacknowledgedServerStanzas.removeLast();
-						}
-					}
+		// Pop all acknowledged stanzas.
+		while( !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getFirstSequence() <= h )
+		{
+			unacknowledgedServerStanzas.removeFirst();
+		}
 
-					Log.trace( "After processing client Ack (h={}): {} unacknowledged stanzas.", h, unacknowledgedServerStanzas.size());
-				}
+		// Ensure that unacknowledged stanzas are purged after the client rolled over 'h' which occurs at h= (2^32)-1
+		final int maxUnacked = getMaximumUnacknowledgedStanzas();
+		final boolean clientHadRollOver = h < maxUnacked && !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getLastSequence() > mask - maxUnacked;
+		if ( clientHadRollOver )
+		{
+			Log.info( "Client rolled over 'h'. Purging high-numbered unacknowledged stanzas." );
+			while ( !unacknowledgedServerStanzas.isEmpty() && unacknowledgedServerStanzas.getLastSequence() > mask - maxUnacked)
+			{
+				unacknowledgedServerStanzas.removeLast();
 			}
 		}
+
+		Log.trace( "After processing client Ack (h={}): {} unacknowledged stanzas.", h, unacknowledgedServerStanzas.size());
 	}
 
 	/**
@@ -224,23 +305,23 @@ public class StreamManager {
 
 		if(isEnabled()) {
 			final long requestFrequency = JiveGlobals.getLongProperty( "stream.management.requestFrequency", 5 );
+			final byte[] payload = serialize( packet );
 			final int size;
 
 			synchronized (this)
 			{
-				// The next ID is one higher than the last stanza that was sent (which might be unacknowledged!)
-				final long x = 1 + ( unacknowledgedServerStanzas.isEmpty() ? clientProcessedStanzas : unacknowledgedServerStanzas.getLast().x );
-				unacknowledgedServerStanzas.addLast( new StreamManager.UnackedPacket( x, packet.createCopy() ) );
-
-				size = unacknowledgedServerStanzas.size();
-
-				Log.trace( "Added stanza of type '{}' to collection of unacknowledged stanzas (x={}). Collection size is now {}.", packet.getElement().getName(), x, size );
+				if ( !isEnabled() )
+				{
+					return;
+				}
+				size = addUnacknowledged( packet, payload );
 
 				// Prevent keeping to many stanzas in memory.
 				if ( size > getMaximumUnacknowledgedStanzas() )
 				{
 					Log.warn( "To many stanzas go unacknowledged for this connection. Clearing queue and disabling functionality." );
 					namespace = null;
+					unregister();
 					unacknowledgedServerStanzas.clear();
 					return;
 				}
@@ -255,27 +336,229 @@ public class StreamManager {
 
 	}
 
+	/**
+	 * Keeps a stanza for the client while the session is detached. The stanza is sent when the
+	 * session is resumed. The session is closed when too many stanzas are kept for it.
+	 *
+	 * @param packet The stanza that is sent.
+	 * @return true if the session is detached and the stanza was kept, false if the stanza must
+	 *         be delivered to the connection of the session.
+	 */
+	public boolean bufferIfDetached(Packet packet) {
+		if ( !detached ) {
+			return false;
+		}
+		final byte[] payload = serialize( packet );
+		synchronized (this)
+		{
+			if ( !detached ) {
+				return false;
+			}
+			if ( addUnacknowledged( packet, payload ) <= getMaximumUnacknowledgedStanzas() ) {
+				return true;
+			}
+			Log.warn( "To many stanzas go unacknowledged for detached session {}. Closing the session.", session.getAddress() );
+		}
+		session.close();
+		return true;
+	}
+
+	private int addUnacknowledged(Packet packet, byte[] payload) {
+		// The next ID is one higher than the last stanza that was sent (which might be unacknowledged!)
+		final long x = 1 + ( unacknowledgedServerStanzas.isEmpty() ? clientProcessedStanzas : unacknowledgedServerStanzas.getLastSequence() );
+		unacknowledgedServerStanzas.add( x, System.currentTimeMillis(), payload, packet instanceof Message );
+
+		final int size = unacknowledgedServerStanzas.size();
+		Log.trace( "Added stanza of type '{}' to collection of unacknowledged stanzas (x={}). Collection size is now {}.", packet.getElement().getName(), x, size );
+		return size;
+	}
+
+	private static byte[] serialize(Packet packet) {
+		if ( packet instanceof SerializedStanza ) {
+			final ByteBuffer buffer = ( (SerializedStanza) packet ).getPayload();
+			final byte[] payload = new byte[buffer.remaining()];
+			buffer.get( payload );
+			return payload;
+		}
+		return packet.toXML().getBytes( StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Keeps the session after its connection broke so the client can resume it. The session is
+	 * closed if it is not resumed within the resumption timeout.
+	 *
+	 * @return true if the session must be kept, false if the session must be closed.
+	 */
+	public synchronized boolean detach() {
+		if ( resumeId == null || terminated ) {
+			return false;
+		}
+		if ( detached || !session.getConnection().isClosed() ) {
+			// Already detached, or a connection that was replaced by resuming the session closed.
+			return true;
+		}
+		Log.debug( "Connection of session {} broke. Keeping the session for {} seconds.", session.getAddress(), getResumptionTimeout() );
+		detached = true;
+		expiryTask = new TimerTask() {
+			@Override
+			public void run() {
+				synchronized ( StreamManager.this ) {
+					if ( expiryTask != this ) {
+						return;
+					}
+				}
+				Log.debug( "Session {} was not resumed in time.", session.getAddress() );
+				session.close();
+			}
+		};
+		TaskEngine.getInstance().schedule( expiryTask, getResumptionTimeout() * 1000L );
+		return true;
+	}
+
+	/**
+	 * Prevents the session from being resumed. Invoked when the session is closed.
+	 *
+	 * @return true if the session was detached, in which case its connection is already closed.
+	 */
+	public synchronized boolean terminate() {
+		final boolean wasDetached = detached;
+		terminated = true;
+		detached = false;
+		cancelExpiry();
+		unregister();
+		return wasDetached;
+	}
+
+	/**
+	 * Returns true while the connection of the session is broken and the session waits to be resumed.
+	 *
+	 * @return true if the session is detached.
+	 */
+	public boolean isDetached() {
+		return detached;
+	}
+
+	/**
+	 * Resumes the detached session on the connection of the client that resumed it. The stanzas
+	 * that the client did not acknowledge are sent again.
+	 *
+	 * @param connection the connection of the client that resumed the session.
+	 * @param h the number of stanzas that the client acknowledged.
+	 * @return true if the session was resumed, false if it was not detached anymore.
+	 */
+	public synchronized boolean resume(Connection connection, long h) {
+		if ( !detached ) {
+			return false;
+		}
+		cancelExpiry();
+		session.setConnection( connection );
+		connection.init( session );
+		acknowledge( h );
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append( String.format( "<resumed xmlns='%s' h='%s' previd='%s'/>", namespace, serverProcessedStanzas & mask, resumeId ) );
+		for ( int i = 0; i < unacknowledgedServerStanzas.size(); i++ ) {
+			sb.append( new String( unacknowledgedServerStanzas.getPayload( i ), StandardCharsets.UTF_8 ) );
+		}
+		connection.deliverRawText( sb.toString() );
+		Log.debug( "Resumed session {}. Sent {} unacknowledged stanzas again.", session.getAddress(), unacknowledgedServerStanzas.size() );
+
+		detached = false;
+		session.setStatus( Session.STATUS_AUTHENTICATED );
+		return true;
+	}
+
+	/**
+	 * Resumes the session that a client asks for with a &lt;resume/&gt; element. The client must
+	 * have authenticated as the same user as the owner of the session.
+	 *
+	 * @param pending the session of the stream on which the element was received.
+	 * @param resume the &lt;resume/&gt; element.
+	 * @return the resumed session, which takes over the stream, or null if the session was not resumed.
+	 */
+	public static LocalSession resume(LocalSession pending, Element resume) {
+		final String namespace = resume.getNamespace().getStringValue();
+		resumptionAttempts.incrementAndGet();
+
+		final long h;
+		try {
+			h = Long.parseLong( resume.attributeValue( "h" ) );
+		}
+		catch ( NumberFormatException e ) {
+			sendFailed( pending.getConnection(), namespace, PacketError.Condition.bad_request );
+			return null;
+		}
+
+		final String previd = resume.attributeValue( "previd" );
+		final StreamManager previous = previd == null ? null : resumableStreams.get( previd );
+		if ( previous == null || !isResumableBy( previous, pending ) ||
+				!SessionManager.getInstance().resumeClientSession( (LocalClientSession) pending, (LocalClientSession) previous.session, h ) ) {
+			sendFailed( pending.getConnection(), namespace, PacketError.Condition.item_not_found );
+			return null;
+		}
+		resumptionSuccesses.incrementAndGet();
+		return previous.session;
+	}
+
+	private static boolean isResumableBy(StreamManager previous, LocalSession pending) {
+		if ( !( pending instanceof LocalClientSession ) || pending.getStatus() == Session.STATUS_AUTHENTICATED ) {
+			// Sessions are resumed after authentication, instead of binding a resource.
+			return false;
+		}
+		final AuthToken authToken = ( (LocalClientSession) pending ).getAuthToken();
+		final AuthToken previousToken = ( (LocalClientSession) previous.session ).getAuthToken();
+		return authToken != null && !authToken.isAnonymous() && previousToken != null &&
+				authToken.getUsername().equals( previousToken.getUsername() );
+	}
+
 	public void onClose(PacketRouter router, JID serverAddress) {
 		// Re-deliver unacknowledged stanzas from broken stream (XEP-0198)
 		synchronized (this) {
+			unregister();
 			if(isEnabled()) {
 				namespace = null; // disable stream management.
-				for (StreamManager.UnackedPacket unacked : unacknowledgedServerStanzas) {
-					if (unacked.packet instanceof Message) {
-						Message m = (Message) unacked.packet;
+				for ( int i = 0; i < unacknowledgedServerStanzas.size(); i++ ) {
+					if ( unacknowledgedServerStanzas.isMessage( i ) ) {
+						final Message m;
+						try {
+							m = new Message( DocumentHelper.parseText( new String( unacknowledgedServerStanzas.getPayload( i ), StandardCharsets.UTF_8 ) ).getRootElement(), true );
+						}
+						catch ( DocumentException e ) {
+							Log.warn( "Unable to parse unacknowledged message to deliver it again.", e );
+							continue;
+						}
 						if (m.getExtension("delay", "urn:xmpp:delay") == null) {
 							Element delayInformation = m.addChildElement("delay", "urn:xmpp:delay");
-							delayInformation.addAttribute("stamp", XMPPDateTimeFormat.format(unacked.timestamp));
+							delayInformation.addAttribute("stamp", XMPPDateTimeFormat.format(new Date(unacknowledgedServerStanzas.getTimestamp( i ))));
 							delayInformation.addAttribute("from", serverAddress.toBareJID());
 						}
-						router.route(unacked.packet);
+						router.route(m);
 					}
 				}
+				unacknowledgedServerStanzas.clear();
 			}
 		}
 
 	}
 
+	private void cancelExpiry() {
+		if ( expiryTask != null ) {
+			TaskEngine.getInstance().cancelScheduledTask( expiryTask );
+			expiryTask = null;
+		}
+	}
+
+	private void unregister() {
+		if ( resumeId != null ) {
+			resumableStreams.remove( resumeId, this );
+			resumeId = null;
+		}
+	}
+
+	private Connection getConnection() {
+		return session.getConnection();
+	}
+
 	/**
 	 * Determines whether Stream Management enabled for session this
 	 * manager belongs to.
@@ -303,4 +586,41 @@ public class StreamManager {
 	{
 		return JiveGlobals.getIntProperty( "stream.management.max-unacked", 10000 );
 	}
+
+	/**
+	 * The number of seconds that a session whose connection broke is kept to be resumed.
+	 * @return The resumption timeout in seconds.
+	 */
+	private static int getResumptionTimeout()
+	{
+		return JiveGlobals.getIntProperty( "stream.management.resume.timeout", 300 );
+	}
+
+	/**
+	 * Returns the number of times clients tried to resume a session.
+	 *
+	 * @return the number of resumption attempts.
+	 */
+	public static long getResumptionAttempts() {
+		return resumptionAttempts.get();
+	}
+
+	/**
+	 * Returns the number of sessions that were resumed.
+	 *
+	 * @return the number of successful resumptions.
+	 */
+	public static long getResumptionSuccesses() {
+		return resumptionSuccesses.get();
+	}
+
+	/**
+	 * Returns the number of bytes of the stanzas that local sessions keep until the client
+	 * acknowledges them.
+	 *
+	 * @return the number of bytes held by unacknowledged stanzas.
+	 */
+	public static long getUnacknowledgedBytes() {
+		return UnackedStanzaBuffer.getTotalBytes();
+	}
 }
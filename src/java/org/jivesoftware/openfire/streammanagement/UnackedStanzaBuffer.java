@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.streammanagement;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of the stanzas that were sent to a client but not acknowledged yet. Stanzas are
+ * kept as their UTF-8 serialization, which can be written again as is when a session is
+ * resumed. The arrays of the buffer are only allocated while the buffer holds stanzas.<p>
+ *
+ * Instances are not thread-safe; the {@link StreamManager} guards its buffer.
+ */
+final class UnackedStanzaBuffer {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Capacity above which the arrays are released when the buffer becomes empty.
+     */
+    private static final int RETAINED_CAPACITY = 64;
+
+    /**
+     * Number of bytes held by all buffers.
+     */
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    private long[] sequences;
+    private long[] timestamps;
+    private byte[][] payloads;
+    private boolean[] messages;
+    private int head;
+    private int size;
+    private long bytes;
+
+    /**
+     * Adds a stanza at the end of the buffer.
+     *
+     * @param sequence the sequence number of the stanza.
+     * @param timestamp the time the stanza was sent.
+     * @param payload the UTF-8 serialization of the stanza.
+     * @param message true if the stanza is a message.
+     */
+    void add(long sequence, long timestamp, byte[] payload, boolean message) {
+        if (payloads == null) {
+            allocate(INITIAL_CAPACITY);
+        }
+        else if (size == payloads.length) {
+            allocate(payloads.length * 2);
+        }
+        final int index = index(size);
+        sequences[index] = sequence;
+        timestamps[index] = timestamp;
+        payloads[index] = payload;
+        messages[index] = message;
+        size++;
+        bytes += payload.length;
+        totalBytes.addAndGet(payload.length);
+    }
+
+    /**
+     * Removes the oldest stanza of the buffer.
+     */
+    void removeFirst() {
+        final int index = index(0);
+        release(index);
+        head = (head + 1) & (payloads.length - 1);
+        size--;
+        trim();
+    }
+
+    /**
+     * Removes the newest stanza of the buffer.
+     */
+    void removeLast() {
+        release(index(size - 1));
+        size--;
+        trim();
+    }
+
+    /**
+     * Removes all stanzas of the buffer.
+     */
+    void clear() {
+        totalBytes.addAndGet(-bytes);
+        bytes = 0;
+        size = 0;
+        head = 0;
+        sequences = null;
+        timestamps = null;
+        payloads = null;
+        messages = null;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes held by this buffer.
+     *
+     * @return the number of bytes held by this buffer.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    long getFirstSequence() {
+        return sequences[index(0)];
+    }
+
+    long getLastSequence() {
+        return sequences[index(size - 1)];
+    }
+
+    long getSequence(int i) {
+        return sequences[index(i)];
+    }
+
+    long getTimestamp(int i) {
+        return timestamps[index(i)];
+    }
+
+    byte[] getPayload(int i) {
+        return payloads[index(i)];
+    }
+
+    boolean isMessage(int i) {
+        return messages[index(i)];
+    }
+
+    /**
+     * Returns the number of bytes held by the buffers of all sessions.
+     *
+     * @return the number of bytes held by all buffers.
+     */
+    static long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private int index(int i) {
+        return (head + i) & (payloads.length - 1);
+    }
+
+    private void release(int index) {
+        bytes -= payloads[index].length;
+        totalBytes.addAndGet(-payloads[index].length);
+        payloads[index] = null;
+    }
+
+    private void trim() {
+        if (size == 0) {
+            head = 0;
+            if (payloads.length > RETAINED_CAPACITY) {
+                clear();
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        final long[] newSequences = new long[capacity];
+        final long[] newTimestamps = new long[capacity];
+        final byte[][] newPayloads = new byte[capacity][];
+        final boolean[] newMessages = new boolean[capacity];
+        for (int i = 0; i < size; i++) {
+            final int index = index(i);
+            newSequences[i] = sequences[index];
+            newTimestamps[i] = timestamps[index];
+            newPayloads[i] = payloads[index];
+            newMessages[i] = messages[index];
+        }
+        sequences = newSequences;
+        timestamps = newTimestamps;
+        payloads = newPayloads;
+        messages = newMessages;
+        head = 0;
+    }
+}
@@ -19,16 +19,24 @@
 
 package org.jivesoftware.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +47,17 @@ import org.slf4j.LoggerFactory;
  * {@link ExecutorService} and {@link Timer}. Any {@link TimerTask} that's
  * scheduled to be run in the future will automatically be run using the thread
  * executor's thread pool. This means that the standard restriction that TimerTasks
- * should run quickly does not apply.
+ * should run quickly does not apply.<p>
+ *
+ * Scheduled tasks are kept in a hierarchical {@link TimingWheel}, so a large number of
+ * timeouts can be scheduled and cancelled cheaply. The thread pool is bounded by the
+ * <tt>taskengine.threads</tt> and <tt>taskengine.queue</tt> settings of openfire.xml; a submitted
+ * task that does not fit runs on the thread that submits it. A scheduled task that does not fit
+ * runs on a fallback thread, whose queue is bounded by <tt>taskengine.fallback.queue</tt>, or is
+ * dropped and counted if that queue is full too. A repeated task does not run again
+ * while its previous execution is still running, which is counted as an overrun. The latency,
+ * execution time and overruns of tasks are tracked per task class, see
+ * {@link #getTaskStatistics()}.
  *
  * @author Matt Tucker
  */
@@ -57,17 +75,41 @@ public class TaskEngine {
         return instance;
     }
 
-    private Timer timer;
-    private ExecutorService executor;
-    private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<>();
+    private TimingWheel timer;
+    private ThreadPoolExecutor executor;
+    /**
+     * Runs the due tasks that the pool rejected, so they don't run on the timer thread.
+     */
+    private ThreadPoolExecutor fallbackExecutor;
+    private ConcurrentMap<TimerTask, ScheduledTask> wrappedTasks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TaskStatistics> statistics = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
 
     /**
      * Constructs a new task engine.
      */
     private TaskEngine() {
-        timer = new Timer("TaskEngine-timer", true);
+        // Read from openfire.xml, as the engine may be created while the database properties are loaded
+        final int threads = JiveGlobals.getXMLProperty("taskengine.threads", 128);
+        final int queueSize = JiveGlobals.getXMLProperty("taskengine.queue", 10000);
         final ThreadFactory threadFactory = new NamedThreadFactory( "TaskEngine-pool-", true, Thread.NORM_PRIORITY, Thread.currentThread().getThreadGroup(), 0L );
-        executor = Executors.newCachedThreadPool( threadFactory );
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        fallbackExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(JiveGlobals.getXMLProperty("taskengine.fallback.queue", 1000)),
+                new NamedThreadFactory( "TaskEngine-fallback-", true, Thread.NORM_PRIORITY, Thread.currentThread().getThreadGroup(), 0L ));
+        fallbackExecutor.allowCoreThreadTimeOut(true);
+        timer = new TimingWheel("TaskEngine-timer", JiveGlobals.getXMLProperty("taskengine.tick", 10),
+                JiveGlobals.getXMLProperty("taskengine.wheel.size", 512), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                // Expired timeouts dispatch their task to the thread pool themselves
+                command.run();
+            }
+        });
     }
 
     /**
@@ -80,16 +122,88 @@ public class TaskEngine {
      *      upon completion.
      */
     public Future<?> submit(Runnable task) {
+        final MeasuredFuture result = new MeasuredFuture(task);
+        execute(result);
+        return result;
+    }
+
+    /**
+     * Runs a submitted task using the thread pool, or using the caller's thread if the pool is
+     * saturated or shut down.
+     */
+    private void execute(Runnable task) {
     	try {
-    		return executor.submit(task);
+    		executor.execute(task);
     	} catch (Throwable t) {
-    		Log.warn("Failed to schedule task; will retry using caller's thread: {0}", t.getMessage());
-    		FutureTask<?> result = new FutureTask<>(task, null);
-    		result.run();
-    		return result;
+    		if (t instanceof RejectedExecutionException) {
+    			rejectedCount.incrementAndGet();
+    		}
+    		Log.warn("Failed to schedule task; will retry using caller's thread: {}", t.getMessage());
+    		task.run();
     	}
     }
 
+    /**
+     * Runs a task that is due using the thread pool, or using the fallback thread if the pool is
+     * saturated. Due tasks never run on the timer thread, as that would delay all other tasks.
+     *
+     * @return false if the task was dropped because the fallback thread is saturated too or
+     *         the engine is shut down.
+     */
+    private boolean executeDue(Runnable task) {
+        final ThreadPoolExecutor pool = executor;
+        if (pool != null) {
+            try {
+                pool.execute(task);
+                return true;
+            }
+            catch (RejectedExecutionException e) {
+                // Try the fallback thread
+            }
+        }
+        final ThreadPoolExecutor fallback = fallbackExecutor;
+        if (fallback != null) {
+            try {
+                fallback.execute(task);
+                fallbackCount.incrementAndGet();
+                return true;
+            }
+            catch (RejectedExecutionException e) {
+                // Dropped
+            }
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Schedules a task that was wrapped for a kind of execution.
+     */
+    private void schedule(ScheduledTask scheduledTask, long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Negative delay.");
+        }
+        final TimingWheel wheel = timer;
+        if (wheel == null) {
+            throw new IllegalStateException("Timer already cancelled.");
+        }
+        wrappedTasks.put(scheduledTask.task, scheduledTask);
+        scheduledTask.schedule(wheel, wheel.now() + delay);
+    }
+
+    private static long delayUntil(Date time) {
+        if (time.getTime() < 0) {
+            throw new IllegalArgumentException("Illegal execution time.");
+        }
+        return Math.max(0, time.getTime() - System.currentTimeMillis());
+    }
+
+    private static void checkPeriod(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
+        }
+    }
+
     /**
      * Schedules the specified task for execution after the specified delay.
      *
@@ -101,7 +215,7 @@ public class TaskEngine {
      *         cancelled, or timer was cancelled.
      */
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(new TimerTaskWrapper(task), delay);
+        schedule(new ScheduledTask(task, 0, false), delay);
     }
 
     /**
@@ -115,7 +229,7 @@ public class TaskEngine {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date time) {
-        timer.schedule(new TimerTaskWrapper(task), time);
+        schedule(new ScheduledTask(task, 0, false), delayUntil(time));
     }
 
     /**
@@ -149,9 +263,8 @@ public class TaskEngine {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, delay, period);
+        checkPeriod(period);
+        schedule(new ScheduledTask(task, period, false), delay);
     }
 
     /**
@@ -184,9 +297,8 @@ public class TaskEngine {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, firstTime, period);
+        checkPeriod(period);
+        schedule(new ScheduledTask(task, period, false), delayUntil(firstTime));
     }
 
     /**
@@ -221,9 +333,8 @@ public class TaskEngine {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, delay, period);
+        checkPeriod(period);
+        schedule(new ScheduledTask(task, period, true), delay);
     }
 
     /**
@@ -257,9 +368,8 @@ public class TaskEngine {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
+        checkPeriod(period);
+        schedule(new ScheduledTask(task, period, true), delayUntil(firstTime));
     }
 
     /**
@@ -268,12 +378,81 @@ public class TaskEngine {
      * @param task the scheduled task to cancel.
      */
     public void cancelScheduledTask(TimerTask task) {
-        TaskEngine.TimerTaskWrapper taskWrapper = wrappedTasks.remove(task);
-        if (taskWrapper != null) {
-            taskWrapper.cancel();
+        ScheduledTask scheduledTask = wrappedTasks.remove(task);
+        if (scheduledTask != null) {
+            scheduledTask.cancel();
         }
     }
 
+    /**
+     * Returns the latency and execution statistics of the tasks that were run, by task class.
+     *
+     * @return the statistics of the tasks that were run.
+     */
+    public Collection<TaskStatistics> getTaskStatistics() {
+        return new ArrayList<>(statistics.values());
+    }
+
+    /**
+     * Returns the number of scheduled tasks that are waiting for their next execution.
+     *
+     * @return the number of scheduled tasks.
+     */
+    public int getScheduledTaskCount() {
+        final TimingWheel wheel = timer;
+        return wheel == null ? 0 : wheel.size();
+    }
+
+    /**
+     * Returns the number of tasks that wait for a thread of the pool.
+     *
+     * @return the number of queued tasks.
+     */
+    public int getQueuedTaskCount() {
+        final ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of threads of the pool that are running tasks.
+     *
+     * @return the number of running tasks.
+     */
+    public int getActiveTaskCount() {
+        final ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * Returns the number of submitted tasks that ran on the submitting thread because the pool
+     * was saturated.
+     *
+     * @return the number of rejected tasks.
+     */
+    public long getRejectedTaskCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of scheduled task executions that ran on the fallback thread because
+     * the pool was saturated.
+     *
+     * @return the number of task executions handed to the fallback thread.
+     */
+    public long getFallbackTaskCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Returns the number of scheduled task executions that were dropped because both the pool
+     * and the fallback thread were saturated.
+     *
+     * @return the number of dropped task executions.
+     */
+    public long getDroppedTaskCount() {
+        return droppedCount.get();
+    }
+
     /**
      * Shuts down the task engine service.
      */
@@ -283,32 +462,317 @@ public class TaskEngine {
             executor = null;
         }
 
+        if (fallbackExecutor != null) {
+            fallbackExecutor.shutdown();
+            fallbackExecutor = null;
+        }
+
         if (timer != null) {
-            timer.cancel();
+            timer.stop();
             timer = null;
         }
     }
 
+    private TaskStatistics getStatistics(Object task) {
+        final String name = task.getClass().getName();
+        TaskStatistics stats = statistics.get(name);
+        if (stats == null) {
+            final TaskStatistics created = new TaskStatistics(name);
+            stats = statistics.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
     /**
-     * Wrapper class for a standard TimerTask. It simply executes the TimerTask
-     * using the executor's thread pool.
+     * A submitted task that records how long it waited for a thread and how long it ran.
      */
-    private class TimerTaskWrapper extends TimerTask {
+    private class MeasuredFuture extends FutureTask<Object> {
 
-        private TimerTask task;
+        private final TaskStatistics stats;
+        private final long submitted = System.nanoTime();
 
-        public TimerTaskWrapper(TimerTask task) {
-            this.task = task;
+        MeasuredFuture(Runnable task) {
+            super(task, null);
+            stats = getStatistics(task);
         }
 
         @Override
-		public void run() {
-        	try {
-        		submit(task);
-        	} catch (Throwable t) {
-        		// need to catch here to prevent Timer from canceling TimerThread
-        		Log.error("Failed to execute TimerTask", t);
-        	}
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                super.run();
+            }
+            finally {
+                stats.record(start - submitted, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Wrapper class for a standard TimerTask. It executes the TimerTask using the executor's
+     * thread pool when its timeout on the timing wheel expires, and schedules the next
+     * execution of a repeated task.
+     */
+    private class ScheduledTask {
+
+        private final TimerTask task;
+        private final long period;
+        private final boolean fixedRate;
+        private final TaskStatistics stats;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile TimingWheel.Timeout timeout;
+
+        ScheduledTask(TimerTask task, long period, boolean fixedRate) {
+            this.task = task;
+            this.period = period;
+            this.fixedRate = fixedRate;
+            this.stats = getStatistics(task);
+        }
+
+        /**
+         * Schedules the next execution on the timing wheel.
+         *
+         * @param wheel the timing wheel.
+         * @param dueTime the time of the wheel at which the task is due.
+         */
+        private void schedule(TimingWheel wheel, final long dueTime) {
+            final TimingWheel.Timeout current = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(dueTime);
+                }
+            }, dueTime - wheel.now());
+            timeout = current;
+            if (cancelled) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * Invoked by the timing wheel when the task is due.
+         */
+        private void dispatch(final long dueTime) {
+            if (cancelled) {
+                return;
+            }
+            if (fixedRate) {
+                // The next execution is relative to the scheduled time of this one
+                final TimingWheel wheel = timer;
+                if (wheel != null) {
+                    try {
+                        schedule(wheel, dueTime + period);
+                    }
+                    catch (IllegalStateException e) {
+                        // The engine is shutting down
+                    }
+                }
+            }
+            final boolean dispatched = executeDue(new Runnable() {
+                @Override
+                public void run() {
+                    runTask(dueTime);
+                }
+            });
+            if (!dispatched) {
+                stats.drop();
+                Log.warn("Dropped execution of {}: the thread pool and the fallback thread are saturated.", task);
+                final TimingWheel wheel = timer;
+                if (period == 0) {
+                    wrappedTasks.remove(task, this);
+                }
+                else if (!fixedRate && wheel != null) {
+                    // The next execution is relative to the dropped one
+                    try {
+                        schedule(wheel, wheel.now() + period);
+                    }
+                    catch (IllegalStateException e) {
+                        // The engine is shutting down
+                    }
+                }
+            }
+        }
+
+        private void runTask(long dueTime) {
+            if (cancelled) {
+                return;
+            }
+            if (!running.compareAndSet(false, true)) {
+                // The previous execution of the repeated task is still running
+                stats.overrun();
+                Log.debug("Skipping execution of {} as its previous execution is still running.", task);
+                return;
+            }
+            final long start = System.nanoTime();
+            final TimingWheel wheel = timer;
+            final long latency = wheel == null ? 0 : TimeUnit.MILLISECONDS.toNanos(Math.max(0, wheel.now() - dueTime));
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                stats.failure();
+                Log.error("Failed to execute TimerTask", t);
+            }
+            finally {
+                running.set(false);
+                stats.record(latency, System.nanoTime() - start);
+            }
+            if (period == 0) {
+                wrappedTasks.remove(task, this);
+            }
+            else if (!fixedRate && !cancelled && wheel != null && timer == wheel) {
+                // The next execution is relative to the end of this one
+                try {
+                    schedule(wheel, wheel.now() + period);
+                }
+                catch (IllegalStateException e) {
+                    // The engine is shutting down
+                }
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            final TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+
+    /**
+     * Latency and execution statistics of the tasks of one class. The latency of a task is the
+     * time between the moment the task was due (or submitted) and the moment it started to run.
+     */
+    public static final class TaskStatistics {
+
+        private final String name;
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong drops = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+        private final AtomicLong totalRunTime = new AtomicLong();
+        private final AtomicLong maxRunTime = new AtomicLong();
+
+        private TaskStatistics(String name) {
+            this.name = name;
+        }
+
+        private void record(long latencyNanos, long runNanos) {
+            executions.incrementAndGet();
+            totalLatency.addAndGet(latencyNanos);
+            totalRunTime.addAndGet(runNanos);
+            updateMax(maxLatency, latencyNanos);
+            updateMax(maxRunTime, runNanos);
+        }
+
+        private void failure() {
+            failures.incrementAndGet();
+        }
+
+        private void overrun() {
+            overruns.incrementAndGet();
+        }
+
+        private void drop() {
+            drops.incrementAndGet();
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Retry
+            }
+        }
+
+        /**
+         * Returns the class name of the tasks.
+         *
+         * @return the class name of the tasks.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of times the tasks ran, including the executions that failed.
+         *
+         * @return the number of executions.
+         */
+        public long getExecutions() {
+            return executions.get();
+        }
+
+        /**
+         * Returns the number of executions of scheduled tasks that threw an exception.
+         *
+         * @return the number of failed executions.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Returns the number of executions of repeated tasks that were skipped because the
+         * previous execution was still running.
+         *
+         * @return the number of overruns.
+         */
+        public long getOverruns() {
+            return overruns.get();
+        }
+
+        /**
+         * Returns the number of executions of scheduled tasks that were dropped because the
+         * engine was saturated.
+         *
+         * @return the number of dropped executions.
+         */
+        public long getDrops() {
+            return drops.get();
+        }
+
+        /**
+         * Returns the average time in milliseconds that the tasks waited to run after they were due.
+         *
+         * @return the average latency in milliseconds.
+         */
+        public double getAverageLatency() {
+            final long count = executions.get();
+            return count == 0 ? 0 : totalLatency.get() / (count * 1000000d);
+        }
+
+        /**
+         * Returns the longest time in milliseconds that a task waited to run after it was due.
+         *
+         * @return the maximum latency in milliseconds.
+         */
+        public double getMaxLatency() {
+            return maxLatency.get() / 1000000d;
+        }
+
+        /**
+         * Returns the average time in milliseconds that the tasks ran.
+         *
+         * @return the average execution time in milliseconds.
+         */
+        public double getAverageRunTime() {
+            final long count = executions.get();
+            return count == 0 ? 0 : totalRunTime.get() / (count * 1000000d);
+        }
+
+        /**
+         * Returns the longest time in milliseconds that a task ran.
+         *
+         * @return the maximum execution time in milliseconds.
+         */
+        public double getMaxRunTime() {
+            return maxRunTime.get() / 1000000d;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timing wheel that runs tasks after a delay. Every wheel has a fixed number of
+ * buckets that each span one tick of the wheel. A task that is due beyond the span of a wheel
+ * goes to the next wheel, whose ticks span the whole previous wheel, and moves down to the
+ * finer wheels as its time approaches. Scheduling and cancelling a task take constant time,
+ * so the wheel can hold a very large number of timeouts that are mostly cancelled before
+ * they expire.<p>
+ *
+ * A single thread waits for the next bucket to expire; it does not wake up for ticks without
+ * tasks. Expired tasks are handed to an executor and never run on the thread of the wheel,
+ * unless the executor runs them on the calling thread.
+ */
+final class TimingWheel {
+
+    private static final Logger Log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final DelayQueue<Bucket> queue = new DelayQueue<>();
+
+    /**
+     * Tasks are added under the read lock; the clock advances under the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long origin = System.nanoTime();
+    private final Executor dispatcher;
+    private final Wheel wheel;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a timing wheel and starts its thread.
+     *
+     * @param name the name of the thread of the wheel.
+     * @param tickMillis the span of a bucket of the finest wheel in milliseconds.
+     * @param wheelSize the number of buckets of every wheel.
+     * @param dispatcher the executor that runs the expired tasks.
+     */
+    TimingWheel(String name, long tickMillis, int wheelSize, Executor dispatcher) {
+        if (tickMillis < 1 || wheelSize < 2) {
+            throw new IllegalArgumentException("Invalid tick (" + tickMillis + ") or wheel size (" + wheelSize + ")");
+        }
+        this.dispatcher = dispatcher;
+        this.wheel = new Wheel(tickMillis, wheelSize, now());
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a task to run after a delay.
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds.
+     * @return the timeout of the task, which can be cancelled.
+     * @throws IllegalStateException if the wheel was stopped.
+     */
+    Timeout schedule(Runnable task, long delay) {
+        if (!running) {
+            throw new IllegalStateException("Timer already cancelled.");
+        }
+        final Timeout timeout = new Timeout(task, now() + Math.max(0, delay));
+        size.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            add(timeout);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the number of tasks that are waiting to expire.
+     *
+     * @return the number of pending tasks.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Stops the thread of the wheel. Pending tasks are not run.
+     */
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Returns the time of the wheel in milliseconds. The clock is monotonic, so tasks are not
+     * affected by changes of the system time.
+     */
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    private void add(Timeout timeout) {
+        if (!wheel.add(timeout)) {
+            // Due (or cancelled) already
+            expire(timeout);
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+            size.decrementAndGet();
+            try {
+                dispatcher.execute(timeout.task);
+            }
+            catch (Throwable t) {
+                Log.error("Failed to dispatch expired task " + timeout.task, t);
+            }
+        }
+    }
+
+    private void advance() {
+        while (running) {
+            Bucket bucket;
+            try {
+                bucket = queue.poll(200, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            if (bucket == null) {
+                continue;
+            }
+            final List<Timeout> expired = new ArrayList<>();
+            lock.writeLock().lock();
+            try {
+                while (bucket != null) {
+                    wheel.advanceClock(bucket.getExpiration());
+                    bucket.flush(expired);
+                    // Tasks of coarser wheels move down to finer wheels, or expire
+                    for (Timeout timeout : expired) {
+                        add(timeout);
+                    }
+                    expired.clear();
+                    bucket = queue.poll();
+                }
+            }
+            catch (Throwable t) {
+                Log.error("Error advancing the timing wheel", t);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * A task that runs when its deadline has passed, unless it is cancelled.
+     */
+    final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // Guarded by the lock of the bucket
+        private volatile Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running.
+         *
+         * @return true if the task was cancelled, false if it expired or was cancelled before.
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            size.decrementAndGet();
+            Bucket current;
+            while ((current = bucket) != null) {
+                current.remove(this);
+            }
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * One wheel of the hierarchy. Its buckets span one tick each; tasks that are due beyond
+     * the span of the wheel go to the overflow wheel.
+     */
+    private final class Wheel {
+
+        private final long tick;
+        private final int wheelSize;
+        private final long interval;
+        private final Bucket[] buckets;
+        /**
+         * Start of the current tick, a multiple of the tick.
+         */
+        private volatile long currentTime;
+        private volatile Wheel overflow;
+
+        private Wheel(long tick, int wheelSize, long startTime) {
+            this.tick = tick;
+            this.wheelSize = wheelSize;
+            this.interval = tick * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = startTime - (startTime % tick);
+        }
+
+        /**
+         * Adds a timeout to this wheel or to an overflow wheel.
+         *
+         * @return false if the timeout is due or cancelled.
+         */
+        private boolean add(Timeout timeout) {
+            if (timeout.state.get() != Timeout.PENDING) {
+                return false;
+            }
+            final long time = currentTime;
+            if (timeout.deadline < time + tick) {
+                return false;
+            }
+            if (timeout.deadline < time + interval) {
+                final long virtualId = timeout.deadline / tick;
+                final Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(timeout);
+                if (bucket.setExpiration(virtualId * tick)) {
+                    // The bucket was reused for a later tick and has to be queued again
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            return getOverflow().add(timeout);
+        }
+
+        private Wheel getOverflow() {
+            Wheel wheel = overflow;
+            if (wheel == null) {
+                synchronized (this) {
+                    wheel = overflow;
+                    if (wheel == null) {
+                        wheel = new Wheel(interval, wheelSize, currentTime);
+                        overflow = wheel;
+                    }
+                }
+            }
+            return wheel;
+        }
+
+        private void advanceClock(long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - (time % tick);
+                final Wheel wheel = overflow;
+                if (wheel != null) {
+                    wheel.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * The timeouts that are due in the same tick of a wheel, as a doubly linked list.
+     */
+    private final class Bucket implements Delayed {
+
+        private final Timeout root = new Timeout(null, 0);
+        private final AtomicLong expiration = new AtomicLong(-1);
+
+        private Bucket() {
+            root.prev = root;
+            root.next = root;
+        }
+
+        private synchronized void add(Timeout timeout) {
+            timeout.next = root;
+            timeout.prev = root.prev;
+            root.prev.next = timeout;
+            root.prev = timeout;
+            timeout.bucket = this;
+        }
+
+        private synchronized void remove(Timeout timeout) {
+            if (timeout.bucket == this) {
+                timeout.prev.next = timeout.next;
+                timeout.next.prev = timeout.prev;
+                timeout.prev = null;
+                timeout.next = null;
+                timeout.bucket = null;
+            }
+        }
+
+        /**
+         * Removes all timeouts of this bucket.
+         *
+         * @param timeouts the list to add the removed timeouts to.
+         */
+        private synchronized void flush(List<Timeout> timeouts) {
+            Timeout timeout = root.next;
+            while (timeout != root) {
+                final Timeout next = timeout.next;
+                remove(timeout);
+                timeouts.add(timeout);
+                timeout = next;
+            }
+            expiration.set(-1);
+        }
+
+        private boolean setExpiration(long time) {
+            return expiration.getAndSet(time) != time;
+        }
+
+        private long getExpiration() {
+            return expiration.get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Math.max(0, getExpiration() - now()), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            final long time = getExpiration();
+            final long otherTime = ((Bucket) other).getExpiration();
+            return time < otherTime ? -1 : (time == otherTime ? 0 : 1);
+        }
+    }
+}
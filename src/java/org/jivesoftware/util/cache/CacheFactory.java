@@ -133,6 +133,7 @@ public class CacheFactory {
         cacheNames.put("Entity Capabilities", "entityCapabilities");
         cacheNames.put("Entity Capabilities Users", "entityCapabilitiesUsers");
         cacheNames.put("PEPServiceManager", "pepServiceManager");
+        cacheNames.put("PEP Service Directory", "pepServiceDirectory");
         cacheNames.put("Published Items", "publishedItems");
 
         cacheProps.put("cache.fileTransfer.size", 128 * 1024l);
@@ -204,7 +205,10 @@ public class CacheFactory {
         cacheProps.put("cache.pluginCacheInfo.size", -1l);
         cacheProps.put("cache.pluginCacheInfo.maxLifetime", -1l);
         cacheProps.put("cache.pepServiceManager.size", 1024l * 1024 * 10);
-        cacheProps.put("cache.pepServiceManager.maxLifetime", JiveConstants.MINUTE * 30);
+        // Idle PEP services are unloaded by the PEPServiceManager (xmpp.pep.idle.timeout)
+        cacheProps.put("cache.pepServiceManager.maxLifetime", -1l);
+        cacheProps.put("cache.pepServiceDirectory.size", 1024l * 1024);
+        cacheProps.put("cache.pepServiceDirectory.maxLifetime", JiveConstants.HOUR * 6);
         cacheProps.put("cache.publishedItems.size", 1024l * 1024 * 10);
         cacheProps.put("cache.publishedItems.maxLifetime", JiveConstants.MINUTE * 15);
     }
@@ -0,0 +1,506 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-distributed implementation of the Cache interface that is meant for caches
+ * that are read concurrently by many threads. Unlike {@link DefaultCache}, reads
+ * never take a lock:<ul>
+ *
+ * <li> Entries are kept in a ConcurrentHashMap. A cache hit only sets a
+ * "referenced" flag on the entry instead of relinking it in an access list.
+ * <li> When the cache grows too large, entries are evicted using the CLOCK
+ * algorithm: a hand sweeps over the entries, clearing the referenced flag of
+ * recently used entries and evicting the first entry that was not used since
+ * the hand last passed it. This approximates LRU eviction.
+ * <li> Expired entries are never returned. They are removed when they are
+ * looked up and by a periodic sweep over the cache.
+ * <li> Hit, miss and size counters are striped by key hash, so that concurrent
+ * readers do not contend on a single counter.</ul><p>
+ *
+ * Eviction is serialized by a lock that is only taken by writers once the cache
+ * is close to its maximum size.<p>
+ *
+ * This cache does not support <tt>null</tt> keys.
+ *
+ * @see ClockLocalCacheStrategy
+ */
+public class ClockCache<K, V> implements Cache<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ClockCache.class);
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentHashMap<K, CacheObject<V>> map;
+
+    /**
+     * Counters for hits, misses and size, striped by key hash.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Lock that serializes eviction (the clock hand is guarded by this lock).
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * The clock hand. Weakly consistent iterator over the entries that survives
+     * between evictions and is restarted when it reaches the end of the map.
+     */
+    private Iterator<Map.Entry<K, CacheObject<V>>> hand;
+
+    /**
+     * Moment in time after which the next sweep for expired entries is due.
+     */
+    private final AtomicLong nextExpirySweep = new AtomicLong();
+
+    /**
+     * Maximum size in bytes that the cache can grow to.
+     */
+    private volatile long maxCacheSize;
+
+    /**
+     * Maximum length of time objects can exist in cache before expiring.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * The name of the cache.
+     */
+    private String name;
+
+    /**
+     * Create a new clock cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ClockCache(String name, long maxSize, long maxLifetime) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+
+        int concurrency = 1;
+        while (concurrency < Runtime.getRuntime().availableProcessors() * 2) {
+            concurrency <<= 1;
+        }
+        map = new ConcurrentHashMap<>(103, 0.75f, concurrency);
+        stripes = new Stripe[concurrency];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int objectSize = 1;
+        try {
+            objectSize = CacheSizes.sizeOfAnything(value);
+        }
+        catch (CannotCalculateSizeException e) {
+            Log.warn(e.getMessage(), e);
+        }
+
+        // If the object is bigger than the entire cache, simply don't add it.
+        final long maxSize = maxCacheSize;
+        if (maxSize > 0 && objectSize > maxSize * .90) {
+            // Delete an old entry if it exists.
+            remove(key);
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            return value;
+        }
+
+        final CacheObject<V> cacheObject = new CacheObject<>(value, objectSize, System.currentTimeMillis());
+        final CacheObject<V> previous = map.put(key, cacheObject);
+        stripe(key).size.addAndGet(objectSize - (previous == null ? 0 : previous.size));
+
+        // If cache is too full, remove least used cache entries until it is
+        // not too full.
+        cullCache();
+
+        return previous == null ? null : previous.object;
+    }
+
+    @Override
+    public V get(Object key) {
+        deleteExpiredEntries();
+
+        final CacheObject<V> cacheObject = map.get(key);
+        if (cacheObject == null || isExpired(cacheObject, System.currentTimeMillis())) {
+            if (cacheObject != null) {
+                removeEntry(key, cacheObject);
+            }
+            // The object didn't exist in cache, so increment cache misses.
+            stripe(key).misses.incrementAndGet();
+            return null;
+        }
+
+        stripe(key).hits.incrementAndGet();
+        // Only write the flag when needed, to avoid dirtying the cache line
+        // of frequently read entries.
+        if (!cacheObject.referenced) {
+            cacheObject.referenced = true;
+        }
+        return cacheObject.object;
+    }
+
+    @Override
+    public V remove(Object key) {
+        final CacheObject<V> cacheObject = map.remove(key);
+        if (cacheObject == null) {
+            return null;
+        }
+        stripe(key).size.addAndGet(-cacheObject.size);
+        return cacheObject.object;
+    }
+
+    @Override
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+        for (Stripe stripe : stripes) {
+            stripe.hits.set(0);
+            stripe.misses.set(0);
+        }
+    }
+
+    @Override
+    public int size() {
+        deleteExpiredEntries();
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        deleteExpiredEntries();
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        deleteExpiredEntries();
+
+        final CacheObject<V> cacheObject = map.get(key);
+        return cacheObject != null && !isExpired(cacheObject, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Collection<V> values() {
+        deleteExpiredEntries();
+
+        final long now = System.currentTimeMillis();
+        final Collection<V> result = new ArrayList<>(map.size());
+        for (CacheObject<V> cacheObject : map.values()) {
+            if (!isExpired(cacheObject, now)) {
+                result.add(cacheObject.object);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        deleteExpiredEntries();
+
+        final long now = System.currentTimeMillis();
+        final Map<K, V> result = new HashMap<>();
+        for (Map.Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.put(entry.getKey(), entry.getValue().object);
+            }
+        }
+        return result.entrySet();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        deleteExpiredEntries();
+
+        final long now = System.currentTimeMillis();
+        final Set<K> result = new HashSet<>();
+        for (Map.Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the name of this cache. The name is completely arbitrary
+     * and used only for display to administrators.
+     *
+     * @return the name of this cache.
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of this cache.
+     *
+     * @param name the name of this cache.
+     */
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public long getCacheHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            hits += stripe.hits.get();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            misses += stripe.misses.get();
+        }
+        return misses;
+    }
+
+    @Override
+    public int getCacheSize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size.get();
+        }
+        return (int) size;
+    }
+
+    @Override
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    @Override
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // It's possible that the new max size is smaller than our current cache
+        // size. If so, we need to delete infrequently used items.
+        cullCache();
+    }
+
+    @Override
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    /**
+     * Clears all entries out of cache where the entries are older than the
+     * maximum defined age. To keep reads cheap, the cache is swept at most once
+     * per tenth of the maximum lifetime; in between, expired entries are
+     * removed when they are looked up.
+     */
+    protected void deleteExpiredEntries() {
+        final long lifetime = maxLifetime;
+        // Check if expiration is turned on.
+        if (lifetime <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long due = nextExpirySweep.get();
+        if (now < due || !nextExpirySweep.compareAndSet(due, now + Math.max(1, lifetime / 10))) {
+            // Not due yet, or another thread is sweeping.
+            return;
+        }
+
+        for (Map.Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                removeEntry(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes objects from cache if the cache is too full. "Too full" is
+     * defined as within 3% of the maximum cache size. Whenever the cache is
+     * is too big, entries that were not recently used are deleted until the
+     * cache is at least 10% empty.
+     */
+    protected final void cullCache() {
+        // Check if a max cache size is defined.
+        final long maxSize = maxCacheSize;
+        if (maxSize < 0) {
+            return;
+        }
+
+        // See if the cache size is within 3% of being too big. If so, clean out
+        // cache until it's 10% free.
+        if (getCacheSize() < (int) (maxSize * .97)) {
+            return;
+        }
+
+        // Let a single thread do the work, unless the cache already grew beyond
+        // its maximum size: in that case, writers wait for the eviction to finish.
+        if (getCacheSize() > maxSize) {
+            evictionLock.lock();
+        }
+        else if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            final int desiredSize = (int) (maxSize * .90);
+            if (getCacheSize() <= desiredSize) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+
+            // A full revolution of the hand clears all referenced flags, so a
+            // victim is found within two revolutions, unless readers keep marking
+            // entries. Beyond that, entries are evicted regardless of their flag.
+            int remainingScans = map.size() * 2;
+            while (getCacheSize() > desiredSize) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        break;
+                    }
+                }
+                final Map.Entry<K, CacheObject<V>> entry = hand.next();
+                final CacheObject<V> cacheObject = entry.getValue();
+                if (cacheObject.referenced && remainingScans-- > 0 && !isExpired(cacheObject, t)) {
+                    cacheObject.referenced = false;
+                    continue;
+                }
+                removeEntry(entry.getKey(), cacheObject);
+            }
+            t = System.currentTimeMillis() - t;
+            Log.warn("Cache " + name + " was full, shrinked to 90% in " + t + "ms.");
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for a key, but only when it is still mapped to the
+     * provided cache object.
+     */
+    private void removeEntry(Object key, CacheObject<V> cacheObject) {
+        if (map.remove(key, cacheObject)) {
+            stripe(key).size.addAndGet(-cacheObject.size);
+        }
+    }
+
+    private boolean isExpired(CacheObject<V> cacheObject, long now) {
+        final long lifetime = maxLifetime;
+        return lifetime > 0 && now - cacheObject.created > lifetime;
+    }
+
+    private Stripe stripe(Object key) {
+        int h = key.hashCode();
+        // Spread the bits, as the stripe index only uses the lowest bits.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * Hit, miss and size counters for the keys that hash to a stripe.
+     */
+    private static class Stripe {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong size = new AtomicLong();
+    }
+
+    /**
+     * Wrapper for all objects put into cache. Besides the object itself, it keeps
+     * track of its size, of when it was added and of whether it was read since the
+     * clock hand last passed it.
+     */
+    private static class CacheObject<V> {
+
+        /**
+         * Underlying object wrapped by the CacheObject.
+         */
+        final V object;
+
+        /**
+         * The size of the object, computed once when it is added to the cache.
+         */
+        final int size;
+
+        /**
+         * The moment in time the object was added to the cache.
+         */
+        final long created;
+
+        /**
+         * Set when the object is read, cleared when the clock hand passes it.
+         */
+        volatile boolean referenced;
+
+        CacheObject(V object, int size, long created) {
+            this.object = object;
+            this.size = size;
+            this.created = created;
+        }
+    }
+}
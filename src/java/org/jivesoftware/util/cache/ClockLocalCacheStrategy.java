@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+/**
+ * CacheFactoryStrategy that creates local caches that can be read concurrently
+ * without locking. Enable it by setting the <tt>cache.clustering.local.class</tt>
+ * property to <tt>org.jivesoftware.util.cache.ClockLocalCacheStrategy</tt>.
+ *
+ * @see ClockCache
+ * @see DefaultLocalCacheStrategy
+ */
+public class ClockLocalCacheStrategy extends DefaultLocalCacheStrategy {
+
+    @Override
+    public Cache<Object, Object> createCache(String name) {
+        // Get cache configuration from system properties or default (hardcoded) values
+        long maxSize = CacheFactory.getMaxCacheSize(name);
+        long lifetime = CacheFactory.getMaxCacheLifetime(name);
+        // Create cache with located properties
+        return new ClockCache<>(name, maxSize, lifetime);
+    }
+}
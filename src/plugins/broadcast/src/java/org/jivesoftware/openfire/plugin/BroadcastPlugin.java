@@ -29,6 +29,8 @@ import java.util.Map;
 import java.util.StringTokenizer;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.BroadcastListener;
+import org.jivesoftware.openfire.BroadcastManager;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.container.Plugin;
@@ -78,6 +80,20 @@ public class BroadcastPlugin implements Plugin, Component, PropertyEventListener
     private ComponentManager componentManager;
     private PluginManager pluginManager;
     private UserManager userManager;
+    private BroadcastManager broadcastManager;
+
+    /**
+     * Logs the outcome of broadcasts sent to groups or to all users.
+     */
+    private final BroadcastListener broadcastLogger = new BroadcastListener() {
+        public void broadcastProgress(Packet packet, int processed, int total) {
+        }
+
+        public void broadcastCompleted(Packet packet, int delivered, int failed) {
+            Log.debug("Broadcast from " + packet.getFrom() + " sent to " + delivered +
+                    " users, " + failed + " failed.");
+        }
+    };
 
     /**
      * Constructs a new broadcast plugin.
@@ -100,6 +116,7 @@ public class BroadcastPlugin implements Plugin, Component, PropertyEventListener
         sessionManager = SessionManager.getInstance();
         groupManager = GroupManager.getInstance();
         userManager = UserManager.getInstance();
+        broadcastManager = XMPPServer.getInstance().getBroadcastManager();
 
         // Register as a component.
         componentManager = ComponentManagerFactory.getComponentManager();
@@ -125,6 +142,7 @@ public class BroadcastPlugin implements Plugin, Component, PropertyEventListener
         }
         componentManager = null;
         userManager = null;
+        broadcastManager = null;
         pluginManager = null;
         sessionManager = null;
         groupManager = null;
@@ -237,16 +255,12 @@ public class BroadcastPlugin implements Plugin, Component, PropertyEventListener
  	            // send to all users
 	      		Collection<User> users = userManager.getUsers();
 	      		String xmppdomain = "@" + JiveGlobals.getProperty("xmpp.domain");
+	      		List<JID> recipients = new ArrayList<JID>(users.size());
 	      		for (User u : users)
 	      		{
-	      			Message newMessage = message.createCopy();
-	      			newMessage.setTo(u.getUsername() + xmppdomain);
-	               try {
-	                  componentManager.sendPacket(this, newMessage);
-	              } catch (Exception e) {
-	                  Log.error(e.getMessage(), e);
-	              }
+	      			recipients.add(new JID(u.getUsername() + xmppdomain));
 	      		}
+	      		broadcastManager.route(message, recipients, broadcastLogger);
             }
         }
         // See if the name is a group.
@@ -276,16 +290,7 @@ public class BroadcastPlugin implements Plugin, Component, PropertyEventListener
                if ( ( messagePrefix != null ) && ( message.getBody() != null ) ) {
             		message.setBody(messagePrefix + " " + message.getBody());
             	}
-                for (JID userJID : group.getMembers()) {
-                    Message newMessage = message.createCopy();
-                    newMessage.setTo(userJID);
-                    try {
-                        componentManager.sendPacket(this, newMessage);
-                    }
-                    catch (Exception e) {
-                        Log.error(e.getMessage(), e);
-                    }
-                }
+                broadcastManager.route(message, group.getMembers(), broadcastLogger);
             }
             else {
                 // Otherwise, the address is recognized so send an error message back.
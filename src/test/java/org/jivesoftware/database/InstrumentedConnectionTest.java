@@ -0,0 +1,78 @@
+package org.jivesoftware.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import org.jivesoftware.database.InstrumentedConnection.StatementCache;
+import org.junit.Test;
+
+public class InstrumentedConnectionTest {
+
+    private static final String SQL = "SELECT name FROM ofTest WHERE id=?";
+
+    @Test
+    public void testCachedStatementIsReused() throws Exception {
+        Connection physical = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(physical.prepareStatement(SQL)).thenReturn(statement);
+        StatementCache cache = new StatementCache(physical, 10);
+        ConnectionPoolStatistics statistics = new ConnectionPoolStatistics("test", 0);
+
+        for (int i = 0; i < 3; i++) {
+            Connection con = InstrumentedConnection.wrap(mock(Connection.class), cache, statistics);
+            PreparedStatement pstmt = con.prepareStatement(SQL);
+            pstmt.setLong(1, i);
+            pstmt.executeQuery();
+            pstmt.close();
+            assertTrue(pstmt.isClosed());
+            con.close();
+        }
+
+        verify(physical, times(1)).prepareStatement(SQL);
+        verify(statement, times(3)).clearParameters();
+        verify(statement, times(0)).close();
+        assertEquals(2, statistics.getStatementCacheHits());
+        assertEquals(1, statistics.getStatementCacheMisses());
+        assertEquals(1, statistics.getQueryTimings().length);
+        assertEquals(1, cache.size());
+
+        cache.close();
+        verify(statement).close();
+    }
+
+    @Test
+    public void testStatementLeftOpenIsReturnedWithConnection() throws Exception {
+        Connection physical = mock(Connection.class);
+        when(physical.prepareStatement(SQL)).thenReturn(mock(PreparedStatement.class));
+        StatementCache cache = new StatementCache(physical, 10);
+        Connection con = InstrumentedConnection.wrap(mock(Connection.class), cache,
+                new ConnectionPoolStatistics("test", 0));
+
+        con.prepareStatement(SQL);
+        assertEquals(0, cache.size());
+        con.close();
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testAcquireTimeHistogram() {
+        ConnectionPoolStatistics statistics = new ConnectionPoolStatistics("test", 0);
+        statistics.connectionAcquired(500000);
+        statistics.connectionAcquired(20000000);
+        statistics.connectionAcquired(10000000000L);
+
+        String[] histogram = statistics.getAcquireTimeHistogram();
+        assertEquals("<=1 ms: 1", histogram[0]);
+        assertEquals("<=50 ms: 1", histogram[3]);
+        assertEquals(">5000 ms: 1", histogram[histogram.length - 1]);
+        assertEquals(3, statistics.getAcquireCount());
+        assertEquals(10000.0, statistics.getMaxAcquireTime(), 0.001);
+    }
+}
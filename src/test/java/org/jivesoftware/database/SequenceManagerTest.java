@@ -0,0 +1,76 @@
+package org.jivesoftware.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SequenceManagerTest {
+
+    /**
+     * Sequence that checks out blocks from a counter instead of the ofID table.
+     */
+    private static class CounterSequenceManager extends SequenceManager {
+
+        private final AtomicLong table = new AtomicLong(1);
+        private final AtomicInteger fetches = new AtomicInteger();
+
+        CounterSequenceManager(int type, int size) {
+            super(type, size);
+        }
+
+        @Override
+        Block getNextBlock(int count) {
+            fetches.incrementAndGet();
+            int size = getCurrentBlockSize();
+            long first = table.getAndAdd(size);
+            return new Block(first, first + size);
+        }
+    }
+
+    @Test
+    public void testIDsAreUniqueAcrossThreads() throws Exception {
+        final CounterSequenceManager manager = new CounterSequenceManager(-100, 5);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final int perThread = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        ids.add(manager.nextUniqueID());
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4 * perThread, ids.size());
+    }
+
+    @Test
+    public void testIDsIncreaseAndBlocksGrow() {
+        CounterSequenceManager manager = new CounterSequenceManager(-101, 5);
+        long previous = 0;
+        for (int i = 0; i < 5000; i++) {
+            long id = manager.nextUniqueID();
+            assertTrue(id > previous);
+            previous = id;
+        }
+        assertTrue(manager.getCurrentBlockSize() > 5);
+        assertTrue(manager.fetches.get() < 1000);
+    }
+}
@@ -0,0 +1,188 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+public class BroadcastManagerTest {
+
+    private BroadcastManager manager;
+    private final Queue<Packet> delivered = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() {
+        manager = new BroadcastManager();
+        manager.start();
+    }
+
+    @After
+    public void tearDown() {
+        manager.stop();
+    }
+
+    @Test
+    public void testEverySessionGetsSerializedMessage() throws Exception {
+        final List<ClientSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 1234; i++) {
+            sessions.add(session(false));
+        }
+        final Message message = new Message();
+        message.setFrom("example.com");
+        message.setBody("The server will be restarted in 5 minutes");
+        final Listener listener = new Listener();
+
+        manager.broadcast(message, sessions, listener);
+
+        assertTrue(listener.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(1234, listener.delivered);
+        assertEquals(0, listener.failed);
+        assertEquals(1234, listener.lastProcessed);
+        assertEquals(1234, delivered.size());
+        final byte[] expected = message.toXML().getBytes(StandardCharsets.UTF_8);
+        for (Packet packet : delivered) {
+            assertNotSame(message, packet);
+            final SerializedMessage serialized = (SerializedMessage) packet;
+            final byte[] payload = new byte[serialized.getPayload().remaining()];
+            serialized.getPayload().get(payload);
+            assertEquals(new String(expected, StandardCharsets.UTF_8), new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testFailuresAreReported() throws Exception {
+        final List<ClientSession> sessions = new ArrayList<>();
+        sessions.add(session(false));
+        sessions.add(session(true));
+        sessions.add(session(false));
+        final Listener listener = new Listener();
+
+        manager.broadcast(new Message(), sessions, listener);
+
+        assertTrue(listener.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, listener.delivered);
+        assertEquals(1, listener.failed);
+    }
+
+    @Test
+    public void testSessionsGetBroadcastsInOrder() throws Exception {
+        final Map<ClientSession, List<String>> received = new ConcurrentHashMap<>();
+        final List<ClientSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final List<String> bodies = new ArrayList<>();
+            final ClientSession session = mock(ClientSession.class);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    bodies.add(((Message) invocation.getArguments()[0]).getBody());
+                    return null;
+                }
+            }).when(session).process(any(Packet.class));
+            received.put(session, bodies);
+            sessions.add(session);
+        }
+        // Small shards processed by several threads, so shards of consecutive broadcasts overlap
+        manager.stop();
+        manager = new BroadcastManager();
+        manager.start(4, 1000, 10);
+        final List<Listener> listeners = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final Message message = new Message();
+            message.setBody(Integer.toString(i));
+            final Listener listener = new Listener();
+            listeners.add(listener);
+            manager.broadcast(message, sessions, listener);
+        }
+
+        for (Listener listener : listeners) {
+            assertTrue(listener.completed.await(10, TimeUnit.SECONDS));
+        }
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expected.add(Integer.toString(i));
+        }
+        for (List<String> bodies : received.values()) {
+            assertEquals(expected, bodies);
+        }
+    }
+
+    @Test
+    public void testDeliverReturnsWhenEveryRecipientWasProcessed() {
+        final List<Integer> recipients = new ArrayList<>();
+        for (int i = 0; i < 2345; i++) {
+            recipients.add(i);
+        }
+        final Queue<Integer> processed = new ConcurrentLinkedQueue<>();
+
+        manager.deliver(recipients, new BroadcastManager.Delivery<Integer>() {
+            @Override
+            public void deliver(Integer recipient) {
+                if (recipient == 7) {
+                    throw new IllegalStateException("closed");
+                }
+                processed.add(recipient);
+            }
+        });
+
+        assertEquals(2344, processed.size());
+    }
+
+    private ClientSession session(boolean failing) {
+        final ClientSession session = mock(ClientSession.class);
+        if (failing) {
+            doThrow(new IllegalStateException("closed")).when(session).process(any(Packet.class));
+        }
+        else {
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    delivered.add((Packet) invocation.getArguments()[0]);
+                    return null;
+                }
+            }).when(session).process(any(Packet.class));
+        }
+        return session;
+    }
+
+    private static class Listener implements BroadcastListener {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile int lastProcessed;
+        private volatile int delivered;
+        private volatile int failed;
+
+        @Override
+        public synchronized void broadcastProgress(Packet packet, int processed, int total) {
+            lastProcessed = Math.max(lastProcessed, processed);
+        }
+
+        @Override
+        public void broadcastCompleted(Packet packet, int delivered, int failed) {
+            this.delivered = delivered;
+            this.failed = failed;
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class OfflineMessageCursorTest {
+
+    private OfflineMessageStore store;
+    private final List<List<Long>> deleted = new ArrayList<>();
+    private int stored = 5;
+
+    @Before
+    public void setUp() throws Exception {
+        store = mock(OfflineMessageStore.class);
+        // The store holds messages 1 to stored
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                long afterID = (Long) args[1];
+                long lastID = Math.min((Long) args[2], stored);
+                int size = (Integer) args[3];
+                List<OfflineMessage> messages = (List<OfflineMessage>) args[4];
+                List<Long> messageIDs = (List<Long>) args[5];
+                for (long id = Math.max(afterID + 1, 1); id <= lastID && messageIDs.size() < size; id++) {
+                    messageIDs.add(id);
+                    messages.add(new OfflineMessage(new Date(id),
+                            DocumentHelper.createElement("message").addAttribute("id", String.valueOf(id))));
+                }
+                return null;
+            }
+        }).when(store).loadMessages(anyString(), anyLong(), anyLong(), anyInt(), anyListOf(OfflineMessage.class),
+                anyListOf(Long.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                deleted.add(new ArrayList<>((List<Long>) invocation.getArguments()[1]));
+                return null;
+            }
+        }).when(store).deleteMessages(anyString(), anyListOf(Long.class));
+    }
+
+    @Test
+    public void testIteratesAllPagesAndDeletesConsumedPages() {
+        Iterator<OfflineMessage> cursor = new OfflineMessageCursor(store, "juliet", true, 2, 5);
+        List<String> ids = new ArrayList<>();
+        while (cursor.hasNext()) {
+            ids.add(cursor.next().getID());
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), ids);
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L), Arrays.asList(3L, 4L), Arrays.asList(5L)), deleted);
+    }
+
+    @Test
+    public void testAbandonedCursorKeepsCurrentPage() {
+        Iterator<OfflineMessage> cursor = new OfflineMessageCursor(store, "juliet", true, 2, 5);
+        cursor.next();
+        cursor.next();
+        cursor.next();
+        // Only the first page was consumed
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L)), deleted);
+    }
+
+    @Test
+    public void testDoesNotDeleteWhenNotRequested() {
+        Iterator<OfflineMessage> cursor = new OfflineMessageCursor(store, "juliet", false, 10, 5);
+        int count = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            count++;
+        }
+        assertEquals(5, count);
+        assertFalse(cursor.hasNext());
+        verify(store, never()).deleteMessages(eq("juliet"), anyListOf(Long.class));
+    }
+
+    @Test
+    public void testIgnoresMessagesStoredAfterCreation() {
+        Iterator<OfflineMessage> cursor = new OfflineMessageCursor(store, "juliet", true, 2, 5);
+        List<String> ids = new ArrayList<>();
+        while (cursor.hasNext()) {
+            ids.add(cursor.next().getID());
+            // Messages that could not be delivered are stored again
+            stored++;
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), ids);
+    }
+
+    @Test
+    public void testEmptyStoreIsNotQueried() throws Exception {
+        Iterator<OfflineMessage> cursor = new OfflineMessageCursor(store, "juliet", true, 2, -1);
+        assertFalse(cursor.hasNext());
+        verify(store, never()).loadMessages(anyString(), anyLong(), anyLong(), anyInt(),
+                anyListOf(OfflineMessage.class), anyListOf(Long.class));
+    }
+}
@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+public class SerializedMessageTest {
+
+    @Test
+    public void testRecipientsShareTheMessage() {
+        final SerializedMessage shared = new SerializedMessage(message());
+        final SerializedMessage romeo = new SerializedMessage(shared);
+        final SerializedMessage nurse = new SerializedMessage(shared);
+        romeo.setTo(new JID("romeo@example.com/orchard"));
+        nurse.setTo("nurse@example.com/kitchen");
+
+        assertNull(shared.getTo());
+        assertEquals(new JID("romeo@example.com/orchard"), romeo.getTo());
+        assertEquals(new JID("nurse@example.com/kitchen"), nurse.getTo());
+        assertEquals("Wherefore art thou?", romeo.getBody());
+
+        final Message expected = message();
+        expected.setTo("romeo@example.com/orchard");
+        assertEquals(expected.toXML(), toString(romeo.getPayloadSegments()));
+        assertEquals(expected.toXML(), toString(romeo.getPayload()));
+        assertEquals(expected.toXML(), romeo.toXML());
+    }
+
+    @Test
+    public void testModifiedRecipientDoesNotChangeOtherRecipients() {
+        final SerializedMessage shared = new SerializedMessage(message());
+        final SerializedMessage romeo = new SerializedMessage(shared);
+        final SerializedMessage nurse = new SerializedMessage(shared);
+        romeo.setTo("romeo@example.com/orchard");
+        romeo.getElement().addElement("thread").setText("balcony");
+        romeo.setBody("changed");
+
+        assertEquals("romeo@example.com/orchard", romeo.getElement().attributeValue("to"));
+        assertEquals("balcony", romeo.getThread());
+        assertEquals("Wherefore art thou?", nurse.getBody());
+        assertNull(nurse.getThread());
+        assertFalse(toString(nurse.getPayloadSegments()).contains("balcony"));
+        assertFalse(toString(shared.getPayloadSegments()).contains("romeo"));
+    }
+
+    @Test
+    public void testCopyIsPlainMessage() {
+        final SerializedMessage shared = new SerializedMessage(message());
+        final SerializedMessage romeo = new SerializedMessage(shared);
+        romeo.setTo("romeo@example.com/orchard");
+
+        final Message copy = romeo.createCopy();
+        assertEquals(Message.class, copy.getClass());
+        assertEquals(new JID("romeo@example.com/orchard"), copy.getTo());
+        copy.setBody("changed");
+        assertEquals("Wherefore art thou?", romeo.getBody());
+    }
+
+    @Test
+    public void testPresenceRecipientsShareThePresence() {
+        final Presence presence = new Presence();
+        presence.setFrom("room@conference.example.com/juliet");
+        presence.setStatus("On the balcony");
+        final SerializedPresence shared = new SerializedPresence(presence);
+        final SerializedPresence romeo = new SerializedPresence(shared);
+        romeo.setTo("romeo@example.com/orchard");
+        romeo.setStatus("changed");
+
+        assertTrue(toString(shared.getPayloadSegments()).contains("On the balcony"));
+        assertEquals("On the balcony", new SerializedPresence(shared).getStatus());
+        assertEquals(Presence.class, romeo.createCopy().getClass());
+    }
+
+    private static Message message() {
+        final Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom("room@conference.example.com/juliet");
+        message.setBody("Wherefore art thou?");
+        return message;
+    }
+
+    private static String toString(ByteBuffer... segments) {
+        final StringBuilder result = new StringBuilder();
+        for (ByteBuffer segment : segments) {
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.get(bytes);
+            result.append(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return result.toString();
+    }
+}
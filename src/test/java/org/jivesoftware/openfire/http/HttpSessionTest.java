@@ -0,0 +1,246 @@
+package org.jivesoftware.openfire.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.PacketDeliverer;
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.StreamID;
+import org.jivesoftware.openfire.XMPPServer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.xmpp.packet.Message;
+
+/**
+ * Unit tests for the deadlines of {@link HttpSession}: the inactivity of the session and the
+ * wait of the requests that are parked until there is something to deliver. Requests are
+ * answered through mocked asynchronous servlet contexts.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(XMPPServer.class)
+public class HttpSessionTest {
+
+    private HttpSession session;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        final XMPPServer server = mock(XMPPServer.class);
+        when(server.getSessionManager()).thenReturn(mock(SessionManager.class));
+        PowerMockito.mockStatic(XMPPServer.class);
+        PowerMockito.when(XMPPServer.getInstance()).thenReturn(server);
+
+        final StreamID streamID = mock(StreamID.class);
+        when(streamID.getID()).thenReturn("a1b2c3");
+        session = new HttpSession(mock(PacketDeliverer.class), "example.com", InetAddress.getLoopbackAddress(),
+                streamID, 1, new HttpConnection(1, false, null, new Exchange().context), Locale.ENGLISH);
+        session.getConnection().init(session);
+        session.setWait(60);
+        session.setHold(1);
+        session.setMaxRequests(2);
+        session.setMaxPollingInterval(0);
+        session.setDefaultInactivityTimeout(1);
+        session.addSessionCloseListener(new SessionListener() {
+            @Override
+            public void connectionOpened(HttpSession session, HttpConnection connection) {
+            }
+
+            @Override
+            public void connectionClosed(HttpSession session, HttpConnection connection) {
+            }
+
+            @Override
+            public void sessionClosed(HttpSession session) {
+                closed.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void testInactiveSessionIsClosed() throws Exception {
+        final long start = System.currentTimeMillis();
+        session.setInactivityTimeout(1);
+        assertFalse(session.isClosed());
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(session.isClosed());
+        assertTrue(System.currentTimeMillis() - start >= 900);
+    }
+
+    @Test
+    public void testSessionIsInactiveOnceItsRequestsAreAnswered() throws Exception {
+        final Exchange request = new Exchange();
+        session.forwardRequest(2, false, body(), request.context);
+
+        // A parked request keeps the session active
+        assertFalse(closed.await(1500, TimeUnit.MILLISECONDS));
+        assertFalse(session.isClosed());
+
+        final long answered = System.currentTimeMillis();
+        request.timeout();
+        assertTrue(request.isComplete());
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - answered >= 900);
+    }
+
+    @Test
+    public void testParkedRequestIsAnsweredWhenItsWaitExpires() throws Exception {
+        final Exchange first = new Exchange();
+        session.forwardRequest(2, false, body(), first.context);
+        verify(first.context).setTimeout(60 * 1000);
+        assertFalse(first.isComplete());
+
+        // The container calls the listener once the wait of the request has passed
+        first.timeout();
+        assertTrue(first.isComplete());
+        assertEquals(0, first.getBody().elements().size());
+        assertEquals(2, session.getLastAcknowledged());
+
+        // A stanza that arrives afterwards waits for the next request
+        session.deliver(message("Wherefore art thou, Romeo?"));
+        final Exchange second = new Exchange();
+        session.forwardRequest(3, false, body(), second.context);
+        assertTrue(second.isComplete());
+        assertEquals("Wherefore art thou, Romeo?", second.getBody().element("message").elementText("body"));
+    }
+
+    @Test
+    public void testStanzaIsDeliveredToParkedRequest() throws Exception {
+        final Exchange request = new Exchange();
+        session.forwardRequest(2, false, body(), request.context);
+        assertFalse(request.isComplete());
+
+        session.deliver(message("Good night, good night!"));
+        assertTrue(request.isComplete());
+        assertEquals("Good night, good night!", request.getBody().element("message").elementText("body"));
+
+        // The parked request was answered, so it no longer expires
+        request.timeout();
+        assertEquals(1, request.getBody().elements().size());
+        assertFalse(session.isClosed());
+    }
+
+    private static Element body() {
+        final Element body = DocumentHelper.createElement("body");
+        body.addAttribute("xmlns", "http://jabber.org/protocol/httpbind");
+        return body;
+    }
+
+    private static Message message(String text) {
+        final Message message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setFrom("romeo@example.com/orchard");
+        message.setBody(text);
+        return message;
+    }
+
+    /**
+     * An HTTP request and its response. Writes to the response are recorded and completing
+     * the request notifies the listeners, as the servlet container does.
+     */
+    private static class Exchange {
+
+        private final AsyncContext context = mock(AsyncContext.class);
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private AsyncListener listener;
+        private volatile boolean complete;
+
+        Exchange() throws IOException {
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getMethod()).thenReturn("POST");
+            when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+            final HttpServletResponse response = mock(HttpServletResponse.class);
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return !complete;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        writeListener.onWritePossible();
+                    }
+                    catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+
+                @Override
+                public void write(int b) {
+                    written.write(b);
+                }
+            });
+            when(context.getRequest()).thenReturn(request);
+            when(context.getResponse()).thenReturn(response);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    listener = (AsyncListener) invocation.getArguments()[0];
+                    return null;
+                }
+            }).when(context).addListener(any(AsyncListener.class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws IOException {
+                    if (!complete) {
+                        complete = true;
+                        if (listener != null) {
+                            listener.onComplete(new AsyncEvent(context));
+                        }
+                    }
+                    return null;
+                }
+            }).when(context).complete();
+        }
+
+        /**
+         * Expires the request, as the servlet container does once its timeout has passed.
+         */
+        void timeout() throws IOException {
+            if (!complete) {
+                assertNotNull(listener);
+                listener.onTimeout(new AsyncEvent(context));
+            }
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        Element getBody() throws Exception {
+            return DocumentHelper.parseText(new String(written.toByteArray(), StandardCharsets.UTF_8)).getRootElement();
+        }
+    }
+}
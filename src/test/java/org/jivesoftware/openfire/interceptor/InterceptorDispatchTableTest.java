@@ -0,0 +1,129 @@
+package org.jivesoftware.openfire.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jivesoftware.openfire.session.Session;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+import org.xmpp.packet.Roster;
+
+public class InterceptorDispatchTableTest {
+
+    private static final InterceptorDispatchTable.StatisticsProvider STATISTICS = new InterceptorDispatchTable.StatisticsProvider() {
+        @Override
+        public InterceptorStatistics getStatistics(PacketInterceptor interceptor) {
+            return new InterceptorStatistics();
+        }
+    };
+
+    @Test
+    public void testPlainInterceptorIsInvokedForEveryPacket() {
+        final PacketInterceptor interceptor = new Interceptor();
+        final InterceptorDispatchTable table = InterceptorDispatchTable.compile(
+                Collections.singletonList(interceptor), STATISTICS);
+
+        for (Packet packet : Arrays.asList(new Message(), new Presence(), new IQ(), new Roster())) {
+            for (boolean read : new boolean[] {true, false}) {
+                for (boolean processed : new boolean[] {true, false}) {
+                    final InterceptorDispatchTable.Target[] targets =
+                            table.get(InterceptorDispatchTable.indexOf(packet, read, processed));
+                    assertEquals(1, targets.length);
+                    assertSame(interceptor, targets[0].interceptor);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSelectiveInterceptorIsOnlyInvokedForDeclaredPackets() {
+        final PacketInterceptor messages = new SelectiveInterceptor(EnumSet.of(EPacketType.Message),
+                EnumSet.of(EEventType.Incoming, EEventType.Unprocessed));
+        final PacketInterceptor iqs = new SelectiveInterceptor(EnumSet.of(EPacketType.IQ),
+                EnumSet.of(EEventType.Processed));
+        final InterceptorDispatchTable table = InterceptorDispatchTable.compile(
+                Arrays.asList(messages, iqs), STATISTICS);
+
+        assertEquals(Collections.singletonList(messages), interceptors(table, new Message(), true, false));
+        assertTrue(interceptors(table, new Message(), true, true).isEmpty());
+        assertTrue(interceptors(table, new Message(), false, false).isEmpty());
+        assertTrue(interceptors(table, new Presence(), true, false).isEmpty());
+
+        // Rosters are IQs; the direction is not restricted
+        assertEquals(Collections.singletonList(iqs), interceptors(table, new IQ(), true, true));
+        assertEquals(Collections.singletonList(iqs), interceptors(table, new Roster(), false, true));
+        assertTrue(interceptors(table, new IQ(), false, false).isEmpty());
+    }
+
+    @Test
+    public void testOrderOfInterceptorsIsKept() {
+        final PacketInterceptor first = new Interceptor();
+        final PacketInterceptor second = new SelectiveInterceptor(EnumSet.of(EPacketType.All),
+                EnumSet.of(EEventType.All));
+        final PacketInterceptor third = new Interceptor();
+        final InterceptorDispatchTable table = InterceptorDispatchTable.compile(
+                Arrays.asList(first, second, third), STATISTICS);
+
+        assertEquals(Arrays.asList(first, second, third), interceptors(table, new Presence(), false, true));
+    }
+
+    @Test
+    public void testBlockedPacketTypes() {
+        final Set<EPacketType> iq = EnumSet.of(EPacketType.IQ);
+        final Set<EPacketType> roster = EnumSet.of(EPacketType.Roster);
+
+        assertTrue(InterceptorDispatchTable.containsPacketType(iq, InterceptorDispatchTable.indexOf(new Roster(), true, false)));
+        assertTrue(InterceptorDispatchTable.containsPacketType(roster, InterceptorDispatchTable.indexOf(new Roster(), true, false)));
+        assertFalse(InterceptorDispatchTable.containsPacketType(roster, InterceptorDispatchTable.indexOf(new IQ(), true, false)));
+        assertFalse(InterceptorDispatchTable.containsPacketType(iq, InterceptorDispatchTable.indexOf(new Message(), true, false)));
+    }
+
+    private static List<PacketInterceptor> interceptors(InterceptorDispatchTable table, Packet packet,
+            boolean read, boolean processed) {
+        final InterceptorDispatchTable.Target[] targets = table.get(InterceptorDispatchTable.indexOf(packet, read, processed));
+        final PacketInterceptor[] result = new PacketInterceptor[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            result[i] = targets[i].interceptor;
+        }
+        return Arrays.asList(result);
+    }
+
+    private static class Interceptor implements PacketInterceptor {
+
+        @Override
+        public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+        }
+    }
+
+    private static class SelectiveInterceptor extends Interceptor implements SelectivePacketInterceptor {
+
+        private final Set<EPacketType> packetTypes;
+        private final Set<EEventType> eventTypes;
+
+        private SelectiveInterceptor(Set<EPacketType> packetTypes, Set<EEventType> eventTypes) {
+            this.packetTypes = packetTypes;
+            this.eventTypes = eventTypes;
+        }
+
+        @Override
+        public Set<EPacketType> getPacketTypes() {
+            return packetTypes;
+        }
+
+        @Override
+        public Set<EEventType> getEventTypes() {
+            return eventTypes;
+        }
+    }
+}
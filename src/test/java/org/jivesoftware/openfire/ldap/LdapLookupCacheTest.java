@@ -0,0 +1,187 @@
+package org.jivesoftware.openfire.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LdapLookupCacheTest {
+
+    @Test
+    public void testFoundAndNotFoundAreCached() throws Exception {
+        final LdapLookupCache cache = new LdapLookupCache("test", 100, 60000, 60000);
+        final CountingLookup found = new CountingLookup("uid=john,ou=people");
+        final CountingLookup notFound = new CountingLookup(null);
+
+        assertEquals("uid=john,ou=people", cache.get("john", found));
+        assertEquals("uid=john,ou=people", cache.get("john", found));
+        assertNull(cache.get("jane", notFound));
+        assertNull(cache.get("jane", notFound));
+
+        assertEquals(1, found.calls.get());
+        assertEquals(1, notFound.calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testExpiredResultsAreLookedUpAgain() throws Exception {
+        final LdapLookupCache cache = new LdapLookupCache("test", 100, 60000, 1);
+        final CountingLookup notFound = new CountingLookup(null);
+
+        cache.get("jane", notFound);
+        Thread.sleep(10);
+        cache.get("jane", notFound);
+
+        assertEquals(2, notFound.calls.get());
+
+        cache.clear();
+        final CountingLookup found = new CountingLookup("uid=john,ou=people");
+        cache.get("john", found);
+        cache.clear();
+        cache.get("john", found);
+
+        assertEquals(2, found.calls.get());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        final LdapLookupCache cache = new LdapLookupCache("test", 100, 60000, 60000);
+        final Exception failure = new Exception("Directory unavailable");
+        try {
+            cache.get("john", new LdapLookupCache.Lookup() {
+                @Override
+                public String lookup() throws Exception {
+                    throw failure;
+                }
+            });
+            fail();
+        }
+        catch (Exception e) {
+            assertSame(failure, e);
+        }
+        assertEquals(0, cache.size());
+        assertEquals("uid=john,ou=people", cache.get("john", new CountingLookup("uid=john,ou=people")));
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCollapsed() throws Exception {
+        final LdapLookupCache cache = new LdapLookupCache("test", 100, 60000, 60000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final LdapLookupCache.Lookup slowLookup = new LdapLookupCache.Lookup() {
+            @Override
+            public String lookup() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "uid=john,ou=people";
+            }
+        };
+
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(new Get(cache, slowLookup)));
+            started.await();
+            for (int i = 1; i < threads; i++) {
+                results.add(executor.submit(new Get(cache, slowLookup)));
+            }
+            // Wait until the other threads are waiting for the running lookup
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getCollapsedLookups() < threads - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("uid=john,ou=people", result.get(5, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertEquals(threads - 1, cache.getCollapsedLookups());
+    }
+
+    @Test
+    public void testLookupsRunningWhileClearedAreNotCached() throws Exception {
+        final LdapLookupCache cache = new LdapLookupCache("test", 100, 60000, 60000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LdapLookupCache.Lookup staleLookup = new LdapLookupCache.Lookup() {
+            @Override
+            public String lookup() throws Exception {
+                started.countDown();
+                release.await();
+                return "uid=john,ou=old";
+            }
+        };
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> stale = executor.submit(new Get(cache, staleLookup));
+            started.await();
+            // The configuration changed while the lookup was running
+            cache.clear();
+            final CountingLookup current = new CountingLookup("uid=john,ou=new");
+            assertEquals("uid=john,ou=new", cache.get("john", current));
+            release.countDown();
+            assertEquals("uid=john,ou=old", stale.get(5, TimeUnit.SECONDS));
+            assertEquals(1, cache.size());
+            assertEquals("uid=john,ou=new", cache.get("john", current));
+            assertEquals(1, current.calls.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class CountingLookup implements LdapLookupCache.Lookup {
+
+        private final String value;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private CountingLookup(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String lookup() {
+            calls.incrementAndGet();
+            return value;
+        }
+    }
+
+    private static class Get implements Callable<String> {
+
+        private final LdapLookupCache cache;
+        private final LdapLookupCache.Lookup lookup;
+
+        private Get(LdapLookupCache cache, LdapLookupCache.Lookup lookup) {
+            this.cache = cache;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public String call() throws Exception {
+            return cache.get("john", lookup);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.jivesoftware.openfire.muc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+public class HistoryBufferTest {
+
+    @Test
+    public void testKeepsNewestMessages() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        for (int i = 0; i < 10; i++) {
+            buffer.add(message("m" + i), i, false, 5);
+        }
+        assertEquals(5, buffer.size());
+        assertEquals(bodies("m5", "m6", "m7", "m8", "m9"), bodies(buffer.getMessages()));
+    }
+
+    @Test
+    public void testKeepsLatestSubject() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(subject("old"), 0, true, 3);
+        buffer.add(subject("topic"), 1, true, 3);
+        for (int i = 2; i < 10; i++) {
+            buffer.add(message("m" + i), i, false, 3);
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(bodies("topic", "m8", "m9"), bodies(buffer.getMessages()));
+        assertEquals("topic", buffer.getSubject().getSubject());
+    }
+
+    @Test
+    public void testMessagesAreOrderedByTime() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(message("b"), 20, false, -1);
+        buffer.add(message("c"), 30, false, -1);
+        buffer.add(message("a"), 10, false, -1);
+        assertEquals(bodies("a", "b", "c"), bodies(buffer.getMessages()));
+    }
+
+    @Test
+    public void testHistoryRequestLimits() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(subject("topic"), 0, true, -1);
+        for (int i = 1; i <= 10; i++) {
+            buffer.add(message("message" + i), i * 1000, false, -1);
+        }
+        assertEquals(bodies("topic", "message9", "message10"), bodies(buffer.getMessages(2, -1, -1)));
+        // "message10" has 9 characters and "message9" has 8
+        assertEquals(bodies("topic", "message10"), bodies(buffer.getMessages(-1, 16, -1)));
+        assertEquals(bodies("topic", "message8", "message9", "message10"),
+                bodies(buffer.getMessages(-1, -1, 8000)));
+        assertEquals(bodies("topic", "message1", "message2", "message3", "message4", "message5",
+                "message6", "message7", "message8", "message9", "message10"), bodies(buffer.getMessages(-1, -1, -1)));
+    }
+
+    @Test
+    public void testOlderMessagesDoNotEvictNewerMessages() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(message("m3"), 3000, false, 2);
+        buffer.add(message("m4"), 4000, false, 2);
+        buffer.addLoaded(message("m1"), 1000, false, 2);
+        buffer.addLoaded(message("m2"), 2000, false, 2);
+        assertEquals(bodies("m3", "m4"), bodies(buffer.getMessages()));
+    }
+
+    @Test
+    public void testOlderSubjectIsNotTheLatestSubject() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(subject("topic"), 2000, true, -1);
+        buffer.addLoaded(subject("old"), 1000, true, -1);
+        assertEquals("topic", buffer.getSubject().getSubject());
+    }
+
+    @Test
+    public void testLoadedMessagesAreMergedWithLiveMessages() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        // The same message was sent twice and logged by another cluster node
+        buffer.add(message("hi"), 1000, false, -1);
+        buffer.add(message("hi"), 2000, false, -1);
+        buffer.addLoaded(message("before"), 500, false, -1);
+        buffer.addLoaded(message("hi"), 1001, false, -1);
+        assertEquals(bodies("before", "hi", "hi"), bodies(buffer.getMessages()));
+        buffer.addLoaded(message("hi"), 2001, false, -1);
+        assertEquals(bodies("before", "hi", "hi"), bodies(buffer.getMessages()));
+        // Both live copies are matched, so a third copy is a different message
+        buffer.addLoaded(message("hi"), 2002, false, -1);
+        assertEquals(bodies("before", "hi", "hi", "hi"), bodies(buffer.getMessages()));
+        // A live message replaces the loaded copy
+        buffer.addLoaded(message("late"), 3000, false, -1);
+        buffer.add(message("late"), 3002, false, -1);
+        assertEquals(bodies("before", "hi", "hi", "hi", "late"), bodies(buffer.getMessages()));
+    }
+
+    private static Message message(String body) {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setBody(body);
+        return message;
+    }
+
+    private static Message subject(String subject) {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setSubject(subject);
+        return message;
+    }
+
+    private static List<String> bodies(String... texts) {
+        List<String> answer = new ArrayList<>();
+        for (String text : texts) {
+            answer.add(text);
+        }
+        return answer;
+    }
+
+    private static List<String> bodies(List<Message> messages) {
+        List<String> answer = new ArrayList<>();
+        for (Message message : messages) {
+            answer.add(message.getBody() != null ? message.getBody() : message.getSubject());
+        }
+        return answer;
+    }
+}
@@ -0,0 +1,67 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class ConversationLogWriterTest {
+
+    @Test
+    public void testDropPolicyDropsWhenFull() {
+        ConversationLogWriter writer = new ConversationLogWriter("test", 2, 10, 1000);
+        writer.setOverflowPolicy(ConversationLogWriter.OverflowPolicy.drop);
+        for (int i = 0; i < 5; i++) {
+            writer.add(entry(System.currentTimeMillis()));
+        }
+        assertEquals(2, writer.getQueueDepth());
+        assertEquals(3, writer.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockPolicyDropsAfterTimeout() {
+        ConversationLogWriter writer = new ConversationLogWriter("test", 1, 10, 1000);
+        writer.setBlockTimeout(10);
+        writer.add(entry(System.currentTimeMillis()));
+        writer.add(entry(System.currentTimeMillis()));
+        assertEquals(1, writer.getQueueDepth());
+        assertEquals(1, writer.getDroppedCount());
+    }
+
+    @Test
+    public void testFlushDelayShortensAsQueueFills() {
+        ConversationLogWriter writer = new ConversationLogWriter("test", 100, 10, 1000);
+        assertEquals(1000, writer.getNextFlushDelay());
+        for (int i = 0; i < 5; i++) {
+            writer.add(entry(System.currentTimeMillis()));
+        }
+        assertEquals(500, writer.getNextFlushDelay());
+        for (int i = 0; i < 10; i++) {
+            writer.add(entry(System.currentTimeMillis()));
+        }
+        assertEquals(100, writer.getNextFlushDelay());
+    }
+
+    @Test
+    public void testLagOfOldestEntry() {
+        ConversationLogWriter writer = new ConversationLogWriter("test", 10, 10, 1000);
+        assertEquals(0, writer.getLag());
+        writer.add(entry(System.currentTimeMillis() - 5000));
+        writer.add(entry(System.currentTimeMillis()));
+        assertTrue(writer.getLag() >= 5000);
+    }
+
+    @Test
+    public void testOverflowPolicyFromString() {
+        assertEquals(ConversationLogWriter.OverflowPolicy.spill, ConversationLogWriter.OverflowPolicy.fromString("Spill"));
+        assertEquals(ConversationLogWriter.OverflowPolicy.block, ConversationLogWriter.OverflowPolicy.fromString(null));
+        assertEquals(ConversationLogWriter.OverflowPolicy.block, ConversationLogWriter.OverflowPolicy.fromString("unknown"));
+    }
+
+    private static ConversationLogEntry entry(long time) {
+        return new ConversationLogEntry(new Date(time), 1, new JID("user@example.com/resource"), "nick", null, "body");
+    }
+}
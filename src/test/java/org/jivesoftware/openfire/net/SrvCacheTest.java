@@ -0,0 +1,193 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SrvCache}, using a resolver that answers from memory.
+ */
+public class SrvCacheTest {
+
+    private static final String NAME = "_xmpp-server._tcp.example.org";
+
+    private StubResolver resolver;
+    private List<Runnable> refreshes;
+    private boolean rejecting;
+    private long time;
+    private SrvCache cache;
+
+    @Before
+    public void setUp() {
+        resolver = new StubResolver();
+        refreshes = new ArrayList<>();
+        time = 1000000;
+        cache = new SrvCache(resolver, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting) {
+                    throw new RejectedExecutionException();
+                }
+                refreshes.add(command);
+            }
+        }) {
+            @Override
+            long currentTime() {
+                return time;
+            }
+        };
+        cache.setDefaultTTL(300);
+        cache.setNegativeTTL(60);
+    }
+
+    @Test
+    public void testRecordsAreCachedForTheirTTL() {
+        resolver.answer = answer(100, "xmpp.example.org");
+
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        time += 50000;
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals(1, resolver.queries);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        time += 60000;
+        resolver.answer = answer(100, "other.example.org");
+        assertEquals("other.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals(2, resolver.queries);
+    }
+
+    @Test
+    public void testUnknownTTLUsesDefault() {
+        resolver.answer = answer(-1, "xmpp.example.org");
+
+        cache.lookup(NAME);
+        time += 290000;
+        cache.lookup(NAME);
+        time += 20000;
+        cache.lookup(NAME);
+        assertEquals(2, resolver.queries);
+    }
+
+    @Test
+    public void testMissingNameIsCachedNegatively() {
+        resolver.notFound = true;
+
+        assertTrue(cache.lookup(NAME).isEmpty());
+        time += 30000;
+        assertTrue(cache.lookup(NAME).isEmpty());
+        assertEquals(1, resolver.queries);
+        assertEquals(1, cache.getNegativeHits());
+
+        time += 40000;
+        cache.lookup(NAME);
+        assertEquals(2, resolver.queries);
+    }
+
+    @Test
+    public void testUsedRecordIsRefreshedBeforeItExpires() {
+        resolver.answer = answer(100, "xmpp.example.org");
+        cache.lookup(NAME);
+
+        time += 90000;
+        resolver.answer = answer(100, "other.example.org");
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        cache.lookup(NAME);
+        assertEquals("Only one refresh should have been started.", 1, refreshes.size());
+
+        refreshes.get(0).run();
+        time += 50000;
+        assertEquals("other.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals(2, resolver.queries);
+        assertEquals(1, cache.getRefreshes());
+    }
+
+    @Test
+    public void testRejectedRefreshIsSkipped() {
+        resolver.answer = answer(100, "xmpp.example.org");
+        cache.lookup(NAME);
+
+        time += 90000;
+        rejecting = true;
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals("The caller should not have queried the resolver.", 1, resolver.queries);
+        assertTrue(refreshes.isEmpty());
+
+        // The next lookup tries to refresh the record again
+        rejecting = false;
+        cache.lookup(NAME);
+        assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void testExpiredRecordsAreUsedWhenLookupFails() {
+        resolver.answer = answer(100, "xmpp.example.org");
+        cache.lookup(NAME);
+
+        time += 200000;
+        resolver.failure = true;
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals(1, cache.getFailures());
+    }
+
+    @Test
+    public void testFailureWithoutRecordsIsNotCached() {
+        resolver.failure = true;
+        assertTrue(cache.lookup(NAME).isEmpty());
+
+        resolver.failure = false;
+        resolver.answer = answer(100, "xmpp.example.org");
+        assertEquals("xmpp.example.org", cache.lookup(NAME).get(0).getHost());
+        assertEquals(2, resolver.queries);
+    }
+
+    @Test
+    public void testRecordsArePrioritized() {
+        resolver.answer = new SrvResolver.Answer(Arrays.asList(
+                new DNSUtil.WeightedHostAddress("backup.example.org", 5269, 20, 10),
+                new DNSUtil.WeightedHostAddress("xmpp.example.org", 5269, 10, 10)), 100);
+
+        for (int i = 0; i < 10; i++) {
+            final List<DNSUtil.WeightedHostAddress> records = cache.lookup(NAME);
+            assertEquals(2, records.size());
+            assertEquals("xmpp.example.org", records.get(0).getHost());
+        }
+    }
+
+    private static SrvResolver.Answer answer(int ttl, String host) {
+        return new SrvResolver.Answer(
+                Collections.singletonList(new DNSUtil.WeightedHostAddress(host, 5269, 10, 10)), ttl);
+    }
+
+    private static class StubResolver implements SrvResolver {
+
+        private Answer answer;
+        private boolean notFound;
+        private boolean failure;
+        private int queries;
+
+        @Override
+        public Answer lookup(String name) throws NamingException {
+            queries++;
+            if (failure) {
+                throw new NamingException("Timeout");
+            }
+            if (notFound) {
+                throw new NameNotFoundException(name);
+            }
+            return answer;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class UTF8ByteArrayReaderTest {
+
+    @Test
+    public void testDecodesLikeStringConstructor() throws Exception {
+        final String text = "<body>ascii æøå 中文 😀🎉</body>";
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        // Small buffers force supplementary characters to be split over reads.
+        for (int size = 1; size < 8; size++) {
+            assertEquals(text, readFully(new UTF8ByteArrayReader(bytes), size));
+        }
+    }
+
+    @Test
+    public void testMalformedInputIsReplaced() throws Exception {
+        final byte[] bytes = new byte[] { 'a', (byte) 0xC3, 'b', (byte) 0xFF, (byte) 0xE2, (byte) 0x82 };
+
+        assertEquals(new String(bytes, StandardCharsets.UTF_8), readFully(new UTF8ByteArrayReader(bytes), 16));
+    }
+
+    private static String readFully(Reader reader, int bufferSize) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        final char[] buffer = new char[bufferSize];
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.jivesoftware.openfire.PacketDeliverer;
+import org.jivesoftware.openfire.SerializedMessage;
+import org.jivesoftware.openfire.SerializedPresence;
+import org.jivesoftware.openfire.session.LocalSession;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+public class NIOConnectionTest {
+
+    private IoSession ioSession;
+    private NIOConnection connection;
+    private final List<String> writes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ioSession = mock(IoSession.class);
+        connection = new NIOConnection(ioSession, mock(PacketDeliverer.class), null);
+        connection.init(mock(LocalSession.class));
+    }
+
+    @Test
+    public void testStanzaIsSerializedAsXML() throws Exception {
+        recordWrites(null);
+        final Message message = message("Jeg kan spise glas 😀 & <tags>");
+
+        connection.deliver(message);
+
+        assertEquals(1, writes.size());
+        assertEquals(message.getElement().asXML(), writes.get(0));
+        assertEquals(message.getElement().asXML().getBytes(StandardCharsets.UTF_8).length,
+                connection.getWrittenBytes());
+    }
+
+    @Test
+    public void testStanzasQueuedDuringWriteAreCoalesced() throws Exception {
+        // Deliver two more stanzas while the first one is being written, as other
+        // threads would do while this thread owns the session.
+        recordWrites(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.deliver(message("two"));
+                    connection.deliver(message("three"));
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        connection.deliver(message("one"));
+
+        assertEquals(2, writes.size());
+        assertEquals(message("two").getElement().asXML() + message("three").getElement().asXML(), writes.get(1));
+        assertEquals(3, connection.getWrittenStanzas());
+        assertEquals(2, connection.getWrittenBatches());
+        assertEquals(1.5, connection.getStanzasPerBatch(), 0.001);
+    }
+
+    @Test
+    public void testRawTextIsWrittenInOrder() throws Exception {
+        recordWrites(null);
+
+        connection.deliver(message("one"));
+        connection.deliverRawText(" ");
+
+        assertEquals(2, writes.size());
+        assertEquals(" ", writes.get(1));
+        assertEquals(1, connection.getWrittenStanzas());
+    }
+
+    @Test
+    public void testRawTextWaitsForWritingThread() throws Exception {
+        final Thread[] sender = new Thread[1];
+        recordWrites(new Runnable() {
+            @Override
+            public void run() {
+                sender[0] = new Thread() {
+                    @Override
+                    public void run() {
+                        connection.deliverRawText(" ");
+                    }
+                };
+                sender[0].start();
+                // The sender blocks until this thread has written its data, without spinning
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (sender[0].getState() != Thread.State.WAITING) {
+                    if (System.currentTimeMillis() > deadline) {
+                        fail("The raw text did not wait for the writing thread");
+                    }
+                    Thread.yield();
+                }
+            }
+        });
+
+        connection.deliver(message("one"));
+        sender[0].join(5000);
+
+        assertFalse(sender[0].isAlive());
+        assertEquals(2, writes.size());
+        assertEquals(" ", writes.get(1));
+    }
+
+    @Test
+    public void testSerializedMessageIsWrittenFromPayload() throws Exception {
+        recordWrites(null);
+        final SerializedMessage message = new SerializedMessage(message("broadcast"));
+        // The payload is not updated, so the changed body shows that it is used
+        message.setBody("changed");
+
+        connection.deliver(message);
+
+        assertEquals(message("broadcast").getElement().asXML(), writes.get(0));
+        assertEquals(1, connection.getWrittenStanzas());
+    }
+
+    @Test
+    public void testSerializedStanzaIsWrittenToItsRecipient() throws Exception {
+        recordWrites(null);
+        final SerializedMessage shared = new SerializedMessage(message("broadcast"));
+        final SerializedMessage romeo = new SerializedMessage(shared);
+        romeo.setTo("romeo@example.com/orchard & garden");
+        final SerializedPresence presence = new SerializedPresence(new Presence());
+        final SerializedPresence nurse = new SerializedPresence(presence);
+        nurse.setTo("nurse@example.com");
+
+        connection.deliver(romeo);
+        connection.deliver(nurse);
+
+        assertEquals(romeo.getElement().asXML() + nurse.getElement().asXML(), writes.get(0) + writes.get(1));
+    }
+
+    private void recordWrites(final Runnable duringFirstWrite) {
+        when(ioSession.write(any())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                final IoBuffer buffer = (IoBuffer) invocation.getArguments()[0];
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                writes.add(new String(bytes, StandardCharsets.UTF_8));
+                if (writes.size() == 1 && duringFirstWrite != null) {
+                    duringFirstWrite.run();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static Message message(String body) {
+        final Message message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setType(Message.Type.chat);
+        message.setBody(body);
+        return message;
+    }
+}
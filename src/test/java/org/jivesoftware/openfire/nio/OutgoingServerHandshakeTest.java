@@ -0,0 +1,182 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.net.SASLAuthentication;
+import org.jivesoftware.openfire.server.ServerDialback;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ServerDialback.class, SASLAuthentication.class})
+@SuppressStaticInitializationFor({"org.jivesoftware.openfire.server.ServerDialback",
+        "org.jivesoftware.openfire.net.SASLAuthentication"})
+public class OutgoingServerHandshakeTest {
+
+    private static final String STREAM = "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\"" +
+            " xmlns=\"jabber:server\" xmlns:db=\"jabber:server:dialback\" from=\"remote.example\"" +
+            " version=\"1.0\" id=\"";
+
+    private final List<String> sent = new ArrayList<>();
+    private final AtomicInteger completions = new AtomicInteger();
+    private ConnectionConfiguration configuration;
+    private DummySession ioSession;
+    private NIOConnection connection;
+    private OutgoingServerHandshake handshake;
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMockito.mockStatic(ServerDialback.class);
+        PowerMockito.when(ServerDialback.isEnabled()).thenReturn(true);
+        PowerMockito.when(ServerDialback.createKey(anyString())).thenReturn("key");
+        PowerMockito.mockStatic(SASLAuthentication.class);
+        PowerMockito.when(SASLAuthentication.verifyCertificates(any(Certificate[].class), anyString(), anyBoolean()))
+                .thenReturn(true);
+
+        configuration = mock(ConnectionConfiguration.class);
+        when(configuration.getTlsPolicy()).thenReturn(Connection.TLSPolicy.optional);
+        ioSession = new DummySession();
+        ioSession.setHandler(new IoHandlerAdapter() {
+            @Override
+            public void messageSent(IoSession session, Object message) throws Exception {
+                final IoBuffer buffer = ((IoBuffer) message).duplicate();
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                sent.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        });
+        connection = spy(new NIOConnection(ioSession, null, configuration));
+        doNothing().when(connection).startTLS(true);
+        when(connection.getPeerCertificates()).thenReturn(new Certificate[0]);
+
+        handshake = new OutgoingServerHandshake("local.example", "remote.example", "example",
+                configuration, 60000);
+        handshake.addCompletionListener(new Runnable() {
+            @Override
+            public void run() {
+                completions.incrementAndGet();
+            }
+        });
+        handshake.connected(ioSession, connection);
+    }
+
+    @Test
+    public void testOpensStreamWhenConnected() {
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0).startsWith("<stream:stream"));
+        assertTrue(sent.get(0).contains(" from=\"example\" to=\"remote.example\" version=\"1.0\""));
+    }
+
+    @Test
+    public void testTLSAndSASLExternal() throws Exception {
+        handshake.received("<?xml version='1.0'?>");
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:features><starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>" +
+                "<dialback xmlns=\"urn:xmpp:features:dialback\"/></stream:features>");
+        assertEquals("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>", last());
+
+        handshake.received("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+        verify(connection).startTLS(true);
+        assertTrue(last().startsWith("<stream:stream"));
+
+        handshake.received(STREAM + "two\">");
+        handshake.received("<stream:features><mechanisms xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\">" +
+                "<mechanism>EXTERNAL</mechanism></mechanisms></stream:features>");
+        assertTrue(last().startsWith("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">"));
+        assertFalse(handshake.isDone());
+
+        handshake.received("<success xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\"/>");
+        handshake.received(STREAM + "three\">");
+        assertTrue(handshake.isCompleted());
+        assertFalse(handshake.isUsingServerDialback());
+        assertEquals("three", handshake.getStreamID());
+        assertEquals(1, completions.get());
+    }
+
+    @Test
+    public void testDialbackOverTLSWhenExternalIsNotOffered() throws Exception {
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:features><starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/></stream:features>");
+        handshake.received("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+        handshake.received(STREAM + "two\">");
+        handshake.received("<stream:features><dialback xmlns=\"urn:xmpp:features:dialback\"/></stream:features>");
+        assertEquals("<db:result from=\"local.example\" to=\"remote.example\">key</db:result>", last());
+
+        handshake.received("<db:result from=\"remote.example\" to=\"local.example\" type=\"valid\"/>");
+        assertTrue(handshake.isCompleted());
+        assertTrue(handshake.isUsingServerDialback());
+        assertEquals("two", handshake.getStreamID());
+    }
+
+    @Test
+    public void testDialbackWithoutTLS() {
+        when(configuration.getTlsPolicy()).thenReturn(Connection.TLSPolicy.disabled);
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:features><starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>" +
+                "<dialback xmlns=\"urn:xmpp:features:dialback\"/></stream:features>");
+        assertEquals("<db:result from=\"local.example\" to=\"remote.example\">key</db:result>", last());
+
+        handshake.received("<db:result from=\"remote.example\" to=\"local.example\" type=\"valid\"/>");
+        assertTrue(handshake.isCompleted());
+    }
+
+    @Test
+    public void testRejectedDialbackKeyFails() {
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:features><dialback xmlns=\"urn:xmpp:features:dialback\"/></stream:features>");
+        handshake.received("<db:result from=\"remote.example\" to=\"local.example\" type=\"invalid\"/>");
+        assertTrue(handshake.isDone());
+        assertFalse(handshake.isCompleted());
+        assertTrue(connection.isClosed());
+        assertEquals(1, completions.get());
+    }
+
+    @Test
+    public void testStreamErrorFails() {
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:error><host-unknown xmlns=\"urn:ietf:params:xml:ns:xmpp-streams\"/></stream:error>");
+        assertTrue(handshake.isDone());
+        assertFalse(handshake.isCompleted());
+    }
+
+    @Test
+    public void testStanzasAreQueuedOnceNegotiated() throws Exception {
+        handshake.received(STREAM + "one\">");
+        handshake.received("<stream:features><dialback xmlns=\"urn:xmpp:features:dialback\"/></stream:features>");
+        handshake.received("<db:result from=\"remote.example\" to=\"local.example\" type=\"valid\"/>");
+        handshake.received("<message from=\"juliet@remote.example\" to=\"romeo@local.example\"><body>hi</body></message>");
+        assertEquals("hi", handshake.getSocketReader().getElement(1, TimeUnit.SECONDS).elementText("body"));
+    }
+
+    private String last() {
+        return sent.get(sent.size() - 1);
+    }
+}
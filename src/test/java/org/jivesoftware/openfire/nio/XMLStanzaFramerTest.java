@@ -0,0 +1,122 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+public class XMLStanzaFramerTest {
+
+    private static final String STREAM_HEADER = "<stream:stream to='example.com' xmlns='jabber:client' "
+            + "xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    @Test
+    public void testStreamHeaderAndStanzas() throws Exception {
+        final String message = "<message to=\"juliet@example.com\"><body>Hi</body></message>";
+        final String presence = "<presence/>";
+
+        final List<String> stanzas = frame("<?xml version='1.0'?>" + STREAM_HEADER + message + " \n" + presence);
+
+        assertEquals(4, stanzas.size());
+        assertEquals("<?xml version='1.0'?>", stanzas.get(0));
+        assertEquals(STREAM_HEADER, stanzas.get(1));
+        assertEquals(message, stanzas.get(2));
+        assertEquals(presence, stanzas.get(3));
+    }
+
+    @Test
+    public void testClosingStream() throws Exception {
+        final List<String> stanzas = frame(STREAM_HEADER + "<presence type='unavailable'/></stream:stream>");
+
+        assertEquals(3, stanzas.size());
+        assertEquals("</stream:stream>", stanzas.get(2));
+    }
+
+    @Test
+    public void testMarkupInsideAttributesCommentsAndCData() throws Exception {
+        final String message = "<message id='a>b' type=\"chat\"><!-- </message> -->"
+                + "<body><![CDATA[</message> ]]]></body><x xmlns='y'/></message>";
+
+        final List<String> stanzas = frame(STREAM_HEADER + message);
+
+        assertEquals(2, stanzas.size());
+        assertEquals(message, stanzas.get(1));
+    }
+
+    @Test
+    public void testStanzaSplitAcrossReads() throws Exception {
+        final String message = "<message><body>" + repeat("Jeg kan spise glas æøå 😀 ", 200)
+                + "</body></message>";
+        final byte[] bytes = (STREAM_HEADER + message + message).getBytes(StandardCharsets.UTF_8);
+
+        // Feed the data in chunks that split multi-byte characters and tags.
+        final XMLStanzaFramer framer = new XMLStanzaFramer();
+        final List<String> stanzas = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            framer.read(IoBuffer.wrap(bytes, offset, Math.min(7, bytes.length - offset)));
+            collect(framer, stanzas);
+        }
+
+        assertEquals(3, stanzas.size());
+        assertEquals(message, stanzas.get(1));
+        assertEquals(message, stanzas.get(2));
+    }
+
+    @Test
+    public void testInvalidCharacterIsRejected() throws Exception {
+        assertNotWellFormed(STREAM_HEADER + "<message><body>\u0001</body></message>");
+    }
+
+    @Test
+    public void testIllegalCharacterReferenceIsRejected() throws Exception {
+        assertNotWellFormed(STREAM_HEADER + "<message><body>&#x0;</body></message>");
+    }
+
+    @Test
+    public void testLegalCharacterReferenceIsAccepted() throws Exception {
+        final List<String> stanzas = frame(STREAM_HEADER + "<message><body>&#x20;</body></message>");
+
+        assertEquals(2, stanzas.size());
+    }
+
+    private static void assertNotWellFormed(String data) throws Exception {
+        final XMLStanzaFramer framer = new XMLStanzaFramer();
+        try {
+            framer.read(IoBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+            fail("Expected data to be rejected: " + data);
+        }
+        catch (XMLNotWellFormedException e) {
+            // Expected
+        }
+        // Remaining data is discarded.
+        framer.read(IoBuffer.wrap("<presence/>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, framer.getMsgs().size());
+    }
+
+    private static List<String> frame(String data) throws Exception {
+        final XMLStanzaFramer framer = new XMLStanzaFramer();
+        framer.read(IoBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+        final List<String> stanzas = new ArrayList<>();
+        collect(framer, stanzas);
+        return stanzas;
+    }
+
+    private static void collect(XMLStanzaFramer framer, List<String> stanzas) {
+        for (byte[] stanza : framer.getMsgs()) {
+            stanzas.add(new String(stanza, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String repeat(String text, int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}
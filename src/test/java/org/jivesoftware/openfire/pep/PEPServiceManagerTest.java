@@ -0,0 +1,162 @@
+package org.jivesoftware.openfire.pep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.commands.AdHocCommandManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class PEPServiceManagerTest {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger restores = new AtomicInteger();
+    private final AdHocCommandManager commandManager = mock(AdHocCommandManager.class);
+    private PEPServiceManager manager;
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() {
+        // The caches are shared by the instances of the manager
+        CacheFactory.createLocalCache("PEPServiceManager").clear();
+        CacheFactory.createLocalCache("PEP Service Directory").clear();
+        manager = new PEPServiceManager() {
+            @Override
+            Boolean existsInDB(String jid) {
+                lookups.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            PEPService restoreService(String jid) {
+                restores.incrementAndGet();
+                final PEPService service = mock(PEPService.class);
+                when(service.getManager()).thenReturn(commandManager);
+                return service;
+            }
+        };
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentFirstAccessLoadsOnce() throws Exception {
+        final String jid = "juliet@capulet.lit";
+        final List<Future<PEPService>> results = new ArrayList<>();
+        results.add(executor.submit(new Get(manager, jid)));
+        started.await();
+        for (int i = 0; i < 7; i++) {
+            results.add(executor.submit(new Get(manager, jid)));
+        }
+        results.add(manager.getPEPServiceAsync(jid));
+        release.countDown();
+
+        final PEPService service = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<PEPService> result : results) {
+            assertSame(service, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(1, restores.get());
+        assertEquals(1, manager.getLoadCount());
+    }
+
+    @Test
+    public void testIdleServicesAreEvictedAndLoadedAgain() throws Exception {
+        final String jid = "romeo@montague.lit";
+        release.countDown();
+        final PEPService service = manager.getPEPService(jid);
+        assertTrue(manager.hasCachedService(new JID(jid)));
+
+        // Services that were used recently are kept
+        manager.evictIdleServices(TimeUnit.MINUTES.toMillis(30));
+        assertSame(service, manager.getPEPService(jid));
+
+        Thread.sleep(5);
+        manager.evictIdleServices(1);
+        assertFalse(manager.hasCachedService(new JID(jid)));
+        assertEquals(1, manager.getEvictionCount());
+        verify(commandManager).stop();
+
+        // The service is loaded again without looking up whether it exists
+        final PEPService reloaded = manager.getPEPService(jid);
+        assertTrue(reloaded != service);
+        assertEquals(1, lookups.get());
+        assertEquals(2, restores.get());
+    }
+
+    @Test
+    public void testPendingLoadsAreCancelledWhenStopped() throws Exception {
+        final String jid = "tybalt@capulet.lit";
+        final Future<PEPService> loading = executor.submit(new Get(manager, jid));
+        started.await();
+        final Future<PEPService> waiting = manager.getPEPServiceAsync(jid);
+
+        manager.stop();
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            fail("The load should have been cancelled");
+        }
+        catch (CancellationException e) {
+            // Expected
+        }
+        release.countDown();
+        assertNull(loading.get(5, TimeUnit.SECONDS));
+    }
+
+    private static class Get implements Callable<PEPService> {
+
+        private final PEPServiceManager manager;
+        private final String jid;
+
+        private Get(PEPServiceManager manager, String jid) {
+            this.manager = manager;
+            this.jid = jid;
+        }
+
+        @Override
+        public PEPService call() {
+            return manager.getPEPService(jid);
+        }
+    }
+}
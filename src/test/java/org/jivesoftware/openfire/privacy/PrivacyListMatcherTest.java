@@ -0,0 +1,219 @@
+package org.jivesoftware.openfire.privacy;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.roster.RosterManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(XMPPServer.class)
+public class PrivacyListMatcherTest {
+
+    private static final JID USER = new JID("romeo", "example.com", null);
+
+    private static final String[] STANZAS = {"message", "iq", "presence-in", "presence-out"};
+
+    @Test
+    public void testFirstMatchingItemWins() {
+        final List<PrivacyItem> items = new ArrayList<>();
+        items.add(createItem(1, "allow", "jid", "juliet@capulet.lit/balcony"));
+        items.add(createItem(2, "deny", "jid", "juliet@capulet.lit"));
+        items.add(createItem(3, "allow", "jid", "capulet.lit"));
+        items.add(createItem(4, "deny", null, null));
+        final PrivacyListMatcher matcher = PrivacyListMatcher.compile(items);
+
+        assertSame(items.get(0), matcher.getMatchingItem(message("juliet@capulet.lit/balcony", USER.toString()), USER));
+        assertSame(items.get(1), matcher.getMatchingItem(message("juliet@capulet.lit/chamber", USER.toString()), USER));
+        assertSame(items.get(2), matcher.getMatchingItem(message("nurse@capulet.lit/chamber", USER.toString()), USER));
+        assertSame(items.get(3), matcher.getMatchingItem(message("mercutio@montague.lit", USER.toString()), USER));
+    }
+
+    @Test
+    public void testItemsOnlyApplyToTheirStanzas() {
+        final List<PrivacyItem> items = new ArrayList<>();
+        items.add(createItem(1, "deny", "jid", "tybalt@capulet.lit", "presence-out"));
+        items.add(createItem(2, "deny", "jid", "tybalt@capulet.lit", "message"));
+        final PrivacyListMatcher matcher = PrivacyListMatcher.compile(items);
+
+        assertSame(items.get(1), matcher.getMatchingItem(message("tybalt@capulet.lit/sword", USER.toString()), USER));
+        assertNull(matcher.getMatchingItem(iq("tybalt@capulet.lit/sword", USER.toString()), USER));
+        // Outgoing presences are matched against their recipient
+        assertSame(items.get(0), matcher.getMatchingItem(presence(USER + "/orchard", "tybalt@capulet.lit"), USER));
+        assertNull(matcher.getMatchingItem(message(USER + "/orchard", "tybalt@capulet.lit"), USER));
+        // Packets without sender are never matched
+        assertNull(matcher.getMatchingItem(new Message(), USER));
+    }
+
+    @Test
+    public void testSameResultAsEvaluatingItemsInOrder() {
+        final Random random = new Random(42);
+        final String[] nodes = {null, "juliet", "tybalt", "nurse", "benvolio"};
+        final String[] domains = {"capulet.lit", "montague.lit", "verona.lit"};
+        final String[] resources = {null, "balcony", "sword"};
+        for (int run = 0; run < 50; run++) {
+            final List<PrivacyItem> items = new ArrayList<>();
+            final int size = 1 + random.nextInt(30);
+            for (int i = 0; i < size; i++) {
+                final String[] stanzas = new String[random.nextInt(3)];
+                for (int s = 0; s < stanzas.length; s++) {
+                    stanzas[s] = STANZAS[random.nextInt(STANZAS.length)];
+                }
+                final String action = random.nextBoolean() ? "allow" : "deny";
+                final int order = random.nextInt(size * 2);
+                if (random.nextInt(10) == 0) {
+                    items.add(createItem(order, action, null, null, stanzas));
+                }
+                else {
+                    final String jid = new JID(nodes[random.nextInt(nodes.length)], domains[random.nextInt(domains.length)],
+                            resources[random.nextInt(resources.length)]).toString();
+                    items.add(createItem(order, action, "jid", jid, stanzas));
+                }
+            }
+            Collections.sort(items);
+            final PrivacyListMatcher matcher = PrivacyListMatcher.compile(items);
+
+            for (int i = 0; i < 200; i++) {
+                final String contact = new JID(nodes[1 + random.nextInt(nodes.length - 1)], domains[random.nextInt(domains.length)],
+                        resources[random.nextInt(resources.length)]).toString();
+                final boolean incoming = random.nextBoolean();
+                final String from = incoming ? contact : USER + "/orchard";
+                final String to = incoming ? USER + "/orchard" : contact;
+                final Packet packet;
+                switch (random.nextInt(4)) {
+                    case 0:
+                        packet = message(from, to);
+                        break;
+                    case 1:
+                        packet = iq(from, to);
+                        break;
+                    case 2:
+                        packet = presence(from, to);
+                        break;
+                    default:
+                        packet = presence(from, to);
+                        ((Presence) packet).setType(Presence.Type.subscribe);
+                }
+                assertSame(packet.toXML() + " " + items, firstMatch(items, packet), matcher.getMatchingItem(packet, USER));
+            }
+        }
+    }
+
+    @Test
+    public void testContactsAreLookedUpAgainWhenTheRosterChanges() throws Exception {
+        final JID user = new JID("mercutio", "example.com", null);
+        final JID juliet = new JID("juliet@capulet.lit/balcony");
+        final RosterItem item = mock(RosterItem.class);
+        when(item.getGroups()).thenReturn(Arrays.asList("Friends"));
+        when(item.getSubStatus()).thenReturn(RosterItem.SUB_BOTH);
+        final Roster roster = mock(Roster.class);
+        when(roster.getRosterItem(juliet)).thenReturn(item);
+        final RosterManager rosterManager = mock(RosterManager.class);
+        when(rosterManager.getRoster("mercutio")).thenReturn(roster);
+        final XMPPServer server = mock(XMPPServer.class);
+        when(server.getRosterManager()).thenReturn(rosterManager);
+        PowerMockito.mockStatic(XMPPServer.class);
+        PowerMockito.when(XMPPServer.getInstance()).thenReturn(server);
+
+        final List<PrivacyItem> items = new ArrayList<>();
+        items.add(createItem(1, "deny", "group", "Friends"));
+        final PrivacyListMatcher matcher = PrivacyListMatcher.compile(items);
+        final Message message = message(juliet.toString(), user.toString());
+
+        assertSame(items.get(0), matcher.getMatchingItem(message, user));
+        assertSame(items.get(0), matcher.getMatchingItem(message, user));
+        verify(roster, times(1)).getRosterItem(juliet);
+
+        // An item of the roster changed
+        when(item.getGroups()).thenReturn(Collections.<String>emptyList());
+        PrivacyListMatcher.rosterChanged("mercutio");
+        assertNull(matcher.getMatchingItem(message, user));
+        verify(roster, times(2)).getRosterItem(juliet);
+
+        // A shared group changed
+        when(item.getGroups()).thenReturn(Arrays.asList("Friends"));
+        PrivacyListMatcher.rostersChanged();
+        assertSame(items.get(0), matcher.getMatchingItem(message, user));
+        verify(roster, times(3)).getRosterItem(juliet);
+
+        // The user logged out
+        PrivacyListMatcher.rosterUnloaded("mercutio");
+        assertSame(items.get(0), matcher.getMatchingItem(message, user));
+        verify(roster, times(4)).getRosterItem(juliet);
+
+        // The roster was replaced (e.g. reloaded or updated by another cluster node)
+        final Roster reloaded = mock(Roster.class);
+        when(reloaded.getRosterItem(juliet)).thenReturn(item);
+        when(rosterManager.getRoster("mercutio")).thenReturn(reloaded);
+        assertSame(items.get(0), matcher.getMatchingItem(message, user));
+        verify(reloaded, times(1)).getRosterItem(juliet);
+    }
+
+    private static PrivacyItem firstMatch(List<PrivacyItem> items, Packet packet) {
+        for (PrivacyItem item : items) {
+            if (item.matchesCondition(packet, null, USER)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    static PrivacyItem createItem(int order, String action, String type, String value, String... stanzas) {
+        final Element element = DocumentHelper.createElement("item");
+        element.addAttribute("order", String.valueOf(order));
+        element.addAttribute("action", action);
+        if (type != null) {
+            element.addAttribute("type", type);
+            element.addAttribute("value", value);
+        }
+        for (String stanza : stanzas) {
+            element.addElement(stanza);
+        }
+        return new PrivacyItem(element);
+    }
+
+    static Message message(String from, String to) {
+        final Message message = new Message();
+        message.setFrom(from);
+        message.setTo(to);
+        return message;
+    }
+
+    private static IQ iq(String from, String to) {
+        final IQ iq = new IQ();
+        iq.setFrom(from);
+        iq.setTo(to);
+        return iq;
+    }
+
+    private static Presence presence(String from, String to) {
+        final Presence presence = new Presence();
+        presence.setFrom(from);
+        presence.setTo(to);
+        return presence;
+    }
+}
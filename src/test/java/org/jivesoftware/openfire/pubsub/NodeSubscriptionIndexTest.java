@@ -0,0 +1,78 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class NodeSubscriptionIndexTest {
+
+    private static final JID OWNER = new JID("owner@example.com");
+
+    private LeafNode node;
+
+    @Before
+    public void setUp() {
+        PubSubService service = mock(PubSubService.class);
+        when(service.getDefaultNodeConfiguration(anyBoolean())).thenReturn(new DefaultNodeConfiguration(true));
+        node = new LeafNode(service, null, "node", OWNER);
+    }
+
+    @Test
+    public void testSubscriptionsAreIndexedByOwner() {
+        node.addSubscription(subscription("1", NodeSubscription.State.subscribed));
+        node.addSubscription(subscription("2", NodeSubscription.State.pending));
+        node.addSubscription(new NodeSubscription(node, new JID("other@example.com"),
+                new JID("other@example.com"), NodeSubscription.State.subscribed, "3"));
+
+        assertEquals(2, node.getSubscriptions(OWNER).size());
+        assertEquals(2, node.getSubscriptionCount(OWNER));
+        assertEquals(0, node.getSubscriptionCount(new JID("nobody@example.com")));
+        assertTrue(node.getSubscriptions(new JID("nobody@example.com")).isEmpty());
+    }
+
+    @Test
+    public void testOnlyApprovedSubscriptionsThatDeliverNotificationsAreDelivered() {
+        NodeSubscription subscribed = subscription("1", NodeSubscription.State.subscribed);
+        NodeSubscription pending = subscription("2", NodeSubscription.State.pending);
+        node.addSubscription(subscribed);
+        node.addSubscription(pending);
+        assertEquals(1, node.getDeliverySubscriptions().size());
+
+        subscribed.setShouldDeliverNotifications(false);
+        assertTrue(node.getDeliverySubscriptions().isEmpty());
+
+        subscribed.setShouldDeliverNotifications(true);
+        assertSame(subscribed, node.getDeliverySubscriptions().iterator().next());
+    }
+
+    @Test
+    public void testReloadedSubscriptionReplacesTheExistingOne() {
+        node.addSubscription(subscription("1", NodeSubscription.State.subscribed));
+        NodeSubscription reloaded = subscription("1", NodeSubscription.State.subscribed);
+        reloaded.setShouldDeliverNotifications(false);
+        node.addSubscription(reloaded);
+
+        assertEquals(1, node.getSubscriptionCount(OWNER));
+        assertSame(reloaded, node.getSubscriptions(OWNER).iterator().next());
+        assertTrue(node.getDeliverySubscriptions().isEmpty());
+    }
+
+    @Test
+    public void testAffiliatesAreIndexedByJID() {
+        NodeAffiliate affiliate = new NodeAffiliate(node, OWNER);
+        node.addAffiliate(affiliate);
+        assertSame(affiliate, node.getAffiliate(OWNER));
+        assertEquals(null, node.getAffiliate(new JID("nobody@example.com")));
+    }
+
+    private NodeSubscription subscription(String id, NodeSubscription.State state) {
+        return new NodeSubscription(node, OWNER, OWNER, state, id);
+    }
+}
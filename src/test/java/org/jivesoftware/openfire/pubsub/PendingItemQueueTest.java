@@ -0,0 +1,154 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jivesoftware.openfire.pubsub.PubSubPersistenceManager.RetryWrapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class PendingItemQueueTest {
+
+    private PendingItemQueue queue;
+    private LeafNode node;
+    private LeafNode otherNode;
+
+    @Before
+    public void setUp() {
+        PubSubService service = mock(PubSubService.class);
+        when(service.getServiceID()).thenReturn("pubsub");
+        when(service.getDefaultNodeConfiguration(anyBoolean())).thenReturn(new DefaultNodeConfiguration(true));
+        JID creator = new JID("owner@example.com");
+        node = new LeafNode(service, null, "node", creator);
+        otherNode = new LeafNode(service, null, "other", creator);
+        queue = new PendingItemQueue(4);
+    }
+
+    @Test
+    public void testAddedItemsCanBeReadUntilFlushed() {
+        PublishedItem item = item(node, "1");
+        queue.add(new RetryWrapper(item));
+        assertEquals(1, queue.size());
+        assertSame(item, queue.getItem("pubsub", "node", item.getItemKey()));
+
+        PendingItemQueue.Batch batch = queue.drain();
+        assertEquals(1, batch.added.size());
+        assertEquals(0, queue.size());
+        assertTrue(queue.isEmpty());
+        assertSame(item, queue.getItem("pubsub", "node", item.getItemKey()));
+
+        queue.flushed();
+        assertNull(queue.getItem("pubsub", "node", item.getItemKey()));
+    }
+
+    @Test
+    public void testRemovedItemsAreHidden() {
+        PublishedItem item = item(node, "1");
+        queue.add(new RetryWrapper(item));
+        queue.remove(item);
+        assertEquals(0, queue.size());
+        assertNull(queue.getItem("pubsub", "node", item.getItemKey()));
+        assertTrue(queue.isRemoved("pubsub", "node", item.getItemKey()));
+        assertEquals(1, queue.getRemovedCount("pubsub", "node"));
+        assertEquals(0, queue.getRemovedCount("pubsub", "other"));
+
+        PublishedItem republished = item(node, "1");
+        queue.add(new RetryWrapper(republished));
+        assertFalse(queue.isRemoved("pubsub", "node", item.getItemKey()));
+        assertSame(republished, queue.getItem("pubsub", "node", item.getItemKey()));
+    }
+
+    @Test
+    public void testRetryDoesNotReplaceNewerItem() {
+        PublishedItem item = item(node, "1");
+        RetryWrapper failed = new RetryWrapper(item);
+        queue.add(failed);
+        queue.drain();
+        PublishedItem newer = item(node, "1");
+        queue.add(new RetryWrapper(newer));
+
+        assertFalse(queue.retry(failed));
+        assertSame(newer, queue.getItem("pubsub", "node", item.getItemKey()));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testMergeAppliesPendingItemsOfNode() {
+        PublishedItem stored = item(node, "1");
+        PublishedItem deleted = item(node, "2");
+        Map<String, PublishedItem> items = new LinkedHashMap<>();
+        items.put(stored.getItemKey(), stored);
+        items.put(deleted.getItemKey(), deleted);
+
+        PublishedItem added = item(node, "3");
+        queue.add(new RetryWrapper(added));
+        queue.add(new RetryWrapper(item(otherNode, "4")));
+        queue.remove(deleted);
+
+        assertTrue(queue.merge("pubsub", "node", items));
+        assertEquals(2, items.size());
+        assertSame(stored, items.get(stored.getItemKey()));
+        assertSame(added, items.get(added.getItemKey()));
+    }
+
+    @Test
+    public void testRemoveNodeDropsItsItems() {
+        queue.add(new RetryWrapper(item(node, "1")));
+        queue.add(new RetryWrapper(item(otherNode, "1")));
+        queue.removeNode("pubsub", "node");
+        assertEquals(1, queue.size());
+        assertNull(queue.getItem("pubsub", "node", PublishedItem.getItemKey("node", "1")));
+    }
+
+    @Test
+    public void testNodesOfDifferentServicesAreSeparate() {
+        LeafNode romeoAvatar = pepNode("romeo@example.com", "avatar");
+        LeafNode julietAvatar = pepNode("juliet@example.com", "avatar");
+        PublishedItem romeoItem = item(romeoAvatar, "current");
+        PublishedItem julietItem = item(julietAvatar, "current");
+        queue.add(new RetryWrapper(romeoItem));
+        queue.add(new RetryWrapper(julietItem));
+        assertEquals(2, queue.size());
+        assertSame(romeoItem, queue.getItem("romeo@example.com", "avatar", romeoItem.getItemKey()));
+        assertSame(julietItem, queue.getItem("juliet@example.com", "avatar", julietItem.getItemKey()));
+
+        Map<String, PublishedItem> items = new LinkedHashMap<>();
+        assertTrue(queue.merge("romeo@example.com", "avatar", items));
+        assertEquals(1, items.size());
+        assertSame(romeoItem, items.get(romeoItem.getItemKey()));
+
+        queue.remove(julietItem);
+        assertEquals(1, queue.getRemovedCount("juliet@example.com", "avatar"));
+        assertEquals(0, queue.getRemovedCount("romeo@example.com", "avatar"));
+        assertFalse(queue.isRemoved("romeo@example.com", "avatar", romeoItem.getItemKey()));
+        assertSame(romeoItem, queue.getItem("romeo@example.com", "avatar", romeoItem.getItemKey()));
+
+        queue.add(new RetryWrapper(julietItem));
+        queue.removeNode("romeo@example.com", "avatar");
+        assertEquals(1, queue.size());
+        assertNull(queue.getItem("romeo@example.com", "avatar", romeoItem.getItemKey()));
+        assertSame(julietItem, queue.getItem("juliet@example.com", "avatar", julietItem.getItemKey()));
+    }
+
+    private static LeafNode pepNode(String serviceID, String nodeID) {
+        PubSubService service = mock(PubSubService.class);
+        when(service.getServiceID()).thenReturn(serviceID);
+        when(service.getDefaultNodeConfiguration(anyBoolean())).thenReturn(new DefaultNodeConfiguration(true));
+        return new LeafNode(service, null, nodeID, new JID(serviceID));
+    }
+
+    private static PublishedItem item(LeafNode node, String id) {
+        return new PublishedItem(node, new JID("publisher@example.com"), id, new Date());
+    }
+}
@@ -0,0 +1,76 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.util.PersistableMap;
+import org.junit.Test;
+
+public class SharedGroupIndexTest {
+
+    @Test
+    public void testSharedGroupsOfUser() {
+        SharedGroupIndex index = SharedGroupIndex.build(Arrays.asList(
+                group("everyone", "everybody", null),
+                group("sales", "onlyGroup", "managers,support"),
+                group("support", "onlyGroup", null),
+                group("private", "nobody", null)));
+
+        assertEquals(new HashSet<>(Arrays.asList("everyone", "sales")),
+                index.getSharedGroupNames(Collections.singleton("managers")));
+        assertEquals(new HashSet<>(Arrays.asList("everyone", "sales", "support")),
+                index.getSharedGroupNames(Collections.singleton("support")));
+        assertEquals(new HashSet<>(Arrays.asList("everyone")),
+                index.getSharedGroupNames(Collections.singleton("private")));
+        assertEquals(new HashSet<>(Arrays.asList("everyone", "sales")), index.getVisibleGroupNames("managers"));
+        assertEquals(new HashSet<>(Arrays.asList("managers", "support")), index.getGroupList("sales"));
+        assertTrue(index.isPublic("everyone"));
+        assertFalse(index.isShared("private"));
+    }
+
+    @Test
+    public void testUpdateAndRemoveReturnNewIndex() {
+        Group sales = group("sales", "onlyGroup", "managers");
+        SharedGroupIndex index = SharedGroupIndex.build(Arrays.asList(sales));
+
+        sales.getProperties().put("sharedRoster.groupList", "support");
+        SharedGroupIndex updated = index.update(sales);
+        assertEquals(Collections.singleton("sales"), index.getVisibleGroupNames("managers"));
+        assertEquals(Collections.emptySet(), updated.getVisibleGroupNames("managers"));
+        assertEquals(Collections.singleton("sales"), updated.getVisibleGroupNames("support"));
+
+        sales.getProperties().put("sharedRoster.showInRoster", "everybody");
+        updated = updated.update(sales);
+        assertTrue(updated.isPublic("sales"));
+        assertEquals(Collections.emptySet(), updated.getGroupList("sales"));
+
+        updated = updated.remove("sales");
+        assertFalse(updated.isShared("sales"));
+        assertEquals(Collections.emptySet(), updated.getSharedGroupNames(Collections.singleton("support")));
+    }
+
+    private static Group group(String name, String showInRoster, String groupList) {
+        PersistableMap<String, String> properties = new PersistableMap<String, String>() {
+            @Override
+            public String put(String key, String value, boolean persist) {
+                return put(key, value);
+            }
+        };
+        properties.put("sharedRoster.showInRoster", showInRoster);
+        if (groupList != null) {
+            properties.put("sharedRoster.groupList", groupList);
+        }
+        Group group = mock(Group.class);
+        when(group.getName()).thenReturn(name);
+        when(group.getProperties()).thenReturn(properties);
+        return group;
+    }
+}
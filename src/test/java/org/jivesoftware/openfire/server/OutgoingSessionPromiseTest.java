@@ -0,0 +1,165 @@
+package org.jivesoftware.openfire.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Unit tests for the queues of remote domains of {@link OutgoingSessionPromise}. Sessions are
+ * created by a mocked {@link LocalOutgoingServerSession}.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({XMPPServer.class, LocalOutgoingServerSession.class})
+public class OutgoingSessionPromiseTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private OutgoingSessionPromise promise;
+
+    @Before
+    public void setUp() throws Exception {
+        CacheFactory.initialize();
+        final RoutingTable routingTable = mock(RoutingTable.class);
+        when(routingTable.hasServerRoute(any(JID.class))).thenReturn(true);
+        final XMPPServer server = mock(XMPPServer.class);
+        when(server.getRoutingTable()).thenReturn(routingTable);
+        PowerMockito.mockStatic(XMPPServer.class);
+        PowerMockito.when(XMPPServer.getInstance()).thenReturn(server);
+
+        PowerMockito.mockStatic(LocalOutgoingServerSession.class);
+        PowerMockito.when(LocalOutgoingServerSession.authenticateDomain(anyString(), anyString())).thenReturn(true);
+        // The sessions to slow.example take until the test releases them
+        PowerMockito.when(LocalOutgoingServerSession.authenticateDomain(anyString(), eq("slow.example")))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                        release.await();
+                        return true;
+                    }
+                });
+        PowerMockito.when(LocalOutgoingServerSession.authenticateDomain(anyString(), eq("down.example")))
+                .thenReturn(false);
+
+        promise = OutgoingSessionPromise.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void testFullQueueOnlyRejectsPacketsOfItsDomain() throws Exception {
+        promise.process(message("slow.example"));
+        // Wait until the first packet is being sent, so the queue is empty
+        waitFor("slow.example", new Condition() {
+            @Override
+            public boolean isMet(OutgoingSessionPromise.QueueStatistics statistics) {
+                return statistics.getSize() == 0;
+            }
+        });
+        for (int i = 0; i < 1001; i++) {
+            promise.process(message("slow.example"));
+        }
+        OutgoingSessionPromise.QueueStatistics slow = getStatistics("slow.example");
+        assertEquals(1000, slow.getSize());
+        assertEquals(1001, slow.getQueued());
+        assertEquals(1, slow.getBounced());
+
+        // Other domains are not delayed by the full queue
+        promise.process(message("fast.example"));
+        waitFor("fast.example", new Condition() {
+            @Override
+            public boolean isMet(OutgoingSessionPromise.QueueStatistics statistics) {
+                return statistics.getSent() == 1;
+            }
+        });
+        assertEquals(1000, getStatistics("slow.example").getSize());
+
+        release.countDown();
+        waitFor("slow.example", new Condition() {
+            @Override
+            public boolean isMet(OutgoingSessionPromise.QueueStatistics statistics) {
+                return statistics.getSent() == 1001;
+            }
+        });
+    }
+
+    @Test
+    public void testUnreachableDomainIsBackedOff() throws Exception {
+        promise.process(message("down.example"));
+        waitFor("down.example", new Condition() {
+            @Override
+            public boolean isMet(OutgoingSessionPromise.QueueStatistics statistics) {
+                return statistics.getFailedAttempts() == 1;
+            }
+        });
+        OutgoingSessionPromise.QueueStatistics down = getStatistics("down.example");
+        assertEquals(1, down.getBounced());
+        assertTrue(down.getRetryTime() > System.currentTimeMillis());
+
+        // Packets are returned right away while the domain is backed off
+        promise.process(message("down.example"));
+        down = getStatistics("down.example");
+        assertEquals(1, down.getQueued());
+        assertEquals(2, down.getBounced());
+        assertEquals(1, down.getFailedAttempts());
+    }
+
+    private static Packet message(String domain) {
+        final Message message = new Message();
+        message.setFrom("romeo@local.example/orchard");
+        message.setTo("juliet@" + domain);
+        message.setBody("Hi");
+        return message;
+    }
+
+    private OutgoingSessionPromise.QueueStatistics getStatistics(String domain) {
+        for (OutgoingSessionPromise.QueueStatistics statistics : promise.getQueueStatistics()) {
+            if (statistics.getDomain().equals(domain)) {
+                return statistics;
+            }
+        }
+        fail("No queue for " + domain);
+        return null;
+    }
+
+    private void waitFor(String domain, Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.isMet(getStatistics(domain))) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for the queue of " + domain);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+
+        boolean isMet(OutgoingSessionPromise.QueueStatistics statistics);
+    }
+}
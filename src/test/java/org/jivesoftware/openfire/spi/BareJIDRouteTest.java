@@ -0,0 +1,110 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+
+import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+public class BareJIDRouteTest {
+
+    @Test
+    public void testBestSessionByPriorityShowAndActivity() {
+        LocalClientSession phone = session("phone", 5, Presence.Show.away, 300, false);
+        LocalClientSession desktop = session("desktop", 5, null, 100, true);
+        LocalClientSession web = session("web", 5, null, 200, false);
+        LocalClientSession tablet = session("tablet", 1, Presence.Show.chat, 400, true);
+        LocalClientSession hidden = session("hidden", -1, null, 500, true);
+
+        BareJIDRoute route = BareJIDRoute.empty().add(phone).add(desktop).add(web).add(tablet).add(hidden);
+
+        assertArrayEquals(new ClientSession[] {phone, desktop, web, tablet}, route.getNonNegativeSessions());
+        assertArrayEquals(new ClientSession[] {desktop, tablet}, route.getCarbonsEnabledSessions());
+        assertArrayEquals(new ClientSession[] {phone, desktop, web}, route.getHighestPrioritySessions());
+        assertSame(web, route.getBestSession());
+    }
+
+    @Test
+    public void testRefreshReflectsPresenceChanges() {
+        LocalClientSession phone = session("phone", 0, null, 100, false);
+        LocalClientSession desktop = session("desktop", 0, null, 200, false);
+        BareJIDRoute route = BareJIDRoute.empty().add(phone).add(desktop);
+        assertSame(desktop, route.getBestSession());
+
+        Presence presence = new Presence();
+        presence.setPriority(10);
+        when(phone.getPresence()).thenReturn(presence);
+        when(phone.isMessageCarbonsEnabled()).thenReturn(true);
+
+        // Entries are immutable until refreshed
+        assertSame(desktop, route.getBestSession());
+        route = route.refresh();
+        assertSame(phone, route.getBestSession());
+        assertArrayEquals(new ClientSession[] {phone}, route.getCarbonsEnabledSessions());
+    }
+
+    @Test
+    public void testAddReplacesAndRemoveDropsSessions() {
+        LocalClientSession phone = session("phone", 0, null, 100, false);
+        LocalClientSession newPhone = session("phone", 0, null, 100, false);
+        LocalClientSession desktop = session("desktop", 0, Presence.Show.dnd, 100, false);
+
+        BareJIDRoute route = BareJIDRoute.empty().add(phone).add(desktop).add(newPhone);
+        assertArrayEquals(new ClientSession[] {newPhone, desktop}, route.getNonNegativeSessions());
+
+        route = route.remove(new JID("juliet@example.com/phone"));
+        assertArrayEquals(new ClientSession[] {desktop}, route.getNonNegativeSessions());
+        assertSame(desktop, route.getBestSession());
+        assertNull(route.remove(new JID("juliet@example.com/desktop")));
+    }
+
+    @Test
+    public void testDirectedPresenceOfUnavailableSessionBypassesEntry() {
+        LocalClientSession phone = session("phone", 0, null, 100, false);
+        LocalClientSession invisible = session("invisible", 0, null, 200, false);
+        when(invisible.getPresence()).thenReturn(new Presence(Presence.Type.unavailable));
+        BareJIDRoute route = BareJIDRoute.empty().add(phone).add(invisible);
+
+        JID romeo = new JID("romeo@example.com/orchard");
+        JID nurse = new JID("nurse@example.com/kitchen");
+        PresenceUpdateHandler presenceUpdateHandler = mock(PresenceUpdateHandler.class);
+        when(presenceUpdateHandler.hasDirectPresence(invisible.getAddress(), romeo)).thenReturn(true);
+        // Only unavailable sessions matter: available ones are candidates anyway
+        when(presenceUpdateHandler.hasDirectPresence(phone.getAddress(), nurse)).thenReturn(true);
+
+        assertArrayEquals(new ClientSession[] {phone}, route.getNonNegativeSessions());
+        assertTrue(route.hasDirectPresence(romeo, presenceUpdateHandler));
+        assertFalse(route.hasDirectPresence(nurse, presenceUpdateHandler));
+        assertFalse(route.hasDirectPresence(null, presenceUpdateHandler));
+
+        // Once available, the session is a candidate of the entry for every sender
+        when(invisible.getPresence()).thenReturn(new Presence());
+        route = route.refresh();
+        assertArrayEquals(new ClientSession[] {phone, invisible}, route.getNonNegativeSessions());
+        assertFalse(route.hasDirectPresence(romeo, presenceUpdateHandler));
+    }
+
+    private static LocalClientSession session(String resource, int priority, Presence.Show show,
+            long lastActive, boolean carbons) {
+        Presence presence = new Presence();
+        presence.setPriority(priority);
+        presence.setShow(show);
+        LocalClientSession session = mock(LocalClientSession.class);
+        when(session.getAddress()).thenReturn(new JID("juliet", "example.com", resource));
+        when(session.getPresence()).thenReturn(presence);
+        when(session.getLastActiveDate()).thenReturn(new Date(lastActive));
+        when(session.isMessageCarbonsEnabled()).thenReturn(carbons);
+        return session;
+    }
+}
@@ -0,0 +1,207 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Unit tests for the offline presences that {@link PresenceManagerImpl} writes behind. Writes
+ * to the database are recorded instead of executed.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ClusterManager.class)
+public class PresenceManagerImplTest {
+
+    private static final User JULIET = new User("juliet", null, null, null, null);
+
+    /**
+     * The offline presences written to the database, as "username=status". A deleted offline
+     * presence is written as "username=".
+     */
+    private final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+    private volatile CountDownLatch writing;
+    private volatile CountDownLatch release;
+    private PresenceManagerImpl manager;
+
+    @Before
+    public void setUp() throws Exception {
+        CacheFactory.initialize();
+        CacheFactory.createCache("Offline Presence Cache").clear();
+        CacheFactory.createCache("Last Activity Cache").clear();
+        PowerMockito.mockStatic(ClusterManager.class);
+
+        final XMPPServer server = mock(XMPPServer.class);
+        when(server.isLocal(any(JID.class))).thenReturn(true);
+        final UserManager userManager = mock(UserManager.class);
+        when(userManager.isRegisteredUser(anyString())).thenReturn(true);
+        when(server.getUserManager()).thenReturn(userManager);
+        final SessionManager sessionManager = mock(SessionManager.class);
+        when(sessionManager.getActiveSessionCount(anyString())).thenReturn(0);
+        when(sessionManager.getSessionCount(anyString())).thenReturn(1);
+        when(server.getSessionManager()).thenReturn(sessionManager);
+
+        manager = new PresenceManagerImpl() {
+            @Override
+            void writeToDatabase(List<Map.Entry<String, OfflinePresence>> batch) {
+                final CountDownLatch writing = PresenceManagerImplTest.this.writing;
+                if (writing != null) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                for (Map.Entry<String, OfflinePresence> entry : batch) {
+                    writeToDatabase(entry.getKey(), entry.getValue());
+                }
+            }
+
+            @Override
+            void writeToDatabase(String username, OfflinePresence offlinePresence) {
+                String status = "";
+                if (offlinePresence.date != null) {
+                    status = offlinePresence.presence.replaceAll(".*<status>(.*)</status>.*", "$1");
+                }
+                writes.add(username + "=" + status);
+            }
+        };
+        manager.initialize(server);
+        manager.startWriteBehind(TimeUnit.HOURS.toMillis(1), 100);
+    }
+
+    @After
+    public void tearDown() {
+        if (release != null) {
+            release.countDown();
+        }
+        manager.stop();
+    }
+
+    @Test
+    public void testChangesOfTheSameUserAreCoalesced() {
+        manager.userUnavailable(unavailable("juliet", "At the balcony"));
+        manager.userAvailable(available("juliet"));
+        manager.userUnavailable(unavailable("juliet", "Asleep"));
+        manager.userUnavailable(unavailable("romeo", "In the orchard"));
+        assertTrue(writes.isEmpty());
+        assertEquals(2, manager.getPendingPresenceCount());
+        assertEquals(2, manager.getCoalescedPresenceWrites());
+
+        manager.flushPendingPresences();
+        Collections.sort(writes);
+        assertEquals(list("juliet=Asleep", "romeo=In the orchard"), writes);
+        assertEquals(0, manager.getPendingPresenceCount());
+    }
+
+    @Test
+    public void testPendingChangesAreReadThrough() {
+        manager.userUnavailable(unavailable("juliet", "At the balcony"));
+        // Forget the cached values, as another cluster node or a cache eviction would
+        CacheFactory.createCache("Offline Presence Cache").clear();
+        CacheFactory.createCache("Last Activity Cache").clear();
+
+        assertEquals("At the balcony", manager.getLastPresenceStatus(JULIET));
+        final long lastActivity = manager.getLastActivity(JULIET);
+        assertTrue(lastActivity >= 0 && lastActivity < TimeUnit.MINUTES.toMillis(1));
+        assertTrue(writes.isEmpty());
+
+        manager.userAvailable(available("juliet"));
+        assertNull(manager.getLastPresenceStatus(JULIET));
+        assertEquals(-1, manager.getLastActivity(JULIET));
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void testChangesReplacedWhileBeingWrittenAreWrittenAgain() throws Exception {
+        manager.userUnavailable(unavailable("juliet", "At the balcony"));
+        writing = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        final Thread flush = new Thread() {
+            @Override
+            public void run() {
+                manager.flushPendingPresences();
+            }
+        };
+        flush.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // The write of the replaced change is not avoided
+        manager.userAvailable(available("juliet"));
+        assertEquals(0, manager.getCoalescedPresenceWrites());
+        writing = null;
+        release.countDown();
+        flush.join(5000);
+        assertEquals(list("juliet=At the balcony"), writes);
+        assertEquals(1, manager.getPendingPresenceCount());
+
+        manager.flushPendingPresences();
+        assertEquals(list("juliet=At the balcony", "juliet="), writes);
+        assertEquals(0, manager.getPendingPresenceCount());
+    }
+
+    @Test
+    public void testPendingChangesAreWrittenBeforeWritesOfACluster() {
+        manager.userUnavailable(unavailable("juliet", "At the balcony"));
+        manager.userUnavailable(unavailable("romeo", "In the orchard"));
+
+        PowerMockito.when(ClusterManager.isClusteringStarted()).thenReturn(true);
+        manager.userAvailable(available("juliet"));
+        assertEquals(3, writes.size());
+        assertEquals("juliet=", writes.get(2));
+        assertTrue(writes.contains("juliet=At the balcony"));
+        assertTrue(writes.contains("romeo=In the orchard"));
+        assertEquals(0, manager.getPendingPresenceCount());
+
+        // Nothing older is left to overwrite the last change
+        manager.flushPendingPresences();
+        assertEquals(3, writes.size());
+    }
+
+    private static Presence unavailable(String username, String status) {
+        final Presence presence = new Presence(Presence.Type.unavailable);
+        presence.setFrom(new JID(username, "example.com", "balcony"));
+        presence.setStatus(status);
+        return presence;
+    }
+
+    private static Presence available(String username) {
+        final Presence presence = new Presence();
+        presence.setFrom(new JID(username, "example.com", "balcony"));
+        return presence;
+    }
+
+    private static List<String> list(String... values) {
+        final List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,75 @@
+package org.jivesoftware.openfire.streammanagement;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class UnackedStanzaBufferTest {
+
+    @Test
+    public void testKeepsOrderWhenGrowingAfterWrapAround() {
+        final UnackedStanzaBuffer buffer = new UnackedStanzaBuffer();
+        for (int i = 1; i <= 6; i++) {
+            buffer.add(i, i, payload(i), i % 2 == 0);
+        }
+        for (int i = 0; i < 4; i++) {
+            buffer.removeFirst();
+        }
+        // Wraps around the end of the arrays and then forces them to grow
+        for (int i = 7; i <= 20; i++) {
+            buffer.add(i, i, payload(i), i % 2 == 0);
+        }
+        assertEquals(16, buffer.size());
+        assertEquals(5, buffer.getFirstSequence());
+        assertEquals(20, buffer.getLastSequence());
+        for (int i = 0; i < buffer.size(); i++) {
+            assertEquals(i + 5, buffer.getSequence(i));
+            assertArrayEquals(payload(i + 5), buffer.getPayload(i));
+            assertEquals((i + 5) % 2 == 0, buffer.isMessage(i));
+        }
+        buffer.removeLast();
+        assertEquals(19, buffer.getLastSequence());
+        buffer.clear();
+    }
+
+    @Test
+    public void testCountsBytes() {
+        final long before = UnackedStanzaBuffer.getTotalBytes();
+        final UnackedStanzaBuffer buffer = new UnackedStanzaBuffer();
+        buffer.add(1, 0, new byte[10], true);
+        buffer.add(2, 0, new byte[20], false);
+        assertEquals(30, buffer.getBytes());
+        assertEquals(before + 30, UnackedStanzaBuffer.getTotalBytes());
+
+        buffer.removeFirst();
+        assertEquals(20, buffer.getBytes());
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getBytes());
+        assertEquals(before, UnackedStanzaBuffer.getTotalBytes());
+    }
+
+    @Test
+    public void testReusableAfterBecomingEmpty() {
+        final UnackedStanzaBuffer buffer = new UnackedStanzaBuffer();
+        for (int i = 1; i <= 100; i++) {
+            buffer.add(i, 0, payload(i), false);
+        }
+        while (!buffer.isEmpty()) {
+            buffer.removeFirst();
+        }
+        buffer.add(101, 0, payload(101), false);
+        assertFalse(buffer.isEmpty());
+        assertEquals(101, buffer.getFirstSequence());
+        buffer.clear();
+    }
+
+    private static byte[] payload(int i) {
+        return ("<message id='" + i + "'/>").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package org.jivesoftware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // Tiny wheels, so that the tests exercise the overflow wheels
+        wheel = new TimingWheel("TimingWheelTest", 1, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testRunsTasksInOrderOfTheirDeadline() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        final int[] delays = {150, 5, 60, 20};
+        for (final int delay : delays) {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                    latch.countDown();
+                }
+            }, delay);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(5, 20, 60, 150), order);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDoesNotRunTasksBeforeTheirDeadline() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                latch.countDown();
+            }
+        }, 100);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Ran after " + elapsed[0] + " ms", elapsed[0] >= 99);
+    }
+
+    @Test
+    public void testCancelledTasksDoNotRun() throws Exception {
+        final CountDownLatch cancelledRan = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancelledRan.countDown();
+            }
+        }, 30);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 80);
+        assertEquals(2, wheel.size());
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.size());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelledRan.getCount());
+    }
+
+    @Test
+    public void testRunsDueTasksImmediately() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 0);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,140 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class ClockCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+        final Cache<String, String> cache = new ClockCache<>("test", -1, -1);
+        cache.put("a", "value");
+
+        assertEquals("value", cache.get("a"));
+        assertEquals("value", cache.get("a"));
+        assertNull(cache.get("b"));
+
+        assertEquals(2, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+    }
+
+    @Test
+    public void testCacheSizeFollowsPutAndRemove() throws Exception {
+        final Cache<String, String> cache = new ClockCache<>("test", -1, -1);
+        final int size = CacheSizes.sizeOfAnything("value");
+
+        assertNull(cache.put("a", "value"));
+        assertEquals(size, cache.getCacheSize());
+        assertEquals("value", cache.put("a", "value"));
+        assertEquals(size, cache.getCacheSize());
+        cache.put("b", "value");
+        assertEquals(2 * size, cache.getCacheSize());
+
+        assertEquals("value", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(size, cache.getCacheSize());
+
+        cache.clear();
+        assertEquals(0, cache.getCacheSize());
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testCullKeepsRecentlyUsedEntries() throws Exception {
+        final int entrySize = CacheSizes.sizeOfAnything("value-00");
+        final Cache<String, String> cache = new ClockCache<>("test", entrySize * 100, -1);
+        for (int i = 0; i < 50; i++) {
+            cache.put(key(i), "value-00");
+        }
+        // Mark the first half as recently used.
+        for (int i = 0; i < 50; i++) {
+            cache.get(key(i));
+        }
+        for (int i = 50; i < 150; i++) {
+            cache.put(key(i), "value-00");
+        }
+
+        assertTrue(cache.getCacheSize() <= cache.getMaxCacheSize());
+        assertEquals(cache.size() * entrySize, cache.getCacheSize());
+        int retained = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.containsKey(key(i))) {
+                retained++;
+            }
+        }
+        assertTrue("Recently used entries should survive eviction", retained > 25);
+    }
+
+    @Test
+    public void testTooLargeObjectIsNotAdded() {
+        final Cache<String, String> cache = new ClockCache<>("test", 10, -1);
+        cache.put("a", "a value that is larger than the cache itself");
+
+        assertFalse(cache.containsKey("a"));
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotReturned() throws Exception {
+        final Cache<String, String> cache = new ClockCache<>("test", -1, 50);
+        cache.put("a", "value");
+        assertEquals("value", cache.get("a"));
+
+        Thread.sleep(100);
+
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testConcurrentUpdatesKeepSizeConsistent() throws Exception {
+        final Cache<Integer, String> cache = new ClockCache<>("test", -1, -1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        final int key = (i * 31 + seed) % 64;
+                        if (i % 3 == 0) {
+                            cache.remove(key);
+                        }
+                        else {
+                            cache.put(key, "value");
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(cache.size() * CacheSizes.sizeOfAnything("value"), cache.getCacheSize());
+    }
+
+    private static String key(int i) {
+        return "key-" + i;
+    }
+}
@@ -18,6 +18,7 @@
 --%>
 
 <%@ page import="org.jivesoftware.openfire.SessionManager,
+                 org.jivesoftware.openfire.server.OutgoingSessionPromise,
                  org.jivesoftware.openfire.session.OutgoingServerSession,
                  org.jivesoftware.openfire.session.Session,
                  org.jivesoftware.util.ParamUtils,
@@ -228,6 +229,45 @@
 
 <%  } %>
 
+<%  // Packets waiting for a connection to a remote server
+    List<OutgoingSessionPromise.QueueStatistics> queueStats = OutgoingSessionPromise.getInstance().getQueueStatistics();
+    if (!queueStats.isEmpty()) {
+%>
+<br>
+<p>
+<fmt:message key="server.session.summary.queue.info" />
+</p>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="server.session.label.host" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.size" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.sent" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.bounced" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.failures" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.latency" /></th>
+        <th nowrap><fmt:message key="server.session.summary.queue.retry" /></th>
+    </tr>
+</thead>
+<tbody>
+    <%  for (OutgoingSessionPromise.QueueStatistics stats : queueStats) { %>
+        <tr class="jive-odd">
+            <td><%= StringUtils.escapeHTMLTags(stats.getDomain()) %></td>
+            <td><%= stats.getSize() %></td>
+            <td><%= stats.getSent() %></td>
+            <td><%= stats.getBounced() %></td>
+            <td><%= stats.getFailedAttempts() %></td>
+            <td><%= stats.getAverageLatency() %> / <%= stats.getMaxLatency() %></td>
+            <td><%= stats.getRetryTime() < 0 ? "&nbsp;" : JiveGlobals.formatTime(new Date(stats.getRetryTime())) %></td>
+        </tr>
+    <%  } %>
+</tbody>
+</table>
+</div>
+<%  } %>
+
 <br>
 <p>
 <fmt:message key="server.session.summary.last_update" />: <%= JiveGlobals.formatDateTime(new Date()) %>